@@ -11,7 +11,6 @@ import android.widget.RelativeLayout;
 
 import androidx.annotation.NonNull;
 
-import com.bumptech.glide.Glide;
 import com.galix.avcore.avcore.AVComponent;
 import com.galix.avcore.avcore.AVVideo;
 import com.galix.avcore.util.VideoUtil;
@@ -62,7 +61,8 @@ public class ComponentView extends RelativeLayout {
 
     private class ThumbInfo {
         public int type;
-        public String imgPath;
+        public String videoPath;
+        public long pts;
         public long duration;
     }
 
@@ -76,7 +76,8 @@ public class ComponentView extends RelativeLayout {
                 while (pts < video.getClipEndTime()) {
                     ThumbInfo img = new ThumbInfo();
                     img.type = DRAG_IMG;
-                    img.imgPath = VideoUtil.getThumbJpg(getContext(), video.getPath(), pts);
+                    img.videoPath = video.getPath();
+                    img.pts = pts;
                     img.duration = Math.min(video.getClipEndTime() - pts, 1000000 - pts % 1000000);
                     pts = (pts / 1000000 + 1) * 1000000;
                     mThumbsList.add(img);
@@ -94,9 +95,7 @@ public class ComponentView extends RelativeLayout {
                 ImageView imageView = new ImageView(getContext());
                 imageView.setLayoutParams(new LinearLayout.LayoutParams((int) ((thumbInfo.duration / 1000000.f) * (mTileSize - mPaddingTopBottom * 2)), mTileSize - mPaddingTopBottom * 2));
                 imageView.setScaleType(ImageView.ScaleType.FIT_XY);
-                Glide.with(getContext())
-                        .load(thumbInfo.imgPath)
-                        .into(imageView);
+                imageView.setImageBitmap(VideoUtil.getThumb(getContext(), thumbInfo.videoPath, thumbInfo.pts, null));
                 mVideoLayout.addView(imageView);
             }
         }
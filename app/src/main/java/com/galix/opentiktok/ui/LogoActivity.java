@@ -11,6 +11,7 @@ import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
 
+import com.galix.avcore.util.EncoderProbe;
 import com.galix.opentiktok.R;
 import com.galix.opentiktok.dp.GameActivity;
 
@@ -50,6 +51,8 @@ public class LogoActivity extends BaseActivity {
 //        }, 3000);
 
         checkPermission();
+        //提前探测编码器能力，合成时直接读缓存
+        EncoderProbe.init(getApplicationContext());
     }
 
     //权限部分
@@ -33,10 +33,13 @@ import com.galix.avcore.gl.GLManager;
 import com.galix.avcore.render.ImageViewRender;
 import com.galix.avcore.render.TextRender;
 import com.galix.avcore.render.filters.TransactionRender;
+import com.galix.avcore.util.FileUtils;
 import com.galix.avcore.util.GestureUtils;
+import com.galix.avcore.util.PcmCache;
 import com.galix.avcore.util.VideoUtil;
 import com.galix.opentiktok.R;
 
+import java.io.File;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -54,6 +57,7 @@ public class VideoEditActivity extends BaseActivity {
 
     private static final String TAG = VideoEditActivity.class.getSimpleName();
     private static final int THUMB_SLOT_WIDTH = 60;
+    private static final long PCM_CACHE_BUDGET = 512 * 1024 * 1024L;//PCM缓存磁盘预算
 
     private LinkedList<Integer> mStickerList;//贴纸
     private SurfaceView mSurfaceView;
@@ -252,6 +256,8 @@ public class VideoEditActivity extends BaseActivity {
         GLManager.getManager().installContext(this);
 
         mVideoPreViewPanel = findViewById(R.id.rl_video_preview_panel);
+        //音频解码一次后走PCM缓存
+        PcmCache.getInstance().configure(FileUtils.getCacheDir(this) + File.separator + "pcm", PCM_CACHE_BUDGET);
         long startTime = 0;
         for (VideoUtil.FileEntry fileEntry : VideoUtil.mTargetFiles) {
             AVVideo video = new AVVideo(true, startTime, fileEntry.path, null);
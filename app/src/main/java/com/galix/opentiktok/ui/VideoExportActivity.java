@@ -1,7 +1,6 @@
 package com.galix.opentiktok.ui;
 
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Color;
 import android.os.Bundle;
 import android.util.Log;
@@ -13,6 +12,7 @@ import androidx.annotation.Nullable;
 import com.galix.avcore.avcore.AVComponent;
 import com.galix.avcore.avcore.AVEngine;
 import com.galix.avcore.avcore.AVVideo;
+import com.galix.avcore.util.AndroidThermalSource;
 import com.galix.avcore.util.FileUtils;
 import com.galix.avcore.util.VideoUtil;
 import com.galix.opentiktok.R;
@@ -51,12 +51,14 @@ public class VideoExportActivity extends BaseActivity {
             return;
         }
         AVVideo firstVideo = (AVVideo) mAVEngine.findComponents(AVComponent.AVComponentType.VIDEO, 0).get(0);
-        String imgPath = VideoUtil.getThumbJpg(this, firstVideo.getPath(), 0);
-        mBackGround = BitmapFactory.decodeFile(imgPath);
+        mBackGround = VideoUtil.getThumb(this, firstVideo.getPath(), 0, null);
         mAVEngine.getVideoState().mTargetGop = 10;
         mAVEngine.getVideoState().mTargetAb = 44100;
         mAVEngine.getVideoState().mTargetVb = (int) (2.5 * 1024 * 1024);
         mAVEngine.getVideoState().mTargetPath = FileUtils.getCompositeDir(this) + File.separator + "composite.mp4";
+        mAVEngine.getVideoState().mResumableExport = true;//退出页面或者进程被杀后再次合成可以复用已完成的分片
+        mAVEngine.getVideoState().mThermalSource = new AndroidThermalSource(this);
+        mAVEngine.getVideoState().mJobScheduler = VideoUtil.getJobScheduler(this);//合成时后台缩略图和代理任务让出资源
         mAVEngine.getVideoState().hasAudio = true;
         mAVEngine.getVideoState().hasVideo = true;
         mAVEngine.getVideoState().readyAudio = false;
@@ -2,7 +2,6 @@ package com.galix.opentiktok.ui;
 
 import android.content.Context;
 import android.content.Intent;
-import android.media.MediaMetadataRetriever;
 import android.os.Bundle;
 import android.os.Environment;
 import android.os.Handler;
@@ -20,13 +19,16 @@ import androidx.core.widget.ContentLoadingProgressBar;
 import androidx.recyclerview.widget.GridLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
+import com.bumptech.glide.Glide;
 import com.galix.avcore.util.FileUtils;
+import com.galix.avcore.util.MediaIndex;
 import com.galix.avcore.util.VideoUtil;
 import com.galix.opentiktok.R;
 
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -41,12 +43,15 @@ import java.util.List;
 public class VideoPickActivity extends BaseActivity {
 
     private static final String TAG = VideoPickActivity.class.getSimpleName();
+    private static final int PROBE_THREADS = 3;//并行探测的文件数，受限于硬件解码器数量
     private HandlerThread mLoadThread;
     private Handler mLoadHandler;
-    private ArrayList<VideoUtil.FileEntry> mFileCache;
+    private boolean mPreparing = false;
+    private MediaIndex mMediaIndex;
+    private ArrayList<MediaIndex.Item> mFileCache = new ArrayList<>();
     private RecyclerView mRecyclerView;
     private ContentLoadingProgressBar mProgressBar;
-    private LinkedList<VideoUtil.FileEntry> mPickList;
+    private LinkedHashMap<String, VideoUtil.FileEntry> mPickMap = new LinkedHashMap<>();
 
     public static void start(Context context) {
         Intent intent = new Intent(context, VideoPickActivity.class);
@@ -73,7 +78,6 @@ public class VideoPickActivity extends BaseActivity {
         getSupportActionBar().setTitle(R.string.choose_video);
         mProgressBar = findViewById(R.id.pb_loading);
         mProgressBar.hide();
-        mPickList = new LinkedList<>();
         mRecyclerView = findViewById(R.id.recyclerview_preview);
         mRecyclerView.setLayoutManager(new GridLayoutManager(this, 2));
         mRecyclerView.setAdapter(new RecyclerView.Adapter() {
@@ -93,25 +97,31 @@ public class VideoPickActivity extends BaseActivity {
             @Override
             public void onBindViewHolder(@NonNull RecyclerView.ViewHolder holder, int position) {
                 ImageViewHolder imageViewHolder = (ImageViewHolder) holder;
-                imageViewHolder.imageView.setImageBitmap(mFileCache.get(position).thumb);
-                VideoUtil.FileEntry fileEntry = mFileCache.get(position);
+                MediaIndex.Item item = mFileCache.get(position);
+                //缩略图是缓存目录里的小JPG，异步加载
+                if (item.thumb != null) {
+                    Glide.with(VideoPickActivity.this).load(new File(item.thumb)).into(imageViewHolder.imageView);
+                } else {
+                    Glide.clear(imageViewHolder.imageView);
+                    imageViewHolder.imageView.setImageBitmap(null);
+                }
                 imageViewHolder.pickBtn.setSelected(
-                        mPickList.contains(fileEntry)
+                        mPickMap.containsKey(item.path)
                 );
                 imageViewHolder.itemView.setOnClickListener(new View.OnClickListener() {
                     @Override
                     public void onClick(View v) {
-                        if (mPickList.contains(fileEntry)) {
-                            mPickList.remove(fileEntry);
+                        if (mPickMap.containsKey(item.path)) {
+                            mPickMap.remove(item.path);
                         } else {
-                            mPickList.add(fileEntry);
+                            mPickMap.put(item.path, toFileEntry(item));
                         }
                         notifyDataSetChanged();
                     }
                 });
                 imageViewHolder.textView.setText(
                         String.format("width:%d\nheight:%d\nduration:%ds\npath:%s",
-                                fileEntry.width, fileEntry.height, fileEntry.duration / 1000000, fileEntry.path));
+                                item.width, item.height, item.duration / 1000000, item.path));
             }
 
             @Override
@@ -121,13 +131,14 @@ public class VideoPickActivity extends BaseActivity {
 
         });
 
-        //创建线程开始加载
+        //先显示上次的索引，后台对比文件列表，只探测新增和变化的文件
+        mMediaIndex = VideoUtil.getMediaIndex(this);
         mLoadThread = new HandlerThread("LoadResource");
         mLoadThread.start();
         mLoadHandler = new Handler(mLoadThread.getLooper());
         mLoadHandler.post(() -> {
+            showItems(mMediaIndex.getVideos());
             long now1 = System.currentTimeMillis();
-            mFileCache = new ArrayList<>();
             List<String> targetPaths = new LinkedList<>();
             targetPaths.add(getCacheDir().toString());
             targetPaths.add(Environment.getExternalStorageDirectory().getPath());//搜索sdcard目录
@@ -143,37 +154,50 @@ public class VideoPickActivity extends BaseActivity {
                     mp4List.addAll(Arrays.asList(mp4s));
                 }
             }
-//            List<File> mp4List = new LinkedList<>();
-//            mp4List.add(new File("/sdcard/test.mp4"));
-            for (File mp4 : mp4List) {
-                MediaMetadataRetriever mediaMetadataRetriever = new MediaMetadataRetriever();
-                try {
-                    mediaMetadataRetriever.setDataSource(mp4.getAbsolutePath());
-                    if (Integer.parseInt(mediaMetadataRetriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_FRAME_COUNT)) > 0) {
-                        Log.d(TAG, mp4.getAbsolutePath());
-                        VideoUtil.FileEntry fileEntry = new VideoUtil.FileEntry();
-                        fileEntry.duration = Integer.parseInt(mediaMetadataRetriever.extractMetadata
-                                (MediaMetadataRetriever.METADATA_KEY_DURATION)) * 1000;
-                        fileEntry.thumb = mediaMetadataRetriever.getFrameAtIndex(0);
-                        fileEntry.width = Integer.parseInt(mediaMetadataRetriever.extractMetadata(android.media.MediaMetadataRetriever.METADATA_KEY_VIDEO_WIDTH));
-                        fileEntry.height = Integer.parseInt(mediaMetadataRetriever.extractMetadata(android.media.MediaMetadataRetriever.METADATA_KEY_VIDEO_HEIGHT));
-                        fileEntry.path = mp4.getAbsolutePath();
-                        fileEntry.adjustPath = VideoUtil.getAdjustGopVideoPath(VideoPickActivity.this, fileEntry.path);
-                        mFileCache.add(fileEntry);
-                        getWindow().getDecorView().post(() -> mRecyclerView.getAdapter().notifyDataSetChanged());
-                    }
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    continue;
-                } finally {
-                    mediaMetadataRetriever.release();
-                }
+            Context context = getApplicationContext();
+            try {
+                showItems(mMediaIndex.refresh(mp4List, file -> VideoUtil.probeVideo(context, file), PROBE_THREADS,
+                        item -> {
+                            if (item.video) {
+                                showItems(mMediaIndex.getVideos());
+                            }
+                        }));
+            } catch (InterruptedException e) {
+                return;
             }
             long now2 = System.currentTimeMillis();
             Log.d(TAG, "Filter mp4 on /sdcard : Use#" + (now2 - now1));
         });
     }
 
+    /**
+     * 在主线程替换列表，已选中的文件保持选中
+     */
+    private void showItems(List<MediaIndex.Item> items) {
+        getWindow().getDecorView().post(() -> {
+            if (isDestroyed()) return;
+            mFileCache = new ArrayList<>(items);
+            LinkedHashMap<String, VideoUtil.FileEntry> picks = new LinkedHashMap<>();
+            for (MediaIndex.Item item : items) {
+                VideoUtil.FileEntry fileEntry = mPickMap.get(item.path);
+                if (fileEntry != null) {
+                    picks.put(item.path, fileEntry);
+                }
+            }
+            mPickMap = picks;
+            mRecyclerView.getAdapter().notifyDataSetChanged();
+        });
+    }
+
+    private static VideoUtil.FileEntry toFileEntry(MediaIndex.Item item) {
+        VideoUtil.FileEntry fileEntry = new VideoUtil.FileEntry();
+        fileEntry.path = item.path;
+        fileEntry.duration = item.duration;
+        fileEntry.width = item.width;
+        fileEntry.height = item.height;
+        return fileEntry;
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         getMenuInflater().inflate(R.menu.menu_video_pick, menu);
@@ -195,6 +219,7 @@ public class VideoPickActivity extends BaseActivity {
         if (mLoadThread != null) {
             try {
                 mLoadHandler.getLooper().quit();
+                mLoadThread.interrupt();//中断还在进行的探测
                 mLoadThread.join();
             } catch (InterruptedException e) {
                 e.printStackTrace();
@@ -203,14 +228,29 @@ public class VideoPickActivity extends BaseActivity {
     }
 
     private void handleVideo() {
+        if (mPreparing) return;
+        mPreparing = true;
         //跳转前先处理资源
         if (!mProgressBar.isShown()) {
             mProgressBar.show();
         }
-        VideoUtil.processVideo(VideoPickActivity.this, mPickList, msg -> {
-            VideoEditActivity.start(VideoPickActivity.this);
-            finish();
-            return true;
+        LinkedList<VideoUtil.FileEntry> pickList = new LinkedList<>(mPickMap.values());
+        Context context = getApplicationContext();
+        //不再需要扫描，中断还在进行的探测，已经探测完的结果会保存；GOP分析要读文件，放到加载线程
+        mLoadThread.interrupt();
+        mLoadHandler.post(() -> {
+            Thread.interrupted();//清掉给探测的中断
+            for (VideoUtil.FileEntry fileEntry : pickList) {
+                fileEntry.adjustPath = VideoUtil.getAdjustGopVideoPath(context, fileEntry.path);
+            }
+            VideoUtil.processVideo(context, pickList, msg -> {
+                getWindow().getDecorView().post(() -> {
+                    if (isDestroyed()) return;
+                    VideoEditActivity.start(VideoPickActivity.this);
+                    finish();
+                });
+                return true;
+            });
         });
     }
-}
\ No newline at end of file
+}
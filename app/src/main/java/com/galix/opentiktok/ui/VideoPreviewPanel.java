@@ -18,17 +18,20 @@ import androidx.annotation.NonNull;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
-import com.bumptech.glide.Glide;
-import com.bumptech.glide.load.engine.bitmap_recycle.BitmapPool;
-import com.bumptech.glide.load.resource.bitmap.BitmapTransformation;
 import com.galix.avcore.avcore.AVComponent;
 import com.galix.avcore.avcore.AVEngine;
 import com.galix.avcore.avcore.AVVideo;
+import com.galix.avcore.util.ThumbCache;
 import com.galix.avcore.util.VideoUtil;
+import com.galix.avcore.util.job.MediaJob;
+import com.galix.avcore.util.job.MediaJobScheduler;
 import com.galix.opentiktok.R;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 import static androidx.recyclerview.widget.RecyclerView.SCROLL_STATE_DRAGGING;
 import static androidx.recyclerview.widget.RecyclerView.SCROLL_STATE_IDLE;
@@ -56,6 +59,17 @@ public class VideoPreviewPanel extends RelativeLayout {
     private AVEngine.VideoState mVideoState;
     private List<ViewType> mInfoList = new LinkedList<>();
     private int mThumbSize = 60;
+    private static final int PREFETCH_COUNT = 10;//滚动方向预取的缩略图数
+    private ThumbCache mThumbCache;
+    private Map<String, MediaJobScheduler.Ticket> mThumbTickets = new HashMap<>();//时间线持有的拼图任务，key为任务key
+    private int mTicketFirst = RecyclerView.NO_POSITION;
+    private int mTicketLast = RecyclerView.NO_POSITION;
+    //拼图生成后重新绑定，没有命中内存的item这时才能加载到
+    private final MediaJobScheduler.Callback mThumbGenerated = (job, error, cancelled) -> {
+        if (!cancelled && error == null) {
+            post(() -> mThumbPreview.getAdapter().notifyDataSetChanged());
+        }
+    };
 
     public VideoPreviewPanel(Context context, AttributeSet attrs) {
         super(context, attrs);
@@ -65,6 +79,24 @@ public class VideoPreviewPanel extends RelativeLayout {
     }
 
     private void initOther() {
+        mThumbCache = new ThumbCache(getContext(), ThumbCache.defaultBudget());
+        mThumbCache.setListener(this::onThumbLoaded);
+    }
+
+    /**
+     * 缩略图加载到内存后刷新还在屏幕上的对应item
+     */
+    private void onThumbLoaded(ThumbCache.Key key) {
+        LinearLayoutManager layoutManager = (LinearLayoutManager) mThumbPreview.getLayoutManager();
+        int first = layoutManager.findFirstVisibleItemPosition();
+        int last = layoutManager.findLastVisibleItemPosition();
+        if (first == RecyclerView.NO_POSITION) return;
+        for (int i = first; i <= last && i < mInfoList.size(); i++) {
+            ViewType viewType = mInfoList.get(i);
+            if (viewType.type == TYPE_THUMB && key.equals(viewType.thumbKey())) {
+                mThumbPreview.getAdapter().notifyItemChanged(i);
+            }
+        }
     }
 
     private void initChildes() {
@@ -124,6 +156,8 @@ public class VideoPreviewPanel extends RelativeLayout {
                 }
                 mCacheScrollX += dx;
                 updateClip();
+                prefetch(dx);
+                updateThumbTickets(dx);
                 Log.d("onScrolled",mCacheScrollX+"#mCacheScrollX");
             }
         });
@@ -140,6 +174,77 @@ public class VideoPreviewPanel extends RelativeLayout {
         });
     }
 
+    /**
+     * 按滚动方向预取屏幕外的缩略图
+     */
+    private void prefetch(int dx) {
+        if (dx == 0) return;
+        LinearLayoutManager layoutManager = (LinearLayoutManager) mThumbPreview.getLayoutManager();
+        int from = dx > 0 ? layoutManager.findLastVisibleItemPosition() + 1 : layoutManager.findFirstVisibleItemPosition() - 1;
+        int step = dx > 0 ? 1 : -1;
+        List<ThumbCache.Key> keys = new ArrayList<>(PREFETCH_COUNT);
+        for (int i = from; i >= 0 && i < mInfoList.size() && keys.size() < PREFETCH_COUNT; i += step) {
+            ViewType viewType = mInfoList.get(i);
+            if (viewType.type == TYPE_THUMB) {
+                keys.add(viewType.thumbKey());
+            }
+        }
+        if (!keys.isEmpty()) {
+            mThumbCache.prefetch(keys);
+        }
+    }
+
+    /**
+     * 可见范围的拼图任务提升到可见优先级，滚动方向上的按后台优先级提交，离开这个范围的取消
+     * 任务在后台还有processVideo的提交，取消后回到后台优先级
+     */
+    private void updateThumbTickets(int dx) {
+        LinearLayoutManager layoutManager = (LinearLayoutManager) mThumbPreview.getLayoutManager();
+        int first = layoutManager.findFirstVisibleItemPosition();
+        int last = layoutManager.findLastVisibleItemPosition();
+        if (first == RecyclerView.NO_POSITION || (first == mTicketFirst && last == mTicketLast)) return;
+        mTicketFirst = first;
+        mTicketLast = last;
+        MediaJobScheduler scheduler = VideoUtil.getJobScheduler(getContext());
+        int from = Math.max(0, dx < 0 ? first - PREFETCH_COUNT : first);
+        int to = Math.min(mInfoList.size() - 1, dx < 0 ? last : last + PREFETCH_COUNT);
+        Map<String, MediaJobScheduler.Ticket> tickets = new HashMap<>();
+        for (int i = from; i <= to; i++) {
+            ViewType viewType = mInfoList.get(i);
+            if (viewType.type != TYPE_THUMB) continue;
+            boolean visible = i >= first && i <= last;
+            VideoUtil.ThumbTask task = VideoUtil.ThumbTask.sheet(getContext().getApplicationContext(), viewType.videoPath,
+                    viewType.pts, visible ? MediaJob.PRIORITY_VISIBLE_THUMB : MediaJob.PRIORITY_THUMB);
+            MediaJobScheduler.Ticket ticket = tickets.get(task.getKey());
+            if (ticket == null) {
+                ticket = mThumbTickets.remove(task.getKey());
+            }
+            if (ticket == null) {
+                ticket = scheduler.submit(task, mThumbGenerated);
+            } else if (visible) {
+                ticket.promote(MediaJob.PRIORITY_VISIBLE_THUMB);
+            }
+            tickets.put(task.getKey(), ticket);
+        }
+        cancelThumbTickets();
+        mThumbTickets = tickets;
+    }
+
+    private void cancelThumbTickets() {
+        for (MediaJobScheduler.Ticket ticket : mThumbTickets.values()) {
+            ticket.cancel();
+        }
+        mThumbTickets.clear();
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        cancelThumbTickets();
+        mTicketFirst = mTicketLast = RecyclerView.NO_POSITION;
+        mThumbCache.clear();
+    }
+
     @Override
     protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
@@ -163,7 +268,8 @@ public class VideoPreviewPanel extends RelativeLayout {
             mInfoList.get(mInfoList.size() - 1).component = avVideo;
             //计算正确的pts，针对单个文件
             long correctFilePts = currentPts - avVideo.getEngineStartTime() + avVideo.getClipStartTime();
-            mInfoList.get(mInfoList.size() - 1).imgPath = VideoUtil.getThumbJpg(getContext(), avVideo.getPath(), correctFilePts);
+            mInfoList.get(mInfoList.size() - 1).videoPath = avVideo.getPath();
+            mInfoList.get(mInfoList.size() - 1).pts = correctFilePts;
             //处理开头不满1s
             if (correctFilePts % 1000000 != 0) {
                 mInfoList.get(mInfoList.size() - 1).duration = 1000000 - correctFilePts % 1000000;
@@ -185,6 +291,10 @@ public class VideoPreviewPanel extends RelativeLayout {
         }
         mInfoList.add(new ViewType(TYPE_HEAD_FOOT));
         mThumbPreview.getAdapter().notifyDataSetChanged();
+        //数据变化后可见范围重新提交
+        cancelThumbTickets();
+        mTicketFirst = mTicketLast = RecyclerView.NO_POSITION;
+        mThumbPreview.post(() -> updateThumbTickets(0));
     }
 
     public void updateScroll() {
@@ -228,7 +338,8 @@ public class VideoPreviewPanel extends RelativeLayout {
 
     private static class ViewType {
         public int type;
-        public String imgPath;
+        public String videoPath;
+        public long pts;//文件内时间
         public AVComponent component;
         public long duration;
         public boolean clipStart;
@@ -236,12 +347,20 @@ public class VideoPreviewPanel extends RelativeLayout {
         public ViewType(int type) {
             this.type = type;
         }
+
+        /**
+         * 不满1秒时，clipStart保留开头，否则保留结尾
+         */
+        public ThumbCache.Key thumbKey() {
+            return ThumbCache.Key.of(videoPath, pts, Math.min(1.f, duration / 1000000.f), clipStart);
+        }
     }
 
     private static final int TYPE_HEAD_FOOT = 0;
     private static final int TYPE_THUMB = 1;
 
     private static class ThumbViewHolder extends RecyclerView.ViewHolder {
+        public Bitmap bitmap;//从ThumbCache取的，解绑时release
 
         public ThumbViewHolder(@NonNull View itemView) {
             super(itemView);
@@ -265,35 +384,10 @@ public class VideoPreviewPanel extends RelativeLayout {
             ViewType viewType = mInfoList.get(position);
             if (viewType.type == TYPE_THUMB) {
                 holder.itemView.getLayoutParams().width = (int) (viewType.duration / 1000000.f * mThumbSize);
-                if (viewType.duration < 1000000.f) {
-                    Glide.with(getContext())
-                            .load(viewType.imgPath)
-                            .asBitmap()
-                            .transform(new BitmapTransformation(getContext()) {
-                                @Override
-                                protected Bitmap transform(BitmapPool pool, Bitmap toTransform, int outWidth, int outHeight) {
-                                    if (toTransform.getWidth() == holder.itemView.getLayoutParams().width) {
-                                        return toTransform;
-                                    }
-                                    if (viewType.clipStart) {
-                                        return Bitmap.createBitmap(toTransform, 0, 0,
-                                                (int) (toTransform.getWidth() * viewType.duration / 1000000.f), toTransform.getHeight());
-                                    } else {
-                                        return Bitmap.createBitmap(toTransform, (int) (toTransform.getWidth() * (1000000.f - viewType.duration) / 1000000.f), 0,
-                                                (int) (toTransform.getWidth() * viewType.duration / 1000000.f), toTransform.getHeight());
-                                    }
-                                }
-
-                                @Override
-                                public String getId() {
-                                    return viewType.imgPath + "_clip";
-                                }
-                            }).into((ImageView) holder.itemView);
-                } else {
-                    Glide.with(getContext())
-                            .load(viewType.imgPath)
-                            .into((ImageView) holder.itemView);
-                }
+                //裁剪好的缩略图由ThumbCache缓存和复用
+                mThumbCache.release(holder.bitmap);
+                holder.bitmap = mThumbCache.acquire(viewType.thumbKey());
+                ((ImageView) holder.itemView).setImageBitmap(holder.bitmap);
                 holder.itemView.setOnClickListener(new OnClickListener() {
                     @Override
                     public void onClick(View v) {
@@ -306,12 +400,20 @@ public class VideoPreviewPanel extends RelativeLayout {
                 });
             } else {
                 holder.itemView.getLayoutParams().width = mCurrentViewSize.getWidth() / 2;
-                Glide.with(getContext())
-                        .load("")
-                        .into((ImageView) holder.itemView);
+                mThumbCache.release(holder.bitmap);
+                holder.bitmap = null;
+                ((ImageView) holder.itemView).setImageBitmap(null);
             }
         }
 
+        @Override
+        public void onViewRecycled(@NonNull ThumbViewHolder holder) {
+            super.onViewRecycled(holder);
+            ((ImageView) holder.itemView).setImageBitmap(null);
+            mThumbCache.release(holder.bitmap);
+            holder.bitmap = null;
+        }
+
         @Override
         public int getItemCount() {
             return mInfoList.size();
@@ -0,0 +1,187 @@
+package com.galix.avcore.util;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.media.MediaMetadataRetriever;
+import android.media.MediaMuxer;
+import android.opengl.GLES30;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static android.media.MediaMetadataRetriever.OPTION_CLOSEST_SYNC;
+import static org.junit.Assert.*;
+
+/**
+ * 缩略图抽取性能对比
+ * 旧实现: 每6秒一个MediaMetadataRetriever，每秒getFrameAtTime(CLOSEST_SYNC) + createScaledBitmap
+ * 新实现: ThumbnailExtractor一个解码器顺序解码，GPU缩放
+ * 结果打印在logcat的ThumbBenchmark标签下
+ */
+@RunWith(AndroidJUnit4.class)
+public class ThumbnailExtractorBenchmark {
+
+    private static final String TAG = "ThumbBenchmark";
+    private static final int WIDTH = 1280;
+    private static final int HEIGHT = 720;
+    private static final int FPS = 30;
+    private static final long DURATION_US = 30 * 1000000L;
+    private static final long INTERVAL_US = 1000000;
+    private static final int SIZE = 160;
+    private static File mShortGop;
+    private static File mLongGop;
+
+    @BeforeClass
+    public static void createVideos() throws IOException {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        mShortGop = new File(context.getCacheDir(), "bench_gop1.mp4");
+        mLongGop = new File(context.getCacheDir(), "bench_gop5.mp4");
+        writeVideo(mShortGop, 1);
+        writeVideo(mLongGop, 5);
+    }
+
+    @AfterClass
+    public static void deleteVideos() {
+        mShortGop.delete();
+        mLongGop.delete();
+    }
+
+    /**
+     * 用编码器surface画色块生成测试视频
+     */
+    private static void writeVideo(File file, int gopSeconds) throws IOException {
+        MediaFormat format = MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC, WIDTH, HEIGHT);
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, 4000000);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, FPS);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, gopSeconds);
+        MediaCodec encoder = MediaCodec.createEncoderByType(MediaFormat.MIMETYPE_VIDEO_AVC);
+        encoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        EglHelper eglHelper = new EglHelper();
+        eglHelper.create(null, EglHelper.GL_VERSION_3);
+        eglHelper.createSurface(encoder.createInputSurface());
+        eglHelper.makeCurrent();
+        encoder.start();
+        MediaMuxer muxer = new MediaMuxer(file.getAbsolutePath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        int[] track = {-1};
+        int frames = (int) (DURATION_US * FPS / 1000000);
+        for (int i = 0; i <= frames; i++) {
+            if (i == frames) {
+                encoder.signalEndOfInputStream();
+            } else {
+                GLES30.glDisable(GLES30.GL_SCISSOR_TEST);
+                GLES30.glClearColor((i % 90) / 90.f, 0.3f, 1 - (i % 60) / 60.f, 1);
+                GLES30.glClear(GLES30.GL_COLOR_BUFFER_BIT);
+                GLES30.glEnable(GLES30.GL_SCISSOR_TEST);
+                GLES30.glScissor((i * 8) % (WIDTH - 200), (i * 5) % (HEIGHT - 200), 200, 200);
+                GLES30.glClearColor(1, 1, 1, 1);
+                GLES30.glClear(GLES30.GL_COLOR_BUFFER_BIT);
+                eglHelper.setPresentationTime(i * 1000000000L / FPS);
+                eglHelper.swap();
+            }
+            drain(encoder, muxer, info, track, i == frames);
+        }
+        muxer.stop();
+        muxer.release();
+        encoder.stop();
+        encoder.release();
+        eglHelper.release();
+    }
+
+    private static void drain(MediaCodec encoder, MediaMuxer muxer, MediaCodec.BufferInfo info, int[] track, boolean untilEOS) {
+        while (true) {
+            int index = encoder.dequeueOutputBuffer(info, 10000);
+            if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                track[0] = muxer.addTrack(encoder.getOutputFormat());
+                muxer.start();
+            } else if (index >= 0) {
+                ByteBuffer buffer = encoder.getOutputBuffer(index);
+                if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0 && info.size > 0) {
+                    muxer.writeSampleData(track[0], buffer, info);
+                }
+                encoder.releaseOutputBuffer(index, false);
+                if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) return;
+            } else if (!untilEOS) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 旧的ThumbTask流程
+     */
+    private static int retrieverThumbs(File file) {
+        int count = 0;
+        for (long segment = 0; segment < DURATION_US; segment += 6000000) {
+            MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+            retriever.setDataSource(file.getAbsolutePath());
+            for (long pts = segment; pts < Math.min(segment + 6000000, DURATION_US); pts += INTERVAL_US) {
+                Bitmap frame = retriever.getFrameAtTime(pts, OPTION_CLOSEST_SYNC);
+                Bitmap thumb = Bitmap.createScaledBitmap(frame, SIZE, SIZE, true);
+                thumb.recycle();
+                frame.recycle();
+                count++;
+            }
+            retriever.release();
+        }
+        return count;
+    }
+
+    private static int extractorThumbs(File file, boolean syncOnly) throws IOException {
+        ThumbnailExtractor extractor = new ThumbnailExtractor(file.getAbsolutePath(), SIZE, SIZE);
+        extractor.setSyncOnly(syncOnly);
+        return extractor.extract(0, DURATION_US, INTERVAL_US, null, (ptsUs, bitmap) -> {
+            assertEquals(SIZE, bitmap.getWidth());
+        });
+    }
+
+    private static long timeMs(Runnable runnable) {
+        long start = System.nanoTime();
+        runnable.run();
+        return (System.nanoTime() - start) / 1000000;
+    }
+
+    private static void compare(String name, File file, boolean syncOnly) throws IOException {
+        //预热，文件进页缓存，解码器加载
+        retrieverThumbs(file);
+        extractorThumbs(file, syncOnly);
+        int[] counts = new int[2];
+        long retrieverMs = timeMs(() -> counts[0] = retrieverThumbs(file));
+        long extractorMs = timeMs(() -> {
+            try {
+                counts[1] = extractorThumbs(file, syncOnly);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        float speedup = retrieverMs * 1.f / Math.max(1, extractorMs);
+        Log.i(TAG, name + "#retriever#" + counts[0] + "#" + retrieverMs + "ms#extractor#" + counts[1] + "#"
+                + extractorMs + "ms#speedup#" + speedup);
+        assertEquals(counts[0], counts[1]);
+        assertTrue(name + " speedup " + speedup, speedup > 1);
+    }
+
+    @Test
+    public void shortGopSyncOnly() throws IOException {
+        compare("gop1", mShortGop, true);
+    }
+
+    @Test
+    public void longGopFullDecode() throws IOException {
+        compare("gop5", mLongGop, false);
+    }
+}
@@ -1,45 +1,183 @@
 #include <jni.h>
 #include <libyuv/scale.h>
-#include <libyuv/convert.h>
+#include <libyuv/convert_argb.h>
 #include <opencv2/opencv.hpp>
-#include <map>
-
+#include <android/log.h>
+#include <algorithm>
+#include <atomic>
+#include <string>
+#include <thread>
+#include <vector>
+#include "../utils/SLBufferPool.h"
 
 using cv::Mat;
 using cv::Size;
-using std::map;
+using slutil::SLBufferPool;
+using slutil::SLPooledBuffer;
+
+#define LOG_TAG "YuvJni"
+#define LOGE(...) __android_log_print(ANDROID_LOG_ERROR, LOG_TAG, __VA_ARGS__)
+
+//与YuvUtils.FORMAT_*一致
+#define FORMAT_NV21 17
+#define FORMAT_I420 19
+#define FORMAT_I420_PACKED 20
+#define FORMAT_NV12 21
+
+#define MAX_IDLE_BYTES (16 * 1024 * 1024)
+
+//缩放和转换用的中间内存，按字节数复用，多个工作线程共享
+static SLBufferPool gBufferPool(MAX_IDLE_BYTES);
+
+struct YuvFrame {
+    const uint8_t *data;
+    std::string path;
+};
+
+struct YuvJob {
+    int format;
+    int srcW;
+    int srcH;
+    int stride;//Y平面行字节数
+    int sliceHeight;//Y平面行数，UV平面从stride * sliceHeight开始，宽高为奇数时色度向上取整
+    int dstW;
+    int dstH;
+    int quality;
+};
+
+static bool isSupported(int format) {
+    return format == FORMAT_I420 || format == FORMAT_I420_PACKED || format == FORMAT_NV12 || format == FORMAT_NV21;
+}
+
+/**
+ * 缩放到目标尺寸后转成BGR，再编码成JPG
+ */
+static bool scaleAndEncode(const YuvJob &job, const uint8_t *data, const std::string &path) {
+    const uint8_t *srcY = data;
+    const uint8_t *srcUV = data + job.stride * job.sliceHeight;
+    int dstW = job.dstW;
+    int dstH = job.dstH;
+    int halfW = (dstW + 1) / 2;
+    int halfH = (dstH + 1) / 2;
+    SLPooledBuffer bgr(gBufferPool, (size_t) dstW * dstH * 3);
+    if (!bgr.data()) return false;
+    int ret;
+    if (job.format == FORMAT_NV12 || job.format == FORMAT_NV21) {
+        //NV12Scale只按交错的两个字节缩放，UV顺序不影响，NV21同样适用
+        SLPooledBuffer scaled(gBufferPool, (size_t) dstW * dstH + halfW * 2 * halfH);
+        if (!scaled.data()) return false;
+        uint8_t *dstY = scaled.data();
+        uint8_t *dstUV = dstY + dstW * dstH;
+        int srcUVStride = (job.stride + 1) / 2 * 2;
+        ret = libyuv::NV12Scale(srcY, job.stride, srcUV, srcUVStride, job.srcW, job.srcH,
+                                dstY, dstW, dstUV, halfW * 2, dstW, dstH, libyuv::kFilterBilinear);
+        if (ret != 0) return false;
+        //libyuv的RGB24在内存里是B,G,R，正好是OpenCV的BGR
+        if (job.format == FORMAT_NV12) {
+            ret = libyuv::NV12ToRGB24(dstY, dstW, dstUV, halfW * 2, bgr.data(), dstW * 3, dstW, dstH);
+        } else {
+            ret = libyuv::NV21ToRGB24(dstY, dstW, dstUV, halfW * 2, bgr.data(), dstW * 3, dstW, dstH);
+        }
+    } else {
+        int srcHalfStride = (job.stride + 1) / 2;
+        int srcHalfSlice = (job.sliceHeight + 1) / 2;
+        const uint8_t *srcU = srcUV;
+        const uint8_t *srcV = srcU + srcHalfStride * srcHalfSlice;
+        SLPooledBuffer scaled(gBufferPool, (size_t) dstW * dstH + halfW * halfH * 2);
+        if (!scaled.data()) return false;
+        uint8_t *dstY = scaled.data();
+        uint8_t *dstU = dstY + dstW * dstH;
+        uint8_t *dstV = dstU + halfW * halfH;
+        ret = libyuv::I420Scale(srcY, job.stride, srcU, srcHalfStride, srcV, srcHalfStride, job.srcW, job.srcH,
+                                dstY, dstW, dstU, halfW, dstV, halfW, dstW, dstH, libyuv::kFilterBilinear);
+        if (ret != 0) return false;
+        ret = libyuv::I420ToRGB24(dstY, dstW, dstU, halfW, dstV, halfW, bgr.data(), dstW * 3, dstW, dstH);
+    }
+    if (ret != 0) return false;
+    Mat mat(Size(dstW, dstH), CV_8UC3, bgr.data());
+    std::vector<int> params = {cv::IMWRITE_JPEG_QUALITY, job.quality};
+    return cv::imwrite(path, mat, params);
+}
+
+/**
+ * worker个线程(含调用线程)从同一个计数器取帧，处理完才返回
+ */
+static int runBatch(const YuvJob &job, const std::vector<YuvFrame> &frames, int workers) {
+    std::atomic<int> success(0);
+    std::atomic<size_t> next(0);
+    auto worker = [&]() {
+        size_t index;
+        while ((index = next.fetch_add(1)) < frames.size()) {
+            if (frames[index].data && scaleAndEncode(job, frames[index].data, frames[index].path)) {
+                success++;
+            } else {
+                LOGE("scaleAndEncode failed#%s", frames[index].path.c_str());
+            }
+        }
+    };
+    workers = std::max(1, std::min(workers, (int) frames.size()));
+    std::vector<std::thread> threads;
+    for (int i = 1; i < workers; i++) {
+        threads.emplace_back(worker);
+    }
+    worker();
+    for (auto &thread : threads) {
+        thread.join();
+    }
+    return success.load();
+}
 
-#define COLOR_FormatYUV420PackedPlanar 20
-map<int, long> memCache;//内存缓存。。
+static std::string toString(JNIEnv *env, jstring string) {
+    const char *chars = env->GetStringUTFChars(string, nullptr);
+    std::string result(chars ? chars : "");
+    if (chars) env->ReleaseStringUTFChars(string, chars);
+    return result;
+}
 
 extern "C"
 JNIEXPORT void JNICALL
 Java_com_galix_avcore_util_YuvUtils_scaleAndSaveYuvAsJPEG(JNIEnv *env, jclass clazz, jobject yuv_buffer, jint format,
                                                               jint src_w, jint src_h, jint dst_w, jint dst_h, jstring path) {
-    //I420
-    //yyyyyyyyvvvvuuuu
-    if (format == COLOR_FormatYUV420PackedPlanar) {
-        const char *str = env->GetStringUTFChars(path, nullptr);
-        Mat result(Size(dst_w, dst_h), CV_8UC3);
-        uint8_t *yuvBuffer = static_cast<uint8_t *>(env->GetDirectBufferAddress(yuv_buffer));
-        long yuvBufferSize = src_w * src_h * 3 / 2;
-        if (memCache.count(yuvBufferSize) == 0) {
-            char *newYuvBuffer = static_cast<char *>(malloc(dst_w * dst_h * 3 / 2));
-            if (!newYuvBuffer) {
-                return;
-            }
-            memCache[yuvBufferSize] = reinterpret_cast<long>(newYuvBuffer);
-        }
-        uint8_t *dstBuffer = reinterpret_cast<uint8_t *>(memCache[yuvBufferSize]);
-        libyuv::I420Scale(yuvBuffer, src_w, yuvBuffer + src_w * src_h, src_w / 2, yuvBuffer + src_w * src_h * 5 / 4, src_w / 2, src_w, src_h,
-                          dstBuffer, dst_w, dstBuffer + dst_w * dst_h, dst_w / 2, dstBuffer + dst_w * dst_h * 5 / 4, dst_w / 2, dst_w, dst_h,
-                          libyuv::FilterMode::kFilterLinear);
-        Mat mat(Size(dst_w, dst_h * 3 / 2), CV_8UC1, dstBuffer);
-        Mat resultMat;
-        cv::cvtColor(mat, resultMat, CV_YUV2BGR_I420);
-        cv::imwrite(str, resultMat);
-//    env->ReleaseStringUTFChars(path, str);
-    } else {
-        //TODO
+    if (!isSupported(format)) {
+        LOGE("unsupported format#%d", format);
+        return;
+    }
+    auto data = static_cast<const uint8_t *>(env->GetDirectBufferAddress(yuv_buffer));
+    std::string jpgPath = toString(env, path);
+    YuvJob job = {format, src_w, src_h, src_w, src_h, dst_w, dst_h, 95};
+    if (!data || !scaleAndEncode(job, data, jpgPath)) {
+        LOGE("scaleAndEncode failed#%s", jpgPath.c_str());
     }
-}
\ No newline at end of file
+}
+
+extern "C"
+JNIEXPORT jint JNICALL
+Java_com_galix_avcore_util_YuvUtils_scaleAndSaveYuvBatch(JNIEnv *env, jclass clazz, jobjectArray yuv_buffers, jint format,
+                                                             jint src_w, jint src_h, jint stride, jint slice_height,
+                                                             jint dst_w, jint dst_h, jint quality, jobjectArray paths,
+                                                             jint threads) {
+    if (!isSupported(format)) {
+        LOGE("unsupported format#%d", format);
+        return 0;
+    }
+    jsize count = env->GetArrayLength(yuv_buffers);
+    if (count != env->GetArrayLength(paths)) return 0;
+    YuvJob job = {format, src_w, src_h, stride, slice_height, dst_w, dst_h, quality};
+    //JNI对象只在调用线程访问，工作线程拿到的是地址和路径的拷贝
+    std::vector<YuvFrame> frames((size_t) count);
+    for (jsize i = 0; i < count; i++) {
+        jobject buffer = env->GetObjectArrayElement(yuv_buffers, i);
+        auto path = (jstring) env->GetObjectArrayElement(paths, i);
+        frames[i].data = buffer ? static_cast<const uint8_t *>(env->GetDirectBufferAddress(buffer)) : nullptr;
+        frames[i].path = path ? toString(env, path) : "";
+        env->DeleteLocalRef(buffer);
+        env->DeleteLocalRef(path);
+    }
+    return runBatch(job, frames, threads);
+}
+
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_galix_avcore_util_YuvUtils_trimMemory(JNIEnv *env, jclass clazz) {
+    gBufferPool.clear();
+}
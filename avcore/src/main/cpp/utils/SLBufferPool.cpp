@@ -0,0 +1,55 @@
+//
+// Created by galismac on 28/4/2022.
+//
+
+#include "SLBufferPool.h"
+
+#include <cstdlib>
+
+namespace slutil {
+
+    SLBufferPool::SLBufferPool(size_t maxIdleBytes) : mIdleBytes(0), mMaxIdleBytes(maxIdleBytes) {
+    }
+
+    SLBufferPool::~SLBufferPool() {
+        clear();
+    }
+
+    uint8_t *SLBufferPool::acquire(size_t size) {
+        {
+            std::lock_guard<std::mutex> lock(mMutex);
+            auto it = mIdle.find(size);
+            if (it != mIdle.end() && !it->second.empty()) {
+                uint8_t *buffer = it->second.back();
+                it->second.pop_back();
+                mIdleBytes -= size;
+                return buffer;
+            }
+        }
+        return static_cast<uint8_t *>(malloc(size));
+    }
+
+    void SLBufferPool::release(uint8_t *buffer, size_t size) {
+        if (!buffer) return;
+        {
+            std::lock_guard<std::mutex> lock(mMutex);
+            if (mIdleBytes + size <= mMaxIdleBytes) {
+                mIdle[size].push_back(buffer);
+                mIdleBytes += size;
+                return;
+            }
+        }
+        free(buffer);
+    }
+
+    void SLBufferPool::clear() {
+        std::lock_guard<std::mutex> lock(mMutex);
+        for (auto &entry : mIdle) {
+            for (uint8_t *buffer : entry.second) {
+                free(buffer);
+            }
+        }
+        mIdle.clear();
+        mIdleBytes = 0;
+    }
+}
@@ -0,0 +1,63 @@
+//
+// Created by galismac on 28/4/2022.
+//
+
+#ifndef SL_BUFFER_POOL_H
+#define SL_BUFFER_POOL_H
+
+#include <cstddef>
+#include <cstdint>
+#include <map>
+#include <mutex>
+#include <vector>
+
+namespace slutil {
+
+    /**
+     * 线程安全的内存池，按字节数分组复用，空闲总量超过上限时直接释放
+     */
+    class SLBufferPool {
+    public:
+        explicit SLBufferPool(size_t maxIdleBytes);
+
+        ~SLBufferPool();
+
+        uint8_t *acquire(size_t size);
+
+        void release(uint8_t *buffer, size_t size);
+
+        void clear();
+
+    private:
+        std::mutex mMutex;
+        std::map<size_t, std::vector<uint8_t *>> mIdle;
+        size_t mIdleBytes;
+        size_t mMaxIdleBytes;
+    };
+
+    /**
+     * 作用域内持有一块池内存
+     */
+    class SLPooledBuffer {
+    public:
+        SLPooledBuffer(SLBufferPool &pool, size_t size) : mPool(pool), mSize(size), mData(pool.acquire(size)) {}
+
+        ~SLPooledBuffer() {
+            if (mData) mPool.release(mData, mSize);
+        }
+
+        SLPooledBuffer(const SLPooledBuffer &) = delete;
+
+        SLPooledBuffer &operator=(const SLPooledBuffer &) = delete;
+
+        uint8_t *data() const {
+            return mData;
+        }
+
+    private:
+        SLBufferPool &mPool;
+        size_t mSize;
+        uint8_t *mData;
+    };
+}
+#endif
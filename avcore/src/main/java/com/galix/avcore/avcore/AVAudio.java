@@ -6,7 +6,9 @@ import android.media.MediaFormat;
 import android.util.Log;
 
 import com.galix.avcore.render.IRender;
+import com.galix.avcore.render.audio.AudioEffectChain;
 import com.galix.avcore.util.LogUtil;
+import com.galix.avcore.util.PcmCache;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
@@ -26,17 +28,75 @@ public class AVAudio extends AVComponent {
     private MediaExtractor mediaExtractor;
     private MediaFormat mediaFormat;
     private ByteBuffer sampleBuffer;
+    private PcmCache.Entry pcmEntry;//PCM缓存模式，不为空时直接读取PCM
+    private ByteBuffer pcmReader;
+    private long pcmPosition;
+    private final MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+    private AudioEffectChain effectChain;
+    private int sampleRate;
+    private int channelCount;
+
+    private static final int PCM_FRAME_SIZE = 4096;
 
     public AVAudio(long engineStartTime, String path, IRender render) {
         super(engineStartTime, AVComponentType.AUDIO, render);
         this.path = path;
     }
 
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * 是否有增益，变速等编辑，有编辑的片段合成时不能直接拷贝
+     *
+     * @return 是否有编辑
+     */
+    public boolean hasAudioEdit() {
+        return effectChain != null && !effectChain.isEmpty();
+    }
+
+    /**
+     * 设置音频效果链，预览和合成都会经过效果链
+     *
+     * @param effectChain 效果链，为空时关闭
+     */
+    public void setEffectChain(AudioEffectChain effectChain) {
+        this.effectChain = effectChain;
+        prepareEffect();
+    }
+
+    public AudioEffectChain getEffectChain() {
+        return effectChain;
+    }
+
+    @Override
+    public String getContentKey() {
+        return fileKey(path) + "," + (effectChain != null ? effectChain.toString() : "");
+    }
+
+    private void prepareEffect() {
+        if (effectChain != null && sampleRate > 0 && channelCount > 0) {
+            effectChain.prepare(sampleRate, channelCount, getEngineEndTime() - getEngineStartTime());
+        }
+    }
+
+    /**
+     * 对当前帧应用效果链，原地修改PCM
+     */
+    private void applyEffect(AVFrame avFrame) {
+        if (effectChain == null || !effectChain.isPrepared()) return;
+        effectChain.process(avFrame.getByteBuffer(), avFrame.getPts() - getEngineStartTime());
+    }
+
     @Override
     public int open() {
         if (isOpen()) return RESULT_FAILED;
         isOutputEOF = false;
         isInputEOF = false;
+        if (openPcm()) {
+            return RESULT_OK;
+        }
         mediaExtractor = new MediaExtractor();
         try {
             mediaExtractor.setDataSource(path);
@@ -58,18 +118,60 @@ public class AVAudio extends AVComponent {
             mediaCodec.configure(mediaFormat, null, null, 0);
             mediaCodec.start();
             sampleBuffer = ByteBuffer.allocateDirect(mediaFormat.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE));
-            peekFrame().setByteBuffer(ByteBuffer.allocateDirect(4096));//TODO
+            peekFrame().setByteBuffer(ByteBuffer.allocateDirect(PCM_FRAME_SIZE));//解码输出更大时在readFrame里扩容
             setEngineEndTime(getEngineStartTime() + getDuration());
+            sampleRate = mediaFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+            channelCount = mediaFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+            prepareEffect();
             markOpen(true);
+            if (PcmCache.getInstance().isEnable()) {
+                PcmCache.getInstance().prepareAsync(path);
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
         return RESULT_OK;
     }
 
-    @Override
-    public int close() {
-        if (!isOpen()) return RESULT_FAILED;
+    /**
+     * PCM缓存已经就绪的话，直接使用PCM缓存，不再创建解码器
+     *
+     * @return 是否使用PCM缓存
+     */
+    private boolean openPcm() {
+        if (!PcmCache.getInstance().isEnable()) return false;
+        PcmCache.Entry entry = PcmCache.getInstance().acquire(path);
+        if (entry == null) return false;
+        pcmEntry = entry;
+        pcmReader = entry.newReader();
+        pcmPosition = 0;
+        setClipStartTime(0);
+        setClipEndTime(entry.durationUs);
+        setDuration(entry.durationUs);
+        peekFrame().setByteBuffer(ByteBuffer.allocateDirect(PCM_FRAME_SIZE));
+        setEngineEndTime(getEngineStartTime() + getDuration());
+        sampleRate = entry.sampleRate;
+        channelCount = entry.channelCount;
+        prepareEffect();
+        markOpen(true);
+        return true;
+    }
+
+    /**
+     * 解码器模式下，后台PCM缓存完成后切换到PCM模式，释放解码器
+     */
+    private void switchToPcmIfReady() {
+        if (pcmEntry != null || !PcmCache.getInstance().isEnable()) return;
+        PcmCache.Entry entry = PcmCache.getInstance().acquire(path);
+        if (entry == null) return;
+        releaseCodec();
+        pcmEntry = entry;
+        pcmReader = entry.newReader();
+        pcmPosition = 0;
+        LogUtil.log(LogUtil.ENGINE_TAG + "AVAudio#switchToPcm#" + entry.toString());
+    }
+
+    private void releaseCodec() {
         try {
             if (mediaCodec != null) {
                 mediaCodec.stop();
@@ -83,6 +185,16 @@ public class AVAudio extends AVComponent {
         } catch (Exception e) {
             LogUtil.log("AVAudio#Error#close" + e.getMessage());
         }
+    }
+
+    @Override
+    public int close() {
+        if (!isOpen()) return RESULT_FAILED;
+        releaseCodec();
+        PcmCache.getInstance().release(pcmEntry);
+        pcmEntry = null;
+        pcmReader = null;
+        pcmPosition = 0;
         if (sampleBuffer != null) {
             sampleBuffer = null;
         }
@@ -95,6 +207,9 @@ public class AVAudio extends AVComponent {
     @Override
     public int readFrame() {//没打开或者已经返回一个eof frame,那么就返回RESULT_FAILED
         if (!isOpen() || isOutputEOF) return RESULT_FAILED;
+        if (pcmEntry != null) {
+            return readPcmFrame();
+        }
         AVFrame avFrame = peekFrame();
         while (!isInputEOF || !isOutputEOF) {
             try {
@@ -116,7 +231,6 @@ public class AVAudio extends AVComponent {
                     }
                 }
                 if (!isOutputEOF) {
-                    MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
                     int outputBufIdx = mediaCodec.dequeueOutputBuffer(bufferInfo, 0);
                     if (outputBufIdx >= 0) {
                         if (bufferInfo.flags == BUFFER_FLAG_END_OF_STREAM) {
@@ -124,9 +238,15 @@ public class AVAudio extends AVComponent {
                         }
                         ByteBuffer byteBuffer = mediaCodec.getOutputBuffer(outputBufIdx);
                         LogUtil.log(LogUtil.ENGINE_TAG + "readFrame()#getOutputBuffer#size" + bufferInfo.size + "#offset#" + bufferInfo.offset + "#pts#" + bufferInfo.presentationTimeUs);
-                        peekFrame().getByteBuffer().position(0);
+                        byteBuffer.position(bufferInfo.offset);
+                        byteBuffer.limit(bufferInfo.offset + bufferInfo.size);
+                        if (peekFrame().getByteBuffer().capacity() < bufferInfo.size) {
+                            //多声道或者大帧的解码输出超过默认大小
+                            peekFrame().setByteBuffer(ByteBuffer.allocateDirect(bufferInfo.size));
+                        }
+                        peekFrame().getByteBuffer().clear();
                         peekFrame().getByteBuffer().put(byteBuffer);
-                        peekFrame().getByteBuffer().position(0);
+                        peekFrame().getByteBuffer().flip();
                         peekFrame().setDuration(22320);//TODO
                         byteBuffer.position(0);
                         avFrame.setPts(bufferInfo.presentationTimeUs - getClipStartTime() + getEngineStartTime());//换算Engine的时间
@@ -139,6 +259,10 @@ public class AVAudio extends AVComponent {
                         LogUtil.log(LogUtil.ENGINE_TAG + "readFrame()#INFO_OUTPUT_BUFFERS_CHANGED:" + bufferInfo.presentationTimeUs);
                     } else if (outputBufIdx == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
                         LogUtil.log(LogUtil.ENGINE_TAG + "readFrame()#INFO_OUTPUT_FORMAT_CHANGED:" + bufferInfo.presentationTimeUs);
+                        MediaFormat outputFormat = mediaCodec.getOutputFormat();
+                        sampleRate = outputFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+                        channelCount = outputFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+                        prepareEffect();
                     }
                 }
             } catch (Exception e) {
@@ -147,6 +271,7 @@ public class AVAudio extends AVComponent {
                 return RESULT_FAILED;
             }
         }
+        applyEffect(avFrame);
         avFrame.setEof(isOutputEOF);
         return RESULT_OK;
     }
@@ -161,11 +286,47 @@ public class AVAudio extends AVComponent {
         }
         isInputEOF = false;
         isOutputEOF = false;
+        if (effectChain != null) {
+            effectChain.reset();
+        }
+        switchToPcmIfReady();
+        if (pcmEntry != null) {
+            pcmPosition = pcmEntry.offsetOf(correctPosition + getClipStartTime());
+            return readPcmFrame();
+        }
         mediaExtractor.seekTo(correctPosition + getClipStartTime(), MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
         mediaCodec.flush();
         return readFrame();
     }
 
+    /**
+     * PCM模式读取一帧，直接从内存映射中拷贝
+     *
+     * @return RESULT_SUCCESS/RESULT_FAILED
+     */
+    private int readPcmFrame() {
+        AVFrame avFrame = peekFrame();
+        ByteBuffer dst = avFrame.getByteBuffer();
+        long end = Math.min(pcmEntry.dataSize, pcmEntry.offsetOf(getClipEndTime()));
+        int size = (int) Math.min(dst.capacity(), end - pcmPosition);
+        size -= size % pcmEntry.bytesPerFrame();
+        dst.clear();
+        if (size > 0) {
+            pcmReader.limit((int) pcmPosition + size);
+            pcmReader.position((int) pcmPosition);
+            dst.put(pcmReader);
+        }
+        dst.flip();
+        avFrame.setPts(pcmEntry.timeOf(pcmPosition) - getClipStartTime() + getEngineStartTime());
+        avFrame.setDuration(pcmEntry.timeOf(size));
+        pcmPosition += size;
+        isOutputEOF = pcmPosition >= end;
+        avFrame.setEof(isOutputEOF);
+        avFrame.setValid(true);
+        applyEffect(avFrame);
+        return RESULT_OK;
+    }
+
     private void retry(long position) {
         LogUtil.log(LogUtil.ENGINE_TAG + "retry()#Error#close");
         close();
@@ -179,6 +340,7 @@ public class AVAudio extends AVComponent {
     public String toString() {
         return "AVAudio{" +
                 "isInputEOF=" + isInputEOF +
+                ", pcmEntry=" + pcmEntry +
                 ", isOutputEOF=" + isOutputEOF +
                 ", path='" + path + '\'' +
                 ", mediaCodec=" + mediaCodec +
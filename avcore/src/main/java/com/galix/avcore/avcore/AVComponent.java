@@ -4,6 +4,7 @@ import com.galix.avcore.render.IRender;
 
 import org.opencv.core.Mat;
 
+import java.io.File;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.ReentrantLock;
@@ -239,6 +240,24 @@ public abstract class AVComponent {
         return RESULT_OK;
     }
 
+    /**
+     * 内容标识，素材文件、文字、效果参数变化时改变，合成检查点用来判断时间线是否变化
+     *
+     * @return 默认为空
+     */
+    public String getContentKey() {
+        return "";
+    }
+
+    /**
+     * 素材文件标识：路径，修改时间，大小
+     */
+    protected static String fileKey(String path) {
+        if (path == null) return "";
+        File file = new File(path);
+        return file.getAbsolutePath() + "," + file.lastModified() + "," + file.length();
+    }
+
     /**
      * 获取一帧数据
      *
@@ -13,6 +13,7 @@ import android.view.SurfaceView;
 
 import androidx.annotation.NonNull;
 
+import com.galix.avcore.render.AudioOutputProfile;
 import com.galix.avcore.render.AudioRender;
 import com.galix.avcore.render.IVideoRender;
 import com.galix.avcore.render.OESRender;
@@ -20,10 +21,15 @@ import com.galix.avcore.render.PagRender;
 import com.galix.avcore.render.ScreenRender;
 import com.galix.avcore.render.filters.GLTexture;
 import com.galix.avcore.util.EglHelper;
+import com.galix.avcore.util.ExportReport;
+import com.galix.avcore.util.GifComposite;
+import com.galix.avcore.util.IThermalSource;
 import com.galix.avcore.util.LogUtil;
 import com.galix.avcore.util.MathUtils;
 import com.galix.avcore.util.Mp4Composite;
 import com.galix.avcore.util.OtherUtils;
+import com.galix.avcore.util.RenditionOutput;
+import com.galix.avcore.util.job.MediaJobScheduler;
 
 import org.libpag.PAGComposition;
 import org.libpag.PAGLayer;
@@ -69,6 +75,8 @@ public class AVEngine {
     }
 
     private static final int PLAY_GAP = 10;//MS
+    public static final int PAG_CANVAS_WIDTH = 1280;//pag画布大小，预览和合成一致
+    public static final int PAG_CANVAS_HEIGHT = 720;
     private static AVEngine gAVEngine;
     private VideoState mVideoState;
     private EglHelper mEglHelper;
@@ -77,12 +85,14 @@ public class AVEngine {
     private AVComponent mLastVideoComponent;
     private AVComponent mLastAudioComponent;
     private AudioRender mAudioRender;
+    private AudioOutputProfile mAudioOutputProfile = new AudioOutputProfile();
     private IVideoRender mOesRender;
     private BlockingQueue<Command> mCmdQueue;
     private GLTexture lastTexture = null;
     private IVideoRender screenRender;
     private IVideoRender pagRender;
     private AVFrame screenFrame;
+    private ExportReport mLastExportReport;
 
     //Pag
     private GLTexture mPagTexture = new GLTexture(0, false);
@@ -114,6 +124,7 @@ public class AVEngine {
             SURFACE_CHANGED,
             SURFACE_DESTROYED,
             COMPOSITE,
+            COMPOSITE_GIF,
             RECORD;
         }
 
@@ -171,6 +182,12 @@ public class AVEngine {
         public boolean isSurfaceReady = false;
         public Size mTargetSize;//合成视频目标宽高
         public String mTargetPath;//合成视频路径
+        public boolean mParallelExport = true;//按编码器并发上限分段并行合成
+        public boolean mResumableExport = false;//按固定时长分片合成并写检查点，中断后可以续传
+        public boolean mFragmentedOutput = false;//输出fMP4，不经过MediaMuxer
+        public IThermalSource mThermalSource;//合成温控的温度电量来源，为空时不做温控
+        public MediaJobScheduler mJobScheduler;//合成时按温控档位限制后台任务并发，为空时不限制
+        public List<RenditionOutput.Rendition> mRenditions = new LinkedList<>();//额外输出规格，与主输出共享解码和渲染
         public Clock videoClock;
         public Clock extClock;
         public Clock audioClock;
@@ -714,6 +731,9 @@ public class AVEngine {
                         EngineCallback callback = (EngineCallback) command.args1;
                         mCompositeCallback = callback;
                         compositeMp4Internal();
+                    } else if (command.cmd == Command.Cmd.COMPOSITE_GIF) {
+                        mCompositeCallback = (EngineCallback) command.args3;
+                        compositeGifInternal((String) command.args0, (Size) command.args1, (int) command.args2);
                     } else {
                         LogUtil.log(LogUtil.ENGINE_TAG + "Seek cmd error!");
                     }
@@ -752,7 +772,7 @@ public class AVEngine {
         ThreadManager.getInstance().createThread("AudioThread", new Runnable() {
             @Override
             public void run() {
-                mAudioRender = new AudioRender();
+                mAudioRender = new AudioRender(mAudioOutputProfile);
                 mAudioRender.open();
                 while (mVideoState.status != RELEASE) {
                     //只有运行时候才需要播放音频
@@ -785,12 +805,16 @@ public class AVEngine {
                                 LogUtil.log(LogUtil.ENGINE_TAG + "#AudioThread#Drop Audio Frame#" + audioFrame.toString());
                                 continue;
                             }
+                            long latencyUs = 0;
                             if (audio.getRender() != null) {
                                 audio.getRender().render(audioFrame);
                             } else {
                                 mAudioRender.render(audioFrame);
+                                mAudioRender.adaptBuffer();
+                                latencyUs = mAudioRender.getTelemetry().latencyUs;
                             }
-                            setClock(mVideoState.audioClock, audioFrame.getPts());
+                            //音频时钟扣除输出延迟，才是真正听到的位置
+                            setClock(mVideoState.audioClock, audioFrame.getPts() - latencyUs);
                             audioFrame.markRead();
                             mLastAudioComponent = audio;
                         }
@@ -816,8 +840,8 @@ public class AVEngine {
                 eglHelper.create(mCurrentContext, EglHelper.GL_VERSION_3);
                 eglHelper.makeCurrent();
 
-                int width = 1280;
-                int height = 720;
+                int width = PAG_CANVAS_WIDTH;
+                int height = PAG_CANVAS_HEIGHT;
 
                 //生成共享Texture
                 //新建Texture，该Texture可以被解码线程通用.
@@ -890,6 +914,25 @@ public class AVEngine {
         mCmdQueue.add(command);
     }
 
+    /**
+     * 先暂停，然后合成动图
+     *
+     * @param gifPath   输出路径
+     * @param size      输出尺寸
+     * @param frameRate 帧率
+     * @param callback  进度回调
+     */
+    public void compositeGif(String gifPath, Size size, int frameRate, EngineCallback callback) {
+        pause();
+        Command command = new Command();
+        command.cmd = Command.Cmd.COMPOSITE_GIF;
+        command.args0 = gifPath;
+        command.args1 = size;
+        command.args2 = frameRate;
+        command.args3 = callback;
+        mCmdQueue.add(command);
+    }
+
     public void record(boolean isRecord, EngineCallback callback) {
         Command command = new Command();
         command.cmd = Command.Cmd.RECORD;
@@ -905,6 +948,25 @@ public class AVEngine {
                 mCompositeCallback.onCallback(progress);
             }
         });
+        mLastExportReport = mp4Composite.getReport();
+    }
+
+    private void compositeGifInternal(String gifPath, Size size, int frameRate) {
+        GifComposite gifComposite = new GifComposite(this, gifPath, size, frameRate);
+        gifComposite.process(progress -> {
+            if (mCompositeCallback != null) {
+                mCompositeCallback.onCallback(progress);
+            }
+        });
+    }
+
+    /**
+     * 最近一次合成的报告
+     *
+     * @return ExportReport
+     */
+    public ExportReport getLastExportReport() {
+        return mLastExportReport;
     }
 
     /**
@@ -1168,6 +1230,24 @@ public class AVEngine {
         mVideoState.unlock();
     }
 
+    /**
+     * 设置音频输出配置，需要在create()之前调用
+     *
+     * @param profile 输出配置
+     */
+    public void setAudioOutputProfile(AudioOutputProfile profile) {
+        mAudioOutputProfile = profile;
+    }
+
+    /**
+     * 音频输出统计，延迟估计，underrun次数，write阻塞时长
+     *
+     * @return Telemetry，音频线程未启动时返回null
+     */
+    public AudioRender.Telemetry getAudioTelemetry() {
+        return mAudioRender == null ? null : mAudioRender.getTelemetry();
+    }
+
     public VideoState getVideoState() {
         return mVideoState;
     }
@@ -38,6 +38,10 @@ public class AVPag extends AVComponent {
         mPagPts = 0;
     }
 
+    @Override
+    public String getContentKey() {
+        return mUseAsset ? "asset:" + pagPath : fileKey(pagPath);
+    }
 
     @Override
     public int open() {
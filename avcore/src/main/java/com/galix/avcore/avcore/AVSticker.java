@@ -6,6 +6,10 @@ import com.galix.avcore.render.IRender;
 import com.galix.avcore.util.GifDecoder;
 
 import java.io.InputStream;
+import java.math.BigInteger;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 /**
  * 特效贴纸
@@ -21,12 +25,21 @@ public class AVSticker extends AVComponent {
     private InputStream inputStream;
     private int frameCount = 0;
     private int frameIdx = -1;
+    private String contentMd5;//读取GIF时顺便计算，内容标识
 
     public AVSticker(long srcStartTime, InputStream inputStream, IRender render) {
         super(srcStartTime, AVComponentType.STICKER, render);
         this.inputStream = inputStream;
     }
 
+    /**
+     * 贴纸来自输入流，没有打开过时只能用对象标识，不会和其它时间线混淆
+     */
+    @Override
+    public String getContentKey() {
+        return (contentMd5 != null ? contentMd5 : "stream@" + System.identityHashCode(inputStream)) + "," + roi;
+    }
+
     private long getEffectDuration() {
         long delayUS = 0;
         for (int i = 0; i < frameCount; i++) {
@@ -38,7 +51,13 @@ public class AVSticker extends AVComponent {
     @Override
     public int open() {
         gifDecoder = new GifDecoder();
-        gifDecoder.read(inputStream);
+        try {
+            DigestInputStream digestStream = new DigestInputStream(inputStream, MessageDigest.getInstance("MD5"));
+            gifDecoder.read(digestStream);
+            contentMd5 = new BigInteger(1, digestStream.getMessageDigest().digest()).toString(16);
+        } catch (NoSuchAlgorithmException e) {
+            gifDecoder.read(inputStream);
+        }
         frameCount = gifDecoder.getFrameCount();
         setDuration(5000000);
         setEngineEndTime(getEngineStartTime() + getDuration());
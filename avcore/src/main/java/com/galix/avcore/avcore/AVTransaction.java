@@ -24,6 +24,11 @@ public class AVTransaction extends AVComponent {
         this.transactionType = transactionType;
     }
 
+    @Override
+    public String getContentKey() {
+        return String.valueOf(transactionType);
+    }
+
     @Override
     public int open() {
         if (!avVideo1.isOpen()) avVideo1.open();
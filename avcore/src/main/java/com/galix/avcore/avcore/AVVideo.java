@@ -49,6 +49,11 @@ public class AVVideo extends AVComponent {
         this.path = path;
     }
 
+    @Override
+    public String getContentKey() {
+        return fileKey(path);
+    }
+
     @Override
     public int open() {
         if (isOpen()) return RESULT_FAILED;
@@ -18,6 +18,11 @@ public class AVWord extends AVComponent {
         super(srcStartTime, AVComponentType.WORD, render);
     }
 
+    @Override
+    public String getContentKey() {
+        return text + "," + textSize + "," + textColor + "," + roi;
+    }
+
     @Override
     public int open() {
         setDuration(50);//TODO
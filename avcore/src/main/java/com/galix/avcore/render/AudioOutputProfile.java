@@ -0,0 +1,45 @@
+package com.galix.avcore.render;
+
+import android.media.AudioTrack;
+
+/**
+ * 音频输出配置
+ * sampleRate为0时使用设备原生输出采样率，注意只有PCM本身是该采样率时才可以这样设置，AudioRender不做重采样。
+ * bufferFrames为0时使用AudioTrack.getMinBufferSize。
+ *
+ * @Author:Galis
+ * @Date:2022.04.20
+ */
+public class AudioOutputProfile {
+
+    public static final int LATENCY_DEFAULT = AudioTrack.PERFORMANCE_MODE_NONE;
+    public static final int LATENCY_LOW = AudioTrack.PERFORMANCE_MODE_LOW_LATENCY;
+    public static final int LATENCY_POWER_SAVING = AudioTrack.PERFORMANCE_MODE_POWER_SAVING;
+
+    public int sampleRate = 44100;
+    public int channelCount = 2;
+    public int bufferFrames = 0;
+    public int latencyMode = LATENCY_DEFAULT;
+    public boolean adaptiveBuffer = true;//发生underrun时自动增大buffer
+
+    public AudioOutputProfile() {
+    }
+
+    public AudioOutputProfile(int sampleRate, int channelCount, int bufferFrames, int latencyMode) {
+        this.sampleRate = sampleRate;
+        this.channelCount = channelCount;
+        this.bufferFrames = bufferFrames;
+        this.latencyMode = latencyMode;
+    }
+
+    @Override
+    public String toString() {
+        return "AudioOutputProfile{" +
+                "sampleRate=" + sampleRate +
+                ", channelCount=" + channelCount +
+                ", bufferFrames=" + bufferFrames +
+                ", latencyMode=" + latencyMode +
+                ", adaptiveBuffer=" + adaptiveBuffer +
+                '}';
+    }
+}
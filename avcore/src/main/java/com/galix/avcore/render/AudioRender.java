@@ -1,18 +1,70 @@
 package com.galix.avcore.render;
 
+import android.media.AudioAttributes;
 import android.media.AudioFormat;
 import android.media.AudioManager;
+import android.media.AudioTimestamp;
 import android.media.AudioTrack;
+import android.os.Build;
 
 import com.galix.avcore.avcore.AVFrame;
+import com.galix.avcore.util.LogUtil;
 
+import java.nio.ByteBuffer;
 import java.util.Map;
 
 import static android.media.AudioTrack.WRITE_BLOCKING;
 
+/**
+ * 音频渲染，输出到AudioTrack
+ * 参数由AudioOutputProfile配置，同时提供Telemetry给引擎做音画同步和自适应buffer
+ */
 public class AudioRender implements IRender {
+    private static final int BYTES_PER_SAMPLE = 2;//ENCODING_PCM_16BIT
+    private static final int MAX_BUFFER_SCALE = 4;
     private AudioTrack mAudioTrack;
+    private AudioOutputProfile mProfile;
     private int mMinBufferSize;
+    private int mFrameBytes;
+    private int mLastUnderrunCount = 0;
+    private final Telemetry mTelemetry = new Telemetry();
+    private final AudioTimestamp mTimestamp = new AudioTimestamp();
+
+    /**
+     * 音频输出统计
+     */
+    public static class Telemetry {
+        public int nativeSampleRate;//设备原生采样率
+        public int sampleRate;//当前输出采样率
+        public int bufferFrames;//当前buffer大小
+        public long latencyUs;//写入到播放的延迟估计
+        public int underrunCount;//underrun次数
+        public long framesWritten;
+        public long writeBlockNs;//write阻塞总时长
+        public long lastWriteBlockNs;//最近一次write阻塞时长
+
+        @Override
+        public String toString() {
+            return "Telemetry{" +
+                    "nativeSampleRate=" + nativeSampleRate +
+                    ", sampleRate=" + sampleRate +
+                    ", bufferFrames=" + bufferFrames +
+                    ", latencyUs=" + latencyUs +
+                    ", underrunCount=" + underrunCount +
+                    ", framesWritten=" + framesWritten +
+                    ", writeBlockNs=" + writeBlockNs +
+                    ", lastWriteBlockNs=" + lastWriteBlockNs +
+                    '}';
+        }
+    }
+
+    public AudioRender() {
+        this(new AudioOutputProfile());
+    }
+
+    public AudioRender(AudioOutputProfile profile) {
+        mProfile = profile;
+    }
 
     @Override
     public boolean isOpen() {
@@ -22,16 +74,51 @@ public class AudioRender implements IRender {
     @Override
     public void open() {
         if (isOpen()) return;
-        mMinBufferSize = 4096;
-        mAudioTrack = new AudioTrack(
-                AudioManager.STREAM_MUSIC,
-                44100,
-                AudioFormat.CHANNEL_CONFIGURATION_STEREO,
-                AudioFormat.ENCODING_PCM_16BIT,
-                mMinBufferSize,
-                AudioTrack.MODE_STREAM
-        );
+        int nativeSampleRate = AudioTrack.getNativeOutputSampleRate(AudioManager.STREAM_MUSIC);
+        int sampleRate = mProfile.sampleRate > 0 ? mProfile.sampleRate : nativeSampleRate;
+        int channelMask = mProfile.channelCount == 1 ? AudioFormat.CHANNEL_OUT_MONO : AudioFormat.CHANNEL_OUT_STEREO;
+        mFrameBytes = mProfile.channelCount * BYTES_PER_SAMPLE;
+        mMinBufferSize = AudioTrack.getMinBufferSize(sampleRate, channelMask, AudioFormat.ENCODING_PCM_16BIT);
+        int bufferSize = Math.max(mMinBufferSize, mProfile.bufferFrames * mFrameBytes);
+        //预留容量给自适应buffer
+        int capacity = mProfile.adaptiveBuffer && Build.VERSION.SDK_INT >= Build.VERSION_CODES.N ?
+                bufferSize * MAX_BUFFER_SCALE : bufferSize;
+
+        AudioAttributes attributes = new AudioAttributes.Builder()
+                .setUsage(AudioAttributes.USAGE_MEDIA)
+                .setContentType(AudioAttributes.CONTENT_TYPE_MOVIE)
+                .build();
+        AudioFormat format = new AudioFormat.Builder()
+                .setSampleRate(sampleRate)
+                .setChannelMask(channelMask)
+                .setEncoding(AudioFormat.ENCODING_PCM_16BIT)
+                .build();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            AudioTrack.Builder builder = new AudioTrack.Builder()
+                    .setAudioAttributes(attributes)
+                    .setAudioFormat(format)
+                    .setBufferSizeInBytes(capacity)
+                    .setTransferMode(AudioTrack.MODE_STREAM);
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                builder.setPerformanceMode(mProfile.latencyMode);
+            }
+            mAudioTrack = builder.build();
+            if (capacity != bufferSize) {
+                mAudioTrack.setBufferSizeInFrames(bufferSize / mFrameBytes);
+            }
+        } else {
+            mAudioTrack = new AudioTrack(attributes, format, bufferSize,
+                    AudioTrack.MODE_STREAM, AudioManager.AUDIO_SESSION_ID_GENERATE);
+        }
+        mTelemetry.nativeSampleRate = nativeSampleRate;
+        mTelemetry.sampleRate = sampleRate;
+        mTelemetry.bufferFrames = bufferSize / mFrameBytes;
+        mTelemetry.framesWritten = 0;
+        mTelemetry.underrunCount = 0;
+        mTelemetry.writeBlockNs = 0;
+        mLastUnderrunCount = 0;
         mAudioTrack.play();
+        LogUtil.logEngine("AudioRender#open#" + mProfile.toString() + "#" + mTelemetry.toString());
     }
 
     @Override
@@ -49,11 +136,76 @@ public class AudioRender implements IRender {
 
     @Override
     public void write(Map<String, Object> config) {
-
+        if (config != null && config.containsKey("output_profile")) {
+            mProfile = (AudioOutputProfile) config.get("output_profile");
+            if (isOpen()) {
+                close();
+                open();
+            }
+        }
     }
 
     @Override
     public void render(AVFrame avFrame) {
-        mAudioTrack.write(avFrame.getByteBuffer(), mMinBufferSize, WRITE_BLOCKING);
+        ByteBuffer byteBuffer = avFrame.getByteBuffer().duplicate();
+        int size = byteBuffer.remaining() - byteBuffer.remaining() % mFrameBytes;
+        if (size <= 0) return;
+        long start = System.nanoTime();
+        int written = mAudioTrack.write(byteBuffer, size, WRITE_BLOCKING);
+        mTelemetry.lastWriteBlockNs = System.nanoTime() - start;
+        mTelemetry.writeBlockNs += mTelemetry.lastWriteBlockNs;
+        if (written > 0) {
+            mTelemetry.framesWritten += written / mFrameBytes;
+        }
+    }
+
+    /**
+     * 刷新并获取输出统计
+     *
+     * @return Telemetry
+     */
+    public Telemetry getTelemetry() {
+        if (!isOpen()) return mTelemetry;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            mTelemetry.underrunCount = mAudioTrack.getUnderrunCount();
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            mTelemetry.bufferFrames = mAudioTrack.getBufferSizeInFrames();
+        }
+        long pendingFrames = -1;
+        if (mAudioTrack.getTimestamp(mTimestamp)) {
+            long playedFrames = mTimestamp.framePosition +
+                    (System.nanoTime() - mTimestamp.nanoTime) * mTelemetry.sampleRate / 1000000000L;
+            pendingFrames = mTelemetry.framesWritten - playedFrames;
+        }
+        if (pendingFrames < 0) {
+            pendingFrames = mTelemetry.bufferFrames;
+        }
+        mTelemetry.latencyUs = pendingFrames * 1000000L / mTelemetry.sampleRate;
+        return mTelemetry;
+    }
+
+    /**
+     * 自适应buffer，发生新的underrun时buffer翻倍，直到buffer容量上限
+     *
+     * @return 是否调整了buffer
+     */
+    public boolean adaptBuffer() {
+        if (!isOpen() || !mProfile.adaptiveBuffer || Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
+            return false;
+        }
+        int underrunCount = mAudioTrack.getUnderrunCount();
+        if (underrunCount <= mLastUnderrunCount) {
+            return false;
+        }
+        mLastUnderrunCount = underrunCount;
+        int current = mAudioTrack.getBufferSizeInFrames();
+        int target = Math.min(current * 2, mAudioTrack.getBufferCapacityInFrames());
+        if (target <= current) {
+            return false;
+        }
+        mTelemetry.bufferFrames = mAudioTrack.setBufferSizeInFrames(target);
+        LogUtil.logEngine("AudioRender#adaptBuffer#" + current + "=>" + mTelemetry.bufferFrames);
+        return true;
     }
 }
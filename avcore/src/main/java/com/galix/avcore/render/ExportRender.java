@@ -0,0 +1,86 @@
+package com.galix.avcore.render;
+
+import android.util.Size;
+
+import com.galix.avcore.avcore.AVFrame;
+import com.galix.avcore.render.filters.GLTexture;
+import com.galix.avcore.util.OtherUtils;
+
+import java.util.Map;
+
+/**
+ * 合成渲染，把一帧画到编码器的输入surface上
+ * 组件自带render(转场等)直接画到默认framebuffer，否则OES => FBO => surface。
+ * 每个EGL上下文各自持有一个实例。
+ *
+ * @Author:Galis
+ * @Date:2022.04.23
+ */
+public class ExportRender implements IVideoRender {
+
+    private OESRender mOesRender;
+    private ScreenRender mScreenRender;
+    private AVFrame mScreenFrame = new AVFrame();
+    private Size mSurfaceSize;
+
+    @Override
+    public GLTexture getOutTexture() {
+        return null;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return mOesRender != null;
+    }
+
+    @Override
+    public void open() {
+        if (isOpen()) return;
+        mOesRender = new OESRender();
+        mOesRender.open();
+        mScreenRender = new ScreenRender();
+        mScreenRender.open();
+        if (mSurfaceSize != null) {
+            mScreenRender.write(OtherUtils.BuildMap("surface_size", mSurfaceSize));
+        }
+    }
+
+    @Override
+    public void close() {
+        if (!isOpen()) return;
+        mOesRender.close();
+        mOesRender = null;
+        mScreenRender.close();
+        mScreenRender = null;
+    }
+
+    @Override
+    public void write(Map<String, Object> config) {
+        if (config.containsKey("surface_size")) {
+            mSurfaceSize = (Size) config.get("surface_size");
+            if (isOpen()) {
+                mOesRender.write(config);
+                mScreenRender.write(config);
+            }
+        }
+    }
+
+    @Override
+    public void render(AVFrame avFrame) {
+        render(null, avFrame);
+    }
+
+    /**
+     * @param componentRender 组件自带的render，可以为空
+     * @param avFrame         组件当前帧
+     */
+    public void render(IRender componentRender, AVFrame avFrame) {
+        if (componentRender != null) {
+            componentRender.render(avFrame);
+            return;
+        }
+        mOesRender.render(avFrame);
+        mScreenFrame.setTexture(mOesRender.getOutTexture());
+        mScreenRender.render(mScreenFrame);
+    }
+}
@@ -0,0 +1,268 @@
+package com.galix.avcore.render;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.opengl.GLES30;
+import android.util.Size;
+
+import com.galix.avcore.avcore.AVComponent;
+import com.galix.avcore.avcore.AVEngine;
+import com.galix.avcore.avcore.AVFrame;
+import com.galix.avcore.render.filters.GLTexture;
+import com.galix.avcore.render.filters.PagFilter;
+import com.galix.avcore.util.GLUtil;
+import com.galix.avcore.util.MathUtils;
+
+import org.libpag.PAGComposition;
+import org.libpag.PAGLayer;
+import org.libpag.PAGPlayer;
+import org.libpag.PAGSurface;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static android.opengl.GLES20.GL_BLEND;
+import static android.opengl.GLES20.GL_FUNC_ADD;
+import static android.opengl.GLES20.GL_ONE_MINUS_SRC_ALPHA;
+import static android.opengl.GLES20.GL_SRC_ALPHA;
+
+/**
+ * 合成叠加层渲染，贴纸，文字，PAG
+ * 视频帧画到默认framebuffer之后，直接在同一个framebuffer上混合绘制，不经过额外的FBO。
+ * 贴纸每个GIF帧上传一次纹理，之后循环复用；文字按内容缓存纹理；PAG使用独立的PAGPlayer画到一张纹理上，
+ * 画布大小与预览一致。预览里贴纸和文字居中显示，合成时同样居中。
+ *
+ * @Author:Galis
+ * @Date:2022.04.28
+ */
+public class OverlayRender implements IRender {
+
+    private PagFilter mFilter;
+    private Size mSurfaceSize = new Size(1920, 1080);
+    private final Map<String, Object> mConfig = new HashMap<>();
+    private final Map<Bitmap, GLTexture> mBitmapTextures = new IdentityHashMap<>();
+    private final Map<String, GLTexture> mTextTextures = new HashMap<>();
+    private final List<AVComponent> mPags = new ArrayList<>();
+    private final Rect mRect = new Rect();
+    private PAGPlayer mPagPlayer;
+    private PAGComposition mPagComposition;
+    private GLTexture mPagTexture;
+
+    @Override
+    public boolean isOpen() {
+        return mFilter != null;
+    }
+
+    @Override
+    public void open() {
+        if (isOpen()) return;
+        mFilter = new PagFilter();
+        mFilter.open();
+    }
+
+    @Override
+    public void close() {
+        if (!isOpen()) return;
+        mFilter.close();
+        mFilter = null;
+        for (GLTexture texture : mBitmapTextures.values()) {
+            texture.release();
+        }
+        mBitmapTextures.clear();
+        for (GLTexture texture : mTextTextures.values()) {
+            texture.release();
+        }
+        mTextTextures.clear();
+        if (mPagPlayer != null) {
+            //图层归还给预览的composition
+            mPagComposition.removeAllLayers();
+            mPagPlayer.release();
+            mPagPlayer = null;
+            mPagComposition = null;
+            mPagTexture.release();
+            mPagTexture = null;
+        }
+    }
+
+    @Override
+    public void write(Map<String, Object> config) {
+        if (config.containsKey("surface_size")) {
+            mSurfaceSize = (Size) config.get("surface_size");
+        }
+    }
+
+    @Override
+    public void render(AVFrame avFrame) {
+    }
+
+    /**
+     * 在当前默认framebuffer上绘制pts时刻可见的叠加组件
+     *
+     * @param overlays 贴纸，文字，PAG组件
+     * @param pts      engine时间
+     */
+    public void render(List<AVComponent> overlays, long pts) {
+        mPags.clear();
+        boolean blend = false;
+        for (AVComponent component : overlays) {
+            if (!component.isOpen() || !component.isVisible() || !component.isValid(pts)) continue;
+            if (component.getType() == AVComponent.AVComponentType.PAG) {
+                mPags.add(component);
+                continue;
+            }
+            component.lock();
+            component.seekFrame(pts);
+            AVFrame frame = component.peekFrame();
+            GLTexture texture = null;
+            if (component.getType() == AVComponent.AVComponentType.STICKER) {
+                texture = bitmapTexture(frame.getBitmap());
+            } else if (component.getType() == AVComponent.AVComponentType.WORD) {
+                texture = textTexture(frame);
+            }
+            component.unlock();
+            if (texture == null) continue;
+            if (!blend) {
+                beginBlend();
+                blend = true;
+            }
+            draw(texture, centerRect(texture.size(), component.getType() == AVComponent.AVComponentType.STICKER));
+        }
+        if (!mPags.isEmpty()) {
+            renderPag(pts);
+            if (!blend) {
+                beginBlend();
+                blend = true;
+            }
+            mRect.set(0, 0, mSurfaceSize.getWidth(), mSurfaceSize.getHeight());
+            draw(mPagTexture, mRect);
+        }
+        if (blend) {
+            GLES30.glDisable(GL_BLEND);
+            GLES30.glViewport(0, 0, mSurfaceSize.getWidth(), mSurfaceSize.getHeight());
+        }
+    }
+
+    private void beginBlend() {
+        GLES30.glBindFramebuffer(GLES30.GL_FRAMEBUFFER, 0);
+        GLES30.glEnable(GL_BLEND);
+        GLES30.glBlendFunc(GL_SRC_ALPHA, GL_ONE_MINUS_SRC_ALPHA);
+        GLES30.glBlendEquation(GL_FUNC_ADD);
+    }
+
+    /**
+     * @param dst 目标区域，左上角为原点
+     */
+    private void draw(GLTexture texture, Rect dst) {
+        GLES30.glViewport(dst.left, mSurfaceSize.getHeight() - dst.bottom, dst.width(), dst.height());
+        mConfig.clear();
+        mConfig.put("use_fbo", false);
+        mConfig.put("pagTexture", texture);
+        mConfig.put("pagMat", MathUtils.mIdentityMat);
+        mFilter.write(mConfig);
+        mFilter.render();
+    }
+
+    /**
+     * 居中显示，贴纸宽度为短边的1/3，文字按实际大小
+     */
+    private Rect centerRect(Size size, boolean scaleToSurface) {
+        int width = size.getWidth();
+        int height = size.getHeight();
+        if (scaleToSurface) {
+            int target = Math.min(mSurfaceSize.getWidth(), mSurfaceSize.getHeight()) / 3;
+            height = Math.max(1, height * target / Math.max(1, width));
+            width = target;
+        }
+        int left = (mSurfaceSize.getWidth() - width) / 2;
+        int top = (mSurfaceSize.getHeight() - height) / 2;
+        mRect.set(left, top, left + width, top + height);
+        return mRect;
+    }
+
+    private GLTexture bitmapTexture(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) return null;
+        GLTexture texture = mBitmapTextures.get(bitmap);
+        if (texture == null) {
+            texture = new GLTexture(GLUtil.loadTexture(bitmap), false);
+            texture.setSize(bitmap.getWidth(), bitmap.getHeight());
+            mBitmapTextures.put(bitmap, texture);
+        }
+        return texture;
+    }
+
+    private GLTexture textTexture(AVFrame frame) {
+        String text = frame.getText();
+        if (text == null || text.isEmpty()) return null;
+        int textSize = frame.getTextSize() > 0 ? frame.getTextSize()
+                : Math.min(mSurfaceSize.getWidth(), mSurfaceSize.getHeight()) / 12;
+        int textColor = frame.getTextColor() != 0 ? frame.getTextColor() : Color.WHITE;
+        String key = textSize + "#" + textColor + "#" + text;
+        GLTexture texture = mTextTextures.get(key);
+        if (texture == null) {
+            Bitmap bitmap = textBitmap(text, textSize, textColor);
+            texture = new GLTexture(GLUtil.loadTexture(bitmap), false);
+            texture.setSize(bitmap.getWidth(), bitmap.getHeight());
+            bitmap.recycle();
+            mTextTextures.put(key, texture);
+        }
+        return texture;
+    }
+
+    private static Bitmap textBitmap(String text, int textSize, int textColor) {
+        Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        paint.setTextSize(textSize);
+        paint.setColor(textColor);
+        paint.setShadowLayer(textSize / 16.f, 0, textSize / 24.f, 0x80000000);
+        Paint.FontMetrics metrics = paint.getFontMetrics();
+        int padding = textSize / 4;
+        int width = (int) Math.ceil(paint.measureText(text)) + padding * 2;
+        int height = (int) Math.ceil(metrics.bottom - metrics.top) + padding * 2;
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        new Canvas(bitmap).drawText(text, padding, padding - metrics.top, paint);
+        return bitmap;
+    }
+
+    private void renderPag(long pts) {
+        if (mPagPlayer == null) {
+            int[] texture = new int[1];
+            GLES30.glGenTextures(1, texture, 0);
+            GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, texture[0]);
+            GLES30.glTexParameteri(GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_MIN_FILTER, GLES30.GL_LINEAR);
+            GLES30.glTexParameteri(GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_MAG_FILTER, GLES30.GL_LINEAR);
+            GLES30.glTexParameteri(GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_WRAP_S, GLES30.GL_CLAMP_TO_EDGE);
+            GLES30.glTexParameteri(GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_WRAP_T, GLES30.GL_CLAMP_TO_EDGE);
+            GLES30.glTexImage2D(GLES30.GL_TEXTURE_2D, 0, GLES30.GL_RGBA, AVEngine.PAG_CANVAS_WIDTH, AVEngine.PAG_CANVAS_HEIGHT,
+                    0, GLES30.GL_RGBA, GLES30.GL_UNSIGNED_BYTE, null);
+            GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, 0);
+            mPagTexture = new GLTexture(texture[0], false);
+            mPagTexture.setSize(AVEngine.PAG_CANVAS_WIDTH, AVEngine.PAG_CANVAS_HEIGHT);
+            mPagComposition = PAGComposition.Make(AVEngine.PAG_CANVAS_WIDTH, AVEngine.PAG_CANVAS_HEIGHT);
+            mPagPlayer = new PAGPlayer();
+            mPagPlayer.setComposition(mPagComposition);
+            mPagPlayer.setSurface(PAGSurface.FromTexture(mPagTexture.id(),
+                    AVEngine.PAG_CANVAS_WIDTH, AVEngine.PAG_CANVAS_HEIGHT));
+        }
+        for (int i = 0; i < mPagComposition.numChildren(); i++) {
+            mPagComposition.getLayerAt(i).setVisible(false);
+        }
+        for (AVComponent pag : mPags) {
+            pag.lock();
+            pag.seekFrame(pts);
+            pag.readFrame();
+            pag.unlock();
+            PAGLayer layer = (PAGLayer) pag.peekFrame().getExt();
+            if (layer == null) continue;
+            if (!mPagComposition.contains(layer)) {
+                mPagComposition.addLayer(layer);
+            }
+            layer.setVisible(true);
+        }
+        mPagPlayer.flush();
+    }
+}
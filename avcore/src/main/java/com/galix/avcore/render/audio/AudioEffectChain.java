@@ -0,0 +1,170 @@
+package com.galix.avcore.render.audio;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * 音频效果链
+ * 挂在音频组件上，预览和合成都在读取PCM之后经过这里。
+ * 处理器数组在修改时整体替换，处理线程只读快照，process过程中没有内存分配。
+ * 闪避时同时传入key信号(例如人声)，链上的压缩器检测key而不是自身。
+ *
+ * @Author:Galis
+ * @Date:2022.04.21
+ */
+public class AudioEffectChain {
+
+    private static final float SHORT_SCALE = 1.f / 32768.f;
+    private volatile IAudioProcessor[] mProcessors = new IAudioProcessor[0];
+    private float[] mBlock = new float[4096];
+    private float[] mKey = new float[4096];
+    private int mSampleRate;
+    private int mChannelCount;
+    private long mDurationUs;
+    private boolean mPrepared = false;
+
+    public synchronized void add(IAudioProcessor processor) {
+        IAudioProcessor[] processors = new IAudioProcessor[mProcessors.length + 1];
+        System.arraycopy(mProcessors, 0, processors, 0, mProcessors.length);
+        processors[mProcessors.length] = processor;
+        if (mPrepared) {
+            processor.prepare(mSampleRate, mChannelCount, mDurationUs);
+        }
+        mProcessors = processors;
+    }
+
+    public synchronized void remove(IAudioProcessor processor) {
+        int idx = -1;
+        for (int i = 0; i < mProcessors.length; i++) {
+            if (mProcessors[i] == processor) {
+                idx = i;
+                break;
+            }
+        }
+        if (idx == -1) return;
+        IAudioProcessor[] processors = new IAudioProcessor[mProcessors.length - 1];
+        System.arraycopy(mProcessors, 0, processors, 0, idx);
+        System.arraycopy(mProcessors, idx + 1, processors, idx, mProcessors.length - idx - 1);
+        mProcessors = processors;
+    }
+
+    public boolean isEmpty() {
+        return mProcessors.length == 0;
+    }
+
+    public synchronized void prepare(int sampleRate, int channelCount, long durationUs) {
+        if (mPrepared && sampleRate == mSampleRate && channelCount == mChannelCount && durationUs == mDurationUs) {
+            return;
+        }
+        mSampleRate = sampleRate;
+        mChannelCount = channelCount;
+        mDurationUs = durationUs;
+        for (IAudioProcessor processor : mProcessors) {
+            processor.prepare(sampleRate, channelCount, durationUs);
+        }
+        mPrepared = true;
+    }
+
+    public boolean isPrepared() {
+        return mPrepared;
+    }
+
+    public void reset() {
+        for (IAudioProcessor processor : mProcessors) {
+            processor.reset();
+        }
+    }
+
+    /**
+     * 处理float块
+     */
+    public void process(float[] block, int frames, long positionUs) {
+        IAudioProcessor[] processors = mProcessors;
+        for (IAudioProcessor processor : processors) {
+            processor.process(block, frames, positionUs);
+        }
+    }
+
+    /**
+     * 原地处理16bit PCM，[position, limit)范围
+     *
+     * @param pcm        PCM数据，小端
+     * @param positionUs 相对组件开始的时间
+     */
+    public void process(ByteBuffer pcm, long positionUs) {
+        process(pcm, null, positionUs);
+    }
+
+    /**
+     * 原地处理16bit PCM，压缩器使用key作为检测信号
+     *
+     * @param pcm        PCM数据，小端
+     * @param key        检测信号，16bit小端，声道数和pcm相同，为空时检测自身；比pcm短的部分当作静音
+     * @param positionUs 相对组件开始的时间
+     */
+    public void process(ByteBuffer pcm, ByteBuffer key, long positionUs) {
+        IAudioProcessor[] processors = mProcessors;
+        if (processors.length == 0 || !mPrepared) return;
+        if (pcm.order() != ByteOrder.LITTLE_ENDIAN) {
+            pcm.order(ByteOrder.LITTLE_ENDIAN);
+        }
+        int start = pcm.position();
+        int samples = pcm.remaining() / 2;
+        if (mBlock.length < samples) {
+            mBlock = new float[samples];
+        }
+        float[] block = mBlock;
+        for (int i = 0; i < samples; i++) {
+            block[i] = pcm.getShort(start + 2 * i) * SHORT_SCALE;
+        }
+        int frames = samples / mChannelCount;
+        if (key == null) {
+            for (IAudioProcessor processor : processors) {
+                processor.process(block, frames, positionUs);
+            }
+        } else {
+            processKeyed(processors, block, key, samples, frames, positionUs);
+        }
+        for (int i = 0; i < samples; i++) {
+            float v = block[i] * 32768.f;
+            if (v > 32767.f) v = 32767.f;
+            if (v < -32768.f) v = -32768.f;
+            pcm.putShort(start + 2 * i, (short) v);
+        }
+    }
+
+    private void processKeyed(IAudioProcessor[] processors, float[] block, ByteBuffer key, int samples, int frames, long positionUs) {
+        if (mKey.length < samples) {
+            mKey = new float[samples];
+        }
+        float[] keyBlock = mKey;
+        ByteOrder order = key.order();
+        key.order(ByteOrder.LITTLE_ENDIAN);
+        int keyStart = key.position();
+        int keySamples = Math.min(samples, key.remaining() / 2);
+        for (int i = 0; i < keySamples; i++) {
+            keyBlock[i] = key.getShort(keyStart + 2 * i) * SHORT_SCALE;
+        }
+        Arrays.fill(keyBlock, keySamples, samples, 0);
+        key.order(order);
+        for (IAudioProcessor processor : processors) {
+            if (processor instanceof CompressorProcessor) {
+                CompressorProcessor compressor = (CompressorProcessor) processor;
+                compressor.setSidechain(keyBlock);
+                processor.process(block, frames, positionUs);
+                compressor.setSidechain(null);
+            } else {
+                processor.process(block, frames, positionUs);
+            }
+        }
+    }
+
+    /**
+     * 处理器和参数，合成检查点用来判断效果是否变化
+     */
+    @Override
+    public String toString() {
+        return "AudioEffectChain" + Arrays.toString(mProcessors);
+    }
+}
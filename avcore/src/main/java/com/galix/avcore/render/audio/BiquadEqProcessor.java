@@ -0,0 +1,135 @@
+package com.galix.avcore.render.audio;
+
+/**
+ * Biquad均衡器，系数参考RBJ Audio EQ Cookbook
+ * Direct Form I，每个声道单独保存状态
+ */
+public class BiquadEqProcessor implements IAudioProcessor {
+
+    public enum Type {
+        LOW_PASS,
+        HIGH_PASS,
+        PEAKING,
+        LOW_SHELF,
+        HIGH_SHELF
+    }
+
+    private static final float DENORMAL = 1e-20f;
+    private Type mType;
+    private float mFrequency;
+    private float mQ;
+    private float mGainDb;
+    private int mChannelCount;
+    private float b0, b1, b2, a1, a2;
+    private float[] x1, x2, y1, y2;
+
+    public BiquadEqProcessor(Type type, float frequency, float q, float gainDb) {
+        mType = type;
+        mFrequency = frequency;
+        mQ = q;
+        mGainDb = gainDb;
+    }
+
+    @Override
+    public void prepare(int sampleRate, int channelCount, long durationUs) {
+        mChannelCount = channelCount;
+        x1 = new float[channelCount];
+        x2 = new float[channelCount];
+        y1 = new float[channelCount];
+        y2 = new float[channelCount];
+        double a = Math.pow(10, mGainDb / 40);
+        double w0 = 2 * Math.PI * Math.min(mFrequency, sampleRate * 0.49f) / sampleRate;
+        double cos = Math.cos(w0);
+        double alpha = Math.sin(w0) / (2 * mQ);
+        double sqrtA2alpha = 2 * Math.sqrt(a) * alpha;
+        double nb0, nb1, nb2, na0, na1, na2;
+        switch (mType) {
+            case LOW_PASS:
+                nb0 = (1 - cos) / 2;
+                nb1 = 1 - cos;
+                nb2 = (1 - cos) / 2;
+                na0 = 1 + alpha;
+                na1 = -2 * cos;
+                na2 = 1 - alpha;
+                break;
+            case HIGH_PASS:
+                nb0 = (1 + cos) / 2;
+                nb1 = -(1 + cos);
+                nb2 = (1 + cos) / 2;
+                na0 = 1 + alpha;
+                na1 = -2 * cos;
+                na2 = 1 - alpha;
+                break;
+            case LOW_SHELF:
+                nb0 = a * ((a + 1) - (a - 1) * cos + sqrtA2alpha);
+                nb1 = 2 * a * ((a - 1) - (a + 1) * cos);
+                nb2 = a * ((a + 1) - (a - 1) * cos - sqrtA2alpha);
+                na0 = (a + 1) + (a - 1) * cos + sqrtA2alpha;
+                na1 = -2 * ((a - 1) + (a + 1) * cos);
+                na2 = (a + 1) + (a - 1) * cos - sqrtA2alpha;
+                break;
+            case HIGH_SHELF:
+                nb0 = a * ((a + 1) + (a - 1) * cos + sqrtA2alpha);
+                nb1 = -2 * a * ((a - 1) + (a + 1) * cos);
+                nb2 = a * ((a + 1) + (a - 1) * cos - sqrtA2alpha);
+                na0 = (a + 1) - (a - 1) * cos + sqrtA2alpha;
+                na1 = 2 * ((a - 1) - (a + 1) * cos);
+                na2 = (a + 1) - (a - 1) * cos - sqrtA2alpha;
+                break;
+            case PEAKING:
+            default:
+                nb0 = 1 + alpha * a;
+                nb1 = -2 * cos;
+                nb2 = 1 - alpha * a;
+                na0 = 1 + alpha / a;
+                na1 = -2 * cos;
+                na2 = 1 - alpha / a;
+                break;
+        }
+        b0 = (float) (nb0 / na0);
+        b1 = (float) (nb1 / na0);
+        b2 = (float) (nb2 / na0);
+        a1 = (float) (na1 / na0);
+        a2 = (float) (na2 / na0);
+    }
+
+    @Override
+    public void process(float[] block, int frames, long positionUs) {
+        int channels = mChannelCount;
+        for (int c = 0; c < channels; c++) {
+            float sx1 = x1[c], sx2 = x2[c], sy1 = y1[c], sy2 = y2[c];
+            for (int i = 0, idx = c; i < frames; i++, idx += channels) {
+                float x = block[idx];
+                float y = b0 * x + b1 * sx1 + b2 * sx2 - a1 * sy1 - a2 * sy2;
+                sx2 = sx1;
+                sx1 = x;
+                sy2 = sy1;
+                sy1 = y;
+                block[idx] = y;
+            }
+            //静音尾部衰减到非规格化数时非常慢，直接清零
+            x1[c] = Math.abs(sx1) < DENORMAL ? 0 : sx1;
+            x2[c] = Math.abs(sx2) < DENORMAL ? 0 : sx2;
+            y1[c] = Math.abs(sy1) < DENORMAL ? 0 : sy1;
+            y2[c] = Math.abs(sy2) < DENORMAL ? 0 : sy2;
+        }
+    }
+
+    @Override
+    public void reset() {
+        if (x1 == null) return;
+        for (int c = 0; c < mChannelCount; c++) {
+            x1[c] = x2[c] = y1[c] = y2[c] = 0;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "BiquadEqProcessor{" +
+                "type=" + mType +
+                ", frequency=" + mFrequency +
+                ", q=" + mQ +
+                ", gainDb=" + mGainDb +
+                '}';
+    }
+}
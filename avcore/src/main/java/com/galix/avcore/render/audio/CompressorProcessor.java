@@ -0,0 +1,101 @@
+package com.galix.avcore.render.audio;
+
+/**
+ * 压缩器，也用于闪避(ducking)
+ * 默认检测自身电平，超过阈值后按比例压低增益，控制音量峰值；
+ * 设置sidechain后检测外部信号(例如人声)，从而压低背景音乐。
+ */
+public class CompressorProcessor implements IAudioProcessor {
+
+    private float mThresholdDb;
+    private float mRatio;
+    private float mAttackMs;
+    private float mReleaseMs;
+    private float mMakeupDb;
+    private int mChannelCount;
+    private float mAttackCoef;
+    private float mReleaseCoef;
+    private float mMakeup;
+    private float mEnvelope;
+    private float mThreshold;
+    private float mGain = 1.f;
+    private int mCounter = 0;
+    private static final int CONTROL_FRAMES = 16;//增益每16帧更新一次，避免每帧计算log/pow
+    private float[] mSidechain;//与block同样布局的外部检测信号
+
+    public CompressorProcessor(float thresholdDb, float ratio, float attackMs, float releaseMs, float makeupDb) {
+        mThresholdDb = thresholdDb;
+        mRatio = Math.max(1.f, ratio);
+        mAttackMs = attackMs;
+        mReleaseMs = releaseMs;
+        mMakeupDb = makeupDb;
+    }
+
+    /**
+     * 外部检测信号，为空时检测自身
+     */
+    public void setSidechain(float[] sidechain) {
+        mSidechain = sidechain;
+    }
+
+    @Override
+    public void prepare(int sampleRate, int channelCount, long durationUs) {
+        mChannelCount = channelCount;
+        mAttackCoef = (float) Math.exp(-1.0 / (Math.max(0.01f, mAttackMs) * 0.001 * sampleRate));
+        mReleaseCoef = (float) Math.exp(-1.0 / (Math.max(0.01f, mReleaseMs) * 0.001 * sampleRate));
+        mMakeup = (float) Math.pow(10, mMakeupDb / 20);
+        mThreshold = (float) Math.pow(10, mThresholdDb / 20);
+        reset();
+    }
+
+    @Override
+    public void process(float[] block, int frames, long positionUs) {
+        int channels = mChannelCount;
+        float[] detect = mSidechain != null && mSidechain.length >= frames * channels ? mSidechain : block;
+        float envelope = mEnvelope;
+        float gain = mGain;
+        int counter = mCounter;
+        float slope = 1.f - 1.f / mRatio;
+        for (int i = 0, idx = 0; i < frames; i++, idx += channels) {
+            float peak = 0;
+            for (int c = 0; c < channels; c++) {
+                float v = Math.abs(detect[idx + c]);
+                if (v > peak) peak = v;
+            }
+            float coef = peak > envelope ? mAttackCoef : mReleaseCoef;
+            envelope = coef * envelope + (1 - coef) * peak;
+            if (counter-- <= 0) {
+                counter = CONTROL_FRAMES - 1;
+                gain = mMakeup;
+                if (envelope > mThreshold) {
+                    //(envelope/threshold)^(-slope)
+                    gain *= (float) Math.pow(envelope / mThreshold, -slope);
+                }
+            }
+            for (int c = 0; c < channels; c++) {
+                block[idx + c] *= gain;
+            }
+        }
+        mEnvelope = envelope;
+        mGain = gain;
+        mCounter = counter;
+    }
+
+    @Override
+    public void reset() {
+        mEnvelope = 0;
+        mGain = mMakeup;
+        mCounter = 0;
+    }
+
+    @Override
+    public String toString() {
+        return "CompressorProcessor{" +
+                "thresholdDb=" + mThresholdDb +
+                ", ratio=" + mRatio +
+                ", attackMs=" + mAttackMs +
+                ", releaseMs=" + mReleaseMs +
+                ", makeupDb=" + mMakeupDb +
+                '}';
+    }
+}
@@ -0,0 +1,72 @@
+package com.galix.avcore.render.audio;
+
+/**
+ * 淡入淡出
+ * 使用等功率曲线(sin)，时间相对组件开始
+ */
+public class FadeProcessor implements IAudioProcessor {
+
+    private long mFadeInUs;
+    private long mFadeOutUs;
+    private long mDurationUs;
+    private int mSampleRate;
+    private int mChannelCount;
+
+    public FadeProcessor(long fadeInUs, long fadeOutUs) {
+        mFadeInUs = fadeInUs;
+        mFadeOutUs = fadeOutUs;
+    }
+
+    @Override
+    public void prepare(int sampleRate, int channelCount, long durationUs) {
+        mSampleRate = sampleRate;
+        mChannelCount = channelCount;
+        mDurationUs = durationUs;
+    }
+
+    public float gainAt(long positionUs) {
+        float gain = 1.f;
+        if (mFadeInUs > 0 && positionUs < mFadeInUs) {
+            gain = curve(Math.max(0, positionUs) * 1.f / mFadeInUs);
+        }
+        long remain = mDurationUs - positionUs;
+        if (mFadeOutUs > 0 && remain < mFadeOutUs) {
+            gain = Math.min(gain, curve(Math.max(0, remain) * 1.f / mFadeOutUs));
+        }
+        return gain;
+    }
+
+    private static float curve(float t) {
+        return (float) Math.sin(t * Math.PI / 2);
+    }
+
+    @Override
+    public void process(float[] block, int frames, long positionUs) {
+        long endUs = positionUs + frames * 1000000L / mSampleRate;
+        if (positionUs >= mFadeInUs && mDurationUs - endUs >= mFadeOutUs) {
+            return;//不在淡入淡出区间
+        }
+        //块内线性过渡
+        float g = gainAt(positionUs);
+        float step = frames > 0 ? (gainAt(endUs) - g) / frames : 0;
+        int channels = mChannelCount;
+        for (int i = 0, idx = 0; i < frames; i++) {
+            for (int c = 0; c < channels; c++, idx++) {
+                block[idx] *= g;
+            }
+            g += step;
+        }
+    }
+
+    @Override
+    public void reset() {
+    }
+
+    @Override
+    public String toString() {
+        return "FadeProcessor{" +
+                "fadeInUs=" + mFadeInUs +
+                ", fadeOutUs=" + mFadeOutUs +
+                '}';
+    }
+}
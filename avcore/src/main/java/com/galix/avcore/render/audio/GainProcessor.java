@@ -0,0 +1,90 @@
+package com.galix.avcore.render.audio;
+
+import java.util.Arrays;
+
+/**
+ * 音量包络(增益自动化)
+ * 关键帧之间线性插值，关键帧之外保持首尾增益
+ */
+public class GainProcessor implements IAudioProcessor {
+
+    private long[] mTimesUs;
+    private float[] mGains;
+    private int mChannelCount;
+    private int mSampleRate;
+
+    /**
+     * 固定增益
+     */
+    public GainProcessor(float gain) {
+        this(new long[]{0}, new float[]{gain});
+    }
+
+    /**
+     * @param timesUs 关键帧时间，递增
+     * @param gains   关键帧增益，线性值
+     */
+    public GainProcessor(long[] timesUs, float[] gains) {
+        if (timesUs.length == 0 || timesUs.length != gains.length) {
+            throw new IllegalArgumentException("timesUs and gains must be non-empty and equal length");
+        }
+        mTimesUs = timesUs.clone();
+        mGains = gains.clone();
+    }
+
+    @Override
+    public void prepare(int sampleRate, int channelCount, long durationUs) {
+        mSampleRate = sampleRate;
+        mChannelCount = channelCount;
+    }
+
+    /**
+     * 某个时间点的增益
+     */
+    public float gainAt(long positionUs) {
+        if (positionUs <= mTimesUs[0]) return mGains[0];
+        int last = mTimesUs.length - 1;
+        if (positionUs >= mTimesUs[last]) return mGains[last];
+        int lo = 0;
+        int hi = last;
+        while (hi - lo > 1) {
+            int mid = (lo + hi) >>> 1;
+            if (mTimesUs[mid] <= positionUs) {
+                lo = mid;
+            } else {
+                hi = mid;
+            }
+        }
+        float t = (positionUs - mTimesUs[lo]) * 1.f / (mTimesUs[hi] - mTimesUs[lo]);
+        return mGains[lo] + (mGains[hi] - mGains[lo]) * t;
+    }
+
+    @Override
+    public void process(float[] block, int frames, long positionUs) {
+        //块内按起止增益线性过渡，避免每个sample都做查找
+        long endUs = positionUs + frames * 1000000L / mSampleRate;
+        float g0 = gainAt(positionUs);
+        float g1 = gainAt(endUs);
+        float step = frames > 0 ? (g1 - g0) / frames : 0;
+        float g = g0;
+        int channels = mChannelCount;
+        for (int i = 0, idx = 0; i < frames; i++) {
+            for (int c = 0; c < channels; c++, idx++) {
+                block[idx] *= g;
+            }
+            g += step;
+        }
+    }
+
+    @Override
+    public void reset() {
+    }
+
+    @Override
+    public String toString() {
+        return "GainProcessor{" +
+                "timesUs=" + Arrays.toString(mTimesUs) +
+                ", gains=" + Arrays.toString(mGains) +
+                '}';
+    }
+}
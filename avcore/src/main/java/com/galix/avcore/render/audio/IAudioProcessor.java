@@ -0,0 +1,28 @@
+package com.galix.avcore.render.audio;
+
+/**
+ * 音频处理器
+ * 处理交错(interleaved)的float块，取值范围[-1,1]。
+ * process中不允许分配内存，所有状态在prepare中准备好。
+ */
+public interface IAudioProcessor {
+
+    /**
+     * @param sampleRate   采样率
+     * @param channelCount 声道数
+     * @param durationUs   组件时长，淡入淡出等需要
+     */
+    void prepare(int sampleRate, int channelCount, long durationUs);
+
+    /**
+     * @param block      交错float数据
+     * @param frames     帧数，每帧channelCount个sample
+     * @param positionUs 块第一帧相对组件开始的时间
+     */
+    void process(float[] block, int frames, long positionUs);
+
+    /**
+     * seek后清空内部状态
+     */
+    void reset();
+}
@@ -0,0 +1,25 @@
+package com.galix.avcore.render.filters;
+
+import com.galix.avcore.R;
+
+import java.util.Map;
+
+/**
+ * 转码滤镜，OES纹理按texMat变换纹理坐标(SurfaceTexture矩阵，旋转)后直接画到当前surface
+ */
+public class TranscodeFilter extends BaseFilter {
+
+    public TranscodeFilter() {
+        super(R.raw.transcode_vs, R.raw.transcode_fs);
+    }
+
+    @Override
+    public void onRenderPre() {
+        bindTexture("inputImageTexture");
+        bindMat3("texMat");
+    }
+
+    @Override
+    public void onWrite(Map<String, Object> config) {
+    }
+}
@@ -0,0 +1,60 @@
+package com.galix.avcore.util;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.PowerManager;
+
+/**
+ * 系统温度和电量
+ * Android Q以下没有温控状态，始终返回THERMAL_STATUS_NONE，只依赖电量和省电模式。
+ *
+ * @Author:Galis
+ * @Date:2022.04.28
+ */
+public class AndroidThermalSource implements IThermalSource {
+
+    private final Context mContext;
+    private final PowerManager mPowerManager;
+    private final BatteryManager mBatteryManager;
+
+    public AndroidThermalSource(Context context) {
+        mContext = context.getApplicationContext();
+        mPowerManager = (PowerManager) mContext.getSystemService(Context.POWER_SERVICE);
+        mBatteryManager = (BatteryManager) mContext.getSystemService(Context.BATTERY_SERVICE);
+    }
+
+    @Override
+    public int getThermalStatus() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && mPowerManager != null) {
+            return mPowerManager.getCurrentThermalStatus();
+        }
+        return THERMAL_STATUS_NONE;
+    }
+
+    @Override
+    public int getBatteryLevel() {
+        if (mBatteryManager == null) return -1;
+        int level = mBatteryManager.getIntProperty(BatteryManager.BATTERY_PROPERTY_CAPACITY);
+        return level <= 0 || level > 100 ? -1 : level;
+    }
+
+    @Override
+    public boolean isCharging() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M && mBatteryManager != null) {
+            return mBatteryManager.isCharging();
+        }
+        //粘性广播，不需要注册receiver
+        Intent intent = mContext.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (intent == null) return false;
+        int status = intent.getIntExtra(BatteryManager.EXTRA_STATUS, -1);
+        return status == BatteryManager.BATTERY_STATUS_CHARGING || status == BatteryManager.BATTERY_STATUS_FULL;
+    }
+
+    @Override
+    public boolean isPowerSaveMode() {
+        return mPowerManager != null && mPowerManager.isPowerSaveMode();
+    }
+}
@@ -0,0 +1,263 @@
+package com.galix.avcore.util;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+
+import com.galix.avcore.avcore.AVAudio;
+import com.galix.avcore.avcore.AVComponent;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * 音频直接拷贝(passthrough)分析
+ * 没有任何编辑(增益，变速，混音)并且边界落在整帧上的AAC片段，压缩数据可以直接写入MediaMuxer，
+ * 其余片段需要重新编码。
+ *
+ * @Author:Galis
+ * @Date:2022.04.19
+ */
+public class AudioRemux {
+
+    private static final String TAG = AudioRemux.class.getSimpleName();
+    private static final int AAC_FRAME_SAMPLES = 1024;
+
+    /**
+     * 音频片段，engine时间
+     */
+    public static class Segment {
+        public AVAudio audio;//为空代表没有音频组件的空隙，编码成静音
+        public long engineStart;
+        public long engineEnd;
+        public boolean copy;
+        public String reason;//不能拷贝的原因
+
+        public long duration() {
+            return engineEnd - engineStart;
+        }
+
+        @Override
+        public String toString() {
+            return "Segment{" +
+                    "engineStart=" + engineStart +
+                    ", engineEnd=" + engineEnd +
+                    ", copy=" + copy +
+                    ", reason='" + reason + '\'' +
+                    '}';
+        }
+    }
+
+    public static class Plan {
+        public List<Segment> segments = new LinkedList<>();
+        public MediaFormat copyFormat;//直接拷贝片段的轨道格式，为空代表全部重新编码
+
+        public boolean hasCopy() {
+            return copyFormat != null;
+        }
+
+        /**
+         * @return 是否有需要编码的片段
+         */
+        public boolean hasEncode() {
+            for (Segment segment : segments) {
+                if (!segment.copy) return true;
+            }
+            return false;
+        }
+    }
+
+    private AudioRemux() {
+    }
+
+    /**
+     * 分析所有音频组件，得出哪些片段可以直接拷贝
+     *
+     * @param components 音频组件
+     * @param durationUs 合成总时长
+     * @return Plan
+     */
+    public static Plan plan(List<AVComponent> components, long durationUs) {
+        Plan plan = new Plan();
+        List<AVComponent> sorted = new ArrayList<>(components);
+        Collections.sort(sorted, (o1, o2) -> Long.compare(o1.getEngineStartTime(), o2.getEngineStartTime()));
+        long lastEnd = 0;
+        for (AVComponent component : sorted) {
+            if (!(component instanceof AVAudio)) continue;
+            AVAudio audio = (AVAudio) component;
+            Segment segment = new Segment();
+            segment.audio = audio;
+            segment.engineStart = Math.max(audio.getEngineStartTime(), lastEnd);
+            segment.engineEnd = Math.min(audio.getEngineEndTime(), durationUs);
+            if (segment.engineEnd <= segment.engineStart) continue;
+            if (segment.engineStart != audio.getEngineStartTime()) {
+                segment.reason = "mix";
+            } else if (segment.engineEnd != audio.getEngineEndTime()) {
+                segment.reason = "truncated";
+            } else if (audio.hasAudioEdit()) {
+                segment.reason = "edited";
+            } else {
+                MediaFormat format = checkSource(audio, segment);
+                if (format != null) {
+                    if (plan.copyFormat == null) {
+                        plan.copyFormat = format;
+                    }
+                    if (sameConfig(plan.copyFormat, format)) {
+                        segment.copy = true;
+                    } else {
+                        segment.reason = "codec config";
+                    }
+                }
+            }
+            lastEnd = segment.engineEnd;
+            plan.segments.add(segment);
+            LogUtil.log(LogUtil.ENGINE_TAG + "AudioRemux#plan#" + segment.toString());
+        }
+        if (plan.copyFormat != null) {
+            fillGaps(plan, durationUs, AAC_FRAME_SAMPLES * 1000000L / plan.copyFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE));
+        }
+        return plan;
+    }
+
+    /**
+     * 没有音频组件的时间段补静音片段，拷贝模式下轨道时间戳连续；短于一帧的空隙由前一帧的时长覆盖
+     */
+    private static void fillGaps(Plan plan, long durationUs, long frameUs) {
+        List<Segment> segments = new LinkedList<>();
+        long lastEnd = 0;
+        for (Segment segment : plan.segments) {
+            if (segment.engineStart - lastEnd >= frameUs) {
+                segments.add(gap(lastEnd, segment.engineStart));
+            }
+            segments.add(segment);
+            lastEnd = segment.engineEnd;
+        }
+        if (durationUs - lastEnd >= frameUs) {
+            segments.add(gap(lastEnd, durationUs));
+        }
+        plan.segments = segments;
+    }
+
+    private static Segment gap(long start, long end) {
+        Segment segment = new Segment();
+        segment.engineStart = start;
+        segment.engineEnd = end;
+        segment.reason = "gap";
+        LogUtil.log(LogUtil.ENGINE_TAG + "AudioRemux#plan#" + segment.toString());
+        return segment;
+    }
+
+    /**
+     * 检查源文件编码格式以及裁剪点是否落在整帧上
+     *
+     * @return 源轨道格式，不可拷贝返回null
+     */
+    private static MediaFormat checkSource(AVAudio audio, Segment segment) {
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            extractor.setDataSource(audio.getPath());
+            MediaFormat format = selectAudioTrack(extractor);
+            if (format == null || !MediaFormat.MIMETYPE_AUDIO_AAC.equals(format.getString(MediaFormat.KEY_MIME))) {
+                segment.reason = "codec";
+                return null;
+            }
+            int sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+            long halfSampleUs = 500000L / sampleRate;
+            if (!isFrameBoundary(extractor, audio.getClipStartTime(), halfSampleUs)) {
+                segment.reason = "clip start";
+                return null;
+            }
+            if (audio.getClipEndTime() < audio.getDuration()) {
+                long frameUs = AAC_FRAME_SAMPLES * 1000000L / sampleRate;
+                if (!isFrameBoundary(extractor, audio.getClipEndTime(), halfSampleUs)
+                        && !isFrameBoundary(extractor, audio.getClipEndTime() - frameUs, halfSampleUs)) {
+                    segment.reason = "clip end";
+                    return null;
+                }
+            }
+            return format;
+        } catch (IOException e) {
+            segment.reason = "io";
+            return null;
+        } finally {
+            extractor.release();
+        }
+    }
+
+    private static boolean isFrameBoundary(MediaExtractor extractor, long timeUs, long toleranceUs) {
+        extractor.seekTo(timeUs, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+        return Math.abs(extractor.getSampleTime() - timeUs) <= toleranceUs;
+    }
+
+    private static MediaFormat selectAudioTrack(MediaExtractor extractor) {
+        for (int i = 0; i < extractor.getTrackCount(); i++) {
+            MediaFormat format = extractor.getTrackFormat(i);
+            if (format.getString(MediaFormat.KEY_MIME).contains("audio")) {
+                extractor.selectTrack(i);
+                return format;
+            }
+        }
+        return null;
+    }
+
+    static boolean sameConfig(MediaFormat f1, MediaFormat f2) {
+        if (f1.getInteger(MediaFormat.KEY_SAMPLE_RATE) != f2.getInteger(MediaFormat.KEY_SAMPLE_RATE)
+                || f1.getInteger(MediaFormat.KEY_CHANNEL_COUNT) != f2.getInteger(MediaFormat.KEY_CHANNEL_COUNT)) {
+            return false;
+        }
+        ByteBuffer csd1 = f1.getByteBuffer("csd-0");
+        ByteBuffer csd2 = f2.getByteBuffer("csd-0");
+        if (csd1 == null || csd2 == null) {
+            return csd1 == csd2;
+        }
+        ByteBuffer b1 = csd1.duplicate();
+        ByteBuffer b2 = csd2.duplicate();
+        b1.position(0);
+        b2.position(0);
+        return b1.equals(b2);
+    }
+
+    /**
+     * 直接拷贝一个片段的压缩数据
+     *
+     * @param segment 片段
+     * @param writer  写入MediaMuxer
+     * @return 拷贝的时长
+     */
+    public static long copy(Segment segment, SampleWriter writer) throws IOException {
+        AVAudio audio = segment.audio;
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            extractor.setDataSource(audio.getPath());
+            MediaFormat format = selectAudioTrack(extractor);
+            ByteBuffer buffer = ByteBuffer.allocateDirect(format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE));
+            MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+            extractor.seekTo(audio.getClipStartTime(), MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+            long lastPts = segment.engineStart;
+            while (true) {
+                long sampleTime = extractor.getSampleTime();
+                if (sampleTime < 0 || sampleTime >= audio.getClipEndTime()) break;
+                int size = extractor.readSampleData(buffer, 0);
+                if (size < 0) break;
+                bufferInfo.set(0, size,
+                        sampleTime - audio.getClipStartTime() + segment.engineStart,
+                        MediaCodec.BUFFER_FLAG_KEY_FRAME);
+                writer.write(buffer, bufferInfo);
+                lastPts = bufferInfo.presentationTimeUs;
+                extractor.advance();
+            }
+            return Math.min(segment.duration(), lastPts - segment.engineStart
+                    + AAC_FRAME_SAMPLES * 1000000L / format.getInteger(MediaFormat.KEY_SAMPLE_RATE));
+        } finally {
+            extractor.release();
+        }
+    }
+
+    public interface SampleWriter {
+        void write(ByteBuffer buffer, MediaCodec.BufferInfo bufferInfo);
+    }
+}
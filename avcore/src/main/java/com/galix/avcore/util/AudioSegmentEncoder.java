@@ -0,0 +1,257 @@
+package com.galix.avcore.util;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+
+import com.galix.avcore.avcore.AVAudio;
+import com.galix.avcore.avcore.AVComponent;
+import com.galix.avcore.avcore.AVFrame;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static android.media.MediaCodec.BUFFER_FLAG_END_OF_STREAM;
+
+/**
+ * 音频拷贝模式下编码不能拷贝的片段和空隙
+ * 整条轨道只用一个AAC编码器，每个片段送完EOS取出全部输出后flush复用。
+ * 编码器开头的priming帧直接丢掉，输出按采样数重新打时间戳，片段和拷贝数据首尾相接，不会多出静音。
+ * 打开时先编码一帧静音，编码器输出的csd和拷贝轨道不一致时返回null，由调用方改为全部重新编码。
+ *
+ * @Author:Galis
+ * @Date:2022.04.28
+ */
+public class AudioSegmentEncoder {
+
+    private static final int AAC_FRAME_SAMPLES = 1024;
+    private static final int DEFAULT_ENCODER_DELAY = 2048;//AAC-LC编码器的priming采样数
+    private static final String KEY_ENCODER_DELAY = "encoder-delay";
+    private static final int BYTES_PER_SAMPLE = 2;//PCM16
+    private static final int PROBE_RETRY = 200;
+    private static final byte[] ZEROS = new byte[4096];
+
+    private final MediaCodec mCodec;
+    private final int mSampleRate;
+    private final int mFrameBytes;
+    private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+    private int mPrimingFrames;
+    private int mPrerollSamples;
+
+    private AudioSegmentEncoder(MediaCodec codec, int sampleRate, int channelCount) {
+        mCodec = codec;
+        mSampleRate = sampleRate;
+        mFrameBytes = channelCount * BYTES_PER_SAMPLE;
+        setEncoderDelay(DEFAULT_ENCODER_DELAY);
+    }
+
+    /**
+     * 创建编码器，参数和拷贝轨道保持一致
+     *
+     * @param trackFormat 拷贝轨道格式
+     * @param bitRate     码率
+     * @return 编码器，输出格式和拷贝轨道不一致返回null
+     */
+    public static AudioSegmentEncoder open(MediaFormat trackFormat, int bitRate) {
+        int sampleRate = trackFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+        int channelCount = trackFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+        MediaFormat mediaFormat = MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_AAC, sampleRate, channelCount);
+        mediaFormat.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
+        mediaFormat.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+        MediaCodec codec = null;
+        try {
+            codec = MediaCodec.createEncoderByType(MediaFormat.MIMETYPE_AUDIO_AAC);
+            codec.configure(mediaFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            codec.start();
+            AudioSegmentEncoder encoder = new AudioSegmentEncoder(codec, sampleRate, channelCount);
+            MediaFormat outputFormat = encoder.probe();
+            if (outputFormat == null || !AudioRemux.sameConfig(trackFormat, outputFormat)) {
+                LogUtil.log(LogUtil.ENGINE_TAG + "AudioSegmentEncoder#open#mismatch#" + outputFormat);
+                encoder.release();
+                return null;
+            }
+            LogUtil.log(LogUtil.ENGINE_TAG + "AudioSegmentEncoder#open#priming#" + encoder.mPrimingFrames);
+            return encoder;
+        } catch (IOException | RuntimeException e) {
+            LogUtil.log(LogUtil.ENGINE_TAG + "AudioSegmentEncoder#open#Error#" + e.getMessage());
+            if (codec != null) {
+                codec.release();
+            }
+            return null;
+        }
+    }
+
+    /**
+     * 编码一帧静音取出输出格式，csd可能在格式里也可能在CODEC_CONFIG输出里
+     */
+    private MediaFormat probe() {
+        MediaFormat outputFormat = null;
+        ByteBuffer csd = null;
+        boolean isInputEOF = false;
+        for (int i = 0; i < PROBE_RETRY; i++) {
+            if (!isInputEOF) {
+                int index = mCodec.dequeueInputBuffer(10000);
+                if (index >= 0) {
+                    ByteBuffer buffer = mCodec.getInputBuffer(index);
+                    int size = Math.min(buffer.remaining(), AAC_FRAME_SAMPLES * mFrameBytes);
+                    putZeros(buffer, size);
+                    mCodec.queueInputBuffer(index, 0, size, 0, BUFFER_FLAG_END_OF_STREAM);
+                    isInputEOF = true;
+                }
+            }
+            int status = mCodec.dequeueOutputBuffer(mBufferInfo, 10000);
+            if (status == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                outputFormat = mCodec.getOutputFormat();
+            } else if (status >= 0) {
+                if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0 && csd == null) {
+                    ByteBuffer buffer = mCodec.getOutputBuffer(status);
+                    buffer.position(mBufferInfo.offset);
+                    buffer.limit(mBufferInfo.offset + mBufferInfo.size);
+                    csd = ByteBuffer.allocate(mBufferInfo.size);
+                    csd.put(buffer);
+                    csd.flip();
+                }
+                mCodec.releaseOutputBuffer(status, false);
+                if ((mBufferInfo.flags & BUFFER_FLAG_END_OF_STREAM) != 0) break;
+            }
+        }
+        mCodec.flush();
+        if (outputFormat == null) return null;
+        if (!outputFormat.containsKey("csd-0") && csd != null) {
+            outputFormat.setByteBuffer("csd-0", csd);
+        }
+        if (outputFormat.containsKey(KEY_ENCODER_DELAY)) {
+            setEncoderDelay(outputFormat.getInteger(KEY_ENCODER_DELAY));
+        }
+        return outputFormat;
+    }
+
+    /**
+     * 先送(1024 - delay % 1024)个静音采样，priming加上预填刚好是整帧，内容从第一个保留帧的开头开始
+     */
+    private void setEncoderDelay(int delaySamples) {
+        mPrerollSamples = (AAC_FRAME_SAMPLES - delaySamples % AAC_FRAME_SAMPLES) % AAC_FRAME_SAMPLES;
+        mPrimingFrames = (delaySamples + mPrerollSamples) / AAC_FRAME_SAMPLES;
+    }
+
+    /**
+     * 编码一个片段，没有音频组件(空隙)或者音频提前结束的部分编码成静音
+     *
+     * @param segment 片段
+     * @param writer  写入MediaMuxer
+     * @return 编码时长
+     */
+    public long encode(AudioRemux.Segment segment, AudioRemux.SampleWriter writer) {
+        long totalSamples = mPrerollSamples + segment.duration() * mSampleRate / 1000000;
+        long frameUs = AAC_FRAME_SAMPLES * 1000000L / mSampleRate;
+        AVAudio audio = segment.audio;
+        ByteBuffer pcm = null;
+        long lead = 0;//开头需要跳过(>0)或者补静音(<0)的采样数
+        if (audio != null) {
+            audio.lock();
+            if (audio.seekFrame(segment.engineStart) == AVComponent.RESULT_OK && audio.peekFrame().isValid()) {
+                pcm = audio.peekFrame().getByteBuffer().duplicate();
+                lead = (segment.engineStart - audio.peekFrame().getPts()) * mSampleRate / 1000000;
+            }
+        }
+        long fed = 0;
+        long outputFrames = 0;
+        boolean isInputEOF = false;
+        boolean isOutputEOF = false;
+        try {
+            while (!isOutputEOF) {
+                if (!isInputEOF) {
+                    int index = mCodec.dequeueInputBuffer(10000);
+                    if (index >= 0) {
+                        ByteBuffer buffer = mCodec.getInputBuffer(index);
+                        long pts = segment.engineStart + fed * 1000000 / mSampleRate;
+                        if (fed >= totalSamples) {
+                            isInputEOF = true;
+                            mCodec.queueInputBuffer(index, 0, 0, pts, BUFFER_FLAG_END_OF_STREAM);
+                        } else {
+                            int samples = (int) Math.min(buffer.remaining() / mFrameBytes, totalSamples - fed);
+                            int silence = (int) Math.max(0, Math.min(samples, mPrerollSamples - fed));
+                            if (fed + silence >= mPrerollSamples && lead < 0) {
+                                int pad = (int) Math.min(samples - silence, -lead);
+                                silence += pad;
+                                lead += pad;
+                            }
+                            putSilence(buffer, silence);
+                            int filled = silence;
+                            while (filled < samples && pcm != null) {
+                                if (lead > 0) {
+                                    int skip = (int) Math.min(lead, pcm.remaining() / mFrameBytes);
+                                    pcm.position(pcm.position() + skip * mFrameBytes);
+                                    lead -= skip;
+                                }
+                                int count = Math.min(samples - filled, pcm.remaining() / mFrameBytes);
+                                if (count > 0) {
+                                    ByteBuffer src = pcm.duplicate();
+                                    src.limit(src.position() + count * mFrameBytes);
+                                    buffer.put(src);
+                                    pcm.position(pcm.position() + count * mFrameBytes);
+                                    filled += count;
+                                } else {
+                                    pcm = nextFrame(audio);
+                                }
+                            }
+                            putSilence(buffer, samples - filled);
+                            mCodec.queueInputBuffer(index, 0, samples * mFrameBytes, pts, 0);
+                            fed += samples;
+                        }
+                    }
+                }
+                int status = mCodec.dequeueOutputBuffer(mBufferInfo, 10000);
+                if (status >= 0) {
+                    if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0 && mBufferInfo.size > 0) {
+                        long frame = outputFrames++ - mPrimingFrames;
+                        long pts = segment.engineStart + frame * frameUs;
+                        if (frame >= 0 && pts < segment.engineEnd) {
+                            ByteBuffer buffer = mCodec.getOutputBuffer(status);
+                            buffer.position(mBufferInfo.offset);
+                            buffer.limit(mBufferInfo.offset + mBufferInfo.size);
+                            mBufferInfo.set(mBufferInfo.offset, mBufferInfo.size, pts, MediaCodec.BUFFER_FLAG_KEY_FRAME);
+                            writer.write(buffer, mBufferInfo);
+                        }
+                    }
+                    isOutputEOF = (mBufferInfo.flags & BUFFER_FLAG_END_OF_STREAM) != 0;
+                    mCodec.releaseOutputBuffer(status, false);
+                }
+            }
+        } finally {
+            mCodec.flush();
+            if (audio != null) {
+                audio.unlock();
+            }
+        }
+        return segment.duration();
+    }
+
+    /**
+     * 读取下一帧PCM，音频结束返回null
+     */
+    private static ByteBuffer nextFrame(AVAudio audio) {
+        AVFrame frame = audio.peekFrame();
+        if (frame.isEof() || audio.readFrame() != AVComponent.RESULT_OK || !frame.isValid()) {
+            return null;
+        }
+        return frame.getByteBuffer().duplicate();
+    }
+
+    private void putSilence(ByteBuffer buffer, int samples) {
+        putZeros(buffer, samples * mFrameBytes);
+    }
+
+    private static void putZeros(ByteBuffer buffer, int size) {
+        while (size > 0) {
+            int count = Math.min(size, ZEROS.length);
+            buffer.put(ZEROS, 0, count);
+            size -= count;
+        }
+    }
+
+    public void release() {
+        mCodec.stop();
+        mCodec.release();
+    }
+}
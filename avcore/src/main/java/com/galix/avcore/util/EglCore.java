@@ -304,6 +304,13 @@ public final class EglCore {
         }
     }
 
+    /**
+     * Returns the EGL context, used as the share context of worker contexts.
+     */
+    public EGLContext getContext() {
+        return mEGLContext;
+    }
+
     /**
      * Makes no context current.
      */
@@ -76,12 +76,46 @@ public class EglHelper {
         return mEglCore.makeCurrent(mEglSurface);
     }
 
+    public EGLContext getContext() {
+        return mEglCore.getContext();
+    }
+
     public void makeNothingCurrent() {
         LogUtil.log("Egl#makeNothingCurrent()");
         mEglCore.makeNothingCurrent();
     }
 
 
+    /**
+     * 在同一个上下文上额外创建窗口surface，多路输出时使用，主surface不受影响
+     */
+    public EGLSurface createExtraSurface(Surface surface) {
+        return mEglCore.createWindowSurface(surface);
+    }
+
+    /**
+     * 在同一个上下文上额外创建离屏surface，读回像素时使用
+     */
+    public EGLSurface createOffscreenSurface(int width, int height) {
+        return mEglCore.createOffscreenSurface(width, height);
+    }
+
+    public boolean makeCurrent(EGLSurface eglSurface) {
+        return mEglCore.makeCurrent(eglSurface);
+    }
+
+    public boolean swap(EGLSurface eglSurface) {
+        return mEglCore.swapBuffers(eglSurface);
+    }
+
+    public void setPresentationTime(EGLSurface eglSurface, long nsecs) {
+        mEglCore.setPresentationTime(eglSurface, nsecs);
+    }
+
+    public void releaseExtraSurface(EGLSurface eglSurface) {
+        mEglCore.releaseSurface(eglSurface);
+    }
+
     public void setPresentationTime(long nsecs) {
         LogUtil.log("Egl#setPresentationTime()");
         mEglCore.setPresentationTime(mEglSurface, nsecs);
@@ -0,0 +1,493 @@
+package com.galix.avcore.util;
+
+import android.content.Context;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.opengl.GLES30;
+import android.os.Build;
+import android.os.Bundle;
+import android.view.Surface;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * AVC编码器能力探测
+ * 第一次启动时在后台线程枚举所有AVC编码器，记录profile/level，码率模式，并发实例上限以及各分辨率实测编码帧率，
+ * 结果按系统指纹缓存到文件。合成时只读取缓存选择配置，不再探测；没有缓存时使用系统默认编码器。
+ *
+ * @Author:Galis
+ * @Date:2022.04.27
+ */
+public class EncoderProbe {
+
+    private static final String TAG = EncoderProbe.class.getSimpleName();
+    private static final String CACHE_NAME = "encoder_profile.json";
+    private static final int CACHE_VERSION = 1;
+    private static final int[][] PROBE_SIZES = {{1280, 720}, {1920, 1080}};
+    private static final int PROBE_FRAMES = 60;
+    private static final long PROBE_TIMEOUT_NS = 5000000000L;
+    private static final int[] PROFILE_ORDER = {
+            MediaCodecInfo.CodecProfileLevel.AVCProfileHigh,
+            MediaCodecInfo.CodecProfileLevel.AVCProfileMain,
+            MediaCodecInfo.CodecProfileLevel.AVCProfileBaseline};
+
+    private static volatile List<CodecProfile> sProfiles;
+
+    /**
+     * 单个编码器的能力
+     */
+    public static class CodecProfile {
+        public String name;
+        public boolean hardware;
+        public int maxInstances;
+        public int maxWidth;
+        public int maxHeight;
+        public int widthAlignment;
+        public int heightAlignment;
+        public Map<Integer, Integer> profileLevels = new HashMap<>();//profile->最高level
+        public List<Integer> bitrateModes = new ArrayList<>();
+        public List<Integer> colorFormats = new ArrayList<>();
+        public Map<String, Float> fps = new HashMap<>();//"宽x高"->实测编码帧率
+
+        boolean isSizeSupported(int width, int height) {
+            return width <= maxWidth && height <= maxHeight
+                    && width % widthAlignment == 0 && height % heightAlignment == 0;
+        }
+
+        /**
+         * 按像素数换算到目标分辨率的帧率估计，没有实测数据返回0
+         */
+        float estimateFps(int width, int height) {
+            float best = 0;
+            for (Map.Entry<String, Float> entry : fps.entrySet()) {
+                String[] size = entry.getKey().split("x");
+                long pixels = Long.parseLong(size[0]) * Long.parseLong(size[1]);
+                best = Math.max(best, entry.getValue() * pixels / ((float) width * height));
+            }
+            return best;
+        }
+
+        JSONObject toJson() throws JSONException {
+            JSONObject object = new JSONObject();
+            object.put("name", name);
+            object.put("hardware", hardware);
+            object.put("max_instances", maxInstances);
+            object.put("max_width", maxWidth);
+            object.put("max_height", maxHeight);
+            object.put("width_alignment", widthAlignment);
+            object.put("height_alignment", heightAlignment);
+            JSONObject levels = new JSONObject();
+            for (Map.Entry<Integer, Integer> entry : profileLevels.entrySet()) {
+                levels.put(String.valueOf(entry.getKey()), entry.getValue());
+            }
+            object.put("profile_levels", levels);
+            object.put("bitrate_modes", new JSONArray(bitrateModes));
+            object.put("color_formats", new JSONArray(colorFormats));
+            JSONObject fpsObject = new JSONObject();
+            for (Map.Entry<String, Float> entry : fps.entrySet()) {
+                fpsObject.put(entry.getKey(), (double) entry.getValue());
+            }
+            object.put("fps", fpsObject);
+            return object;
+        }
+
+        static CodecProfile fromJson(JSONObject object) throws JSONException {
+            CodecProfile profile = new CodecProfile();
+            profile.name = object.getString("name");
+            profile.hardware = object.getBoolean("hardware");
+            profile.maxInstances = object.getInt("max_instances");
+            profile.maxWidth = object.getInt("max_width");
+            profile.maxHeight = object.getInt("max_height");
+            profile.widthAlignment = Math.max(1, object.getInt("width_alignment"));
+            profile.heightAlignment = Math.max(1, object.getInt("height_alignment"));
+            JSONObject levels = object.getJSONObject("profile_levels");
+            JSONArray keys = levels.names();
+            for (int i = 0; keys != null && i < keys.length(); i++) {
+                profile.profileLevels.put(Integer.parseInt(keys.getString(i)), levels.getInt(keys.getString(i)));
+            }
+            JSONArray modes = object.getJSONArray("bitrate_modes");
+            for (int i = 0; i < modes.length(); i++) {
+                profile.bitrateModes.add(modes.getInt(i));
+            }
+            JSONArray colors = object.getJSONArray("color_formats");
+            for (int i = 0; i < colors.length(); i++) {
+                profile.colorFormats.add(colors.getInt(i));
+            }
+            JSONObject fpsObject = object.getJSONObject("fps");
+            JSONArray sizes = fpsObject.names();
+            for (int i = 0; sizes != null && i < sizes.length(); i++) {
+                profile.fps.put(sizes.getString(i), (float) fpsObject.getDouble(sizes.getString(i)));
+            }
+            return profile;
+        }
+
+        @Override
+        public String toString() {
+            return "CodecProfile{" +
+                    "name='" + name + '\'' +
+                    ", hardware=" + hardware +
+                    ", maxInstances=" + maxInstances +
+                    ", profileLevels=" + profileLevels +
+                    ", bitrateModes=" + bitrateModes +
+                    ", fps=" + fps +
+                    '}';
+        }
+    }
+
+    /**
+     * 合成预设
+     */
+    public static class Preset {
+        public int width;
+        public int height;
+        public int frameRate = 30;
+        public int bitRate;
+        public int iFrameInterval = 1;//秒
+        public int colorFormat = MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface;
+        public int operatingRate = 0;//0为不设置，编码器尽快编码
+
+        public Preset(int width, int height, int bitRate) {
+            this.width = width;
+            this.height = height;
+            this.bitRate = bitRate;
+        }
+    }
+
+    /**
+     * 选出来的编码配置
+     */
+    public static class EncoderConfig {
+        public final Preset preset;
+        public String codecName;//为空使用系统默认AVC编码器
+        public int profile = -1;
+        public int level = -1;
+        public int bitrateMode = -1;
+        public float estimateFps;
+
+        EncoderConfig(Preset preset) {
+            this.preset = preset;
+        }
+
+        public MediaFormat createFormat() {
+            MediaFormat format = MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC, preset.width, preset.height);
+            format.setInteger(MediaFormat.KEY_COLOR_FORMAT, preset.colorFormat);
+            format.setInteger(MediaFormat.KEY_BIT_RATE, preset.bitRate);
+            format.setInteger(MediaFormat.KEY_FRAME_RATE, preset.frameRate);
+            format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, preset.iFrameInterval);
+            if (bitrateMode != -1) {
+                format.setInteger(MediaFormat.KEY_BITRATE_MODE, bitrateMode);
+            }
+            if (preset.operatingRate > 0 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                format.setInteger(MediaFormat.KEY_OPERATING_RATE, preset.operatingRate);
+                format.setInteger(MediaFormat.KEY_PRIORITY, 1);//非实时
+            }
+            if (profile != -1) {
+                format.setInteger(MediaFormat.KEY_PROFILE, profile);
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                    format.setInteger(MediaFormat.KEY_LEVEL, level);
+                }
+            }
+            return format;
+        }
+
+        /**
+         * 创建并配置编码器，指定配置失败时退回系统默认编码器
+         */
+        public MediaCodec createEncoder() throws IOException {
+            if (codecName != null) {
+                MediaCodec codec = MediaCodec.createByCodecName(codecName);
+                try {
+                    codec.configure(createFormat(), null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+                    return codec;
+                } catch (Exception e) {
+                    LogUtil.log(LogUtil.ENGINE_TAG + "EncoderProbe#createEncoder#fallback#" + e.getMessage());
+                    codec.release();
+                }
+            }
+            EncoderConfig fallback = new EncoderConfig(preset);
+            MediaCodec codec = MediaCodec.createEncoderByType(MediaFormat.MIMETYPE_VIDEO_AVC);
+            codec.configure(fallback.createFormat(), null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            return codec;
+        }
+
+        @Override
+        public String toString() {
+            return "EncoderConfig{" +
+                    "codecName='" + codecName + '\'' +
+                    ", size=" + preset.width + "x" + preset.height +
+                    ", profile=" + profile +
+                    ", level=" + level +
+                    ", bitrateMode=" + bitrateMode +
+                    ", estimateFps=" + estimateFps +
+                    '}';
+        }
+    }
+
+    private EncoderProbe() {
+    }
+
+    /**
+     * 加载缓存，没有缓存或者系统升级后在后台线程重新探测
+     */
+    public static void init(Context context) {
+        File cache = new File(FileUtils.getCacheDir(context), CACHE_NAME);
+        List<CodecProfile> profiles = load(cache);
+        if (profiles != null) {
+            sProfiles = profiles;
+            return;
+        }
+        Thread thread = new Thread(() -> {
+            long start = System.currentTimeMillis();
+            List<CodecProfile> result = probe();
+            save(cache, result);
+            sProfiles = result;
+            LogUtil.log(LogUtil.ENGINE_TAG + "EncoderProbe#probe#cost#" + (System.currentTimeMillis() - start) + "ms#" + result);
+        }, "EncoderProbe");
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * @return 探测结果，还没有结果返回null
+     */
+    public static List<CodecProfile> getProfiles() {
+        return sProfiles;
+    }
+
+    /**
+     * 为预设选择最快的合法配置，不会触发探测
+     */
+    public static EncoderConfig select(Preset preset) {
+        EncoderConfig config = new EncoderConfig(preset);
+        List<CodecProfile> profiles = sProfiles;
+        if (profiles == null) return config;
+        CodecProfile best = null;
+        float bestScore = -1;
+        for (CodecProfile profile : profiles) {
+            if (!profile.isSizeSupported(preset.width, preset.height)
+                    || !profile.colorFormats.contains(preset.colorFormat)) {
+                continue;
+            }
+            //没有实测数据时硬件编码器优先
+            float score = profile.estimateFps(preset.width, preset.height) + (profile.hardware ? 1 : 0);
+            if (score > bestScore) {
+                bestScore = score;
+                best = profile;
+            }
+        }
+        if (best == null) return config;
+        config.codecName = best.name;
+        config.estimateFps = best.estimateFps(preset.width, preset.height);
+        //软件编码器High profile的CABAC开销明显，优先Baseline
+        for (int i = 0; i < PROFILE_ORDER.length; i++) {
+            int profile = best.hardware ? PROFILE_ORDER[i] : PROFILE_ORDER[PROFILE_ORDER.length - 1 - i];
+            if (best.profileLevels.containsKey(profile)) {
+                config.profile = profile;
+                config.level = best.profileLevels.get(profile);
+                break;
+            }
+        }
+        if (best.bitrateModes.contains(MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR)) {
+            config.bitrateMode = MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR;
+        } else if (best.bitrateModes.contains(MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR)) {
+            config.bitrateMode = MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR;
+        }
+        LogUtil.log(LogUtil.ENGINE_TAG + "EncoderProbe#select#" + config.toString());
+        return config;
+    }
+
+    /**
+     * 运行中的编码器调整operating rate
+     *
+     * @param codec         已经start的编码器
+     * @param operatingRate 0为不限制
+     */
+    public static void setOperatingRate(MediaCodec codec, int operatingRate) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) return;
+        Bundle params = new Bundle();
+        //不限制时设成最大值，编码器尽快编码
+        params.putInt(MediaFormat.KEY_OPERATING_RATE, operatingRate > 0 ? operatingRate : Short.MAX_VALUE);
+        try {
+            codec.setParameters(params);
+        } catch (IllegalStateException e) {
+            LogUtil.log(LogUtil.ENGINE_TAG + "EncoderProbe#setOperatingRate#Error#" + e.getMessage());
+        }
+    }
+
+    private static List<CodecProfile> probe() {
+        List<CodecProfile> profiles = new ArrayList<>();
+        MediaCodecList codecList = new MediaCodecList(MediaCodecList.REGULAR_CODECS);
+        for (MediaCodecInfo info : codecList.getCodecInfos()) {
+            if (!info.isEncoder()) continue;
+            for (String type : info.getSupportedTypes()) {
+                if (!type.equalsIgnoreCase(MediaFormat.MIMETYPE_VIDEO_AVC)) continue;
+                CodecProfile profile = describe(info, info.getCapabilitiesForType(type));
+                for (int[] size : PROBE_SIZES) {
+                    if (!profile.isSizeSupported(size[0], size[1])) continue;
+                    float fps = measure(profile.name, size[0], size[1]);
+                    if (fps > 0) {
+                        profile.fps.put(size[0] + "x" + size[1], fps);
+                    }
+                }
+                profiles.add(profile);
+            }
+        }
+        return profiles;
+    }
+
+    private static CodecProfile describe(MediaCodecInfo info, MediaCodecInfo.CodecCapabilities capabilities) {
+        CodecProfile profile = new CodecProfile();
+        profile.name = info.getName();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            profile.hardware = info.isHardwareAccelerated();
+        } else {
+            String name = profile.name.toLowerCase();
+            profile.hardware = !(name.startsWith("omx.google.") || name.startsWith("c2.android.") || name.contains(".sw."));
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            profile.maxInstances = capabilities.getMaxSupportedInstances();
+        }
+        MediaCodecInfo.VideoCapabilities video = capabilities.getVideoCapabilities();
+        profile.maxWidth = video.getSupportedWidths().getUpper();
+        profile.maxHeight = video.getSupportedHeights().getUpper();
+        profile.widthAlignment = video.getWidthAlignment();
+        profile.heightAlignment = video.getHeightAlignment();
+        for (MediaCodecInfo.CodecProfileLevel level : capabilities.profileLevels) {
+            Integer current = profile.profileLevels.get(level.profile);
+            if (current == null || current < level.level) {
+                profile.profileLevels.put(level.profile, level.level);
+            }
+        }
+        MediaCodecInfo.EncoderCapabilities encoder = capabilities.getEncoderCapabilities();
+        int[] modes = {MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CQ,
+                MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR,
+                MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR};
+        for (int mode : modes) {
+            if (encoder.isBitrateModeSupported(mode)) {
+                profile.bitrateModes.add(mode);
+            }
+        }
+        for (int colorFormat : capabilities.colorFormats) {
+            profile.colorFormats.add(colorFormat);
+        }
+        return profile;
+    }
+
+    /**
+     * 用surface输入编码PROBE_FRAMES帧纯色画面，测量编码帧率
+     *
+     * @return 帧率，失败返回0
+     */
+    private static float measure(String codecName, int width, int height) {
+        MediaCodec codec = null;
+        Surface surface = null;
+        EglHelper eglHelper = new EglHelper();
+        eglHelper.create(null, EglHelper.GL_VERSION_3);
+        try {
+            Preset preset = new Preset(width, height, width * height * 4);
+            codec = MediaCodec.createByCodecName(codecName);
+            codec.configure(new EncoderConfig(preset).createFormat(), null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            surface = codec.createInputSurface();
+            codec.start();
+            eglHelper.createSurface(surface);
+            eglHelper.makeCurrent();
+            MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+            int input = 0;
+            int output = 0;
+            long start = System.nanoTime();
+            while (output < PROBE_FRAMES && System.nanoTime() - start < PROBE_TIMEOUT_NS) {
+                if (input < PROBE_FRAMES) {
+                    GLES30.glViewport(0, 0, width, height);
+                    GLES30.glClearColor(input % 2, (input % 3) / 2.f, (input % 5) / 4.f, 1.f);
+                    GLES30.glClear(GLES30.GL_COLOR_BUFFER_BIT);
+                    eglHelper.setPresentationTime(input * 1000000000L / preset.frameRate);
+                    eglHelper.swap();
+                    if (++input == PROBE_FRAMES) {
+                        codec.signalEndOfInputStream();
+                    }
+                }
+                int status = codec.dequeueOutputBuffer(bufferInfo, input < PROBE_FRAMES ? 0 : 10000);
+                if (status >= 0) {
+                    if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0 && bufferInfo.size > 0) {
+                        output++;
+                    }
+                    codec.releaseOutputBuffer(status, false);
+                    if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) break;
+                }
+            }
+            long cost = System.nanoTime() - start;
+            return output == 0 ? 0 : output * 1000000000.f / cost;
+        } catch (Exception e) {
+            LogUtil.log(LogUtil.ENGINE_TAG + "EncoderProbe#measure#" + codecName + "#Error#" + e.getMessage());
+            return 0;
+        } finally {
+            eglHelper.release();
+            if (codec != null) {
+                try {
+                    codec.stop();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+                codec.release();
+            }
+            if (surface != null) {
+                surface.release();
+            }
+        }
+    }
+
+    private static List<CodecProfile> load(File cache) {
+        if (!cache.exists()) return null;
+        try (FileInputStream is = new FileInputStream(cache)) {
+            JSONObject root = new JSONObject(IOUtils.readStr(is));
+            if (root.optInt("version") != CACHE_VERSION || !Build.FINGERPRINT.equals(root.optString("fingerprint"))) {
+                return null;
+            }
+            List<CodecProfile> profiles = new ArrayList<>();
+            JSONArray codecs = root.getJSONArray("codecs");
+            for (int i = 0; i < codecs.length(); i++) {
+                profiles.add(CodecProfile.fromJson(codecs.getJSONObject(i)));
+            }
+            return profiles;
+        } catch (IOException | JSONException e) {
+            LogUtil.log(LogUtil.ENGINE_TAG + "EncoderProbe#load#Error#" + e.getMessage());
+            return null;
+        }
+    }
+
+    private static void save(File cache, List<CodecProfile> profiles) {
+        try {
+            JSONObject root = new JSONObject();
+            root.put("version", CACHE_VERSION);
+            root.put("fingerprint", Build.FINGERPRINT);
+            JSONArray codecs = new JSONArray();
+            for (CodecProfile profile : profiles) {
+                codecs.put(profile.toJson());
+            }
+            root.put("codecs", codecs);
+            File tmp = new File(cache.getAbsolutePath() + ".tmp");
+            try (FileOutputStream os = new FileOutputStream(tmp)) {
+                os.write(root.toString().getBytes(StandardCharsets.UTF_8));
+            }
+            if (!tmp.renameTo(cache)) {
+                LogUtil.log(LogUtil.ENGINE_TAG + "EncoderProbe#save#rename failed");
+            }
+        } catch (IOException | JSONException e) {
+            LogUtil.log(LogUtil.ENGINE_TAG + "EncoderProbe#save#Error#" + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package com.galix.avcore.util;
+
+import com.galix.avcore.avcore.AVComponent;
+import com.galix.avcore.avcore.AVEngine;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 合成检查点
+ * 可续传合成把视频按固定时长切成分片文件，每完成一个分片就把分片信息写进检查点(先写tmp再rename)。
+ * 进程被杀或者切到后台后重新合成时，时间线版本一致的话跳过已经完成的分片，最后统一拼接成普通MP4。
+ * <p>
+ * 格式:
+ * {"version":"...","fragment_us":5000000,"encoder":{...},"last_pts":...,"fragments":[{"index":0,"start":0,"end":..,"size":..}]}
+ *
+ * @Author:Galis
+ * @Date:2022.04.25
+ */
+public class ExportCheckpoint {
+
+    private static final String TAG = ExportCheckpoint.class.getSimpleName();
+    private static final String SUFFIX = ".ckpt";
+
+    /**
+     * 已经完成的分片
+     */
+    public static class Fragment {
+        public int index;
+        public long engineStart;
+        public long engineEnd;
+        public long size;
+    }
+
+    private final File mFile;
+    private final String mVersion;
+    private final long mFragmentUs;
+    private final JSONObject mEncoder = new JSONObject();
+    private final Map<Integer, Fragment> mFragments = new HashMap<>();
+    private long mLastPts = 0;
+
+    private ExportCheckpoint(File file, String version, long fragmentUs) {
+        mFile = file;
+        mVersion = version;
+        mFragmentUs = fragmentUs;
+    }
+
+    /**
+     * 打开检查点，时间线版本或者分片时长不一致时丢弃旧的检查点
+     *
+     * @param dstPath    合成目标文件
+     * @param engine     AVEngine
+     * @param fragmentUs 分片时长
+     * @return ExportCheckpoint
+     */
+    public static ExportCheckpoint open(String dstPath, AVEngine engine, long fragmentUs) {
+        String version = timelineVersion(engine);
+        ExportCheckpoint checkpoint = new ExportCheckpoint(new File(dstPath + SUFFIX), version, fragmentUs);
+        AVEngine.VideoState videoState = engine.getVideoState();
+        try {
+            checkpoint.mEncoder.put("mime", "video/avc");
+            checkpoint.mEncoder.put("width", videoState.mTargetSize.getWidth());
+            checkpoint.mEncoder.put("height", videoState.mTargetSize.getHeight());
+            checkpoint.mEncoder.put("bitrate", videoState.mTargetVb);
+            checkpoint.mEncoder.put("gop", videoState.mTargetGop);
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+        checkpoint.load();
+        return checkpoint;
+    }
+
+    /**
+     * 时间线版本，任何影响画面和声音的参数变化都会改变版本
+     * 每个组件的时间、变换、可见性，以及素材和内容(文件修改时间和大小，文字，颜色，音频效果)都参与计算
+     */
+    public static String timelineVersion(AVEngine engine) {
+        AVEngine.VideoState videoState = engine.getVideoState();
+        StringBuilder builder = new StringBuilder();
+        builder.append(videoState.mTargetSize).append('|')
+                .append(videoState.mTargetVb).append('|')
+                .append(videoState.mTargetGop).append('|')
+                .append(videoState.durationUS).append('|');
+        //ALL只查视频轨道，音频轨道单独查
+        List<AVComponent> components = engine.findComponents(AVComponent.AVComponentType.ALL, -1);
+        components.addAll(engine.findComponents(AVComponent.AVComponentType.AUDIO, -1));
+        for (AVComponent component : components) {
+            builder.append(component.getType()).append(',')
+                    .append(component.getEngineStartTime()).append(',')
+                    .append(component.getEngineEndTime()).append(',')
+                    .append(component.getClipStartTime()).append(',')
+                    .append(component.getClipEndTime()).append(',')
+                    .append(component.getRender() != null ? component.getRender().getClass().getName() : "").append(',')
+                    .append(component.isVisible()).append(',')
+                    .append(component.isLoop()).append(',')
+                    .append(component.getMatrix() != null ? component.getMatrix().dump() : "").append(',')
+                    .append(component.getContentKey())
+                    .append('|');
+        }
+        return VideoUtil.md5(builder.toString());
+    }
+
+    private void load() {
+        if (!mFile.exists()) return;
+        try (FileInputStream is = new FileInputStream(mFile)) {
+            JSONObject root = new JSONObject(IOUtils.readStr(is));
+            if (!mVersion.equals(root.optString("version")) || root.optLong("fragment_us") != mFragmentUs
+                    || !mEncoder.toString().equals(String.valueOf(root.optJSONObject("encoder")))) {
+                LogUtil.log(LogUtil.ENGINE_TAG + "ExportCheckpoint#version changed#discard");
+                mFile.delete();
+                return;
+            }
+            JSONArray fragments = root.getJSONArray("fragments");
+            for (int i = 0; i < fragments.length(); i++) {
+                JSONObject object = fragments.getJSONObject(i);
+                Fragment fragment = new Fragment();
+                fragment.index = object.getInt("index");
+                fragment.engineStart = object.getLong("start");
+                fragment.engineEnd = object.getLong("end");
+                fragment.size = object.getLong("size");
+                mFragments.put(fragment.index, fragment);
+            }
+            mLastPts = root.optLong("last_pts");
+            LogUtil.log(LogUtil.ENGINE_TAG + "ExportCheckpoint#resume#fragments#" + mFragments.size() + "#last_pts#" + mLastPts);
+        } catch (IOException | JSONException e) {
+            LogUtil.log(LogUtil.ENGINE_TAG + "ExportCheckpoint#load#Error#" + e.getMessage());
+            mFile.delete();
+        }
+    }
+
+    public String getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * 分片是否已经完成，文件丢失或者大小不一致都当作未完成
+     */
+    public synchronized boolean isDone(SegmentEncoder.Task task) {
+        Fragment fragment = mFragments.get(task.index);
+        if (fragment == null || fragment.engineStart != task.engineStart || fragment.engineEnd != task.engineEnd) {
+            return false;
+        }
+        File file = new File(task.path);
+        return file.exists() && file.length() == fragment.size;
+    }
+
+    /**
+     * 分片完成，立即写检查点
+     */
+    public synchronized void commit(SegmentEncoder.Task task) throws IOException {
+        Fragment fragment = new Fragment();
+        fragment.index = task.index;
+        fragment.engineStart = task.engineStart;
+        fragment.engineEnd = task.engineEnd;
+        fragment.size = new File(task.path).length();
+        mFragments.put(fragment.index, fragment);
+        //从0开始连续完成的最后时间
+        long lastPts = 0;
+        boolean advanced = true;
+        while (advanced) {
+            advanced = false;
+            for (Fragment f : mFragments.values()) {
+                if (f.engineStart == lastPts) {
+                    lastPts = f.engineEnd;
+                    advanced = true;
+                }
+            }
+        }
+        mLastPts = lastPts;
+        save();
+    }
+
+    private void save() throws IOException {
+        try {
+            JSONObject root = new JSONObject();
+            root.put("version", mVersion);
+            root.put("fragment_us", mFragmentUs);
+            root.put("encoder", mEncoder);
+            root.put("last_pts", mLastPts);
+            JSONArray fragments = new JSONArray();
+            for (Fragment fragment : mFragments.values()) {
+                JSONObject object = new JSONObject();
+                object.put("index", fragment.index);
+                object.put("start", fragment.engineStart);
+                object.put("end", fragment.engineEnd);
+                object.put("size", fragment.size);
+                fragments.put(object);
+            }
+            root.put("fragments", fragments);
+            File tmp = new File(mFile.getAbsolutePath() + ".tmp");
+            try (FileOutputStream os = new FileOutputStream(tmp)) {
+                os.write(root.toString().getBytes(StandardCharsets.UTF_8));
+                os.getFD().sync();
+            }
+            if (!tmp.renameTo(mFile)) {
+                throw new IOException("rename checkpoint failed");
+            }
+        } catch (JSONException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * 合成完成，删除检查点
+     */
+    public synchronized void delete() {
+        mFile.delete();
+        mFragments.clear();
+    }
+}
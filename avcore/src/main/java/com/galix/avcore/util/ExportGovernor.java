@@ -0,0 +1,259 @@
+package com.galix.avcore.util;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * 合成温控
+ * 定时读取温度和电量，换算成档位，每个档位对应编码器operating rate，流水线深度，并行分段数和最小帧间隔。
+ * 升档立即生效；降档要求状态持续低于当前档位COOL_DOWN_MS，且每次只降一档，避免在两个档位之间来回切换导致吞吐忽高忽低。
+ * 档位变化记录到ExportReport，并通知Listener调整运行中的编码器和后台任务并发。
+ *
+ * @Author:Galis
+ * @Date:2022.04.28
+ */
+public class ExportGovernor {
+
+    public static final int LEVEL_NORMAL = 0;
+    public static final int LEVEL_WARM = 1;
+    public static final int LEVEL_HOT = 2;
+    public static final int LEVEL_CRITICAL = 3;
+    static final long POLL_MS = 1000;
+    static final long COOL_DOWN_MS = 15000;
+    private static final int LOW_BATTERY = 15;
+    private static final int CRITICAL_BATTERY = 5;
+
+    public interface Clock {
+        long nowMs();
+    }
+
+    /**
+     * 档位变化回调，在调用update的线程执行，回调里不要再调用governor
+     */
+    public interface Listener {
+        void onDecision(Decision decision);
+    }
+
+    /**
+     * 某个档位下的合成参数
+     */
+    public static class Decision {
+        public final int level;
+        public final int operatingRate;//编码器operating rate(fps)，0为不设置
+        public final int pipelineDepth;//流水线解码预读深度
+        public final int parallelism;//同时编码的分段数
+        public final long frameIntervalUs;//两帧之间的最小间隔，0为不限制
+
+        Decision(int level, int operatingRate, int pipelineDepth, int parallelism, long frameIntervalUs) {
+            this.level = level;
+            this.operatingRate = operatingRate;
+            this.pipelineDepth = pipelineDepth;
+            this.parallelism = parallelism;
+            this.frameIntervalUs = frameIntervalUs;
+        }
+
+        @Override
+        public String toString() {
+            return "Decision{" +
+                    "level=" + level +
+                    ", operatingRate=" + operatingRate +
+                    ", pipelineDepth=" + pipelineDepth +
+                    ", parallelism=" + parallelism +
+                    ", frameIntervalUs=" + frameIntervalUs +
+                    '}';
+        }
+    }
+
+    private final IThermalSource mSource;
+    private final ExportReport mReport;
+    private final Clock mClock;
+    private final Decision[] mDecisions;
+    private final long mStartMs;
+    private volatile Decision mDecision;
+    private long mLastPollMs;
+    private long mBelowSinceMs = -1;
+    private long mNextFrameNs = 0;
+    private int mActiveJobs = 0;
+    private final List<Listener> mListeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * @param source         温度电量来源，为空时始终为LEVEL_NORMAL
+     * @param report         记录档位变化
+     * @param frameRate      合成帧率
+     * @param maxParallelism 不限制时的并行分段数
+     * @param clock          时钟
+     */
+    public ExportGovernor(IThermalSource source, ExportReport report, int frameRate, int maxParallelism, Clock clock) {
+        mSource = source;
+        mReport = report;
+        mClock = clock;
+        frameRate = Math.max(1, frameRate);
+        maxParallelism = Math.max(1, maxParallelism);
+        mDecisions = new Decision[]{
+                new Decision(LEVEL_NORMAL, 0, 3, maxParallelism, 0),
+                new Decision(LEVEL_WARM, frameRate * 2, 2, Math.max(1, maxParallelism / 2), 1000000 / (frameRate * 2)),
+                new Decision(LEVEL_HOT, frameRate, 2, 1, 1000000 / frameRate),
+                new Decision(LEVEL_CRITICAL, Math.max(1, frameRate / 2), 1, 1, 2000000 / frameRate)};
+        mDecision = mDecisions[LEVEL_NORMAL];
+        mStartMs = clock.nowMs();
+        mLastPollMs = mStartMs - POLL_MS;
+        update();
+    }
+
+    public ExportGovernor(IThermalSource source, ExportReport report, int frameRate, int maxParallelism) {
+        this(source, report, frameRate, maxParallelism, System::currentTimeMillis);
+    }
+
+    /**
+     * 温度和电量换算成目标档位
+     */
+    public static int targetLevel(IThermalSource source) {
+        if (source == null) return LEVEL_NORMAL;
+        int level;
+        int status = source.getThermalStatus();
+        if (status >= IThermalSource.THERMAL_STATUS_CRITICAL) {
+            level = LEVEL_CRITICAL;
+        } else if (status == IThermalSource.THERMAL_STATUS_SEVERE) {
+            level = LEVEL_HOT;
+        } else if (status == IThermalSource.THERMAL_STATUS_MODERATE) {
+            level = LEVEL_WARM;
+        } else {
+            level = LEVEL_NORMAL;
+        }
+        if (!source.isCharging()) {
+            int battery = source.getBatteryLevel();
+            if (battery >= 0 && battery <= CRITICAL_BATTERY) {
+                level = Math.max(level, LEVEL_HOT);
+            } else if ((battery >= 0 && battery <= LOW_BATTERY) || source.isPowerSaveMode()) {
+                level = Math.max(level, LEVEL_WARM);
+            }
+        }
+        return level;
+    }
+
+    public Decision getDecision() {
+        return mDecision;
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * 某个档位下后台任务(缩略图，代理，分析)的并发上限，合成越热后台让出越多资源
+     *
+     * @param level  档位
+     * @param limits 不限制时的并发，下标为MediaJob.RESOURCE_*
+     * @return 新的并发上限
+     */
+    public static int[] jobLimits(int level, int[] limits) {
+        int[] result = limits.clone();
+        for (int i = 0; i < result.length; i++) {
+            if (level == LEVEL_WARM) {
+                result[i] = Math.max(1, limits[i] / 2);
+            } else if (level == LEVEL_HOT) {
+                result[i] = Math.min(1, limits[i]);
+            } else if (level == LEVEL_CRITICAL) {
+                result[i] = 0;//暂停，合成结束后恢复
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 距离上次读取超过POLL_MS时重新读取状态并调整档位
+     *
+     * @return 当前参数
+     */
+    public Decision update() {
+        Decision changed = poll();
+        if (changed != null) {
+            for (Listener listener : mListeners) {
+                listener.onDecision(changed);
+            }
+        }
+        return mDecision;
+    }
+
+    /**
+     * @return 档位变化时返回新的参数，否则为空
+     */
+    private synchronized Decision poll() {
+        long now = mClock.nowMs();
+        if (mSource == null || now - mLastPollMs < POLL_MS) {
+            return null;
+        }
+        Decision before = mDecision;
+        mLastPollMs = now;
+        int target = targetLevel(mSource);
+        int level = mDecision.level;
+        if (target > level) {
+            mBelowSinceMs = -1;
+            apply(target, now);
+        } else if (target < level) {
+            if (mBelowSinceMs < 0) {
+                mBelowSinceMs = now;
+            } else if (now - mBelowSinceMs >= COOL_DOWN_MS) {
+                mBelowSinceMs = now;//下一档重新计时
+                apply(level - 1, now);
+            }
+        } else {
+            mBelowSinceMs = -1;
+        }
+        return mDecision != before ? mDecision : null;
+    }
+
+    private void apply(int level, long now) {
+        mDecision = mDecisions[level];
+        String event = "t=" + (now - mStartMs) + "ms#" + mDecision.toString();
+        mReport.addGovernorEvent(event);
+        LogUtil.log(LogUtil.ENGINE_TAG + "ExportGovernor#" + event);
+        notifyAll();
+    }
+
+    /**
+     * 每帧渲染前调用，按当前档位的最小帧间隔均匀出帧，多个线程共享同一个节奏
+     */
+    public void throttle() {
+        long intervalNs = update().frameIntervalUs * 1000;
+        long waitNs;
+        synchronized (this) {
+            long now = System.nanoTime();
+            if (intervalNs <= 0) {
+                mNextFrameNs = now;
+                return;
+            }
+            if (mNextFrameNs < now) {
+                mNextFrameNs = now;
+            }
+            waitNs = mNextFrameNs - now;
+            mNextFrameNs += intervalNs;
+        }
+        if (waitNs > 0) {
+            try {
+                Thread.sleep(waitNs / 1000000, (int) (waitNs % 1000000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * 开始一个分段任务，正在编码的分段数达到当前档位上限时阻塞
+     */
+    public synchronized void beginJob() throws InterruptedException {
+        while (mActiveJobs >= update().parallelism) {
+            wait(POLL_MS);
+        }
+        mActiveJobs++;
+    }
+
+    public synchronized void endJob() {
+        mActiveJobs--;
+        notifyAll();
+    }
+}
@@ -0,0 +1,325 @@
+package com.galix.avcore.util;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.opengl.GLES30;
+import android.util.Size;
+
+import com.galix.avcore.avcore.AVComponent;
+import com.galix.avcore.avcore.AVFrame;
+import com.galix.avcore.render.OESRender;
+import com.galix.avcore.render.ScreenRender;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+
+import static android.media.MediaCodec.BUFFER_FLAG_END_OF_STREAM;
+
+/**
+ * 三段式合成流水线
+ * 1.Decode:独立线程+共享EGL上下文，提前解码并把OES画到池化的FBO纹理里
+ * 2.Render:调用线程，把纹理画到编码器输入surface
+ * 3.Drain:独立线程，取编码器输出写入Muxer
+ * 阶段之间使用有界队列，队列满时上游阻塞(背压)。每个阶段统计busy/idle，用来定位瓶颈。
+ * 只支持普通视频片段(没有转场和组件render)，这些render依赖引擎上下文的VAO和默认framebuffer。
+ *
+ * @Author:Galis
+ * @Date:2022.04.24
+ */
+public class ExportPipeline {
+
+    private static final String TAG = ExportPipeline.class.getSimpleName();
+    private static final int SLOT_COUNT = 3;//解码预读深度
+    private static final Slot EOS = new Slot();
+
+    /**
+     * 编码输出
+     */
+    public interface Sink {
+        void onFormat(MediaFormat format);
+
+        void write(ByteBuffer buffer, MediaCodec.BufferInfo bufferInfo);
+    }
+
+    public interface ProgressCallback {
+        void onProgress(long pts);
+    }
+
+    /**
+     * 每帧画到surface之后，swap之前回调，叠加组件在这里绘制，多规格输出在这里取帧
+     */
+    public interface FrameListener {
+        void onFrame(long pts);
+    }
+
+    /**
+     * 池化纹理，每个slot持有自己的OESRender(FBO)
+     */
+    private static class Slot {
+        OESRender render;
+        long pts;
+        long fence;
+    }
+
+    private final EglHelper mEglHelper;
+    private final Size mSize;
+    private final BlockingQueue<Slot> mFreeSlots = new ArrayBlockingQueue<>(SLOT_COUNT);
+    private final BlockingQueue<Slot> mReadySlots = new ArrayBlockingQueue<>(SLOT_COUNT + 1);
+    private final CountDownLatch mRenderDone = new CountDownLatch(1);//渲染线程不再访问slot
+    private final Object mSlotReturned = new Object();//slot归还或者出错时通知解码线程
+    private volatile Throwable mError;
+    private FrameListener mFrameListener;
+    private ExportGovernor mGovernor;
+
+    /**
+     * @param eglHelper 调用线程的EGL，已经绑定编码器输入surface
+     * @param size      输出尺寸
+     */
+    public ExportPipeline(EglHelper eglHelper, Size size) {
+        mEglHelper = eglHelper;
+        mSize = size;
+    }
+
+    public void setFrameListener(FrameListener frameListener) {
+        mFrameListener = frameListener;
+    }
+
+    /**
+     * 温控，调整解码预读深度和出帧节奏
+     */
+    public void setGovernor(ExportGovernor governor) {
+        mGovernor = governor;
+    }
+
+    /**
+     * 判断分段是否可以走流水线
+     */
+    public static boolean isSupported(List<AVComponent> components) {
+        for (AVComponent component : components) {
+            if (component.getType() != AVComponent.AVComponentType.VIDEO || component.getRender() != null) {
+                return false;
+            }
+        }
+        return !components.isEmpty();
+    }
+
+    /**
+     * 运行流水线，阻塞直到编码器输出EOS
+     *
+     * @param components 普通视频组件
+     * @param start      engine开始时间
+     * @param end        engine结束时间
+     * @param encoder    已经start的编码器(surface输入)
+     * @param sink       编码输出
+     * @param report     阶段统计
+     * @param callback   进度
+     * @return 是否成功
+     */
+    public boolean run(List<AVComponent> components, long start, long end, MediaCodec encoder, Sink sink,
+                       ExportReport report, ProgressCallback callback) {
+        ExportReport.Stage decodeStage = report.newStage("decode");
+        ExportReport.Stage renderStage = report.newStage("render");
+        ExportReport.Stage drainStage = report.newStage("drain");
+        Thread decodeThread = new Thread(() -> decodeLoop(components, start, end, decodeStage), "ExportDecode");
+        Thread drainThread = new Thread(() -> drainLoop(encoder, sink, drainStage), "ExportDrain");
+        decodeThread.start();
+        drainThread.start();
+        try {
+            renderLoop(encoder, renderStage, callback);
+        } catch (Throwable e) {
+            if (mError == null) {
+                mError = e;
+            }
+        } finally {
+            mRenderDone.countDown();
+            synchronized (mSlotReturned) {
+                mSlotReturned.notifyAll();
+            }
+        }
+        if (mError != null) {
+            decodeThread.interrupt();
+        }
+        try {
+            decodeThread.join();
+            drainThread.join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        LogUtil.log(LogUtil.ENGINE_TAG + "ExportPipeline#finish#" + report.stages + "#error#" + mError);
+        return mError == null;
+    }
+
+    private void decodeLoop(List<AVComponent> components, long start, long end, ExportReport.Stage stage) {
+        EglHelper eglHelper = new EglHelper();
+        eglHelper.create(mEglHelper.getContext(), EglHelper.GL_VERSION_3);
+        eglHelper.makeCurrent();
+        List<AVComponent> clones = SegmentEncoder.cloneComponents(components);
+        List<Slot> slots = new ArrayList<>(SLOT_COUNT);
+        try {
+            for (int i = 0; i < SLOT_COUNT; i++) {
+                Slot slot = new Slot();
+                slot.render = new OESRender();
+                slot.render.open();
+                slots.add(slot);
+                mFreeSlots.add(slot);
+            }
+            AVComponent last = null;
+            long nextPts = start;
+            while (nextPts < end && mError == null) {
+                long idleStart = System.nanoTime();
+                if (mGovernor != null) {
+                    synchronized (mSlotReturned) {
+                        while (mError == null && mReadySlots.size() >= mGovernor.getDecision().pipelineDepth) {
+                            mSlotReturned.wait();
+                        }
+                    }
+                }
+                Slot slot = mFreeSlots.take();
+                long busyStart = System.nanoTime();
+                stage.idleNs += busyStart - idleStart;
+                AVComponent component = SegmentEncoder.findComponent(clones, nextPts);
+                if (component == null) {
+                    mFreeSlots.add(slot);
+                    break;
+                }
+                if (component != last) {
+                    component.seekFrame(nextPts);
+                } else {
+                    component.readFrame();
+                }
+                last = component;
+                AVFrame frame = component.peekFrame();
+                slot.render.render(frame);
+                slot.pts = frame.getPts();
+                slot.fence = GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+                GLES30.glFlush();
+                mReadySlots.put(slot);
+                nextPts += Math.max(1, frame.getDuration());
+                stage.busyNs += System.nanoTime() - busyStart;
+                stage.count++;
+            }
+        } catch (Throwable e) {
+            if (mError == null) {
+                mError = e;
+            }
+        } finally {
+            //队列容量比slot多一个，EOS一定放得进去
+            mReadySlots.offer(EOS);
+            //等待渲染线程退出后再释放FBO，出错时还在队列里或者没有归还的slot也要释放
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    mRenderDone.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            for (Slot slot : slots) {
+                if (slot.fence != 0) {
+                    GLES30.glDeleteSync(slot.fence);
+                }
+                slot.render.close();
+            }
+            mFreeSlots.clear();
+            mReadySlots.clear();
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            for (AVComponent component : clones) {
+                component.close();
+            }
+            eglHelper.release();
+        }
+    }
+
+    private void renderLoop(MediaCodec encoder, ExportReport.Stage stage, ProgressCallback callback) throws InterruptedException {
+        ScreenRender screenRender = new ScreenRender();
+        screenRender.open();
+        screenRender.write(OtherUtils.BuildMap("surface_size", mSize));
+        AVFrame screenFrame = new AVFrame();
+        try {
+            while (mError == null) {
+                long idleStart = System.nanoTime();
+                Slot slot = mReadySlots.take();
+                long busyStart = System.nanoTime();
+                stage.idleNs += busyStart - idleStart;
+                if (slot == EOS) break;
+                if (mGovernor != null) {
+                    mGovernor.throttle();
+                }
+                GLES30.glWaitSync(slot.fence, 0, GLES30.GL_TIMEOUT_IGNORED);
+                GLES30.glDeleteSync(slot.fence);
+                slot.fence = 0;
+                screenFrame.setTexture(slot.render.getOutTexture());
+                screenRender.render(screenFrame);
+                if (mFrameListener != null) {
+                    mFrameListener.onFrame(slot.pts);
+                }
+                mEglHelper.setPresentationTime(slot.pts * 1000);
+                mEglHelper.swap();//编码器输入满时这里阻塞
+                mFreeSlots.put(slot);
+                synchronized (mSlotReturned) {
+                    mSlotReturned.notifyAll();
+                }
+                stage.busyNs += System.nanoTime() - busyStart;
+                stage.count++;
+                callback.onProgress(slot.pts);
+            }
+        } finally {
+            screenRender.close();
+            encoder.signalEndOfInputStream();
+        }
+    }
+
+    /**
+     * 写入出错后继续取出并丢弃编码输出直到EOS，渲染线程不会阻塞在swap上；
+     * 其它阶段出错时渲染线程结束后就可以退出
+     */
+    private void drainLoop(MediaCodec encoder, Sink sink, ExportReport.Stage stage) {
+        MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+        try {
+            while (true) {
+                long idleStart = System.nanoTime();
+                int status = encoder.dequeueOutputBuffer(bufferInfo, 10000);
+                long busyStart = System.nanoTime();
+                stage.idleNs += busyStart - idleStart;
+                if (status >= 0) {
+                    if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0 && bufferInfo.size > 0
+                            && mError == null) {
+                        ByteBuffer byteBuffer = encoder.getOutputBuffer(status);
+                        byteBuffer.position(bufferInfo.offset);
+                        byteBuffer.limit(bufferInfo.offset + bufferInfo.size);
+                        try {
+                            sink.write(byteBuffer, bufferInfo);
+                            stage.count++;
+                        } catch (RuntimeException e) {
+                            LogUtil.log(LogUtil.ENGINE_TAG + "ExportPipeline#drainLoop#Error#" + e.getMessage());
+                            mError = e;
+                        }
+                    }
+                    encoder.releaseOutputBuffer(status, false);
+                    stage.busyNs += System.nanoTime() - busyStart;
+                    if ((bufferInfo.flags & BUFFER_FLAG_END_OF_STREAM) != 0) {
+                        break;
+                    }
+                } else if (status == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    if (mError == null) {
+                        sink.onFormat(encoder.getOutputFormat());
+                    }
+                    stage.busyNs += System.nanoTime() - busyStart;
+                } else if (mError != null && mRenderDone.getCount() == 0) {
+                    break;
+                }
+            }
+        } catch (Throwable e) {
+            if (mError == null) {
+                mError = e;
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.galix.avcore.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 合成报告
+ * 记录一次合成中直接拷贝和重新编码的时长等信息
+ *
+ * @Author:Galis
+ * @Date:2022.04.19
+ */
+public class ExportReport {
+
+    public long audioCopyUs;//音频直接拷贝时长
+    public long audioEncodeUs;//音频重新编码时长
+    public long videoCopyUs;//视频直接拷贝时长
+    public long videoEncodeUs;//视频重新编码时长
+    public long videoResumeUs;//续传合成时复用上次分片的时长，包含在videoEncodeUs里
+    public long fastStartMs;//moov前置耗时
+    public long startTimeMs;
+    public long endTimeMs;
+    public final List<Stage> stages = new ArrayList<>();//流水线各阶段耗时
+    public final List<String> governorEvents = new ArrayList<>();//温控档位变化
+
+    /**
+     * 流水线阶段统计，busy为处理时间，idle为等待上下游的时间
+     */
+    public static class Stage {
+        public final String name;
+        public long busyNs;
+        public long idleNs;
+        public long count;
+
+        public Stage(String name) {
+            this.name = name;
+        }
+
+        public int utilization() {
+            long total = busyNs + idleNs;
+            return total <= 0 ? 0 : Math.round(busyNs * 100.f / total);
+        }
+
+        @Override
+        public String toString() {
+            return name + "{busy=" + busyNs / 1000000 + "ms(" + utilization() + "%)"
+                    + ", idle=" + idleNs / 1000000 + "ms, count=" + count + "}";
+        }
+    }
+
+    public synchronized Stage newStage(String name) {
+        Stage stage = new Stage(name);
+        stages.add(stage);
+        return stage;
+    }
+
+    public synchronized void addGovernorEvent(String event) {
+        governorEvents.add(event);
+    }
+
+    public void start() {
+        startTimeMs = System.currentTimeMillis();
+    }
+
+    public void finish() {
+        endTimeMs = System.currentTimeMillis();
+        LogUtil.log(LogUtil.ENGINE_TAG + "ExportReport#" + toString());
+    }
+
+    public long costMs() {
+        return endTimeMs - startTimeMs;
+    }
+
+    private static String percent(long part, long total) {
+        if (total <= 0) return "0%";
+        return Math.round(part * 100.f / total) + "%";
+    }
+
+    @Override
+    public String toString() {
+        return "ExportReport{" +
+                "cost=" + costMs() + "ms" +
+                ", audioCopy=" + audioCopyUs / 1000 + "ms(" + percent(audioCopyUs, audioCopyUs + audioEncodeUs) + ")" +
+                ", audioEncode=" + audioEncodeUs / 1000 + "ms" +
+                ", videoCopy=" + videoCopyUs / 1000 + "ms(" + percent(videoCopyUs, videoCopyUs + videoEncodeUs) + ")" +
+                ", videoEncode=" + videoEncodeUs / 1000 + "ms" +
+                ", videoResume=" + videoResumeUs / 1000 + "ms" +
+                ", fastStart=" + fastStartMs + "ms" +
+                ", stages=" + stages +
+                ", governor=" + governorEvents +
+                '}';
+    }
+}
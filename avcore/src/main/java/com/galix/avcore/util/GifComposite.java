@@ -0,0 +1,170 @@
+package com.galix.avcore.util;
+
+import android.opengl.EGLSurface;
+import android.opengl.GLES30;
+import android.util.Size;
+
+import com.galix.avcore.avcore.AVComponent;
+import com.galix.avcore.avcore.AVEngine;
+import com.galix.avcore.avcore.AVFrame;
+import com.galix.avcore.render.ExportRender;
+import com.galix.avcore.render.OverlayRender;
+import com.galix.avcore.util.gif.GifEncoder;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * 动图合成
+ * 按目标帧率在离屏surface上缩小渲染合成画面，glReadPixels读回后交给GifEncoder，
+ * 量化和LZW编码在fork/join线程池里并行，GL线程只负责解码和渲染。
+ *
+ * @Author:Galis
+ * @Date:2022.04.28
+ */
+public class GifComposite {
+
+    private static final boolean LITTLE_ENDIAN = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+
+    private final AVEngine mEngine;
+    private final AVEngine.VideoState mVideoState;
+    private final String mDstPath;
+    private final Size mSize;
+    private final int mFrameRate;
+    private boolean mDither = true;
+    private AVComponent mLastVideo;
+
+    /**
+     * @param engine    引擎
+     * @param dstPath   输出路径
+     * @param size      输出尺寸，一般远小于视频尺寸
+     * @param frameRate 帧率，GIF帧间隔精度为10ms
+     */
+    public GifComposite(AVEngine engine, String dstPath, Size size, int frameRate) {
+        mEngine = engine;
+        mVideoState = engine.getVideoState();
+        mDstPath = dstPath;
+        mSize = size;
+        mFrameRate = Math.max(1, Math.min(50, frameRate));
+    }
+
+    public void setDither(boolean dither) {
+        mDither = dither;
+    }
+
+    /**
+     * 在引擎GL线程调用
+     *
+     * @return 0成功，-1失败
+     */
+    public int process(Mp4Composite.CompositeCallback callback) {
+        long start = System.currentTimeMillis();
+        int width = mSize.getWidth();
+        int height = mSize.getHeight();
+        long frameUs = 1000000 / mFrameRate;
+        int delayMs = (int) (frameUs / 1000);
+        EglHelper eglHelper = mEngine.getEglHelper();
+        EGLSurface surface = eglHelper.createOffscreenSurface(width, height);
+        eglHelper.makeCurrent(surface);
+        ExportRender exportRender = new ExportRender();
+        exportRender.write(OtherUtils.BuildMap("surface_size", mSize));
+        exportRender.open();
+        List<AVComponent> overlays = Mp4Composite.findOverlays(mEngine);
+        OverlayRender overlayRender = new OverlayRender();
+        overlayRender.write(OtherUtils.BuildMap("surface_size", mSize));
+        overlayRender.open();
+        ByteBuffer pixels = ByteBuffer.allocateDirect(width * height * 4).order(ByteOrder.nativeOrder());
+        IntBuffer rgba = pixels.asIntBuffer();
+        int[] row = new int[width];
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+        int result = 0;
+        File target = new File(mDstPath);
+        if (target.getParentFile() != null && !target.getParentFile().exists()) {
+            target.getParentFile().mkdirs();
+        }
+        mLastVideo = null;
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(target))) {
+            GifEncoder encoder = new GifEncoder(out, width, height, 0, pool);
+            encoder.setDither(mDither);
+            for (long pts = 0; pts <= mVideoState.durationUS; pts += frameUs) {
+                AVFrame videoFrame = readVideoFrame(pts);
+                if (videoFrame == null) break;
+                GLES30.glBindFramebuffer(GLES30.GL_FRAMEBUFFER, 0);
+                GLES30.glViewport(0, 0, width, height);
+                exportRender.render(mLastVideo.getRender(), videoFrame);
+                overlayRender.render(overlays, pts);
+                pixels.clear();
+                GLES30.glReadPixels(0, 0, width, height, GLES30.GL_RGBA, GLES30.GL_UNSIGNED_BYTE, pixels);
+                int[] frame = encoder.obtainFrame();
+                //GL原点在左下角，按行翻转，RGBA转ARGB
+                for (int y = 0; y < height; y++) {
+                    rgba.position((height - 1 - y) * width);
+                    rgba.get(row);
+                    int offset = y * width;
+                    for (int x = 0; x < width; x++) {
+                        frame[offset + x] = toArgb(row[x]);
+                    }
+                }
+                encoder.addFrame(frame, delayMs);
+                if (callback != null) {
+                    callback.handle((int) Math.min(99, pts * 100 / Math.max(1, mVideoState.durationUS)));
+                }
+            }
+            encoder.finish();
+            LogUtil.log(LogUtil.ENGINE_TAG + "GifComposite#process#frames#" + encoder.getFrameCount()
+                    + "#cost#" + (System.currentTimeMillis() - start) + "ms");
+        } catch (IOException e) {
+            LogUtil.log(LogUtil.ENGINE_TAG + "GifComposite#process#Error#" + e.getMessage());
+            target.delete();
+            result = -1;
+        } finally {
+            pool.shutdown();
+            exportRender.close();
+            overlayRender.close();
+            eglHelper.makeCurrent();
+            eglHelper.releaseExtraSurface(surface);
+            mLastVideo = null;
+        }
+        if (callback != null) {
+            callback.handle(100);
+        }
+        return result;
+    }
+
+    /**
+     * 读取pts所在的帧，同一个组件内顺序读帧，切换组件或者回退时seek
+     */
+    private AVFrame readVideoFrame(long pts) {
+        List<AVComponent> components = mEngine.findComponents(AVComponent.AVComponentType.TRANSACTION, pts);
+        if (components.isEmpty()) {
+            components = mEngine.findComponents(AVComponent.AVComponentType.VIDEO, pts);
+        }
+        if (components.isEmpty()) return null;
+        AVComponent video = components.get(0);
+        if (mLastVideo != video || video.peekFrame().getPts() > pts) {
+            video.seekFrame(pts);
+        } else {
+            while (!video.peekFrame().isEof() && video.peekFrame().getPts() + video.peekFrame().getDuration() <= pts) {
+                video.readFrame();
+            }
+        }
+        mLastVideo = video;
+        return video.peekFrame();
+    }
+
+    private static int toArgb(int pixel) {
+        if (LITTLE_ENDIAN) {
+            //内存RGBA => 0xAABBGGRR
+            return 0xFF000000 | ((pixel & 0xFF) << 16) | (pixel & 0xFF00) | ((pixel >> 16) & 0xFF);
+        }
+        return 0xFF000000 | (pixel >>> 8);
+    }
+}
@@ -0,0 +1,33 @@
+package com.galix.avcore.util;
+
+/**
+ * 设备温度和电量来源，ExportGovernor通过它读取状态，测试时可以替换成假数据
+ *
+ * @Author:Galis
+ * @Date:2022.04.28
+ */
+public interface IThermalSource {
+
+    //与PowerManager.THERMAL_STATUS_*一致
+    int THERMAL_STATUS_NONE = 0;
+    int THERMAL_STATUS_LIGHT = 1;
+    int THERMAL_STATUS_MODERATE = 2;
+    int THERMAL_STATUS_SEVERE = 3;
+    int THERMAL_STATUS_CRITICAL = 4;
+    int THERMAL_STATUS_EMERGENCY = 5;
+    int THERMAL_STATUS_SHUTDOWN = 6;
+
+    /**
+     * @return THERMAL_STATUS_*
+     */
+    int getThermalStatus();
+
+    /**
+     * @return 电量0~100，未知返回-1
+     */
+    int getBatteryLevel();
+
+    boolean isCharging();
+
+    boolean isPowerSaveMode();
+}
@@ -0,0 +1,369 @@
+package com.galix.avcore.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * 派生媒体缓存
+ * 缩略图，代理文件，波形峰值，关键帧索引等由源文件派生出来的数据统一放在这里。
+ * 文件名由(类型, 源路径, 参数)的md5决定，条目记录写入时源文件的修改时间和大小，旧的条目按LRU淘汰。
+ * 每个源文件只在第一次查询时stat一次，和条目记录不一致的条目删除；运行中源文件被改写时调用invalidateSource重新校验。
+ * 内存里是按访问顺序排列的索引；磁盘上是index.txt(先写tmp再rename)，启动时加载并清理索引之外的文件。
+ * 写入先写tmp文件再rename，读到的文件一定是完整的。
+ * <p>
+ * index.txt每行: name\tkind\tsource\tsourceModified\tsourceSize\tsize\tlastAccess
+ *
+ * @Author:Galis
+ * @Date:2022.04.28
+ */
+public class MediaCache {
+
+    public static final String KIND_THUMB = "thumb";
+    public static final String KIND_PROXY = "proxy";
+    public static final String KIND_PEAKS = "peaks";
+    public static final String KIND_KEYFRAMES = "keyframes";
+
+    private static final String VERSION = "cache2";
+    private static final String INDEX = "index.txt";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final long SAVE_INTERVAL_MS = 2000;
+
+    /**
+     * 写入缓存内容
+     */
+    public interface Producer {
+        /**
+         * @param file 临时文件，写完后由缓存rename到最终位置
+         */
+        void write(File file) throws IOException;
+    }
+
+    /**
+     * 缓存条目
+     */
+    public static class Entry {
+        public String name;//文件名
+        public String kind;
+        public String source;
+        public long sourceModified;
+        public long sourceSize;
+        public long size;
+        public long lastAccess;
+
+        @Override
+        public String toString() {
+            return "Entry{" +
+                    "name='" + name + '\'' +
+                    ", kind='" + kind + '\'' +
+                    ", source='" + source + '\'' +
+                    ", size=" + size +
+                    '}';
+        }
+    }
+
+    private final File mDir;
+    private long mBudget;
+    private long mTotalSize = 0;
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>(64, 0.75f, true);
+    private final HashSet<String> mCheckedSources = new HashSet<>();//已经校验过的源文件
+    private boolean mDirty = false;
+    private long mLastSaveMs = 0;
+
+    /**
+     * @param dir         缓存目录
+     * @param budgetBytes 磁盘预算，超出时按最近使用时间淘汰
+     */
+    public MediaCache(File dir, long budgetBytes) {
+        mDir = dir;
+        mBudget = budgetBytes;
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        load();
+    }
+
+    public synchronized void setBudget(long budgetBytes) {
+        mBudget = budgetBytes;
+        evict(0);
+    }
+
+    /**
+     * 缓存文件路径，不管是否已经缓存
+     *
+     * @param kind   类型
+     * @param source 源文件
+     * @param param  派生参数，比如缩略图的时间，可以为空
+     * @return 文件
+     */
+    public File fileOf(String kind, String source, String param) {
+        return new File(mDir, nameOf(kind, source, param));
+    }
+
+    /**
+     * 查询缓存，源文件第一次查询时校验一次，之后只查内存索引
+     *
+     * @return 已经缓存的文件，不存在返回null
+     */
+    public synchronized File get(String kind, String source, String param) {
+        checkSource(source);
+        Entry entry = mEntries.get(nameOf(kind, source, param));
+        if (entry == null) return null;
+        entry.lastAccess = System.currentTimeMillis();
+        mDirty = true;
+        return new File(mDir, entry.name);
+    }
+
+    public synchronized boolean contains(String kind, String source, String param) {
+        checkSource(source);
+        return mEntries.containsKey(nameOf(kind, source, param));
+    }
+
+    /**
+     * 写入缓存，producer在调用线程执行，不持有锁
+     *
+     * @return 缓存文件，写入失败或者超出预算返回null
+     */
+    public File put(String kind, String source, String param, Producer producer) throws IOException {
+        String name = nameOf(kind, source, param);
+        File target = new File(mDir, name);
+        File tmp = new File(mDir, name + "." + Thread.currentThread().getId() + TMP_SUFFIX);
+        try {
+            producer.write(tmp);
+        } catch (IOException | RuntimeException e) {
+            tmp.delete();
+            throw e;
+        }
+        long size = tmp.length();
+        synchronized (this) {
+            Entry old = mEntries.remove(name);
+            if (old != null) {
+                mTotalSize -= old.size;
+            }
+            //写入时重新校验，源文件变过的旧条目一起删除
+            mCheckedSources.remove(source);
+            checkSource(source);
+            if (!evict(size)) {
+                tmp.delete();
+                target.delete();
+                saveIfNeeded(true);
+                return null;
+            }
+            if (!tmp.renameTo(target)) {
+                tmp.delete();
+                throw new IOException("rename failed " + target);
+            }
+            File sourceFile = new File(source);
+            Entry entry = new Entry();
+            entry.name = name;
+            entry.kind = kind;
+            entry.source = source;
+            entry.sourceModified = sourceFile.lastModified();
+            entry.sourceSize = sourceFile.length();
+            entry.size = size;
+            entry.lastAccess = System.currentTimeMillis();
+            mEntries.put(name, entry);
+            mTotalSize += size;
+            mDirty = true;
+            saveIfNeeded(false);
+        }
+        return target;
+    }
+
+    /**
+     * 删除某个源文件派生的全部缓存
+     */
+    public synchronized void removeSource(String source) {
+        mCheckedSources.remove(source);
+        Iterator<Entry> iterator = mEntries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (!entry.source.equals(source)) continue;
+            iterator.remove();
+            mTotalSize -= entry.size;
+            new File(mDir, entry.name).delete();
+            mDirty = true;
+        }
+        saveIfNeeded(true);
+    }
+
+    /**
+     * 源文件被改写，下次查询时重新校验
+     */
+    public synchronized void invalidateSource(String source) {
+        mCheckedSources.remove(source);
+    }
+
+    public synchronized long getTotalSize() {
+        return mTotalSize;
+    }
+
+    public synchronized int getCount() {
+        return mEntries.size();
+    }
+
+    /**
+     * @return 按类型统计的条目，调试用
+     */
+    public synchronized List<Entry> entries(String kind) {
+        List<Entry> entries = new ArrayList<>();
+        for (Entry entry : mEntries.values()) {
+            if (kind == null || kind.equals(entry.kind)) {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * 把索引写到磁盘，批量写入结束后调用
+     */
+    public synchronized void flush() {
+        saveIfNeeded(true);
+    }
+
+    /**
+     * 淘汰最久没有访问的条目，直到能放下incoming
+     *
+     * @return 预算是否足够
+     */
+    private boolean evict(long incoming) {
+        if (incoming > mBudget) return false;
+        Iterator<Entry> iterator = mEntries.values().iterator();
+        while (mTotalSize + incoming > mBudget && iterator.hasNext()) {
+            Entry entry = iterator.next();
+            iterator.remove();
+            mTotalSize -= entry.size;
+            new File(mDir, entry.name).delete();
+            mDirty = true;
+        }
+        return true;
+    }
+
+    /**
+     * 源文件第一次查询时stat一次，删除修改时间或大小和记录不一致的条目
+     */
+    private void checkSource(String source) {
+        if (!mCheckedSources.add(source)) return;
+        File file = new File(source);
+        long modified = file.lastModified();
+        long length = file.length();
+        Iterator<Entry> iterator = mEntries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (!entry.source.equals(source) || (entry.sourceModified == modified && entry.sourceSize == length)) {
+                continue;
+            }
+            iterator.remove();
+            mTotalSize -= entry.size;
+            new File(mDir, entry.name).delete();
+            mDirty = true;
+        }
+    }
+
+    static String nameOf(String kind, String source, String param) {
+        String key = kind + "\n" + source + "\n" + (param == null ? "" : param);
+        return kind + "_" + md5(key);
+    }
+
+    private static String md5(String string) {
+        try {
+            byte[] bytes = MessageDigest.getInstance("MD5").digest(string.getBytes(StandardCharsets.UTF_8));
+            StringBuilder result = new StringBuilder();
+            for (byte b : bytes) {
+                result.append(Character.forDigit((b >> 4) & 0xF, 16));
+                result.append(Character.forDigit(b & 0xF, 16));
+            }
+            return result.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void load() {
+        File index = new File(mDir, INDEX);
+        List<Entry> entries = new ArrayList<>();
+        if (index.exists()) {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(index), StandardCharsets.UTF_8))) {
+                if (VERSION.equals(reader.readLine())) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        String[] fields = line.split("\t", -1);
+                        if (fields.length != 7) continue;
+                        Entry entry = new Entry();
+                        entry.name = fields[0];
+                        entry.kind = fields[1];
+                        entry.source = fields[2];
+                        entry.sourceModified = Long.parseLong(fields[3]);
+                        entry.sourceSize = Long.parseLong(fields[4]);
+                        entry.size = Long.parseLong(fields[5]);
+                        entry.lastAccess = Long.parseLong(fields[6]);
+                        entries.add(entry);
+                    }
+                }
+            } catch (IOException | NumberFormatException e) {
+                LogUtil.log(LogUtil.ENGINE_TAG + "MediaCache#load#Error#" + e.getMessage());
+                entries.clear();
+            }
+        }
+        //按最近访问时间恢复LRU顺序
+        Collections.sort(entries, (a, b) -> Long.compare(a.lastAccess, b.lastAccess));
+        for (Entry entry : entries) {
+            if (new File(mDir, entry.name).length() != entry.size) continue;
+            mEntries.put(entry.name, entry);
+            mTotalSize += entry.size;
+        }
+        //清理崩溃留下的tmp和索引之外的文件
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().equals(INDEX) || mEntries.containsKey(file.getName())) continue;
+                file.delete();
+            }
+        }
+        mDirty = entries.size() != mEntries.size();
+        evict(0);
+        saveIfNeeded(true);
+        LogUtil.log(LogUtil.ENGINE_TAG + "MediaCache#load#" + mEntries.size() + "#" + mTotalSize);
+    }
+
+    private void saveIfNeeded(boolean force) {
+        if (!mDirty) return;
+        long now = System.currentTimeMillis();
+        if (!force && now - mLastSaveMs < SAVE_INTERVAL_MS) return;
+        File index = new File(mDir, INDEX);
+        File tmp = new File(mDir, INDEX + TMP_SUFFIX);
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8)) {
+            writer.write(VERSION);
+            writer.write('\n');
+            for (Entry entry : mEntries.values()) {
+                writer.write(entry.name + "\t" + entry.kind + "\t" + entry.source + "\t" + entry.sourceModified + "\t"
+                        + entry.sourceSize + "\t" + entry.size + "\t" + entry.lastAccess + "\n");
+            }
+        } catch (IOException e) {
+            tmp.delete();
+            return;
+        }
+        if (tmp.renameTo(index)) {
+            mDirty = false;
+            mLastSaveMs = now;
+        } else {
+            tmp.delete();
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package com.galix.avcore.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 媒体库索引
+ * 记录每个文件的(路径, 大小, 修改时间)和探测出来的元数据、缩略图路径，持久化到磁盘(先写tmp再rename)。
+ * 打开时先从索引读出上次的结果直接显示；refresh对比当前的文件列表，大小和修改时间没变的沿用旧结果，
+ * 新增和变化的文件并行探测，已经不存在的文件从索引删除。
+ * 不是视频或者探测失败的文件也会记录，文件不变就不再重复探测。
+ * <p>
+ * 索引文件每行: path\tsize\tlastModified\tvideo\tduration\twidth\theight\tthumb
+ *
+ * @Author:Galis
+ * @Date:2022.04.28
+ */
+public class MediaIndex {
+
+    private static final String VERSION = "media1";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    /**
+     * 探测一个文件
+     */
+    public interface Prober {
+        /**
+         * @param file 文件
+         * @return 元数据，不是视频返回null
+         */
+        Item probe(File file) throws IOException;
+    }
+
+    /**
+     * 单个文件探测完成，在探测线程回调
+     */
+    public interface Listener {
+        void onProbed(Item item);
+    }
+
+    /**
+     * 索引条目
+     */
+    public static class Item {
+        public String path;
+        public long size;
+        public long lastModified;
+        public boolean video;
+        public long duration;//us
+        public int width;
+        public int height;
+        public String thumb;//缩略图文件，没有为null
+
+        @Override
+        public String toString() {
+            return "Item{" +
+                    "path='" + path + '\'' +
+                    ", video=" + video +
+                    ", duration=" + duration +
+                    ", width=" + width +
+                    ", height=" + height +
+                    '}';
+        }
+    }
+
+    private final File mFile;
+    private LinkedHashMap<String, Item> mItems = new LinkedHashMap<>();
+
+    /**
+     * @param file 索引文件，不存在时为空索引
+     */
+    public MediaIndex(File file) {
+        mFile = file;
+        load();
+    }
+
+    /**
+     * @return 索引里的视频，按文件列表的顺序
+     */
+    public synchronized List<Item> getVideos() {
+        List<Item> videos = new ArrayList<>();
+        for (Item item : mItems.values()) {
+            if (item.video) {
+                videos.add(item);
+            }
+        }
+        return videos;
+    }
+
+    public synchronized int getCount() {
+        return mItems.size();
+    }
+
+    /**
+     * 按当前的文件列表更新索引，在调用线程阻塞到全部探测完成
+     *
+     * @param files    当前的文件
+     * @param prober   探测
+     * @param threads  并行探测的线程数
+     * @param listener 每个新探测的文件回调一次，可以为空
+     * @return 更新后的视频列表
+     * @throws InterruptedException 被中断，已经探测完的结果会保存
+     */
+    public List<Item> refresh(List<File> files, Prober prober, int threads, Listener listener) throws InterruptedException {
+        List<Callable<Void>> pending = new ArrayList<>();
+        synchronized (this) {
+            LinkedHashMap<String, Item> items = new LinkedHashMap<>();
+            HashSet<String> seen = new HashSet<>();
+            for (File file : files) {
+                String path = file.getAbsolutePath();
+                if (!seen.add(path)) continue;
+                Item old = mItems.get(path);
+                if (old != null && old.size == file.length() && old.lastModified == file.lastModified()
+                        && (!old.video || old.thumb == null || new File(old.thumb).exists())) {
+                    items.put(path, old);
+                } else {
+                    pending.add(() -> {
+                        Item item = probe(file, prober);
+                        synchronized (MediaIndex.this) {
+                            mItems.put(item.path, item);
+                        }
+                        if (listener != null) {
+                            listener.onProbed(item);
+                        }
+                        return null;
+                    });
+                }
+            }
+            //删除的文件马上从列表消失，新文件探测完一个加一个
+            mItems = items;
+        }
+        LogUtil.log(LogUtil.ENGINE_TAG + "MediaIndex#refresh#" + files.size() + "#probe#" + pending.size());
+        if (!pending.isEmpty()) {
+            ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, pending.size())));
+            try {
+                executor.invokeAll(pending);
+            } finally {
+                executor.shutdownNow();
+                synchronized (this) {
+                    reorder(files);
+                    save();
+                }
+            }
+        } else {
+            synchronized (this) {
+                save();
+            }
+        }
+        return getVideos();
+    }
+
+    private static Item probe(File file, Prober prober) {
+        //先取大小和修改时间，探测期间文件变化的话下次会重新探测
+        long size = file.length();
+        long lastModified = file.lastModified();
+        Item item = null;
+        try {
+            item = prober.probe(file);
+        } catch (IOException | RuntimeException e) {
+            LogUtil.log(LogUtil.ENGINE_TAG + "MediaIndex#probe#Error#" + file + "#" + e.getMessage());
+        }
+        if (item == null) {
+            item = new Item();
+        } else {
+            item.video = true;
+        }
+        item.path = file.getAbsolutePath();
+        item.size = size;
+        item.lastModified = lastModified;
+        return item;
+    }
+
+    private void reorder(List<File> files) {
+        LinkedHashMap<String, Item> items = new LinkedHashMap<>();
+        for (File file : files) {
+            Item item = mItems.get(file.getAbsolutePath());
+            if (item != null) {
+                items.put(item.path, item);
+            }
+        }
+        mItems = items;
+    }
+
+    private void load() {
+        if (!mFile.exists()) return;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(mFile), StandardCharsets.UTF_8))) {
+            if (!VERSION.equals(reader.readLine())) return;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", -1);
+                if (fields.length != 8) continue;
+                Item item = new Item();
+                item.path = fields[0];
+                item.size = Long.parseLong(fields[1]);
+                item.lastModified = Long.parseLong(fields[2]);
+                item.video = "1".equals(fields[3]);
+                item.duration = Long.parseLong(fields[4]);
+                item.width = Integer.parseInt(fields[5]);
+                item.height = Integer.parseInt(fields[6]);
+                item.thumb = fields[7].isEmpty() ? null : fields[7];
+                mItems.put(item.path, item);
+            }
+        } catch (IOException | NumberFormatException e) {
+            LogUtil.log(LogUtil.ENGINE_TAG + "MediaIndex#load#Error#" + e.getMessage());
+            mItems.clear();
+        }
+    }
+
+    private void save() {
+        File tmp = new File(mFile.getPath() + TMP_SUFFIX);
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8)) {
+            writer.write(VERSION);
+            writer.write('\n');
+            for (Item item : mItems.values()) {
+                writer.write(item.path + "\t" + item.size + "\t" + item.lastModified + "\t" + (item.video ? 1 : 0) + "\t"
+                        + item.duration + "\t" + item.width + "\t" + item.height + "\t"
+                        + (item.thumb == null ? "" : item.thumb) + "\n");
+            }
+        } catch (IOException e) {
+            tmp.delete();
+            return;
+        }
+        if (!tmp.renameTo(mFile)) {
+            tmp.delete();
+        }
+    }
+}
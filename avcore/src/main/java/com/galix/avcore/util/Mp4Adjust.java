@@ -1,11 +1,15 @@
 package com.galix.avcore.util;
 
 import android.media.MediaCodec;
-import android.media.MediaCodecInfo;
 import android.media.MediaExtractor;
 import android.media.MediaFormat;
-import android.media.MediaMuxer;
 import android.util.Log;
+import android.util.Size;
+import android.view.Surface;
+
+import com.galix.avcore.util.mp4.FragmentedMp4Sink;
+import com.galix.avcore.util.mp4.IMuxerSink;
+import com.galix.avcore.util.mp4.MediaMuxerSink;
 
 import java.io.File;
 import java.io.IOException;
@@ -15,6 +19,8 @@ import static android.media.MediaCodec.BUFFER_FLAG_END_OF_STREAM;
 
 /**
  * Mp4调整工具类
+ * 视频走Surface到Surface转码，解码输出经SurfaceTexture用GL画到编码器输入surface，可以同时缩放和旋转；
+ * 音频仍然是ByteBuffer解码再编码。
  *
  * @Author:Galis
  * @Date:2022.02.09
@@ -22,6 +28,8 @@ import static android.media.MediaCodec.BUFFER_FLAG_END_OF_STREAM;
 public class Mp4Adjust {
 
     private static final String TAG = Mp4Adjust.class.getSimpleName();
+    private static final long TIMEOUT_US = 10000;
+    private static final String KEY_ROTATION = "rotation-degrees";//MediaFormat.KEY_ROTATION，API 23
     private int mGop;//Gop
     private int mVb;//video 比特率
     private int mAb;//音频 比特率
@@ -30,7 +38,12 @@ public class Mp4Adjust {
     private String mCacheDir;
 
     private MediaExtractor mMediaExtractor;
-    private MediaMuxer mMediaMuxer;
+    private IMuxerSink mMediaMuxer;
+    private boolean mFragmentedOutput = false;
+    private boolean mMuxerStarted = false;
+    private int mMaxSize = 0;//输出长边上限，0不缩放
+    private int mRotation = 0;//额外顺时针旋转
+    private SurfaceTranscoder mTranscoder;
     private Stream mAudioDecodeStream, mVideoDecodeStream;
     private Stream mAudioEncodeStream, mVideoEncodeStream;
 
@@ -52,6 +65,27 @@ public class Mp4Adjust {
         mAudioEncodeStream = mVideoEncodeStream = null;
     }
 
+    /**
+     * 输出fMP4，边写边落盘，内存占用与时长无关
+     */
+    public void setFragmentedOutput(boolean fragmentedOutput) {
+        mFragmentedOutput = fragmentedOutput;
+    }
+
+    /**
+     * 输出长边不超过maxSize，等比缩小
+     */
+    public void setMaxSize(int maxSize) {
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * 在源视频旋转角度的基础上再顺时针旋转，0/90/180/270
+     */
+    public void setRotation(int rotation) {
+        mRotation = rotation;
+    }
+
     private static class Frame {
         ByteBuffer byteBuffer;
         long pts = -1;
@@ -70,12 +104,18 @@ public class Mp4Adjust {
         public MediaCodec mediaCodec;
         public MediaFormat format;
         public MediaExtractor mediaExtractor;
+        public Surface inputSurface;
     }
 
     private void openDecodeStream(int trackIdx) {
         MediaFormat mediaFormat = mMediaExtractor.getTrackFormat(trackIdx);
         if (mediaFormat.getLong(MediaFormat.KEY_DURATION, 0) == 0) return;
-        mediaFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420PackedPlanar);
+        boolean isVideo = mediaFormat.getString(MediaFormat.KEY_MIME).contains("video");
+        if (isVideo && (mVideoEncodeStream == null || mTranscoder == null)) return;
+        if (isVideo) {
+            //旋转由SurfaceTranscoder完成，解码器不再旋转
+            mediaFormat.setInteger(KEY_ROTATION, 0);
+        }
         Stream stream = new Stream();
         stream.trackIdx = trackIdx;
         stream.duration = mediaFormat.getLong(MediaFormat.KEY_DURATION, 0);
@@ -87,12 +127,12 @@ public class Mp4Adjust {
             stream.mediaExtractor.setDataSource(mSrcPath);
             stream.mediaExtractor.selectTrack(trackIdx);
             stream.mediaCodec = MediaCodec.createDecoderByType(mediaFormat.getString(MediaFormat.KEY_MIME));
-            stream.mediaCodec.configure(mediaFormat, null, null, 0);
+            stream.mediaCodec.configure(mediaFormat, isVideo ? mTranscoder.open(mVideoEncodeStream.inputSurface) : null, null, 0);
             stream.mediaCodec.start();
         } catch (IOException e) {
             e.printStackTrace();
         }
-        if (mediaFormat.getString(MediaFormat.KEY_MIME).contains("video")) {
+        if (isVideo) {
             mVideoDecodeStream = stream;
         } else {
             mAudioDecodeStream = stream;
@@ -106,30 +146,35 @@ public class Mp4Adjust {
         Stream stream = new Stream();
         stream.buffer = ByteBuffer.allocateDirect(mediaFormat.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE));
         stream.duration = mediaFormat.getLong(MediaFormat.KEY_DURATION);
-        if (mediaFormat.getString(MediaFormat.KEY_MIME).contains("video")) {
-            int width = mediaFormat.getInteger(MediaFormat.KEY_WIDTH);
-            int height = mediaFormat.getInteger(MediaFormat.KEY_HEIGHT);
-            mediaFormat = MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC,
-                    width, height);
-            mediaFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420PackedPlanar);
-            mediaFormat.setInteger(MediaFormat.KEY_BIT_RATE, mVb);
-            mediaFormat.setInteger(MediaFormat.KEY_FRAME_RATE, mGop);
-            mediaFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
-        } else {
-            mediaFormat = MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_AAC, 44100, 2);
-            mediaFormat.setInteger(MediaFormat.KEY_BIT_RATE,mAb);
-        }
         stream.trackIdx = -1;
         stream.isInputEOF = stream.isOutputEOF = false;
+        boolean isVideo = mediaFormat.getString(MediaFormat.KEY_MIME).contains("video");
         try {
-            stream.mediaCodec = MediaCodec.createEncoderByType(mediaFormat.getString(MediaFormat.KEY_MIME));
-            stream.mediaCodec.configure(mediaFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            if (isVideo) {
+                int rotation = (mediaFormat.containsKey(KEY_ROTATION) ? mediaFormat.getInteger(KEY_ROTATION) : 0) + mRotation;
+                Size size = SurfaceTranscoder.outputSize(mediaFormat.getInteger(MediaFormat.KEY_WIDTH),
+                        mediaFormat.getInteger(MediaFormat.KEY_HEIGHT), rotation, mMaxSize);
+                EncoderProbe.Preset preset = new EncoderProbe.Preset(size.getWidth(), size.getHeight(), mVb);
+                if (mediaFormat.containsKey(MediaFormat.KEY_FRAME_RATE)) {
+                    preset.frameRate = mediaFormat.getInteger(MediaFormat.KEY_FRAME_RATE);
+                }
+                stream.mediaCodec = EncoderProbe.select(preset).createEncoder();
+                stream.inputSurface = stream.mediaCodec.createInputSurface();
+                mTranscoder = new SurfaceTranscoder(size, rotation);
+                Log.d(TAG, "openEncodeStream#video#" + size + "#rotation#" + rotation);
+            } else {
+                MediaFormat audioFormat = MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_AAC,
+                        mediaFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE), mediaFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT));
+                audioFormat.setInteger(MediaFormat.KEY_BIT_RATE, mAb);
+                stream.mediaCodec = MediaCodec.createEncoderByType(MediaFormat.MIMETYPE_AUDIO_AAC);
+                stream.mediaCodec.configure(audioFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            }
             stream.mediaCodec.start();
         } catch (IOException e) {
             e.printStackTrace();
             return;
         }
-        if (mediaFormat.getString(MediaFormat.KEY_MIME).contains("video")) {
+        if (isVideo) {
             mVideoEncodeStream = stream;
         } else {
             mAudioEncodeStream = stream;
@@ -262,24 +307,128 @@ public class Mp4Adjust {
         }
     }
 
+    /**
+     * 视频转码一步：解码一帧画到编码器surface，取出编码器当前的输出
+     * 像素只在GPU上流转，解码输出不经过ByteBuffer
+     *
+     * @param decode 视频解码流
+     * @param encode 视频编码流
+     */
+    private void transcodeVideo(Stream decode, Stream encode) {
+        MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+        boolean rendered = false;
+        while (!rendered && !encode.isInputEOF) {
+            drainEncoder(encode, false);
+            if (!decode.isInputEOF) {
+                int inputBufIdx = decode.mediaCodec.dequeueInputBuffer(0);
+                if (inputBufIdx >= 0) {
+                    ByteBuffer inputBuffer = decode.mediaCodec.getInputBuffer(inputBufIdx);
+                    int sampleSize = decode.mediaExtractor.readSampleData(inputBuffer, 0);
+                    if (sampleSize < 0) {
+                        decode.isInputEOF = true;
+                        decode.mediaCodec.queueInputBuffer(inputBufIdx, 0, 0, 0, BUFFER_FLAG_END_OF_STREAM);
+                    } else {
+                        decode.mediaCodec.queueInputBuffer(inputBufIdx, 0, sampleSize,
+                                decode.mediaExtractor.getSampleTime(), 0);
+                        decode.mediaExtractor.advance();
+                    }
+                }
+            }
+            int status = decode.mediaCodec.dequeueOutputBuffer(bufferInfo, TIMEOUT_US);
+            if (status < 0) continue;
+            boolean render = bufferInfo.size > 0;
+            decode.mediaCodec.releaseOutputBuffer(status, render);
+            if (render) {
+                rendered = mTranscoder.drawFrame(bufferInfo.presentationTimeUs);
+            }
+            if ((bufferInfo.flags & BUFFER_FLAG_END_OF_STREAM) != 0) {
+                decode.isOutputEOF = true;
+                encode.isInputEOF = true;
+                encode.mediaCodec.signalEndOfInputStream();
+            }
+        }
+        drainEncoder(encode, encode.isInputEOF);
+    }
+
+    /**
+     * 取出编码器输出写入muxer
+     *
+     * @param stream      编码流
+     * @param untilEOS    是否一直等到EOS
+     */
+    private void drainEncoder(Stream stream, boolean untilEOS) {
+        if (!mMuxerStarted && stream.trackIdx != -1) {
+            return;//已经addTrack，muxer启动前输出留在编码器里
+        }
+        MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+        while (!stream.isOutputEOF) {
+            int status = stream.mediaCodec.dequeueOutputBuffer(bufferInfo, untilEOS ? TIMEOUT_US : 0);
+            if (status == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                if (!untilEOS) return;
+            } else if (status == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                stream.trackIdx = mMediaMuxer.addTrack(stream.mediaCodec.getOutputFormat());
+                Log.d(TAG, "drainEncoder#INFO_OUTPUT_FORMAT_CHANGED#trackIdx#" + stream.trackIdx);
+                if (!mMuxerStarted) return;//等其它轨道addTrack后再start
+            } else if (status >= 0) {
+                if ((bufferInfo.flags & BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    stream.isOutputEOF = true;
+                    stream.nextPts = stream.duration;
+                }
+                if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0 && bufferInfo.size > 0) {
+                    ByteBuffer byteBuffer = stream.mediaCodec.getOutputBuffer(status);
+                    byteBuffer.position(bufferInfo.offset);
+                    byteBuffer.limit(bufferInfo.offset + bufferInfo.size);
+                    mMediaMuxer.writeSampleData(stream.trackIdx, byteBuffer, bufferInfo);
+                    stream.nextPts = bufferInfo.presentationTimeUs;
+                }
+                stream.mediaCodec.releaseOutputBuffer(status, false);
+            }
+        }
+    }
+
+    /**
+     * 释放编解码器和GL资源
+     */
+    private void release() {
+        for (Stream stream : new Stream[]{mVideoDecodeStream, mAudioDecodeStream, mVideoEncodeStream, mAudioEncodeStream}) {
+            if (stream == null) continue;
+            if (stream.mediaCodec != null) {
+                stream.mediaCodec.stop();
+                stream.mediaCodec.release();
+            }
+            if (stream.mediaExtractor != null) {
+                stream.mediaExtractor.release();
+            }
+            if (stream.inputSurface != null) {
+                stream.inputSurface.release();
+            }
+        }
+        mVideoDecodeStream = mAudioDecodeStream = mVideoEncodeStream = mAudioEncodeStream = null;
+        if (mTranscoder != null) {
+            mTranscoder.release();
+            mTranscoder = null;
+        }
+    }
+
     /**
      * 合成MP4.
      */
     private void muxer() {
-        while (mVideoDecodeStream != null && mVideoEncodeStream.trackIdx == -1) {
-            writeFrame(mVideoEncodeStream, readFrame(mVideoDecodeStream));
+        while (mVideoDecodeStream != null && mVideoEncodeStream.trackIdx == -1 && !mVideoEncodeStream.isOutputEOF) {
+            transcodeVideo(mVideoDecodeStream, mVideoEncodeStream);
         }
         while (mAudioDecodeStream != null && mAudioEncodeStream.trackIdx == -1) {
             writeFrame(mAudioEncodeStream, readFrame(mAudioDecodeStream));
         }
         mMediaMuxer.start();
+        mMuxerStarted = true;
         boolean hasVideo = mVideoEncodeStream != null && !mVideoEncodeStream.isOutputEOF;
         boolean hasAudio = mAudioEncodeStream != null && !mAudioEncodeStream.isOutputEOF;
         while (hasVideo || hasAudio) {
             boolean writeVideo = hasVideo && !hasAudio || hasVideo && mVideoEncodeStream.nextPts <= mAudioEncodeStream.nextPts;
             if (writeVideo) {
                 Log.d(TAG, "writeVideo#pts" + mVideoEncodeStream.nextPts);
-                writeFrame(mVideoEncodeStream, readFrame(mVideoDecodeStream));
+                transcodeVideo(mVideoDecodeStream, mVideoEncodeStream);
             }
             boolean writeAudio = hasAudio && !hasVideo || hasAudio && mVideoEncodeStream.nextPts > mAudioEncodeStream.nextPts;
             if (writeAudio) {
@@ -297,18 +446,24 @@ public class Mp4Adjust {
         try {
             mMediaExtractor = new MediaExtractor();
             mMediaExtractor.setDataSource(mSrcPath);
-            mMediaMuxer = new MediaMuxer(mDstPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            mMediaMuxer = mFragmentedOutput ? new FragmentedMp4Sink(mDstPath) : new MediaMuxerSink(mDstPath);
             for (int i = 0; i < mMediaExtractor.getTrackCount(); i++) {
-                openDecodeStream(i);
+                //视频先创建编码器，解码器输出到它的surface
                 openEncodeStream(i);
+                openDecodeStream(i);
             }
             muxer();
             mMediaMuxer.stop();//flush文件
             mMediaMuxer.release();//释放资源
             mMediaExtractor.release();
+            release();
+            if (!mFragmentedOutput) {
+                Mp4Composite.fastStart(mDstPath);
+            }
             Log.d(TAG, "muxer#finish");
         } catch (IOException e) {
             e.printStackTrace();
+            release();
             File file = new File(mDstPath);
             if (file.exists()) file.delete();
         }
@@ -1,10 +1,8 @@
 package com.galix.avcore.util;
 
 import android.media.MediaCodec;
-import android.media.MediaCodecInfo;
 import android.media.MediaExtractor;
 import android.media.MediaFormat;
-import android.media.MediaMuxer;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Message;
@@ -17,12 +15,27 @@ import com.galix.avcore.avcore.AVAudio;
 import com.galix.avcore.avcore.AVComponent;
 import com.galix.avcore.avcore.AVEngine;
 import com.galix.avcore.avcore.AVFrame;
-import com.galix.avcore.render.OESRender;
+import com.galix.avcore.avcore.AVVideo;
+import com.galix.avcore.render.ExportRender;
+import com.galix.avcore.render.OverlayRender;
+import com.galix.avcore.util.job.MediaJobScheduler;
+import com.galix.avcore.util.mp4.FastStart;
+import com.galix.avcore.util.mp4.FragmentedMp4Sink;
+import com.galix.avcore.util.mp4.IMuxerSink;
+import com.galix.avcore.util.mp4.MediaMuxerSink;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static android.media.MediaCodec.BUFFER_FLAG_END_OF_STREAM;
 
@@ -39,13 +52,19 @@ public class Mp4Composite {
     private static final int COMPOSITE_FRAME_VALID = 2;
     private static final int COMPOSITE_AUDIO_VALID = 3;
     private static final int COMPOSITE_DESTROY = 4;
+    private static final long FRAME_US = 1000000 / 30;//与AVVideo,AVTransaction输出帧间隔一致
+    private static final long MIN_SEGMENT_US = 2000000;//分段太短时并行收益小于拼接开销
+    private static final long FRAGMENT_US = 5000000;//可续传合成的分片时长，中断后最多重新编码一个分片
     private int mGop;//Gop
     private int mVb;//video 比特率
     private int mAb;//音频 比特率
-    private boolean mMuxerStart = false;
+    private volatile boolean mMuxerStart = false;
+    private volatile boolean mFailed = false;//音频或者视频失败，输出文件不完整
+    private final CountDownLatch mMuxerCreated = new CountDownLatch(1);//合成线程创建muxer后释放
+    private final CountDownLatch mMuxerStarted = new CountDownLatch(1);//muxer启动或者任一轨道失败时释放
     private String mDstPath;
     private AVEngine.VideoState mVideoState;
-    private MediaMuxer mMediaMuxer;
+    private volatile IMuxerSink mMediaMuxer;
     private AVEngine mEngine;
     private Stream mAudioEncodeStream, mVideoEncodeStream;
     private AVComponent mLastVideo;
@@ -58,6 +77,12 @@ public class Mp4Composite {
     private final Object mMediaMuxerLock = new Object();
     private HandlerThread mAudioThread;
     private Handler mAudioHandler;
+    private ExportReport mReport = new ExportReport();
+    private RenditionOutput mRenditionOutput;
+    private ExportGovernor mGovernor;
+    private List<AVComponent> mOverlays = new ArrayList<>();//贴纸，文字，PAG
+    private OverlayRender mOverlayRender;
+    private ExportReport.Stage mOverlayStage;
 
 
     public interface CompositeCallback {
@@ -88,35 +113,29 @@ public class Mp4Composite {
         public MediaFormat format;
         public MediaExtractor mediaExtractor;
         public Surface inputSurface;
+        public ExportGovernor.Listener rateListener;//视频编码器跟随温控档位调整operating rate
     }
 
     private Stream openEncodeStream(boolean isVideo) {
         Stream stream = new Stream();
-        MediaFormat mediaFormat = null;
-        if (isVideo) {
-            mediaFormat = MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC,
-                    mVideoState.mTargetSize.getWidth(), mVideoState.mTargetSize.getHeight());
-            int width = mediaFormat.getInteger(MediaFormat.KEY_WIDTH);
-            int height = mediaFormat.getInteger(MediaFormat.KEY_HEIGHT);
-            mediaFormat = MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC,
-                    width, height);
-            mediaFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420PackedPlanar);
-            mediaFormat.setInteger(MediaFormat.KEY_BIT_RATE, mVb);
-            mediaFormat.setInteger(MediaFormat.KEY_FRAME_RATE, mGop);
-            mediaFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
-        } else {
-            mediaFormat = MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_AAC, 44100, 2);
-            mediaFormat.setInteger(MediaFormat.KEY_BIT_RATE, mAb);
-        }
         try {
             stream.trackIdx = -1;
             stream.isInputEOF = stream.isOutputEOF = false;
-            stream.mediaCodec = MediaCodec.createEncoderByType(mediaFormat.getString(MediaFormat.KEY_MIME));
-            stream.mediaCodec.configure(mediaFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
             if (isVideo) {
+                stream.mediaCodec = EncoderProbe.select(videoPreset()).createEncoder();
                 stream.inputSurface = stream.mediaCodec.createInputSurface();
+                MediaCodec codec = stream.mediaCodec;
+                stream.rateListener = decision -> EncoderProbe.setOperatingRate(codec, decision.operatingRate);
+            } else {
+                MediaFormat mediaFormat = MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_AAC, 44100, 2);
+                mediaFormat.setInteger(MediaFormat.KEY_BIT_RATE, mAb);
+                stream.mediaCodec = MediaCodec.createEncoderByType(MediaFormat.MIMETYPE_AUDIO_AAC);
+                stream.mediaCodec.configure(mediaFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
             }
             stream.mediaCodec.start();
+            if (stream.rateListener != null) {
+                mGovernor.addListener(stream.rateListener);
+            }
         } catch (IOException e) {
             e.printStackTrace();
             return null;
@@ -124,33 +143,88 @@ public class Mp4Composite {
         return stream;
     }
 
+    /**
+     * 合成预设，帧率与AVVideo输出帧间隔一致
+     */
+    private EncoderProbe.Preset videoPreset() {
+        EncoderProbe.Preset preset = new EncoderProbe.Preset(mVideoState.mTargetSize.getWidth(),
+                mVideoState.mTargetSize.getHeight(), mVb);
+        preset.frameRate = (int) (1000000 / FRAME_US);
+        if (mGovernor != null) {
+            preset.operatingRate = mGovernor.update().operatingRate;
+        }
+        return preset;
+    }
+
     /**
      * 读取一帧视频，返回Frame.最后一帧标志isEOF为true
      *
      * @return Frame
      */
-    private AVFrame readVideoFrame() {
-        if (mVideoEncodeStream.nextPts > mVideoState.durationUS) {
-            mVideoEncodeStream.isInputEOF = true;
+    private AVFrame readVideoFrame(Stream stream) {
+        if (stream.nextPts > mVideoState.durationUS) {
+            stream.isInputEOF = true;
             return null;
         }
-        mVideoEncodeStream.isInputEOF = false;
+        stream.isInputEOF = false;
         List<AVComponent> components;
-        components = mEngine.findComponents(AVComponent.AVComponentType.TRANSACTION, mVideoEncodeStream.nextPts);
+        components = mEngine.findComponents(AVComponent.AVComponentType.TRANSACTION, stream.nextPts);
         if (components.isEmpty()) {
-            components = mEngine.findComponents(AVComponent.AVComponentType.VIDEO, mVideoEncodeStream.nextPts);
+            components = mEngine.findComponents(AVComponent.AVComponentType.VIDEO, stream.nextPts);
         }
         AVComponent video = components.get(0);
         if (mLastVideo != video) {
-            video.seekFrame(mVideoEncodeStream.nextPts);
+            video.seekFrame(stream.nextPts);
         } else {
             video.readFrame();
         }
         mLastVideo = video;
-        mVideoEncodeStream.nextPts += mLastVideo.peekFrame().getDuration();
+        stream.nextPts += mLastVideo.peekFrame().getDuration();
         return mLastVideo.peekFrame();
     }
 
+    private void renderVideoFrame(ExportRender exportRender, AVFrame videoFrame) {
+        mGovernor.throttle();
+        exportRender.render(mLastVideo.getRender(), videoFrame);
+        renderOverlays(videoFrame.getPts());
+        if (mRenditionOutput != null) {
+            mRenditionOutput.onFrame(videoFrame.getPts());
+        }
+        mEngine.getEglHelper().setPresentationTime(videoFrame.getPts() * 1000);
+        mEngine.getEglHelper().swap();
+        mCallback.handle((int) (videoFrame.getPts() * 1.0f / mVideoState.durationUS * 100));
+    }
+
+    /**
+     * 在视频帧之上直接绘制叠加组件，和视频帧在同一个framebuffer里合成，swap之前调用
+     *
+     * @param pts engine时间
+     */
+    private void renderOverlays(long pts) {
+        if (mOverlays.isEmpty()) return;
+        long start = System.nanoTime();
+        if (mOverlayRender == null) {
+            mOverlayRender = new OverlayRender();
+            mOverlayRender.write(OtherUtils.BuildMap("surface_size", mVideoState.mTargetSize));
+            mOverlayRender.open();
+            mOverlayStage = mReport.newStage("overlay");
+        }
+        mOverlayRender.render(mOverlays, pts);
+        mOverlayStage.busyNs += System.nanoTime() - start;
+        mOverlayStage.count++;
+    }
+
+    /**
+     * 时间线上的叠加组件
+     */
+    static List<AVComponent> findOverlays(AVEngine engine) {
+        List<AVComponent> overlays = new ArrayList<>();
+        overlays.addAll(engine.findComponents(AVComponent.AVComponentType.STICKER, -1));
+        overlays.addAll(engine.findComponents(AVComponent.AVComponentType.WORD, -1));
+        overlays.addAll(engine.findComponents(AVComponent.AVComponentType.PAG, -1));
+        return overlays;
+    }
+
     /**
      * 读取一帧音频，返回Frame.最后一帧标志isEOF为true
      *
@@ -205,7 +279,7 @@ public class Mp4Composite {
                     byteBuffer.limit(bufferInfo.offset + bufferInfo.size);
                     Log.d(TAG, "writeSampleData#bufferSize#" + byteBuffer.limit() + "stream#index#" + stream.trackIdx +
                             "#presentationTimeUs#" + bufferInfo.presentationTimeUs + "#nextpts#" + stream.nextPts);
-                    mMediaMuxer.writeSampleData(stream.trackIdx, mediaCodec.getOutputBuffer(status), bufferInfo);
+                    writeSample(stream, byteBuffer, bufferInfo);
                 }
                 mediaCodec.releaseOutputBuffer(status, false);
             } else if (status == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
@@ -218,10 +292,7 @@ public class Mp4Composite {
                     } else {
                         mVideoState.readyAudio = true;
                     }
-                    if (mVideoState.readyAudio && mVideoState.readyVideo) {
-                        mMediaMuxer.start();
-                        mMuxerStart = true;
-                    }
+                    startMuxerIfReady();
                 }
                 break;
             } else if (status == MediaCodec.INFO_TRY_AGAIN_LATER) {
@@ -233,8 +304,536 @@ public class Mp4Composite {
 
     }
 
+    private void startMuxerIfReady() {
+        synchronized (mMediaMuxerLock) {
+            if (!mMuxerStart && mVideoState.readyAudio && mVideoState.readyVideo) {
+                mMediaMuxer.start();
+                mMuxerStart = true;
+                mMuxerStarted.countDown();
+            }
+        }
+    }
+
+    /**
+     * 等待合成线程创建muxer
+     *
+     * @return muxer是否可用
+     */
+    private boolean awaitMuxer() {
+        await(mMuxerCreated);
+        return mMediaMuxer != null && !mFailed;
+    }
+
+    /**
+     * 等待另一条轨道就绪
+     *
+     * @return muxer是否已经启动，另一条轨道失败时返回false
+     */
+    private boolean awaitMuxerStart() {
+        await(mMuxerStarted);
+        return mMuxerStart && !mFailed;
+    }
+
+    /**
+     * 标记合成失败，释放所有等待，另一条轨道不会一直阻塞
+     */
+    private void fail(String reason) {
+        LogUtil.log(LogUtil.ENGINE_TAG + "Mp4Composite#fail#" + reason);
+        mFailed = true;
+        mMuxerCreated.countDown();
+        mMuxerStarted.countDown();
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeSample(Stream stream, ByteBuffer byteBuffer, MediaCodec.BufferInfo bufferInfo) {
+        synchronized (mMediaMuxerLock) {
+            mMediaMuxer.writeSampleData(stream.trackIdx, byteBuffer, bufferInfo);
+        }
+    }
+
+    /**
+     * 音频直接拷贝模式，可拷贝的片段直接写入压缩数据，其余片段和空隙用同一个编码器编码
+     *
+     * @param plan 分析结果
+     * @return 编码器输出的格式和拷贝轨道不一致时返回false，没有写入任何数据，改为全部重新编码
+     */
+    private boolean remuxAudio(AudioRemux.Plan plan) {
+        AudioSegmentEncoder encoder = null;
+        if (plan.hasEncode()) {
+            encoder = AudioSegmentEncoder.open(plan.copyFormat, mAb);
+            if (encoder == null) return false;
+        }
+        mAudioEncodeStream = new Stream();
+        mAudioEncodeStream.format = plan.copyFormat;
+        try {
+            if (!awaitMuxer()) return true;
+            synchronized (mMediaMuxerLock) {
+                mAudioEncodeStream.trackIdx = mMediaMuxer.addTrack(plan.copyFormat);
+                mVideoState.readyAudio = true;
+                startMuxerIfReady();
+            }
+            //等待视频轨道就绪
+            if (!awaitMuxerStart()) return true;
+            AudioRemux.SampleWriter writer = (buffer, bufferInfo) -> writeSample(mAudioEncodeStream, buffer, bufferInfo);
+            for (AudioRemux.Segment segment : plan.segments) {
+                if (mFailed) break;
+                if (segment.copy) {
+                    mReport.audioCopyUs += AudioRemux.copy(segment, writer);
+                } else {
+                    mReport.audioEncodeUs += encoder.encode(segment, writer);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            fail("remuxAudio#" + e.getMessage());
+        } finally {
+            if (encoder != null) {
+                encoder.release();
+            }
+            mAudioEncodeStream.isInputEOF = mAudioEncodeStream.isOutputEOF = true;
+        }
+        return true;
+    }
+
+    /**
+     * 视频智能渲染，没有改动的GOP直接拷贝，其余片段每段使用单独的编码器
+     *
+     * @param plan 分析结果
+     */
+    private void remuxVideo(VideoRemux.Plan plan) {
+        mVideoEncodeStream = new Stream();
+        mVideoEncodeStream.format = plan.copyFormat;
+        if (!awaitMuxer()) return;
+        synchronized (mMediaMuxerLock) {
+            mVideoEncodeStream.trackIdx = mMediaMuxer.addTrack(plan.copyFormat);
+            mVideoState.readyVideo = true;
+            if (!mVideoState.hasAudio) {
+                mVideoState.readyAudio = true;
+            }
+            startMuxerIfReady();
+        }
+        //等待音频轨道就绪
+        if (!awaitMuxerStart()) return;
+        AudioRemux.SampleWriter writer = (buffer, bufferInfo) -> writeSample(mVideoEncodeStream, buffer, bufferInfo);
+        ExportRender exportRender = null;
+        for (VideoRemux.Segment segment : plan.segments) {
+            if (mFailed) break;
+            try {
+                if (segment.copy) {
+                    mReport.videoCopyUs += VideoRemux.copy(segment, writer);
+                    mLastVideo = null;
+                    mCallback.handle((int) (segment.engineEnd * 1.0f / mVideoState.durationUS * 100));
+                } else {
+                    if (exportRender == null) {
+                        exportRender = new ExportRender();
+                        exportRender.write(OtherUtils.BuildMap("surface_size", mVideoState.mTargetSize));
+                    }
+                    mReport.videoEncodeUs += encodeVideoSegment(segment, exportRender);
+                }
+            } catch (IOException e) {
+                fail("remuxVideo#" + e.getMessage());
+            }
+        }
+        if (exportRender != null) {
+            exportRender.close();
+        }
+        mVideoEncodeStream.isInputEOF = mVideoEncodeStream.isOutputEOF = true;
+    }
+
+    /**
+     * 单独编码一个视频片段，编码器输出的SPS/PPS放在每个IDR前面(in-band)
+     *
+     * @return 编码时长
+     */
+    private long encodeVideoSegment(VideoRemux.Segment segment, ExportRender exportRender) {
+        Stream stream = openEncodeStream(true);
+        if (stream == null) return 0;
+        stream.trackIdx = mVideoEncodeStream.trackIdx;
+        stream.nextPts = segment.engineStart;
+        mEngine.getEglHelper().createSurface(stream.inputSurface);
+        mEngine.getEglHelper().makeCurrent();
+        if (!exportRender.isOpen()) {
+            exportRender.open();
+        }
+        mLastVideo = null;
+        while (stream.nextPts < segment.engineEnd) {
+            AVFrame videoFrame = readVideoFrame(stream);
+            if (videoFrame == null) break;
+            renderVideoFrame(exportRender, videoFrame);
+            drainVideoSegment(stream);
+        }
+        stream.isInputEOF = true;
+        stream.mediaCodec.signalEndOfInputStream();
+        drainVideoSegment(stream);
+        mEngine.getEglHelper().destroySurface();
+        mEngine.getEglHelper().makeCurrent();
+        mGovernor.removeListener(stream.rateListener);
+        stream.mediaCodec.stop();
+        stream.mediaCodec.release();
+        stream.inputSurface.release();
+        mLastVideo = null;
+        return segment.duration();
+    }
+
+    private void drainVideoSegment(Stream stream) {
+        MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+        while (!stream.isOutputEOF) {
+            int status = stream.mediaCodec.dequeueOutputBuffer(bufferInfo, stream.isInputEOF ? 10000 : 0);
+            if (status >= 0) {
+                ByteBuffer byteBuffer = stream.mediaCodec.getOutputBuffer(status);
+                byteBuffer.position(bufferInfo.offset);
+                byteBuffer.limit(bufferInfo.offset + bufferInfo.size);
+                if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                    stream.buffer = ByteBuffer.allocateDirect(bufferInfo.size);
+                    stream.buffer.put(byteBuffer);
+                    stream.buffer.flip();
+                } else if (bufferInfo.size > 0) {
+                    if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0 && stream.buffer != null) {
+                        ByteBuffer sample = ByteBuffer.allocateDirect(stream.buffer.remaining() + bufferInfo.size);
+                        sample.put(stream.buffer.duplicate());
+                        sample.put(byteBuffer);
+                        sample.flip();
+                        bufferInfo.set(0, sample.remaining(), bufferInfo.presentationTimeUs, bufferInfo.flags);
+                        writeSample(stream, sample, bufferInfo);
+                    } else {
+                        writeSample(stream, byteBuffer, bufferInfo);
+                    }
+                }
+                if ((bufferInfo.flags & BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    stream.isOutputEOF = true;
+                }
+                stream.mediaCodec.releaseOutputBuffer(status, false);
+            } else if (status == MediaCodec.INFO_TRY_AGAIN_LATER && !stream.isInputEOF) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * 流水线编码整个时间线，解码，渲染，编码输出分别在不同线程
+     *
+     * @param components 普通视频组件
+     * @return 是否成功，失败时编码器已经结束输入，不能再回退到串行编码
+     */
+    private boolean encodePipelined(List<AVComponent> components) {
+        ExportPipeline pipeline = new ExportPipeline(mEngine.getEglHelper(), mVideoState.mTargetSize);
+        ExportPipeline.Sink sink = new ExportPipeline.Sink() {
+            @Override
+            public void onFormat(MediaFormat format) {
+                synchronized (mMediaMuxerLock) {
+                    mVideoEncodeStream.trackIdx = mMediaMuxer.addTrack(format);
+                    mVideoState.readyVideo = true;
+                    if (!mVideoState.hasAudio) {
+                        mVideoState.readyAudio = true;
+                    }
+                    startMuxerIfReady();
+                }
+            }
+
+            @Override
+            public void write(ByteBuffer buffer, MediaCodec.BufferInfo bufferInfo) {
+                if (!awaitMuxerStart()) {
+                    throw new IllegalStateException("muxer not started");
+                }
+                writeSample(mVideoEncodeStream, buffer, bufferInfo);
+            }
+        };
+        pipeline.setFrameListener(pts -> {
+            renderOverlays(pts);
+            if (mRenditionOutput != null) {
+                mRenditionOutput.onFrame(pts);
+            }
+        });
+        pipeline.setGovernor(mGovernor);
+        if (!awaitMuxer()) {
+            //编码器已经start，结束输入后丢弃
+            mVideoEncodeStream.mediaCodec.signalEndOfInputStream();
+            return false;
+        }
+        boolean success = pipeline.run(components, 0, mVideoState.durationUS + 1, mVideoEncodeStream.mediaCodec, sink,
+                mReport, pts -> mCallback.handle((int) (pts * 1.0f / mVideoState.durationUS * 100)));
+        mVideoEncodeStream.isInputEOF = mVideoEncodeStream.isOutputEOF = true;
+        return success;
+    }
+
+    /**
+     * 按帧对齐把时间线切成count段，包含转场，滤镜或者叠加组件的分段只能使用引擎的组件在合成线程编码
+     *
+     * @param count 分段数
+     * @return 分段，不需要分段返回null
+     */
+    private List<SegmentEncoder.Task> planSegments(int count) {
+        count = (int) Math.min(count, mVideoState.durationUS / MIN_SEGMENT_US);
+        if (count < 2) return null;
+        long[] ends = new long[count];
+        for (int i = 0; i < count; i++) {
+            ends[i] = (mVideoState.durationUS * (i + 1) / count) / FRAME_US * FRAME_US;
+        }
+        return planTasks(ends, new File(new File(mDstPath).getParent(), ".segments"), "segment_");
+    }
+
+    /**
+     * 可续传合成按固定时长切分片，分片边界只和时间线有关，保证重新合成时可以复用已完成的分片
+     *
+     * @param checkpoint 检查点
+     * @return 分片
+     */
+    private List<SegmentEncoder.Task> planFragments(ExportCheckpoint checkpoint) {
+        long fragmentUs = FRAGMENT_US / FRAME_US * FRAME_US;
+        int count = (int) Math.max(1, (mVideoState.durationUS + fragmentUs - 1) / fragmentUs);
+        long[] ends = new long[count];
+        for (int i = 0; i < count; i++) {
+            ends[i] = (i + 1) * fragmentUs;
+        }
+        return planTasks(ends, fragmentDir(checkpoint), "fragment_");
+    }
+
+    private File fragmentDir(ExportCheckpoint checkpoint) {
+        return new File(new File(mDstPath).getParent(), ".fragments_" + checkpoint.getVersion());
+    }
+
+    private List<SegmentEncoder.Task> planTasks(long[] ends, File dir, String prefix) {
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        List<AVComponent> components = new LinkedList<>();
+        components.addAll(mEngine.findComponents(AVComponent.AVComponentType.TRANSACTION, -1));
+        components.addAll(mEngine.findComponents(AVComponent.AVComponentType.VIDEO, -1));
+        List<SegmentEncoder.Task> tasks = new ArrayList<>();
+        long start = 0;
+        for (int i = 0; i < ends.length; i++) {
+            SegmentEncoder.Task task = new SegmentEncoder.Task();
+            task.index = i;
+            task.engineStart = start;
+            task.engineEnd = i == ends.length - 1 ? mVideoState.durationUS + 1 : ends[i];
+            task.path = new File(dir, prefix + i + ".mp4").getAbsolutePath();
+            for (AVComponent component : components) {
+                if (component.getEngineStartTime() >= task.engineEnd || component.getEngineEndTime() <= task.engineStart) {
+                    continue;
+                }
+                task.components.add(component);
+                if (!(component instanceof AVVideo) || component.getRender() != null) {
+                    task.shared = true;
+                }
+            }
+            for (AVComponent overlay : mOverlays) {
+                if (overlay.getEngineStartTime() < task.engineEnd && overlay.getEngineEndTime() > task.engineStart) {
+                    task.shared = true;
+                    break;
+                }
+            }
+            tasks.add(task);
+            start = task.engineEnd;
+            LogUtil.log(LogUtil.ENGINE_TAG + "Mp4Composite#planTasks#" + task.toString());
+        }
+        return tasks;
+    }
+
+    /**
+     * 并行编码所有分段，共享分段在当前线程编码，其余分段在线程池里各自创建EGL上下文
+     * 有检查点时跳过已完成的分片，每完成一个分片立即提交，失败时保留已提交的分片
+     *
+     * @param tasks      分段
+     * @param checkpoint 检查点，可以为空
+     * @return 是否全部成功
+     */
+    private boolean encodeSegments(List<SegmentEncoder.Task> tasks, ExportCheckpoint checkpoint) {
+        SegmentEncoder encoder = new SegmentEncoder(mVideoState.mTargetSize, EncoderProbe.select(videoPreset()));
+        encoder.setGovernor(mGovernor);
+        encoder.setSharedFrameListener(this::renderOverlays);
+        AtomicLong progress = new AtomicLong(0);
+        AtomicBoolean failed = new AtomicBoolean(false);
+        List<SegmentEncoder.Task> pending = new ArrayList<>();
+        for (SegmentEncoder.Task task : tasks) {
+            if (checkpoint != null && checkpoint.isDone(task)) {
+                progress.addAndGet(Math.min(task.engineEnd, mVideoState.durationUS) - task.engineStart);
+                mReport.videoResumeUs += Math.min(task.engineEnd, mVideoState.durationUS) - task.engineStart;
+                continue;
+            }
+            pending.add(task);
+        }
+        int threads = mVideoState.mParallelExport ? SegmentEncoder.maxParallel() : 1;
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, pending.size())));
+        for (SegmentEncoder.Task task : pending) {
+            if (task.shared) continue;
+            executor.execute(() -> {
+                if (failed.get()) return;
+                try {
+                    mGovernor.beginJob();
+                } catch (InterruptedException e) {
+                    failed.set(true);
+                    return;
+                }
+                EglHelper eglHelper = new EglHelper();
+                eglHelper.create(null, EglHelper.GL_VERSION_3);
+                try {
+                    encoder.encode(task, eglHelper, progress);
+                    if (checkpoint != null) {
+                        checkpoint.commit(task);
+                    }
+                } catch (Exception e) {
+                    LogUtil.log(LogUtil.ENGINE_TAG + "Mp4Composite#encodeSegments#Error#" + e.getMessage());
+                    failed.set(true);
+                } finally {
+                    eglHelper.release();
+                    mGovernor.endJob();
+                }
+            });
+        }
+        executor.shutdown();
+        for (SegmentEncoder.Task task : pending) {
+            if (!task.shared || failed.get()) continue;
+            try {
+                mGovernor.beginJob();
+            } catch (InterruptedException e) {
+                failed.set(true);
+                break;
+            }
+            try {
+                encoder.encode(task, mEngine.getEglHelper(), progress);
+                if (checkpoint != null) {
+                    checkpoint.commit(task);
+                }
+            } catch (Exception e) {
+                LogUtil.log(LogUtil.ENGINE_TAG + "Mp4Composite#encodeSegments#Error#" + e.getMessage());
+                failed.set(true);
+            } finally {
+                mGovernor.endJob();
+            }
+        }
+        mEngine.getEglHelper().makeCurrent();
+        try {
+            while (!executor.awaitTermination(100, TimeUnit.MILLISECONDS)) {
+                mCallback.handle((int) Math.min(99, progress.get() * 100 / mVideoState.durationUS));
+            }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            failed.set(true);
+        }
+        if (failed.get()) {
+            for (SegmentEncoder.Task task : tasks) {
+                if (checkpoint != null && checkpoint.isDone(task)) continue;
+                new File(task.path).delete();
+            }
+        }
+        return !failed.get();
+    }
+
+    /**
+     * 分段文件的时间戳已经是engine时间，直接按顺序拷贝进最终文件
+     */
+    private void muxSegments(List<SegmentEncoder.Task> tasks) {
+        mVideoEncodeStream = new Stream();
+        try {
+            mVideoEncodeStream.format = Mp4Concat.trackFormat(tasks.get(0).path, Mp4Concat.VIDEO);
+        } catch (IOException e) {
+            fail("muxSegments#" + e.getMessage());
+            return;
+        }
+        if (!awaitMuxer()) return;
+        synchronized (mMediaMuxerLock) {
+            mVideoEncodeStream.trackIdx = mMediaMuxer.addTrack(mVideoEncodeStream.format);
+            mVideoState.readyVideo = true;
+            if (!mVideoState.hasAudio) {
+                mVideoState.readyAudio = true;
+            }
+            startMuxerIfReady();
+        }
+        boolean started = awaitMuxerStart();
+        AudioRemux.SampleWriter writer = (buffer, bufferInfo) -> writeSample(mVideoEncodeStream, buffer, bufferInfo);
+        for (SegmentEncoder.Task task : tasks) {
+            try {
+                if (started && !mFailed) {
+                    Mp4Concat.append(task.path, Mp4Concat.VIDEO, mVideoEncodeStream.format, 0, writer);
+                    mReport.videoEncodeUs += Math.min(task.engineEnd, mVideoState.durationUS) - task.engineStart;
+                }
+            } catch (IOException e) {
+                fail("muxSegments#" + e.getMessage());
+            }
+            new File(task.path).delete();
+        }
+        mVideoEncodeStream.isInputEOF = mVideoEncodeStream.isOutputEOF = true;
+    }
+
+    /**
+     * MediaMuxer把moov写在文件末尾，合成结束后前置，其他播放器和慢速存储上打开更快
+     */
+    static void fastStart(String path) {
+        try {
+            boolean moved = FastStart.process(new File(path));
+            LogUtil.log(LogUtil.ENGINE_TAG + "Mp4Composite#fastStart#" + path + "#" + moved);
+        } catch (IOException e) {
+            LogUtil.log(LogUtil.ENGINE_TAG + "Mp4Composite#fastStart#Error#" + e.getMessage());
+        }
+    }
+
+    /**
+     * 音频线程，能直接拷贝时走拷贝模式，否则整条轨道重新编码
+     */
+    private void encodeAudio() {
+        AudioRemux.Plan plan = AudioRemux.plan(
+                mEngine.findComponents(AVComponent.AVComponentType.AUDIO, -1), mVideoState.durationUS);
+        if (plan.hasCopy() && remuxAudio(plan)) {
+            Log.d(TAG, "mAudioThread remux finish");
+            return;
+        }
+        for (AudioRemux.Segment segment : plan.segments) {
+            mReport.audioEncodeUs += segment.duration();
+        }
+        mAudioEncodeStream = openEncodeStream(false);
+        int status;
+        while (!mAudioEncodeStream.isInputEOF) {
+            status = mAudioEncodeStream.mediaCodec.dequeueInputBuffer(0);
+            if (status >= 0) {
+                AVFrame audioFrame = readAudioFrame();
+                if (audioFrame == null) {
+                    Log.d(TAG, "check#audioFrame null");
+                    break;
+                }
+                ByteBuffer byteBuffer = mAudioEncodeStream.mediaCodec.getInputBuffer(status);
+                byteBuffer.put(audioFrame.getByteBuffer());
+                Log.d(TAG, "check#pts" + audioFrame.getPts());
+                mAudioEncodeStream.mediaCodec.queueInputBuffer(status, 0, byteBuffer.position(), audioFrame.getPts(),
+                        audioFrame.isEof() ? BUFFER_FLAG_END_OF_STREAM : 0);
+                if (audioFrame.isEof()) {
+                    mAudioEncodeStream.isInputEOF = true;
+                }
+            }
+            mCompositeHandler.sendEmptyMessage(COMPOSITE_AUDIO_VALID);
+        }
+        Log.d(TAG, "mAudioThread finish");
+    }
+
+    public ExportReport getReport() {
+        return mReport;
+    }
+
+    private static void setJobLimits(MediaJobScheduler scheduler, int[] limits) {
+        for (int i = 0; i < limits.length; i++) {
+            scheduler.setLimit(i, limits[i]);
+        }
+    }
+
     public int process(CompositeCallback bufferCallback) {
+        mReport.start();
         mCallback = bufferCallback;
+        mGovernor = new ExportGovernor(mVideoState.mThermalSource, mReport, (int) (1000000 / FRAME_US),
+                mVideoState.mParallelExport ? SegmentEncoder.maxParallel() : 1);
+        MediaJobScheduler scheduler = mVideoState.mJobScheduler;
+        int[] jobLimits = scheduler != null ? scheduler.getLimits() : null;
+        ExportGovernor.Listener jobListener = decision -> setJobLimits(scheduler,
+                ExportGovernor.jobLimits(decision.level, jobLimits));
+        if (scheduler != null) {
+            mGovernor.addListener(jobListener);
+            jobListener.onDecision(mGovernor.getDecision());
+        }
+        mOverlays = findOverlays(mEngine);
         mCompositeThread = new HandlerThread("CompositeThread");
         mCompositeThread.start();
         mCompositeHandler = new Handler(mCompositeThread.getLooper(), new Handler.Callback() {
@@ -251,10 +850,12 @@ public class Mp4Composite {
                                     parent.mkdirs();
                                 }
                             }
-                            mMediaMuxer = new MediaMuxer(mDstPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+                            mMediaMuxer = mVideoState.mFragmentedOutput ?
+                                    new FragmentedMp4Sink(mDstPath) : new MediaMuxerSink(mDstPath);
                         } catch (IOException e) {
-                            e.printStackTrace();
+                            fail("muxer#" + e.getMessage());
                         }
+                        mMuxerCreated.countDown();
                         break;
                     case COMPOSITE_FRAME_VALID:
                         drainEncoder(mVideoEncodeStream);
@@ -263,8 +864,13 @@ public class Mp4Composite {
                         drainEncoder(mAudioEncodeStream);
                         break;
                     case COMPOSITE_DESTROY:
-                        mCallback.handle(100);
-                        mMediaMuxer.stop();//flush文件
+                        if (!mFailed) {
+                            mCallback.handle(100);
+                        }
+                        if (mMediaMuxer == null) break;
+                        if (mMuxerStart) {
+                            mMediaMuxer.stop();//flush文件
+                        }
                         mMediaMuxer.release();//释放资源
                         break;
                     default:
@@ -280,66 +886,86 @@ public class Mp4Composite {
         mAudioHandler.post(new Runnable() {
             @Override
             public void run() {
-                if (mVideoState.hasAudio) {
-                    mAudioEncodeStream = openEncodeStream(false);
-                } else {
+                if (!mVideoState.hasAudio) {
                     return;
                 }
-                int status;
-                while (!mAudioEncodeStream.isInputEOF) {
-                    status = mAudioEncodeStream.mediaCodec.dequeueInputBuffer(0);
-                    if (status >= 0) {
-                        AVFrame audioFrame = readAudioFrame();
-                        if (audioFrame == null) {
-                            Log.d(TAG, "check#audioFrame null");
-                            break;
-                        }
-                        ByteBuffer byteBuffer = mAudioEncodeStream.mediaCodec.getInputBuffer(status);
-                        byteBuffer.put(audioFrame.getByteBuffer());
-                        Log.d(TAG, "check#pts" + audioFrame.getPts());
-                        mAudioEncodeStream.mediaCodec.queueInputBuffer(status, 0, byteBuffer.limit(), audioFrame.getPts(),
-                                audioFrame.isEof() ? BUFFER_FLAG_END_OF_STREAM : 0);
-                        if (audioFrame.isEof()) {
-                            mAudioEncodeStream.isInputEOF = true;
-                        }
-                    }
-                    mCompositeHandler.sendEmptyMessage(COMPOSITE_AUDIO_VALID);
+                try {
+                    encodeAudio();
+                } catch (RuntimeException e) {
+                    fail("audio#" + e.getMessage());
                 }
-                Log.d(TAG, "mAudioThread finish");
             }
         });
-        if (mVideoState.hasVideo) {
-            mVideoEncodeStream = openEncodeStream(true);
-        } else {
+        if (!mVideoState.hasVideo) {
             return -1;
         }
+        //多规格输出需要在同一个上下文里逐帧渲染，不走拷贝和分段
+        boolean multiRendition = !mVideoState.mRenditions.isEmpty();
+        VideoRemux.Plan videoPlan = multiRendition ? new VideoRemux.Plan() : VideoRemux.plan(mEngine);
+        List<SegmentEncoder.Task> tasks = null;
+        ExportCheckpoint checkpoint = null;
+        if (multiRendition) {
+            LogUtil.log(LogUtil.ENGINE_TAG + "Mp4Composite#renditions#" + mVideoState.mRenditions);
+        } else if (!videoPlan.hasCopy() && mVideoState.mResumableExport) {
+            checkpoint = ExportCheckpoint.open(mDstPath, mEngine, FRAGMENT_US);
+            tasks = planFragments(checkpoint);
+        } else if (!videoPlan.hasCopy() && mVideoState.mParallelExport) {
+            tasks = planSegments(SegmentEncoder.maxParallel());
+        }
+        if (videoPlan.hasCopy()) {
+            remuxVideo(videoPlan);
+        } else if (tasks != null && encodeSegments(tasks, checkpoint)) {
+            muxSegments(tasks);
+        } else {
+            mReport.videoEncodeUs += mVideoState.durationUS;
+            mVideoEncodeStream = openEncodeStream(true);
 
-        //创建Render
-        mEngine.getEglHelper().createSurface(mVideoEncodeStream.inputSurface);
-        mEngine.getEglHelper().makeCurrent();
-        OESRender oesRender = new OESRender();
-        oesRender.open();
-        oesRender.write(OtherUtils.BuildMap("surface_size", mVideoState.mTargetSize));
-
-        while (!mVideoEncodeStream.isInputEOF) {
-            AVFrame videoFrame = readVideoFrame();
-            if (videoFrame == null) {
-                mVideoEncodeStream.mediaCodec.signalEndOfInputStream();//采用surface输入的时候要注意这个了
-                Log.d(TAG, "check#signalEndOfInputStream");
-                break;
+            //创建Render
+            mEngine.getEglHelper().createSurface(mVideoEncodeStream.inputSurface);
+            mEngine.getEglHelper().makeCurrent();
+            if (multiRendition) {
+                mRenditionOutput = new RenditionOutput(mEngine.getEglHelper(), mVideoState.mTargetSize);
+                try {
+                    mRenditionOutput.open(mVideoState.mRenditions, videoPreset().frameRate);
+                } catch (IOException e) {
+                    LogUtil.log(LogUtil.ENGINE_TAG + "Mp4Composite#renditions#Error#" + e.getMessage());
+                }
             }
-            if (mLastVideo.getRender() != null) {
-                mLastVideo.getRender().render(videoFrame);
+            List<AVComponent> components = new LinkedList<>();
+            components.addAll(mEngine.findComponents(AVComponent.AVComponentType.TRANSACTION, -1));
+            components.addAll(mEngine.findComponents(AVComponent.AVComponentType.VIDEO, -1));
+            if (ExportPipeline.isSupported(components)) {
+                if (!encodePipelined(components)) {
+                    fail("encodePipelined");
+                }
             } else {
-                oesRender.render(videoFrame);
+                ExportRender exportRender = new ExportRender();
+                exportRender.write(OtherUtils.BuildMap("surface_size", mVideoState.mTargetSize));
+                exportRender.open();
+
+                while (!mVideoEncodeStream.isInputEOF) {
+                    AVFrame videoFrame = readVideoFrame(mVideoEncodeStream);
+                    if (videoFrame == null) {
+                        mVideoEncodeStream.mediaCodec.signalEndOfInputStream();//采用surface输入的时候要注意这个了
+                        Log.d(TAG, "check#signalEndOfInputStream");
+                        break;
+                    }
+                    renderVideoFrame(exportRender, videoFrame);
+                    mCompositeHandler.sendEmptyMessage(COMPOSITE_FRAME_VALID);
+                }
+                exportRender.close();
             }
-            mEngine.getEglHelper().setPresentationTime(videoFrame.getPts() * 1000);
-            mEngine.getEglHelper().swap();
-            mCallback.handle((int) (videoFrame.getPts() * 1.0f / mVideoState.durationUS * 100));
-            mCompositeHandler.sendEmptyMessage(COMPOSITE_FRAME_VALID);
+            if (mRenditionOutput != null) {
+                mRenditionOutput.finish();
+            }
+        }
+        if (mOverlayRender != null) {
+            mEngine.getEglHelper().makeCurrent();
+            mOverlayRender.close();
+            mOverlayRender = null;
+            LogUtil.log(LogUtil.ENGINE_TAG + "Mp4Composite#overlay#" + mOverlays.size() + "#" + mOverlayStage);
         }
 
-        oesRender.close();
         try {
             mAudioHandler.getLooper().quitSafely();
             mAudioThread.join();
@@ -349,9 +975,50 @@ public class Mp4Composite {
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
+        if (mVideoEncodeStream != null) {
+            mGovernor.removeListener(mVideoEncodeStream.rateListener);
+        }
+        if (scheduler != null) {
+            mGovernor.removeListener(jobListener);
+            setJobLimits(scheduler, jobLimits);
+        }
+        if (mFailed) {
+            //不完整的文件不能当成合成结果
+            new File(mDstPath).delete();
+            if (mRenditionOutput != null) {
+                mRenditionOutput.discard();
+                mRenditionOutput = null;
+            }
+            mEngine.getEglHelper().destroySurface();
+            mEngine.getEglHelper().makeCurrent();
+            mReport.finish();
+            Log.d(TAG, "Composite failed#" + mReport.toString());
+            return -1;
+        }
+        if (mRenditionOutput != null) {
+            mRenditionOutput.mux(mDstPath);
+            mRenditionOutput = null;
+        }
+        if (!mVideoState.mFragmentedOutput) {
+            long fastStart = System.currentTimeMillis();
+            fastStart(mDstPath);
+            mReport.fastStartMs = System.currentTimeMillis() - fastStart;
+        }
+        if (checkpoint != null) {
+            checkpoint.delete();
+            File dir = fragmentDir(checkpoint);
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            dir.delete();
+        }
         mEngine.getEglHelper().destroySurface();
         mEngine.getEglHelper().makeCurrent();
-        Log.d(TAG, "Composite finish");
+        mReport.finish();
+        Log.d(TAG, "Composite finish#" + mReport.toString());
         return 0;
     }
 
@@ -0,0 +1,177 @@
+package com.galix.avcore.util;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * MP4无损拼接
+ * 按顺序把多个文件的压缩数据写到同一个MediaMuxer里，不经过解码和编码。
+ * 各文件的SPS/PPS和轨道格式不一致时，在该文件的每个关键帧前带上自己的csd(in-band)。
+ *
+ * @Author:Galis
+ * @Date:2022.04.23
+ */
+public class Mp4Concat {
+
+    private static final String TAG = Mp4Concat.class.getSimpleName();
+    public static final String VIDEO = "video/";
+    public static final String AUDIO = "audio/";
+
+    private Mp4Concat() {
+    }
+
+    /**
+     * 获取文件中某类轨道的格式
+     *
+     * @param path       文件路径
+     * @param mimePrefix VIDEO/AUDIO
+     * @return 轨道格式，没有返回null
+     */
+    public static MediaFormat trackFormat(String path, String mimePrefix) throws IOException {
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            extractor.setDataSource(path);
+            return selectTrack(extractor, mimePrefix);
+        } finally {
+            extractor.release();
+        }
+    }
+
+    private static MediaFormat selectTrack(MediaExtractor extractor, String mimePrefix) {
+        for (int i = 0; i < extractor.getTrackCount(); i++) {
+            MediaFormat format = extractor.getTrackFormat(i);
+            if (format.getString(MediaFormat.KEY_MIME).startsWith(mimePrefix)) {
+                extractor.selectTrack(i);
+                return format;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 把一个文件某类轨道的全部数据追加写入
+     *
+     * @param path        文件路径
+     * @param mimePrefix  VIDEO/AUDIO
+     * @param trackFormat 目标轨道格式，用来判断是否需要in-band csd
+     * @param offsetUs    时间偏移
+     * @param writer      写入MediaMuxer
+     * @return 该轨道结束时间(已加上偏移)，没有该轨道返回offsetUs
+     */
+    public static long append(String path, String mimePrefix, MediaFormat trackFormat, long offsetUs,
+                              AudioRemux.SampleWriter writer) throws IOException {
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            extractor.setDataSource(path);
+            MediaFormat format = selectTrack(extractor, mimePrefix);
+            if (format == null) return offsetUs;
+            ByteBuffer csd = null;
+            if (mimePrefix.equals(VIDEO) && !sameCsd(trackFormat, format)) {
+                csd = joinCsd(format);
+                LogUtil.log(LogUtil.ENGINE_TAG + "Mp4Concat#in-band csd#" + path);
+            }
+            int maxSize = format.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE) ?
+                    format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE) : 1024 * 1024;
+            ByteBuffer buffer = ByteBuffer.allocateDirect(maxSize + (csd != null ? csd.remaining() : 0));
+            MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+            long firstPts = -1;
+            long lastPts = 0;
+            int count = 0;
+            while (true) {
+                long sampleTime = extractor.getSampleTime();
+                if (sampleTime < 0) break;
+                boolean sync = (extractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0;
+                buffer.clear();
+                if (csd != null && sync) {
+                    buffer.put(csd.duplicate());
+                }
+                int offset = buffer.position();
+                int size = extractor.readSampleData(buffer, offset);
+                if (size < 0) break;
+                bufferInfo.set(0, offset + size, sampleTime + offsetUs, sync ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+                buffer.position(0);
+                buffer.limit(offset + size);
+                writer.write(buffer, bufferInfo);
+                if (firstPts < 0) firstPts = sampleTime;
+                lastPts = Math.max(lastPts, sampleTime);
+                count++;
+                extractor.advance();
+            }
+            if (format.containsKey(MediaFormat.KEY_DURATION)) {
+                return offsetUs + format.getLong(MediaFormat.KEY_DURATION);
+            }
+            long sampleDuration = count > 1 ? (lastPts - firstPts) / (count - 1) : 0;
+            return offsetUs + lastPts + sampleDuration;
+        } finally {
+            extractor.release();
+        }
+    }
+
+    /**
+     * 把多个文件按顺序拼接成一个文件，每个文件的时间从上一个文件的结尾开始
+     *
+     * @param srcPaths 源文件，编码格式需要一致
+     * @param dstPath  目标文件
+     */
+    public static void concat(List<String> srcPaths, String dstPath) throws IOException {
+        if (srcPaths.isEmpty()) return;
+        MediaFormat videoFormat = trackFormat(srcPaths.get(0), VIDEO);
+        MediaFormat audioFormat = trackFormat(srcPaths.get(0), AUDIO);
+        MediaMuxer muxer = new MediaMuxer(dstPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        try {
+            int videoTrack = videoFormat != null ? muxer.addTrack(videoFormat) : -1;
+            int audioTrack = audioFormat != null ? muxer.addTrack(audioFormat) : -1;
+            muxer.start();
+            long offsetUs = 0;
+            for (String path : srcPaths) {
+                long end = offsetUs;
+                if (videoTrack != -1) {
+                    end = Math.max(end, append(path, VIDEO, videoFormat, offsetUs,
+                            (buffer, bufferInfo) -> muxer.writeSampleData(videoTrack, buffer, bufferInfo)));
+                }
+                if (audioTrack != -1) {
+                    end = Math.max(end, append(path, AUDIO, audioFormat, offsetUs,
+                            (buffer, bufferInfo) -> muxer.writeSampleData(audioTrack, buffer, bufferInfo)));
+                }
+                LogUtil.log(LogUtil.ENGINE_TAG + "Mp4Concat#concat#" + path + "#" + offsetUs + "=>" + end);
+                offsetUs = end;
+            }
+            muxer.stop();
+        } finally {
+            muxer.release();
+        }
+    }
+
+    static boolean sameCsd(MediaFormat f1, MediaFormat f2) {
+        return VideoRemux.sameBuffer(f1.getByteBuffer("csd-0"), f2.getByteBuffer("csd-0"))
+                && VideoRemux.sameBuffer(f1.getByteBuffer("csd-1"), f2.getByteBuffer("csd-1"));
+    }
+
+    /**
+     * csd-0(SPS) + csd-1(PPS)，AVC的csd本身带有start code
+     */
+    private static ByteBuffer joinCsd(MediaFormat format) {
+        ByteBuffer csd0 = format.getByteBuffer("csd-0");
+        ByteBuffer csd1 = format.getByteBuffer("csd-1");
+        int size = (csd0 != null ? csd0.limit() : 0) + (csd1 != null ? csd1.limit() : 0);
+        ByteBuffer csd = ByteBuffer.allocateDirect(size);
+        if (csd0 != null) {
+            ByteBuffer b = csd0.duplicate();
+            b.position(0);
+            csd.put(b);
+        }
+        if (csd1 != null) {
+            ByteBuffer b = csd1.duplicate();
+            b.position(0);
+            csd.put(b);
+        }
+        csd.flip();
+        return csd;
+    }
+}
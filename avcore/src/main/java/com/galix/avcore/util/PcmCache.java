@@ -0,0 +1,387 @@
+package com.galix.avcore.util;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static android.media.MediaCodec.BUFFER_FLAG_END_OF_STREAM;
+
+/**
+ * 音频PCM缓存
+ * 每个导入的音频轨道只解码一次，保存为cache目录下的PCM文件，之后通过内存映射读取。
+ * 读取方通过acquire/release标记使用中，超出磁盘预算时只淘汰没有在读的文件。
+ * seek只需要计算偏移，不再走MediaExtractor.seekTo + flush。
+ * <p>
+ * 文件格式:
+ * |magic(4)|sampleRate(4)|channelCount(4)|reserve(4)|durationUs(8)|dataSize(8)|pcm s16le...|
+ *
+ * @Author:Galis
+ * @Date:2022.04.18
+ */
+public class PcmCache {
+
+    private static final String TAG = PcmCache.class.getSimpleName();
+    private static final int MAGIC = 0x50434d30;//PCM0
+    private static final int HEADER_SIZE = 32;
+    private static final int BYTES_PER_SAMPLE = 2;//ENCODING_PCM_16BIT
+    private static final String SUFFIX = ".pcm";
+    private static PcmCache gPcmCache;
+
+    private String mCacheDir;
+    private long mBudget;//磁盘预算 bytes
+    private boolean mEnable = false;
+    private final Map<String, Entry> mEntries = new HashMap<>();
+    private final Set<String> mPending = new HashSet<>();
+    private ExecutorService mExecutor;
+
+    /**
+     * 已经解码完成的PCM文件
+     */
+    public static class Entry {
+        public File file;
+        public int sampleRate;
+        public int channelCount;
+        public long durationUs;
+        public long dataSize;
+        private MappedByteBuffer buffer;
+        private int pins;//正在读取的AVAudio个数，大于0时不淘汰
+
+        public int bytesPerFrame() {
+            return channelCount * BYTES_PER_SAMPLE;
+        }
+
+        /**
+         * 文件时间 => PCM字节偏移，按整帧对齐
+         */
+        public long offsetOf(long timeUs) {
+            long frames = timeUs * sampleRate / 1000000L;
+            long offset = frames * bytesPerFrame();
+            return Math.max(0, Math.min(offset, dataSize));
+        }
+
+        /**
+         * PCM字节偏移 => 文件时间
+         */
+        public long timeOf(long offset) {
+            return offset / bytesPerFrame() * 1000000L / sampleRate;
+        }
+
+        /**
+         * 每个读取方持有自己的duplicate，position互不影响
+         */
+        public ByteBuffer newReader() {
+            return buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        @Override
+        public String toString() {
+            return "Entry{" +
+                    "file=" + file +
+                    ", sampleRate=" + sampleRate +
+                    ", channelCount=" + channelCount +
+                    ", durationUs=" + durationUs +
+                    ", dataSize=" + dataSize +
+                    '}';
+        }
+    }
+
+    private PcmCache() {
+    }
+
+    public static PcmCache getInstance() {
+        if (gPcmCache == null) {
+            synchronized (PcmCache.class) {
+                if (gPcmCache == null) {
+                    gPcmCache = new PcmCache();
+                }
+            }
+        }
+        return gPcmCache;
+    }
+
+    /**
+     * 开启PCM缓存
+     *
+     * @param cacheDir    缓存目录，一般为FileUtils.getCacheDir(context)下的子目录
+     * @param budgetBytes 磁盘预算，超出时按最近使用时间淘汰
+     */
+    public synchronized void configure(String cacheDir, long budgetBytes) {
+        mCacheDir = cacheDir;
+        mBudget = budgetBytes;
+        File dir = new File(cacheDir);
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        if (mExecutor == null) {
+            mExecutor = Executors.newSingleThreadExecutor();
+        }
+        mEnable = true;
+    }
+
+    public boolean isEnable() {
+        return mEnable;
+    }
+
+    /**
+     * 获取已经缓存好的PCM，不存在返回null，不会阻塞解码
+     *
+     * @param path 源文件路径
+     * @return Entry
+     */
+    public synchronized Entry peek(String path) {
+        if (!mEnable) return null;
+        Entry entry = mEntries.get(path);
+        if (entry != null && entry.file.exists()) {
+            return entry;
+        }
+        mEntries.remove(path);
+        File file = new File(cachePath(path));
+        if (!file.exists()) {
+            return null;
+        }
+        entry = load(file);
+        if (entry != null) {
+            file.setLastModified(System.currentTimeMillis());
+            mEntries.put(path, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * 获取已经缓存好的PCM并标记为使用中，不再读取时调用release
+     *
+     * @param path 源文件路径
+     * @return Entry，不存在返回null
+     */
+    public synchronized Entry acquire(String path) {
+        Entry entry = peek(path);
+        if (entry != null) {
+            entry.pins++;
+            entry.file.setLastModified(System.currentTimeMillis());
+        }
+        return entry;
+    }
+
+    /**
+     * 不再读取，之后可以被淘汰
+     */
+    public synchronized void release(Entry entry) {
+        if (entry != null && entry.pins > 0) {
+            entry.pins--;
+        }
+    }
+
+    /**
+     * 后台解码，完成后通过peek获取
+     *
+     * @param path 源文件路径
+     */
+    public synchronized void prepareAsync(String path) {
+        if (!mEnable || mPending.contains(path) || peek(path) != null) return;
+        mPending.add(path);
+        mExecutor.execute(() -> {
+            Entry entry = null;
+            try {
+                entry = decode(path);
+            } catch (Exception e) {
+                LogUtil.log(LogUtil.ENGINE_TAG + "PcmCache#decode#Error#" + e.getMessage());
+            }
+            synchronized (PcmCache.this) {
+                mPending.remove(path);
+                if (entry != null) {
+                    mEntries.put(path, entry);
+                }
+            }
+        });
+    }
+
+    private String cachePath(String path) {
+        File file = new File(path);
+        return mCacheDir + File.separator + VideoUtil.md5(path + "_pcm_" + file.lastModified()) + SUFFIX;
+    }
+
+    private Entry load(File file) {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            channel.read(header, 0);
+            header.flip();
+            if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC) {
+                file.delete();
+                return null;
+            }
+            Entry entry = new Entry();
+            entry.file = file;
+            entry.sampleRate = header.getInt();
+            entry.channelCount = header.getInt();
+            header.getInt();
+            entry.durationUs = header.getLong();
+            entry.dataSize = header.getLong();
+            if (entry.sampleRate <= 0 || entry.channelCount <= 0 || entry.dataSize > Integer.MAX_VALUE
+                    || entry.dataSize + HEADER_SIZE > channel.size()) {
+                file.delete();
+                return null;
+            }
+            entry.buffer = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, entry.dataSize);
+            return entry;
+        } catch (IOException e) {
+            LogUtil.log(LogUtil.ENGINE_TAG + "PcmCache#load#Error#" + e.getMessage());
+            return null;
+        }
+    }
+
+    private Entry decode(String path) throws IOException {
+        MediaExtractor extractor = new MediaExtractor();
+        MediaCodec codec = null;
+        File target = new File(cachePath(path));
+        File tmp = new File(target.getAbsolutePath() + ".tmp");
+        try {
+            extractor.setDataSource(path);
+            MediaFormat format = null;
+            for (int i = 0; i < extractor.getTrackCount(); i++) {
+                if (extractor.getTrackFormat(i).getString(MediaFormat.KEY_MIME).contains("audio")) {
+                    format = extractor.getTrackFormat(i);
+                    extractor.selectTrack(i);
+                    break;
+                }
+            }
+            if (format == null) return null;
+            long durationUs = format.getLong(MediaFormat.KEY_DURATION);
+            int sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+            int channelCount = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+            long estimate = durationUs * sampleRate / 1000000L * channelCount * BYTES_PER_SAMPLE + HEADER_SIZE;
+            if (estimate > Integer.MAX_VALUE || !evict(estimate)) {
+                LogUtil.log(LogUtil.ENGINE_TAG + "PcmCache#over budget#" + path);
+                return null;
+            }
+
+            codec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+            codec.configure(format, null, null, 0);
+            codec.start();
+            ByteBuffer sampleBuffer = ByteBuffer.allocateDirect(format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE));
+            MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+            long dataSize = 0;
+            boolean isInputEOF = false;
+            boolean isOutputEOF = false;
+            try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw")) {
+                FileChannel channel = raf.getChannel();
+                channel.truncate(0);
+                channel.position(HEADER_SIZE);
+                while (!isOutputEOF) {
+                    if (!isInputEOF) {
+                        int inputBufIdx = codec.dequeueInputBuffer(10000);
+                        if (inputBufIdx >= 0) {
+                            int sampleSize = extractor.readSampleData(sampleBuffer, 0);
+                            if (sampleSize < 0) {
+                                sampleSize = 0;
+                                isInputEOF = true;
+                            }
+                            codec.getInputBuffer(inputBufIdx).put(sampleBuffer);
+                            codec.queueInputBuffer(inputBufIdx, 0, sampleSize,
+                                    isInputEOF ? 0 : extractor.getSampleTime(),
+                                    isInputEOF ? BUFFER_FLAG_END_OF_STREAM : 0);
+                            extractor.advance();
+                        }
+                    }
+                    int outputBufIdx = codec.dequeueOutputBuffer(bufferInfo, 10000);
+                    if (outputBufIdx >= 0) {
+                        if ((bufferInfo.flags & BUFFER_FLAG_END_OF_STREAM) != 0) {
+                            isOutputEOF = true;
+                        }
+                        ByteBuffer byteBuffer = codec.getOutputBuffer(outputBufIdx);
+                        if (bufferInfo.size > 0) {
+                            byteBuffer.position(bufferInfo.offset);
+                            byteBuffer.limit(bufferInfo.offset + bufferInfo.size);
+                            while (byteBuffer.hasRemaining()) {
+                                dataSize += channel.write(byteBuffer);
+                            }
+                        }
+                        codec.releaseOutputBuffer(outputBufIdx, false);
+                    } else if (outputBufIdx == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                        MediaFormat outputFormat = codec.getOutputFormat();
+                        sampleRate = outputFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+                        channelCount = outputFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+                    }
+                }
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                header.putInt(MAGIC);
+                header.putInt(sampleRate);
+                header.putInt(channelCount);
+                header.putInt(0);
+                header.putLong(durationUs);
+                header.putLong(dataSize);
+                header.flip();
+                channel.write(header, 0);
+                channel.force(false);
+            }
+            if (!tmp.renameTo(target)) {
+                tmp.delete();
+                return null;
+            }
+            LogUtil.log(LogUtil.ENGINE_TAG + "PcmCache#decode finish#" + path + "#size#" + dataSize);
+            return load(target);
+        } finally {
+            if (codec != null) {
+                codec.stop();
+                codec.release();
+            }
+            extractor.release();
+            if (tmp.exists()) {
+                tmp.delete();
+            }
+        }
+    }
+
+    /**
+     * 按照最近使用时间淘汰没有被读取的文件，直到可以放下新的文件
+     *
+     * @param required 需要的空间
+     * @return 是否有足够空间
+     */
+    private synchronized boolean evict(long required) {
+        if (required > mBudget) return false;
+        File[] files = new File(mCacheDir).listFiles((dir, name) -> name.endsWith(SUFFIX));
+        if (files == null) return true;
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+        }
+        Arrays.sort(files, (o1, o2) -> Long.compare(o1.lastModified(), o2.lastModified()));
+        for (File file : files) {
+            if (total + required <= mBudget) break;
+            if (isPinned(file)) continue;
+            Iterator<Entry> iterator = mEntries.values().iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().file.equals(file)) {
+                    iterator.remove();
+                }
+            }
+            total -= file.length();
+            file.delete();
+        }
+        return total + required <= mBudget;
+    }
+
+    private boolean isPinned(File file) {
+        for (Entry entry : mEntries.values()) {
+            if (entry.pins > 0 && entry.file.equals(file)) return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,299 @@
+package com.galix.avcore.util;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.opengl.EGLSurface;
+import android.opengl.GLES30;
+import android.util.Size;
+import android.view.Surface;
+
+import com.galix.avcore.avcore.AVFrame;
+import com.galix.avcore.render.ScreenRender;
+import com.galix.avcore.render.filters.GLTexture;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 多规格合成输出
+ * 主输出的每一帧画完后(swap之前)，把默认framebuffer拷贝到纹理，再缩放画到每个规格的编码器surface上，
+ * 所有规格共享一次解码和一次渲染。每个规格一个drain线程，先写成只有视频的临时文件，
+ * 主输出结束后再把主文件的音频轨道直接拷贝进来。
+ *
+ * @Author:Galis
+ * @Date:2022.04.27
+ */
+public class RenditionOutput {
+
+    private static final String TAG = RenditionOutput.class.getSimpleName();
+    private static final String VIDEO_SUFFIX = ".video.mp4";
+
+    /**
+     * 额外输出规格
+     */
+    public static class Rendition {
+        public Size size;
+        public int bitRate;
+        public String path;
+
+        public Rendition(Size size, int bitRate, String path) {
+            this.size = size;
+            this.bitRate = bitRate;
+            this.path = path;
+        }
+
+        @Override
+        public String toString() {
+            return "Rendition{" +
+                    "size=" + size +
+                    ", bitRate=" + bitRate +
+                    ", path='" + path + '\'' +
+                    '}';
+        }
+    }
+
+    private static class Output {
+        Rendition rendition;
+        MediaCodec encoder;
+        Surface inputSurface;
+        EGLSurface eglSurface;
+        ScreenRender screenRender;
+        Thread drainThread;
+        boolean started;
+        volatile Throwable error;
+    }
+
+    private final EglHelper mEglHelper;
+    private final Size mSourceSize;
+    private final List<Output> mOutputs = new ArrayList<>();
+    private final AVFrame mFrame = new AVFrame();
+    private GLTexture mTexture;
+
+    /**
+     * @param eglHelper  主输出的EGL，已经绑定主编码器surface
+     * @param sourceSize 主输出尺寸
+     */
+    public RenditionOutput(EglHelper eglHelper, Size sourceSize) {
+        mEglHelper = eglHelper;
+        mSourceSize = sourceSize;
+    }
+
+    /**
+     * 创建所有规格的编码器和surface，在主EGL线程调用
+     * 失败时释放已经创建的规格，返回时主surface仍然是current
+     */
+    public void open(List<Rendition> renditions, int frameRate) throws IOException {
+        boolean success = false;
+        try {
+            int[] texture = new int[1];
+            GLES30.glGenTextures(1, texture, 0);
+            GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, texture[0]);
+            GLES30.glTexImage2D(GLES30.GL_TEXTURE_2D, 0, GLES30.GL_RGBA, mSourceSize.getWidth(), mSourceSize.getHeight(),
+                    0, GLES30.GL_RGBA, GLES30.GL_UNSIGNED_BYTE, null);
+            GLES30.glTexParameteri(GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_MIN_FILTER, GLES30.GL_LINEAR);
+            GLES30.glTexParameteri(GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_MAG_FILTER, GLES30.GL_LINEAR);
+            GLES30.glTexParameteri(GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_WRAP_S, GLES30.GL_CLAMP_TO_EDGE);
+            GLES30.glTexParameteri(GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_WRAP_T, GLES30.GL_CLAMP_TO_EDGE);
+            GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, 0);
+            mTexture = new GLTexture(texture[0], false);
+            mTexture.setSize(mSourceSize.getWidth(), mSourceSize.getHeight());
+            mFrame.setTexture(mTexture);
+            for (Rendition rendition : renditions) {
+                EncoderProbe.Preset preset = new EncoderProbe.Preset(rendition.size.getWidth(),
+                        rendition.size.getHeight(), rendition.bitRate);
+                preset.frameRate = frameRate;
+                Output output = new Output();
+                output.rendition = rendition;
+                mOutputs.add(output);
+                output.encoder = EncoderProbe.select(preset).createEncoder();
+                output.inputSurface = output.encoder.createInputSurface();
+                output.encoder.start();
+                output.started = true;
+                output.eglSurface = mEglHelper.createExtraSurface(output.inputSurface);
+                mEglHelper.makeCurrent(output.eglSurface);
+                output.screenRender = new ScreenRender();
+                output.screenRender.open();
+                output.screenRender.write(OtherUtils.BuildMap("surface_size", rendition.size));
+                output.drainThread = new Thread(() -> drain(output), "RenditionDrain");
+                output.drainThread.start();
+                LogUtil.log(LogUtil.ENGINE_TAG + "RenditionOutput#open#" + rendition.toString());
+            }
+            success = true;
+        } finally {
+            mEglHelper.makeCurrent();
+            if (!success) {
+                LogUtil.log(LogUtil.ENGINE_TAG + "RenditionOutput#open#Error#release#" + mOutputs.size());
+                finish();
+                discard();
+                mOutputs.clear();
+            }
+        }
+    }
+
+    /**
+     * 主输出画完一帧后调用(swap之前)，返回时主surface仍然是current
+     *
+     * @param ptsUs 帧时间
+     */
+    public void onFrame(long ptsUs) {
+        if (mOutputs.isEmpty()) return;
+        GLES30.glBindFramebuffer(GLES30.GL_FRAMEBUFFER, 0);
+        GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, mTexture.id());
+        GLES30.glCopyTexSubImage2D(GLES30.GL_TEXTURE_2D, 0, 0, 0, 0, 0,
+                mSourceSize.getWidth(), mSourceSize.getHeight());
+        GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, 0);
+        for (Output output : mOutputs) {
+            if (output.error != null) continue;
+            mEglHelper.makeCurrent(output.eglSurface);
+            output.screenRender.render(mFrame);
+            mEglHelper.setPresentationTime(output.eglSurface, ptsUs * 1000);
+            mEglHelper.swap(output.eglSurface);
+        }
+        mEglHelper.makeCurrent();
+    }
+
+    /**
+     * 所有帧画完，等待编码结束并释放GL资源
+     * drain线程失败的规格不再stop编码器，只释放
+     */
+    public void finish() {
+        for (Output output : mOutputs) {
+            if (output.started && output.error == null) {
+                try {
+                    output.encoder.signalEndOfInputStream();
+                } catch (IllegalStateException e) {
+                    output.error = e;
+                }
+            }
+        }
+        for (Output output : mOutputs) {
+            if (output.drainThread != null) {
+                try {
+                    output.drainThread.join();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+            if (output.screenRender != null) {
+                mEglHelper.makeCurrent(output.eglSurface);
+                output.screenRender.close();
+            }
+            if (output.eglSurface != null) {
+                mEglHelper.releaseExtraSurface(output.eglSurface);
+            }
+            if (output.inputSurface != null) {
+                output.inputSurface.release();
+            }
+            if (output.encoder != null) {
+                if (output.started && output.error == null) {
+                    try {
+                        output.encoder.stop();
+                    } catch (IllegalStateException e) {
+                        output.error = e;
+                    }
+                }
+                output.encoder.release();
+            }
+        }
+        mEglHelper.makeCurrent();
+        if (mTexture != null) {
+            mTexture.release();
+            mTexture = null;
+        }
+    }
+
+    /**
+     * 把主输出的音频轨道和各规格的视频合成最终文件，主输出muxer停止后调用
+     *
+     * @param mainPath 主输出文件
+     */
+    public void mux(String mainPath) {
+        MediaFormat audioFormat = null;
+        try {
+            audioFormat = Mp4Concat.trackFormat(mainPath, Mp4Concat.AUDIO);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        for (Output output : mOutputs) {
+            String videoPath = output.rendition.path + VIDEO_SUFFIX;
+            if (output.error != null) {
+                LogUtil.log(LogUtil.ENGINE_TAG + "RenditionOutput#mux#skip#" + output.error.getMessage());
+                new File(videoPath).delete();
+                continue;
+            }
+            MediaMuxer muxer = null;
+            try {
+                MediaFormat videoFormat = Mp4Concat.trackFormat(videoPath, Mp4Concat.VIDEO);
+                muxer = new MediaMuxer(output.rendition.path, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+                int videoTrack = muxer.addTrack(videoFormat);
+                int audioTrack = audioFormat != null ? muxer.addTrack(audioFormat) : -1;
+                muxer.start();
+                final MediaMuxer target = muxer;
+                Mp4Concat.append(videoPath, Mp4Concat.VIDEO, videoFormat, 0,
+                        (buffer, bufferInfo) -> target.writeSampleData(videoTrack, buffer, bufferInfo));
+                if (audioTrack != -1) {
+                    Mp4Concat.append(mainPath, Mp4Concat.AUDIO, audioFormat, 0,
+                            (buffer, bufferInfo) -> target.writeSampleData(audioTrack, buffer, bufferInfo));
+                }
+                muxer.stop();
+                muxer.release();
+                muxer = null;
+                Mp4Composite.fastStart(output.rendition.path);
+                LogUtil.log(LogUtil.ENGINE_TAG + "RenditionOutput#mux#" + output.rendition.path);
+            } catch (Exception e) {
+                LogUtil.log(LogUtil.ENGINE_TAG + "RenditionOutput#mux#Error#" + e.getMessage());
+            } finally {
+                if (muxer != null) {
+                    muxer.release();
+                }
+                new File(videoPath).delete();
+            }
+        }
+    }
+
+    /**
+     * 主输出失败，删除各规格的临时文件，不再合成
+     */
+    public void discard() {
+        for (Output output : mOutputs) {
+            new File(output.rendition.path + VIDEO_SUFFIX).delete();
+        }
+    }
+
+    private void drain(Output output) {
+        MediaMuxer muxer = null;
+        int track = -1;
+        MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+        try {
+            muxer = new MediaMuxer(output.rendition.path + VIDEO_SUFFIX, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            while (true) {
+                int status = output.encoder.dequeueOutputBuffer(bufferInfo, 10000);
+                if (status == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    track = muxer.addTrack(output.encoder.getOutputFormat());
+                    muxer.start();
+                } else if (status >= 0) {
+                    ByteBuffer buffer = output.encoder.getOutputBuffer(status);
+                    if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0 && bufferInfo.size > 0 && track != -1) {
+                        buffer.position(bufferInfo.offset);
+                        buffer.limit(bufferInfo.offset + bufferInfo.size);
+                        muxer.writeSampleData(track, buffer, bufferInfo);
+                    }
+                    output.encoder.releaseOutputBuffer(status, false);
+                    if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) break;
+                }
+            }
+            muxer.stop();
+        } catch (Exception e) {
+            LogUtil.log(LogUtil.ENGINE_TAG + "RenditionOutput#drain#Error#" + e.getMessage());
+            output.error = e;
+        } finally {
+            if (muxer != null) {
+                muxer.release();
+            }
+        }
+    }
+}
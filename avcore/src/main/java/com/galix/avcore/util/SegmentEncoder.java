@@ -0,0 +1,250 @@
+package com.galix.avcore.util;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.Build;
+import android.util.Size;
+import android.view.Surface;
+
+import com.galix.avcore.avcore.AVComponent;
+import com.galix.avcore.avcore.AVFrame;
+import com.galix.avcore.avcore.AVVideo;
+import com.galix.avcore.render.ExportRender;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static android.media.MediaCodec.BUFFER_FLAG_END_OF_STREAM;
+
+/**
+ * 分段编码
+ * 把时间线上[engineStart, engineEnd)的画面编码成一个只有视频轨道的MP4文件，每段从IDR开始，之后可以无损拼接。
+ * 每段使用自己的编码器；非共享的分段复制一份视频组件(自己的解码器)，在调用线程自己的EGL上下文里渲染。
+ *
+ * @Author:Galis
+ * @Date:2022.04.23
+ */
+public class SegmentEncoder {
+
+    private static final String TAG = SegmentEncoder.class.getSimpleName();
+    private static final int MAX_PARALLEL = 3;
+
+    /**
+     * 分段任务
+     */
+    public static class Task {
+        public int index;
+        public long engineStart;
+        public long engineEnd;
+        public String path;//分段文件
+        public boolean shared;//使用引擎的组件和EGL上下文，只能在合成线程执行，包含叠加组件的分段也是共享的
+        public List<AVComponent> components = new LinkedList<>();//与分段相交的视频，转场组件
+
+        public long duration() {
+            return engineEnd - engineStart;
+        }
+
+        @Override
+        public String toString() {
+            return "Task{" +
+                    "index=" + index +
+                    ", engineStart=" + engineStart +
+                    ", engineEnd=" + engineEnd +
+                    ", shared=" + shared +
+                    ", path='" + path + '\'' +
+                    '}';
+        }
+    }
+
+    private final Size mSize;
+    private final EncoderProbe.EncoderConfig mConfig;
+    private ExportGovernor mGovernor;
+    private ExportPipeline.FrameListener mSharedFrameListener;
+
+    public SegmentEncoder(Size size, EncoderProbe.EncoderConfig config) {
+        mSize = size;
+        mConfig = config;
+    }
+
+    /**
+     * 可以同时运行的分段数，由AVC编解码器的并发实例上限决定(每段一个编码器和一个解码器)
+     *
+     * @return 并发数，至少为1
+     */
+    public static int maxParallel() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) return 1;
+        int encoders = 0;
+        int decoders = 0;
+        MediaCodecList codecList = new MediaCodecList(MediaCodecList.REGULAR_CODECS);
+        for (MediaCodecInfo info : codecList.getCodecInfos()) {
+            for (String type : info.getSupportedTypes()) {
+                if (!type.equalsIgnoreCase(MediaFormat.MIMETYPE_VIDEO_AVC)) continue;
+                int instances = info.getCapabilitiesForType(type).getMaxSupportedInstances();
+                if (info.isEncoder()) {
+                    encoders = Math.max(encoders, instances);
+                } else {
+                    decoders = Math.max(decoders, instances);
+                }
+            }
+        }
+        //预留一个解码器给转场
+        int parallel = Math.min(encoders, decoders - 1);
+        LogUtil.log(LogUtil.ENGINE_TAG + "SegmentEncoder#maxParallel#encoders#" + encoders + "#decoders#" + decoders);
+        return Math.max(1, Math.min(MAX_PARALLEL, parallel));
+    }
+
+    /**
+     * 温控，每帧按当前档位控制出帧节奏，档位变化时调整编码器operating rate
+     */
+    public void setGovernor(ExportGovernor governor) {
+        mGovernor = governor;
+    }
+
+    /**
+     * 共享分段每帧画完视频之后，swap之前回调，叠加组件在这里绘制
+     */
+    public void setSharedFrameListener(ExportPipeline.FrameListener frameListener) {
+        mSharedFrameListener = frameListener;
+    }
+
+    /**
+     * 编码一个分段，调用前EGL上下文要在当前线程创建好
+     *
+     * @param task      分段
+     * @param eglHelper 当前线程的EGL
+     * @param progress  已编码时长累加
+     */
+    public void encode(Task task, EglHelper eglHelper, AtomicLong progress) throws IOException {
+        MediaCodec encoder = mConfig.createEncoder();
+        Surface inputSurface = encoder.createInputSurface();
+        encoder.start();
+        MediaMuxer muxer = new MediaMuxer(task.path, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        int[] track = {-1};
+        eglHelper.createSurface(inputSurface);
+        eglHelper.makeCurrent();
+        ExportRender exportRender = new ExportRender();
+        exportRender.write(OtherUtils.BuildMap("surface_size", mSize));
+        exportRender.open();
+        List<AVComponent> components = task.shared ? task.components : cloneComponents(task.components);
+        MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+        ExportGovernor.Listener rateListener = decision -> EncoderProbe.setOperatingRate(encoder, decision.operatingRate);
+        if (mGovernor != null) {
+            mGovernor.addListener(rateListener);
+            //配置是在之前的档位下创建的
+            ExportGovernor.Decision decision = mGovernor.getDecision();
+            if (decision.operatingRate != mConfig.preset.operatingRate) {
+                rateListener.onDecision(decision);
+            }
+        }
+        try {
+            AVComponent last = null;
+            long nextPts = task.engineStart;
+            while (nextPts < task.engineEnd) {
+                AVComponent component = findComponent(components, nextPts);
+                if (component == null) break;
+                if (component != last) {
+                    component.seekFrame(nextPts);
+                } else {
+                    component.readFrame();
+                }
+                last = component;
+                AVFrame frame = component.peekFrame();
+                if (mGovernor != null) {
+                    mGovernor.throttle();
+                }
+                exportRender.render(component.getRender(), frame);
+                if (task.shared && mSharedFrameListener != null) {
+                    mSharedFrameListener.onFrame(frame.getPts());
+                }
+                eglHelper.setPresentationTime(frame.getPts() * 1000);
+                eglHelper.swap();
+                long frameDuration = Math.max(1, frame.getDuration());
+                nextPts += frameDuration;
+                progress.addAndGet(frameDuration);
+                drain(encoder, muxer, track, bufferInfo, false);
+            }
+            encoder.signalEndOfInputStream();
+            drain(encoder, muxer, track, bufferInfo, true);
+        } finally {
+            exportRender.close();
+            if (!task.shared) {
+                for (AVComponent component : components) {
+                    component.close();
+                }
+            }
+            eglHelper.destroySurface();
+            if (mGovernor != null) {
+                mGovernor.removeListener(rateListener);
+            }
+            encoder.stop();
+            encoder.release();
+            inputSurface.release();
+            if (track[0] != -1) {
+                muxer.stop();
+            }
+            muxer.release();
+        }
+        LogUtil.log(LogUtil.ENGINE_TAG + "SegmentEncoder#finish#" + task.toString());
+    }
+
+    static AVComponent findComponent(List<AVComponent> components, long position) {
+        AVComponent video = null;
+        for (AVComponent component : components) {
+            if (!component.isValid(position)) continue;
+            if (component.getType() == AVComponent.AVComponentType.TRANSACTION) {
+                return component;
+            }
+            if (video == null && component.getType() == AVComponent.AVComponentType.VIDEO) {
+                video = component;
+            }
+        }
+        return video;
+    }
+
+    /**
+     * 复制视频组件，在当前EGL上下文打开自己的解码器和纹理
+     */
+    static List<AVComponent> cloneComponents(List<AVComponent> components) {
+        List<AVComponent> clones = new LinkedList<>();
+        for (AVComponent component : components) {
+            AVVideo video = (AVVideo) component;
+            AVVideo clone = new AVVideo(true, video.getEngineStartTime(), video.getPath(), null);
+            clone.open();
+            clone.setClipStartTime(video.getClipStartTime());
+            clone.setClipEndTime(video.getClipEndTime());
+            clone.setEngineEndTime(video.getEngineEndTime());
+            clones.add(clone);
+        }
+        return clones;
+    }
+
+    private static void drain(MediaCodec encoder, MediaMuxer muxer, int[] track,
+                              MediaCodec.BufferInfo bufferInfo, boolean endOfStream) {
+        while (true) {
+            int status = encoder.dequeueOutputBuffer(bufferInfo, endOfStream ? 10000 : 0);
+            if (status >= 0) {
+                if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0 && bufferInfo.size > 0 && track[0] != -1) {
+                    ByteBuffer byteBuffer = encoder.getOutputBuffer(status);
+                    byteBuffer.position(bufferInfo.offset);
+                    byteBuffer.limit(bufferInfo.offset + bufferInfo.size);
+                    muxer.writeSampleData(track[0], byteBuffer, bufferInfo);
+                }
+                encoder.releaseOutputBuffer(status, false);
+                if ((bufferInfo.flags & BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    return;
+                }
+            } else if (status == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                track[0] = muxer.addTrack(encoder.getOutputFormat());
+                muxer.start();
+            } else if (status == MediaCodec.INFO_TRY_AGAIN_LATER && !endOfStream) {
+                return;
+            }
+        }
+    }
+}
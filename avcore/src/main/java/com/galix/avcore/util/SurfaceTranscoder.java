@@ -0,0 +1,268 @@
+package com.galix.avcore.util;
+
+import android.graphics.Bitmap;
+import android.graphics.SurfaceTexture;
+import android.opengl.EGLSurface;
+import android.opengl.GLES30;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Size;
+import android.view.Surface;
+
+import com.galix.avcore.render.filters.GLTexture;
+import com.galix.avcore.render.filters.TranscodeFilter;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Surface到Surface转码
+ * 解码器输出到SurfaceTexture，在自己的EGL上下文里把OES纹理画到编码器输入surface，
+ * 缩放和旋转都在这一次绘制里完成，整个过程没有CPU像素拷贝。
+ * 也可以画到离屏surface再读回Bitmap，用于缩略图。
+ * 在调用线程创建和使用，帧可用通知在单独的线程回调。
+ *
+ * @Author:Galis
+ * @Date:2022.04.28
+ */
+public class SurfaceTranscoder {
+
+    private static final long FRAME_TIMEOUT_MS = 500;
+
+    private final Size mOutputSize;
+    private final int mRotation;
+    private final EglHelper mEglHelper = new EglHelper();
+    private final Object mFrameSync = new Object();
+    private final float[] mStMatrix = new float[16];
+    private final FloatBuffer mTexMatrix = FloatBuffer.allocate(9);
+    private final Map<String, Object> mConfig = new HashMap<>();
+    private boolean mFrameAvailable;
+    private HandlerThread mFrameThread;
+    private GLTexture mTexture;
+    private SurfaceTexture mSurfaceTexture;
+    private Surface mSurface;
+    private TranscodeFilter mFilter;
+    private EGLSurface mOffscreen;
+    private ByteBuffer mPixels;
+
+    /**
+     * @param outputSize 编码尺寸，旋转90/270度时宽高已经交换
+     * @param rotation   顺时针旋转角度，0/90/180/270
+     */
+    public SurfaceTranscoder(Size outputSize, int rotation) {
+        mOutputSize = outputSize;
+        mRotation = ((rotation % 360) + 360) % 360;
+    }
+
+    /**
+     * 计算输出尺寸，按比例缩小到不超过maxSize(长边)，宽高对齐到2
+     *
+     * @param width    源宽
+     * @param height   源高
+     * @param rotation 顺时针旋转角度
+     * @param maxSize  长边上限，小于等于0时不缩放
+     * @return 输出尺寸
+     */
+    public static Size outputSize(int width, int height, int rotation, int maxSize) {
+        if (rotation % 180 != 0) {
+            int tmp = width;
+            width = height;
+            height = tmp;
+        }
+        int longSide = Math.max(width, height);
+        if (maxSize > 0 && longSide > maxSize) {
+            width = Math.round(width * 1.f * maxSize / longSide);
+            height = Math.round(height * 1.f * maxSize / longSide);
+        }
+        return new Size(Math.max(2, width & ~1), Math.max(2, height & ~1));
+    }
+
+    /**
+     * 绑定编码器输入surface，返回给解码器使用的surface
+     *
+     * @param encoderSurface 编码器createInputSurface
+     * @return 解码器输出surface
+     */
+    public Surface open(Surface encoderSurface) {
+        mEglHelper.create(null, EglHelper.GL_VERSION_3);
+        mEglHelper.createSurface(encoderSurface);
+        mEglHelper.makeCurrent();
+        return openInput();
+    }
+
+    /**
+     * 画到输出尺寸的离屏surface，配合readFrame读回像素
+     *
+     * @return 解码器输出surface
+     */
+    public Surface openOffscreen() {
+        mEglHelper.create(null, EglHelper.GL_VERSION_3);
+        mOffscreen = mEglHelper.createOffscreenSurface(mOutputSize.getWidth(), mOutputSize.getHeight());
+        mEglHelper.makeCurrent(mOffscreen);
+        mPixels = ByteBuffer.allocateDirect(mOutputSize.getWidth() * mOutputSize.getHeight() * 4)
+                .order(ByteOrder.nativeOrder());
+        return openInput();
+    }
+
+    private Surface openInput() {
+        int[] texture = new int[1];
+        GLES30.glGenTextures(1, texture, 0);
+        mTexture = new GLTexture(texture[0], true);
+        mFilter = new TranscodeFilter();
+        mFilter.open();
+        mFrameThread = new HandlerThread("SurfaceTranscoder");
+        mFrameThread.start();
+        mSurfaceTexture = new SurfaceTexture(texture[0]);
+        mSurfaceTexture.setOnFrameAvailableListener(surfaceTexture -> {
+            synchronized (mFrameSync) {
+                mFrameAvailable = true;
+                mFrameSync.notifyAll();
+            }
+        }, new Handler(mFrameThread.getLooper()));
+        mSurface = new Surface(mSurfaceTexture);
+        return mSurface;
+    }
+
+    /**
+     * 解码器releaseOutputBuffer(render=true)之后调用，等待帧到达并画到编码器surface
+     *
+     * @param ptsUs 帧时间
+     * @return 超时返回false，该帧丢弃
+     */
+    public boolean drawFrame(long ptsUs) {
+        if (!awaitAndDraw(ptsUs)) return false;
+        mEglHelper.setPresentationTime(ptsUs * 1000);
+        return mEglHelper.swap();
+    }
+
+    /**
+     * 离屏模式，等待帧到达，画好后读回到bitmap
+     *
+     * @param ptsUs  帧时间
+     * @param bitmap ARGB_8888，尺寸等于输出尺寸
+     * @return 超时返回false
+     */
+    public boolean readFrame(long ptsUs, Bitmap bitmap) {
+        if (!awaitAndDraw(ptsUs)) return false;
+        mPixels.clear();
+        GLES30.glReadPixels(0, 0, mOutputSize.getWidth(), mOutputSize.getHeight(),
+                GLES30.GL_RGBA, GLES30.GL_UNSIGNED_BYTE, mPixels);
+        mPixels.rewind();
+        bitmap.copyPixelsFromBuffer(mPixels);
+        return true;
+    }
+
+    private boolean awaitAndDraw(long ptsUs) {
+        synchronized (mFrameSync) {
+            long deadline = System.currentTimeMillis() + FRAME_TIMEOUT_MS;
+            while (!mFrameAvailable) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    LogUtil.log(LogUtil.ENGINE_TAG + "SurfaceTranscoder#drawFrame#timeout#" + ptsUs);
+                    return false;
+                }
+                try {
+                    mFrameSync.wait(wait);
+                } catch (InterruptedException e) {
+                    return false;
+                }
+            }
+            mFrameAvailable = false;
+        }
+        mSurfaceTexture.updateTexImage();
+        mSurfaceTexture.getTransformMatrix(mStMatrix);
+        updateTexMatrix();
+        mConfig.clear();
+        mConfig.put("use_fbo", false);
+        mConfig.put("inputImageTexture", mTexture);
+        mConfig.put("texMat", mTexMatrix);
+        mFilter.write(mConfig);
+        GLES30.glBindFramebuffer(GLES30.GL_FRAMEBUFFER, 0);
+        GLES30.glViewport(0, 0, mOutputSize.getWidth(), mOutputSize.getHeight());
+        mFilter.render();
+        return true;
+    }
+
+    /**
+     * 纹理坐标矩阵 = SurfaceTexture矩阵 * 绕中心旋转
+     * 输出顺时针旋转d度，等价于采样坐标绕中心逆时针旋转d度
+     * 离屏模式再上下翻转，glReadPixels从最后一行开始读
+     */
+    private void updateTexMatrix() {
+        double radians = Math.toRadians(mRotation);
+        float cos = Math.round(Math.cos(radians));
+        float sin = Math.round(Math.sin(radians));
+        //旋转矩阵，列主序
+        float[] rotate = {
+                cos, sin, 0,
+                -sin, cos, 0,
+                0.5f - 0.5f * cos + 0.5f * sin, 0.5f - 0.5f * sin - 0.5f * cos, 1};
+        //4x4取x,y,w三行三列
+        float[] st = {
+                mStMatrix[0], mStMatrix[1], mStMatrix[3],
+                mStMatrix[4], mStMatrix[5], mStMatrix[7],
+                mStMatrix[12], mStMatrix[13], mStMatrix[15]};
+        float[] matrix = multiply(st, rotate);
+        if (mOffscreen != null) {
+            matrix = multiply(matrix, new float[]{1, 0, 0, 0, -1, 0, 0, 1, 1});
+        }
+        mTexMatrix.clear();
+        mTexMatrix.put(matrix);
+        mTexMatrix.position(0);
+    }
+
+    /**
+     * 3x3列主序矩阵乘法
+     */
+    private static float[] multiply(float[] a, float[] b) {
+        float[] result = new float[9];
+        for (int col = 0; col < 3; col++) {
+            for (int row = 0; row < 3; row++) {
+                float sum = 0;
+                for (int k = 0; k < 3; k++) {
+                    sum += a[k * 3 + row] * b[col * 3 + k];
+                }
+                result[col * 3 + row] = sum;
+            }
+        }
+        return result;
+    }
+
+    public void release() {
+        if (mOffscreen != null) {
+            mEglHelper.makeCurrent(mOffscreen);
+        } else {
+            mEglHelper.makeCurrent();
+        }
+        if (mFilter != null) {
+            mFilter.close();
+            mFilter = null;
+        }
+        if (mSurface != null) {
+            mSurface.release();
+            mSurface = null;
+        }
+        if (mSurfaceTexture != null) {
+            mSurfaceTexture.release();
+            mSurfaceTexture = null;
+        }
+        if (mTexture != null) {
+            mTexture.release();
+            mTexture = null;
+        }
+        if (mFrameThread != null) {
+            mFrameThread.quitSafely();
+            mFrameThread = null;
+        }
+        if (mOffscreen != null) {
+            mEglHelper.makeNothingCurrent();
+            mEglHelper.releaseExtraSurface(mOffscreen);
+            mOffscreen = null;
+        }
+        mEglHelper.destroySurface();
+        mEglHelper.release();
+    }
+}
@@ -0,0 +1,289 @@
+package com.galix.avcore.util;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * 时间线缩略图内存缓存
+ * 缓存的是裁剪好的RGB565 Bitmap，key为(源文件, 第几秒, 裁剪区域)，总大小不超过预算，按LRU淘汰。
+ * 淘汰的Bitmap按宽度放进复用池，下次同宽度的缩略图直接覆盖像素，滚动时不再分配新Bitmap。
+ * 正在显示的Bitmap要acquire/release，淘汰时还在用的不进复用池，release之后再回收。
+ * acquire只查内存，没有命中时在加载线程读取拼图，加载完成后在主线程回调Listener，调用方重新acquire。
+ * prefetch在加载线程按滚动方向预先加载，新的预取请求会取消还没执行的旧预取。
+ * 读文件和裁剪都不持有缓存的锁，只有查询和插入时加锁。
+ *
+ * @Author:Galis
+ * @Date:2022.04.28
+ */
+public class ThumbCache {
+
+    private static final int MAX_POOL_PER_WIDTH = 8;
+    private static final Object PREFETCH_TOKEN = new Object();
+
+    /**
+     * acquire没有命中的缩略图加载完成，在主线程回调
+     */
+    public interface Listener {
+        void onLoaded(Key key);
+    }
+
+    /**
+     * 缓存key，裁剪区域是缩略图上的像素列[cropX, cropX + cropWidth)
+     */
+    public static class Key {
+        public final String source;
+        public final long second;
+        public final int cropX;
+        public final int cropWidth;
+
+        public Key(String source, long second, int cropX, int cropWidth) {
+            this.source = source;
+            this.second = second;
+            this.cropX = cropX;
+            this.cropWidth = cropWidth;
+        }
+
+        /**
+         * @param source   源文件
+         * @param ptsUs    文件内时间
+         * @param fraction 显示的比例，(0, 1]
+         * @param fromHead true保留开头部分，false保留结尾部分
+         */
+        public static Key of(String source, long ptsUs, float fraction, boolean fromHead) {
+            int size = VideoUtil.ThumbTask.THUMB_SIZE;
+            int width = Math.max(1, Math.min(size, Math.round(size * fraction)));
+            return new Key(source, ptsUs / 1000000, fromHead ? 0 : size - width, width);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return second == key.second && cropX == key.cropX && cropWidth == key.cropWidth
+                    && source.equals(key.source);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(source, second, cropX, cropWidth);
+        }
+    }
+
+    private final Context mContext;
+    private final long mBudgetBytes;
+    private final LinkedHashMap<Key, Bitmap> mEntries = new LinkedHashMap<>(64, 0.75f, true);
+    private final Map<Integer, ArrayDeque<Bitmap>> mPool = new HashMap<>();
+    private final IdentityHashMap<Bitmap, Integer> mInUse = new IdentityHashMap<>();
+    private final HashSet<Key> mRequested = new HashSet<>();//acquire没有命中，等待加载后回调
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private long mSize = 0;
+    private HandlerThread mLoadThread;
+    private Handler mLoadHandler;
+    private Listener mListener;
+    //以下只在加载线程访问
+    private final Rect mSrcRect = new Rect();
+    private final Rect mDstRect = new Rect();
+    private final Canvas mCanvas = new Canvas();
+    private Bitmap mScratch;//整张缩略图，裁剪时的中转
+
+    /**
+     * @param context     context
+     * @param budgetBytes 缓存的内存预算，不含复用池
+     */
+    public ThumbCache(Context context, long budgetBytes) {
+        mContext = context.getApplicationContext();
+        mBudgetBytes = budgetBytes;
+    }
+
+    /**
+     * 默认预算: 可用堆的1/16，最多16MB
+     */
+    public static long defaultBudget() {
+        return Math.min(16L * 1024 * 1024, Runtime.getRuntime().maxMemory() / 16);
+    }
+
+    public synchronized void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * 从内存取缩略图并标记为使用中，不再显示时调用release
+     * 没有命中时返回null并在加载线程加载，加载完成后回调Listener
+     *
+     * @return 缩略图，不在内存中返回null
+     */
+    public synchronized Bitmap acquire(Key key) {
+        Bitmap bitmap = mEntries.get(key);
+        if (bitmap != null) {
+            Integer count = mInUse.get(bitmap);
+            mInUse.put(bitmap, count == null ? 1 : count + 1);
+        } else if (mRequested.add(key)) {
+            loadHandlerLocked().post(() -> load(key));
+        }
+        return bitmap;
+    }
+
+    /**
+     * 不再显示，已经被淘汰的Bitmap此时进复用池
+     */
+    public synchronized void release(Bitmap bitmap) {
+        if (bitmap == null) return;
+        Integer count = mInUse.get(bitmap);
+        if (count == null) return;
+        if (count > 1) {
+            mInUse.put(bitmap, count - 1);
+            return;
+        }
+        mInUse.remove(bitmap);
+        if (!mEntries.containsValue(bitmap)) {
+            recycleToPool(bitmap);
+        }
+    }
+
+    /**
+     * 后台预先加载，取消之前还没执行的预取
+     */
+    public void prefetch(List<Key> keys) {
+        Handler handler;
+        synchronized (this) {
+            handler = loadHandlerLocked();
+        }
+        //只取消预取，acquire的加载保留
+        handler.removeCallbacksAndMessages(PREFETCH_TOKEN);
+        long now = SystemClock.uptimeMillis();
+        for (Key key : keys) {
+            handler.postAtTime(() -> load(key), PREFETCH_TOKEN, now);
+        }
+    }
+
+    /**
+     * 清空缓存和复用池，停止预取
+     */
+    public synchronized void clear() {
+        if (mLoadThread != null) {
+            mLoadHandler.removeCallbacksAndMessages(null);
+            mLoadThread.quitSafely();
+            mLoadThread = null;
+            mLoadHandler = null;
+        }
+        mEntries.clear();
+        mPool.clear();
+        mRequested.clear();
+        mSize = 0;
+    }
+
+    private Handler loadHandlerLocked() {
+        if (mLoadThread == null) {
+            mLoadThread = new HandlerThread("ThumbLoad");
+            mLoadThread.start();
+            mLoadHandler = new Handler(mLoadThread.getLooper());
+        }
+        return mLoadHandler;
+    }
+
+    /**
+     * 在加载线程执行，读拼图和裁剪不持有锁
+     */
+    private void load(Key key) {
+        Handler handler;
+        Bitmap bitmap;
+        synchronized (this) {
+            handler = mLoadHandler;
+            if (handler == null || handler.getLooper() != Looper.myLooper()) return;//已经clear
+            if (mEntries.containsKey(key)) {
+                notifyLoadedLocked(key);
+                return;
+            }
+        }
+        ByteBuffer tile = VideoUtil.getThumbTile(mContext, key.source, key.second * 1000000);
+        if (tile == null) {
+            //还没生成，下次acquire再加载
+            synchronized (this) {
+                mRequested.remove(key);
+            }
+            return;
+        }
+        int size = VideoUtil.ThumbTask.THUMB_SIZE;
+        synchronized (this) {
+            bitmap = obtain(key.cropWidth, size);
+        }
+        if (key.cropWidth == size) {
+            bitmap.copyPixelsFromBuffer(tile);
+        } else {
+            if (mScratch == null) {
+                mScratch = Bitmap.createBitmap(size, size, Bitmap.Config.RGB_565);
+            }
+            mScratch.copyPixelsFromBuffer(tile);
+            mSrcRect.set(key.cropX, 0, key.cropX + key.cropWidth, size);
+            mDstRect.set(0, 0, key.cropWidth, size);
+            mCanvas.setBitmap(bitmap);
+            mCanvas.drawBitmap(mScratch, mSrcRect, mDstRect, null);
+            mCanvas.setBitmap(null);
+        }
+        synchronized (this) {
+            if (mLoadHandler != handler || mEntries.containsKey(key)) {
+                return;
+            }
+            mEntries.put(key, bitmap);
+            mSize += bitmap.getByteCount();
+            trim();
+            notifyLoadedLocked(key);
+        }
+    }
+
+    private void notifyLoadedLocked(Key key) {
+        if (!mRequested.remove(key)) return;
+        Listener listener = mListener;
+        if (listener != null) {
+            mMainHandler.post(() -> listener.onLoaded(key));
+        }
+    }
+
+    private Bitmap obtain(int width, int height) {
+        ArrayDeque<Bitmap> pool = mPool.get(width);
+        Bitmap bitmap = pool == null ? null : pool.poll();
+        return bitmap != null ? bitmap : Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565);
+    }
+
+    private void trim() {
+        Iterator<Bitmap> iterator = mEntries.values().iterator();
+        //最新的一张总是保留
+        while (mSize > mBudgetBytes && mEntries.size() > 1 && iterator.hasNext()) {
+            Bitmap bitmap = iterator.next();
+            iterator.remove();
+            mSize -= bitmap.getByteCount();
+            if (!mInUse.containsKey(bitmap)) {
+                recycleToPool(bitmap);
+            }
+        }
+    }
+
+    private void recycleToPool(Bitmap bitmap) {
+        ArrayDeque<Bitmap> pool = mPool.get(bitmap.getWidth());
+        if (pool == null) {
+            pool = new ArrayDeque<>();
+            mPool.put(bitmap.getWidth(), pool);
+        }
+        if (pool.size() < MAX_POOL_PER_WIDTH) {
+            pool.add(bitmap);
+        }
+    }
+}
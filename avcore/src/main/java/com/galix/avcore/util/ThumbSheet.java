@@ -0,0 +1,166 @@
+package com.galix.avcore.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * 缩略图拼图文件
+ * 一个文件连续存放多张同尺寸的RGB565缩略图，读取时整个文件mmap，每张图是映射区域上的一个切片，
+ * 直接copyPixelsFromBuffer到Bitmap，不需要打开文件和解码JPG。
+ * <p>
+ * 文件格式(小端): magic, tileWidth, tileHeight, count(int) startUs, intervalUs(long)，之后是count张tileWidth*tileHeight*2字节的图。
+ *
+ * @Author:Galis
+ * @Date:2022.04.28
+ */
+public class ThumbSheet {
+
+    public static final int MAGIC = 0x31485354;//TSH1
+    public static final int HEADER_SIZE = 32;
+    public static final int BYTES_PER_PIXEL = 2;
+
+    private final ByteBuffer mBuffer;
+    private final int mTileWidth;
+    private final int mTileHeight;
+    private final int mCount;
+    private final long mStartUs;
+    private final long mIntervalUs;
+
+    private ThumbSheet(ByteBuffer buffer) throws IOException {
+        mBuffer = buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("not a thumb sheet");
+        }
+        mTileWidth = buffer.getInt(4);
+        mTileHeight = buffer.getInt(8);
+        mCount = buffer.getInt(12);
+        mStartUs = buffer.getLong(16);
+        mIntervalUs = buffer.getLong(24);
+        if (mTileWidth <= 0 || mTileHeight <= 0 || mIntervalUs <= 0
+                || buffer.limit() < HEADER_SIZE + (long) mCount * getTileBytes()) {
+            throw new IOException("broken thumb sheet");
+        }
+    }
+
+    /**
+     * 只读映射整个文件，映射在对象回收后释放
+     *
+     * @param file 拼图文件
+     * @return 拼图
+     * @throws IOException 文件不存在或者格式不对
+     */
+    public static ThumbSheet open(File file) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+             FileChannel channel = randomAccessFile.getChannel()) {
+            return new ThumbSheet(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    static ThumbSheet wrap(ByteBuffer buffer) throws IOException {
+        return new ThumbSheet(buffer);
+    }
+
+    public int getTileWidth() {
+        return mTileWidth;
+    }
+
+    public int getTileHeight() {
+        return mTileHeight;
+    }
+
+    public int getTileBytes() {
+        return mTileWidth * mTileHeight * BYTES_PER_PIXEL;
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    public long getStartUs() {
+        return mStartUs;
+    }
+
+    public long getIntervalUs() {
+        return mIntervalUs;
+    }
+
+    /**
+     * @param ptsUs 时间
+     * @return 覆盖该时间的图序号，不在范围内返回-1
+     */
+    public int indexOf(long ptsUs) {
+        if (ptsUs < mStartUs) return -1;
+        long index = (ptsUs - mStartUs) / mIntervalUs;
+        return index < mCount ? (int) index : -1;
+    }
+
+    /**
+     * @param index 图序号
+     * @return 只读切片，RGB565像素，可以直接copyPixelsFromBuffer
+     */
+    public ByteBuffer tile(int index) {
+        if (index < 0 || index >= mCount) throw new IndexOutOfBoundsException("tile " + index + "/" + mCount);
+        ByteBuffer buffer = mBuffer.duplicate();
+        int offset = HEADER_SIZE + index * getTileBytes();
+        buffer.limit(offset + getTileBytes());
+        buffer.position(offset);
+        return buffer.slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * 按顺序追加图，写完一次性输出
+     */
+    public static class Writer {
+        private final ByteBuffer mBuffer;
+        private final int mTileBytes;
+        private final int mCapacity;
+        private int mCount = 0;
+
+        /**
+         * @param tileWidth  图宽
+         * @param tileHeight 图高
+         * @param startUs    第一张图的时间
+         * @param intervalUs 图间隔
+         * @param capacity   最多几张
+         */
+        public Writer(int tileWidth, int tileHeight, long startUs, long intervalUs, int capacity) {
+            mTileBytes = tileWidth * tileHeight * BYTES_PER_PIXEL;
+            mCapacity = capacity;
+            mBuffer = ByteBuffer.allocate(HEADER_SIZE + capacity * mTileBytes).order(ByteOrder.LITTLE_ENDIAN);
+            mBuffer.putInt(MAGIC).putInt(tileWidth).putInt(tileHeight).putInt(0)
+                    .putLong(startUs).putLong(intervalUs);
+        }
+
+        /**
+         * @param rgb565 一张图的像素，从position读到limit
+         */
+        public void add(ByteBuffer rgb565) {
+            if (mCount >= mCapacity) throw new IllegalStateException("sheet full");
+            if (rgb565.remaining() != mTileBytes) {
+                throw new IllegalArgumentException("tile bytes " + rgb565.remaining() + " != " + mTileBytes);
+            }
+            mBuffer.put(rgb565);
+            mCount++;
+        }
+
+        public int getCount() {
+            return mCount;
+        }
+
+        public boolean isFull() {
+            return mCount == mCapacity;
+        }
+
+        public void writeTo(File file) throws IOException {
+            mBuffer.putInt(12, mCount);
+            try (FileOutputStream outputStream = new FileOutputStream(file)) {
+                outputStream.write(mBuffer.array(), 0, HEADER_SIZE + mCount * mTileBytes);
+            }
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package com.galix.avcore.util;
+
+import android.graphics.Bitmap;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.util.Size;
+import android.view.Surface;
+
+import com.galix.avcore.util.job.CancellationToken;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 顺序抽取缩略图
+ * 每个文件只开一个解码器，从起点往后解码一遍，每个间隔取一帧；不需要的帧直接丢弃不渲染。
+ * 解码器输出到SurfaceTranscoder，缩放和旋转在GPU上完成后读回一个复用的Bitmap。
+ * 关键帧间隔不超过抽取间隔时只送关键帧给解码器，效果和OPTION_CLOSEST_SYNC一致，解码量最小。
+ * 在调用线程同步执行。
+ *
+ * @Author:Galis
+ * @Date:2022.04.28
+ */
+public class ThumbnailExtractor {
+
+    private static final long TIMEOUT_US = 10000;
+    private static final long TAIL_US = 1000000;//结尾多送一段，B帧重排后可能落在范围里
+    private static final String KEY_ROTATION = "rotation-degrees";
+
+    /**
+     * 缩略图回调，bitmap在回调返回后会被复用
+     */
+    public interface Callback {
+        /**
+         * @param ptsUs  间隔起点，start + n * interval
+         * @param bitmap 缩略图
+         */
+        void onThumbnail(long ptsUs, Bitmap bitmap) throws IOException;
+    }
+
+    private final String mPath;
+    private final int mWidth;
+    private final int mHeight;
+    private boolean mSyncOnly = false;
+
+    /**
+     * @param path   视频文件
+     * @param width  缩略图宽
+     * @param height 缩略图高
+     */
+    public ThumbnailExtractor(String path, int width, int height) {
+        mPath = path;
+        mWidth = width;
+        mHeight = height;
+    }
+
+    /**
+     * 只解码关键帧，每个间隔取它之后最近的关键帧
+     */
+    public void setSyncOnly(boolean syncOnly) {
+        mSyncOnly = syncOnly;
+    }
+
+    /**
+     * 抽取[startUs, endUs)内每interval一张缩略图
+     *
+     * @param startUs    起点
+     * @param endUs      终点
+     * @param intervalUs 间隔
+     * @param token      取消
+     * @param callback   回调
+     * @return 回调的张数
+     * @throws IOException 文件无法解码
+     */
+    public int extract(long startUs, long endUs, long intervalUs, CancellationToken token, Callback callback) throws IOException {
+        MediaExtractor extractor = new MediaExtractor();
+        MediaCodec decoder = null;
+        SurfaceTranscoder transcoder = null;
+        int count = 0;
+        try {
+            extractor.setDataSource(mPath);
+            MediaFormat format = null;
+            for (int i = 0; i < extractor.getTrackCount(); i++) {
+                MediaFormat trackFormat = extractor.getTrackFormat(i);
+                if (trackFormat.getString(MediaFormat.KEY_MIME).startsWith("video/")) {
+                    extractor.selectTrack(i);
+                    format = trackFormat;
+                    break;
+                }
+            }
+            if (format == null) throw new IOException("no video track " + mPath);
+            int rotation = format.containsKey(KEY_ROTATION) ? format.getInteger(KEY_ROTATION) : 0;
+            format.setInteger(KEY_ROTATION, 0);
+            transcoder = new SurfaceTranscoder(new Size(mWidth, mHeight), rotation);
+            Surface surface = transcoder.openOffscreen();
+            decoder = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+            decoder.configure(format, surface, null, 0);
+            decoder.start();
+            extractor.seekTo(startUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+
+            Bitmap bitmap = Bitmap.createBitmap(mWidth, mHeight, Bitmap.Config.ARGB_8888);
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            long nextUs = startUs;
+            boolean inputEOS = false;
+            boolean outputEOS = false;
+            while (!outputEOS && nextUs < endUs) {
+                if (token != null) token.throwIfCancelled();
+                if (!inputEOS) {
+                    int index = decoder.dequeueInputBuffer(TIMEOUT_US);
+                    if (index >= 0) {
+                        if (mSyncOnly) {
+                            while ((extractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) == 0
+                                    && extractor.advance()) {
+                                //跳过非关键帧，只读索引不读数据
+                            }
+                        }
+                        ByteBuffer buffer = decoder.getInputBuffer(index);
+                        int size = extractor.readSampleData(buffer, 0);
+                        long sampleTime = extractor.getSampleTime();
+                        if (size < 0 || sampleTime >= endUs + TAIL_US) {
+                            decoder.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                            inputEOS = true;
+                        } else {
+                            decoder.queueInputBuffer(index, 0, size, sampleTime, 0);
+                            extractor.advance();
+                        }
+                    }
+                }
+                int index = decoder.dequeueOutputBuffer(info, TIMEOUT_US);
+                if (index < 0) continue;
+                outputEOS = (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+                //还没到下一个间隔的帧不渲染
+                boolean keep = info.size > 0 && info.presentationTimeUs >= nextUs;
+                decoder.releaseOutputBuffer(index, keep);
+                if (!keep || !transcoder.readFrame(info.presentationTimeUs, bitmap)) continue;
+                while (nextUs <= info.presentationTimeUs && nextUs < endUs) {
+                    callback.onThumbnail(nextUs, bitmap);
+                    nextUs += intervalUs;
+                    count++;
+                }
+            }
+            //结尾没有新帧的间隔沿用最后一帧
+            while (count > 0 && nextUs < endUs) {
+                callback.onThumbnail(nextUs, bitmap);
+                nextUs += intervalUs;
+                count++;
+            }
+            bitmap.recycle();
+        } finally {
+            if (decoder != null) {
+                try {
+                    decoder.stop();
+                } catch (IllegalStateException e) {
+                    //未start
+                }
+                decoder.release();
+            }
+            if (transcoder != null) {
+                transcoder.release();
+            }
+            extractor.release();
+        }
+        LogUtil.log(LogUtil.ENGINE_TAG + "ThumbnailExtractor#extract#" + mPath + "#" + count);
+        return count;
+    }
+}
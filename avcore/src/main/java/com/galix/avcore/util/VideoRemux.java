@@ -0,0 +1,308 @@
+package com.galix.avcore.util;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.util.Size;
+
+import com.galix.avcore.avcore.AVComponent;
+import com.galix.avcore.avcore.AVEngine;
+import com.galix.avcore.avcore.AVVideo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * 视频智能渲染(smart render)分析
+ * 单个视频片段中没有滤镜，转场，贴纸等画面改动，并且按关键帧对齐的GOP，压缩数据可以直接写入MediaMuxer，
+ * 只有剪切点，转场，特效附近的帧需要重新编码。
+ * <p>
+ * 限制:
+ * 1.只处理AVC，源尺寸和合成尺寸一致，没有旋转。
+ * 2.假设源文件是closed GOP，open GOP的前导B帧会参考上一个GOP。
+ * 3.MP4轨道只有一份SPS/PPS(源文件的)，重新编码的片段在每个IDR前带上自己的SPS/PPS(in-band)。
+ *
+ * @Author:Galis
+ * @Date:2022.04.22
+ */
+public class VideoRemux {
+
+    private static final String TAG = VideoRemux.class.getSimpleName();
+    private static final long MIN_COPY_US = 1000000;//太短的拷贝片段不值得切换编码器
+    private static final AVComponent.AVComponentType[] OVERLAY_TYPES = {
+            AVComponent.AVComponentType.TRANSACTION,
+            AVComponent.AVComponentType.STICKER,
+            AVComponent.AVComponentType.WORD,
+            AVComponent.AVComponentType.PAG,
+            AVComponent.AVComponentType.PIP
+    };
+
+    /**
+     * 视频片段，engine时间
+     */
+    public static class Segment {
+        public AVVideo video;
+        public long engineStart;
+        public long engineEnd;
+        public boolean copy;
+        public String reason;//不能拷贝的原因
+
+        public long duration() {
+            return engineEnd - engineStart;
+        }
+
+        @Override
+        public String toString() {
+            return "Segment{" +
+                    "engineStart=" + engineStart +
+                    ", engineEnd=" + engineEnd +
+                    ", copy=" + copy +
+                    ", reason='" + reason + '\'' +
+                    '}';
+        }
+    }
+
+    public static class Plan {
+        public List<Segment> segments = new LinkedList<>();
+        public MediaFormat copyFormat;//直接拷贝片段的轨道格式，为空代表全部重新编码
+
+        public boolean hasCopy() {
+            return copyFormat != null;
+        }
+    }
+
+    private VideoRemux() {
+    }
+
+    /**
+     * 分析整个时间线，得出哪些GOP可以直接拷贝
+     *
+     * @param engine AVEngine
+     * @return Plan
+     */
+    public static Plan plan(AVEngine engine) {
+        AVEngine.VideoState videoState = engine.getVideoState();
+        Plan plan = new Plan();
+        List<AVComponent> videos = new ArrayList<>(engine.findComponents(AVComponent.AVComponentType.VIDEO, -1));
+        Collections.sort(videos, (o1, o2) -> Long.compare(o1.getEngineStartTime(), o2.getEngineStartTime()));
+        List<AVComponent> overlays = new LinkedList<>();
+        for (AVComponent.AVComponentType type : OVERLAY_TYPES) {
+            overlays.addAll(engine.findComponents(type, -1));
+        }
+        long lastEnd = 0;
+        for (AVComponent component : videos) {
+            AVVideo video = (AVVideo) component;
+            long start = Math.max(video.getEngineStartTime(), lastEnd);
+            long end = Math.min(video.getEngineEndTime(), videoState.durationUS);
+            if (end <= start) continue;
+            lastEnd = end;
+            String reason = null;
+            long[] gops = null;
+            if (video.getRender() != null) {
+                reason = "render";
+            } else {
+                MediaExtractor extractor = new MediaExtractor();
+                try {
+                    extractor.setDataSource(video.getPath());
+                    MediaFormat format = selectVideoTrack(extractor);
+                    reason = checkFormat(format, videoState.mTargetSize);
+                    if (reason == null) {
+                        if (plan.copyFormat == null) {
+                            plan.copyFormat = format;
+                        }
+                        if (sameConfig(plan.copyFormat, format)) {
+                            gops = keyFrames(extractor, video);
+                        } else {
+                            reason = "codec config";
+                        }
+                    }
+                } catch (IOException e) {
+                    reason = "io";
+                } finally {
+                    extractor.release();
+                }
+            }
+            if (gops == null) {
+                addSegment(plan, video, start, end, false, reason);
+                continue;
+            }
+            //按GOP切分，连续的无改动GOP合并为一个拷贝片段
+            long cursor = start;
+            int i = 0;
+            while (i < gops.length - 1) {
+                long gopStart = toEngine(video, gops[i]);
+                if (gopStart < start || !isClean(video, gops[i], gops[i + 1], end, overlays)) {
+                    i++;
+                    continue;
+                }
+                int j = i;
+                while (j < gops.length - 1 && isClean(video, gops[j], gops[j + 1], end, overlays)) {
+                    j++;
+                }
+                long copyEnd = toEngine(video, gops[j]);
+                if (copyEnd - gopStart >= MIN_COPY_US) {
+                    addSegment(plan, video, cursor, gopStart, false, "gop align");
+                    addSegment(plan, video, gopStart, copyEnd, true, null);
+                    cursor = copyEnd;
+                }
+                i = j;
+            }
+            addSegment(plan, video, cursor, end, false, cursor == start ? "no clean gop" : "gop align");
+        }
+        boolean hasCopy = false;
+        for (Segment segment : plan.segments) {
+            hasCopy |= segment.copy;
+            LogUtil.log(LogUtil.ENGINE_TAG + "VideoRemux#plan#" + segment.toString());
+        }
+        if (!hasCopy) {
+            plan.copyFormat = null;
+        }
+        return plan;
+    }
+
+    private static void addSegment(Plan plan, AVVideo video, long start, long end, boolean copy, String reason) {
+        if (end <= start) return;
+        Segment segment = new Segment();
+        segment.video = video;
+        segment.engineStart = start;
+        segment.engineEnd = end;
+        segment.copy = copy;
+        segment.reason = reason;
+        plan.segments.add(segment);
+    }
+
+    private static long toEngine(AVVideo video, long clipTime) {
+        return clipTime - video.getClipStartTime() + video.getEngineStartTime();
+    }
+
+    /**
+     * GOP[gopStart, gopEnd)整个落在片段内，并且没有被转场，贴纸等覆盖
+     */
+    private static boolean isClean(AVVideo video, long gopStart, long gopEnd, long segmentEnd, List<AVComponent> overlays) {
+        long start = toEngine(video, gopStart);
+        long end = toEngine(video, gopEnd);
+        if (end > segmentEnd) return false;
+        for (AVComponent overlay : overlays) {
+            if (overlay.getEngineStartTime() < end && overlay.getEngineEndTime() > start) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String checkFormat(MediaFormat format, Size targetSize) {
+        if (format == null || !MediaFormat.MIMETYPE_VIDEO_AVC.equals(format.getString(MediaFormat.KEY_MIME))) {
+            return "codec";
+        }
+        if (targetSize == null || format.getInteger(MediaFormat.KEY_WIDTH) != targetSize.getWidth()
+                || format.getInteger(MediaFormat.KEY_HEIGHT) != targetSize.getHeight()) {
+            return "size";
+        }
+        if (format.containsKey("rotation-degrees") && format.getInteger("rotation-degrees") != 0) {
+            return "rotation";
+        }
+        return null;
+    }
+
+    /**
+     * 裁剪范围内的关键帧时间，文件时间。
+     * 片段一直到文件末尾时，最后一个元素为clipEndTime，代表最后一个GOP的结束。
+     */
+    private static long[] keyFrames(MediaExtractor extractor, AVVideo video) {
+        List<Long> times = new ArrayList<>();
+        extractor.seekTo(video.getClipStartTime(), MediaExtractor.SEEK_TO_NEXT_SYNC);
+        while (true) {
+            long sampleTime = extractor.getSampleTime();
+            if (sampleTime < 0) {
+                if (video.getClipEndTime() >= video.getDuration()) {
+                    times.add(video.getClipEndTime());
+                }
+                break;
+            }
+            if ((extractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0) {
+                if (sampleTime > video.getClipEndTime()) break;
+                if (sampleTime >= video.getClipStartTime()) {
+                    times.add(sampleTime);
+                }
+            }
+            extractor.advance();
+        }
+        long[] result = new long[times.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = times.get(i);
+        }
+        return result;
+    }
+
+    private static MediaFormat selectVideoTrack(MediaExtractor extractor) {
+        for (int i = 0; i < extractor.getTrackCount(); i++) {
+            MediaFormat format = extractor.getTrackFormat(i);
+            if (format.getString(MediaFormat.KEY_MIME).contains("video")) {
+                extractor.selectTrack(i);
+                return format;
+            }
+        }
+        return null;
+    }
+
+    private static boolean sameConfig(MediaFormat f1, MediaFormat f2) {
+        if (f1.getInteger(MediaFormat.KEY_WIDTH) != f2.getInteger(MediaFormat.KEY_WIDTH)
+                || f1.getInteger(MediaFormat.KEY_HEIGHT) != f2.getInteger(MediaFormat.KEY_HEIGHT)) {
+            return false;
+        }
+        return sameBuffer(f1.getByteBuffer("csd-0"), f2.getByteBuffer("csd-0"))
+                && sameBuffer(f1.getByteBuffer("csd-1"), f2.getByteBuffer("csd-1"));
+    }
+
+    static boolean sameBuffer(ByteBuffer buffer1, ByteBuffer buffer2) {
+        if (buffer1 == null || buffer2 == null) {
+            return buffer1 == buffer2;
+        }
+        ByteBuffer b1 = buffer1.duplicate();
+        ByteBuffer b2 = buffer2.duplicate();
+        b1.position(0);
+        b2.position(0);
+        return b1.equals(b2);
+    }
+
+    /**
+     * 直接拷贝一个片段的压缩数据，从起始关键帧开始按解码顺序写到下一个片段的关键帧之前
+     *
+     * @param segment 片段
+     * @param writer  写入MediaMuxer
+     * @return 拷贝的时长
+     */
+    public static long copy(Segment segment, AudioRemux.SampleWriter writer) throws IOException {
+        AVVideo video = segment.video;
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            extractor.setDataSource(video.getPath());
+            MediaFormat format = selectVideoTrack(extractor);
+            ByteBuffer buffer = ByteBuffer.allocateDirect(format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE));
+            MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+            long clipStart = segment.engineStart - video.getEngineStartTime() + video.getClipStartTime();
+            long clipEnd = segment.engineEnd - video.getEngineStartTime() + video.getClipStartTime();
+            extractor.seekTo(clipStart, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+            boolean first = true;
+            while (true) {
+                long sampleTime = extractor.getSampleTime();
+                if (sampleTime < 0) break;
+                boolean sync = (extractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0;
+                if (!first && sync && sampleTime >= clipEnd) break;
+                int size = extractor.readSampleData(buffer, 0);
+                if (size < 0) break;
+                bufferInfo.set(0, size, toEngine(video, sampleTime), sync ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+                writer.write(buffer, bufferInfo);
+                first = false;
+                extractor.advance();
+            }
+            return segment.duration();
+        } finally {
+            extractor.release();
+        }
+    }
+}
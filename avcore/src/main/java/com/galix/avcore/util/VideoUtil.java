@@ -2,6 +2,7 @@ package com.galix.avcore.util;
 
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.graphics.Canvas;
 import android.graphics.SurfaceTexture;
 import android.media.MediaCodec;
 import android.media.MediaFormat;
@@ -13,6 +14,12 @@ import android.text.TextUtils;
 import android.util.Log;
 import android.view.Surface;
 
+import com.galix.avcore.util.job.CancellationToken;
+import com.galix.avcore.util.job.MediaJob;
+import com.galix.avcore.util.job.MediaJobScheduler;
+import com.galix.avcore.util.mp4.GopAnalyzer;
+import com.galix.avcore.util.mp4.Mp4Parser;
+
 import org.opencv.android.Utils;
 import org.opencv.core.Mat;
 import org.opencv.imgcodecs.Imgcodecs;
@@ -26,20 +33,15 @@ import java.nio.ByteBuffer;
 import java.nio.IntBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
-import java.util.List;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.Map;
 
 import javax.microedition.khronos.egl.EGL10;
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.egl.EGLContext;
 import javax.microedition.khronos.egl.EGLDisplay;
 
-import static android.media.MediaMetadataRetriever.OPTION_CLOSEST_SYNC;
-
 
 /**
  * 视频工具类
@@ -54,7 +56,20 @@ public class VideoUtil {
     }
 
     private static final String TAG = VideoUtil.class.getSimpleName();
-    private static ThreadPoolExecutor mThreadPool;
+    public static final long ADJUST_GOP_US = 1000000;//导入视频的关键帧间隔
+    public static final long MEDIA_CACHE_BUDGET = 512L * 1024 * 1024;//派生媒体缓存的磁盘预算
+    public static final int PICK_THUMB_SIZE = 256;//选择页缩略图的长边
+    private static MediaCache mMediaCache;
+    private static MediaIndex mMediaIndex;
+    private static GopAnalyzer mGopAnalyzer;
+    private static MediaJobScheduler mJobScheduler;
+    private static final int MAX_OPEN_SHEETS = 8;
+    private static final LinkedHashMap<String, ThumbSheet> mOpenSheets = new LinkedHashMap<String, ThumbSheet>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ThumbSheet> eldest) {
+            return size() > MAX_OPEN_SHEETS;
+        }
+    };
     public static LinkedList<FileEntry> mTargetFiles;
 
     public static class FileEntry {
@@ -67,18 +82,50 @@ public class VideoUtil {
         public Bitmap thumb;
     }
 
-    static {
-        mThreadPool = new ThreadPoolExecutor(3, 3,
-                10, TimeUnit.MILLISECONDS,
-                new LinkedBlockingQueue<>(10000)
-        );
+    private VideoUtil() {
     }
 
-    private VideoUtil() {
+    /**
+     * 缩略图，代理文件，关键帧索引等派生数据的缓存，放在cache/media目录
+     */
+    public static synchronized MediaCache getMediaCache(Context context) {
+        if (mMediaCache == null) {
+            mMediaCache = new MediaCache(new File(FileUtils.getCacheDir(context), "media"), MEDIA_CACHE_BUDGET);
+        }
+        return mMediaCache;
+    }
+
+    /**
+     * 媒体库索引，记录已经探测过的文件，放在cache/media_index.txt
+     */
+    public static synchronized MediaIndex getMediaIndex(Context context) {
+        if (mMediaIndex == null) {
+            mMediaIndex = new MediaIndex(new File(FileUtils.getCacheDir(context), "media_index.txt"));
+        }
+        return mMediaIndex;
+    }
+
+    /**
+     * GOP分析结果作为关键帧索引存在MediaCache，按文件大小和修改时间失效
+     */
+    public static synchronized GopAnalyzer getGopAnalyzer(Context context) {
+        if (mGopAnalyzer == null) {
+            mGopAnalyzer = new GopAnalyzer(getMediaCache(context));
+        }
+        return mGopAnalyzer;
     }
 
-    private static void execute(Runnable runnable) {
-        mThreadPool.execute(runnable);
+    /**
+     * 后台媒体任务调度，未完成的任务记录在cache目录，重启后恢复
+     */
+    public static synchronized MediaJobScheduler getJobScheduler(Context context) {
+        if (mJobScheduler == null) {
+            Context appContext = context.getApplicationContext();
+            mJobScheduler = new MediaJobScheduler(MediaJobScheduler.defaultLimits(),
+                    new File(FileUtils.getCacheDir(appContext), "media_jobs.txt"),
+                    (type, key, priority, args) -> ThumbTask.TYPE.equals(type) ? ThumbTask.fromArgs(appContext, args, priority) : null);
+        }
+        return mJobScheduler;
     }
 
     private static void testEGL() {
@@ -138,33 +185,141 @@ public class VideoUtil {
     }
 
     /**
-     * 获取视频某pts缩略图时间戳
-     * 时间单位US 时间取整数秒
+     * 获取视频某pts所在秒的缩略图像素
+     * 缩略图按ThumbTask.SHEET_TILES张一个拼图文件存放，最近用过的拼图保持mmap
+     *
+     * @param context context
+     * @param video   视频路径
+     * @param pts     时间，单位US
+     * @return RGB565只读切片，缩略图还没生成返回null
+     */
+    public static synchronized ByteBuffer getThumbTile(Context context, String video, long pts) {
+        File file = getMediaCache(context).get(MediaCache.KIND_THUMB, video, ThumbTask.sheetParam(pts));
+        if (file == null) return null;
+        ThumbSheet sheet = mOpenSheets.get(file.getPath());
+        if (sheet == null) {
+            try {
+                sheet = ThumbSheet.open(file);
+            } catch (IOException e) {
+                LogUtil.log(LogUtil.ENGINE_TAG + "VideoUtil#getThumbTile#Error#" + e.getMessage());
+                return null;
+            }
+            mOpenSheets.put(file.getPath(), sheet);
+        }
+        int index = sheet.indexOf(pts);
+        return index < 0 ? null : sheet.tile(index);
+    }
+
+    /**
+     * 获取视频某pts所在秒的缩略图
      *
-     * @param context
-     * @param video
-     * @param pts
-     * @return
+     * @param context context
+     * @param video   视频路径
+     * @param pts     时间，单位US
+     * @param reuse   可复用的RGB565 Bitmap，尺寸不对时新建，可以为空
+     * @return 缩略图，还没生成返回null
      */
-    public static String getThumbJpg(Context context, String video, long pts) {
-        return FileUtils.getCacheDir(context) + File.separator + md5(video + "_" + pts / 1000000 * 1000000) + ".jpg";
+    public static Bitmap getThumb(Context context, String video, long pts, Bitmap reuse) {
+        ByteBuffer tile = getThumbTile(context, video, pts);
+        if (tile == null) return null;
+        Bitmap bitmap = reuse;
+        if (bitmap == null || !bitmap.isMutable() || bitmap.getConfig() != Bitmap.Config.RGB_565
+                || bitmap.getWidth() != ThumbTask.THUMB_SIZE || bitmap.getHeight() != ThumbTask.THUMB_SIZE) {
+            bitmap = Bitmap.createBitmap(ThumbTask.THUMB_SIZE, ThumbTask.THUMB_SIZE, Bitmap.Config.RGB_565);
+        }
+        bitmap.copyPixelsFromBuffer(tile);
+        return bitmap;
     }
 
     /**
      * 获取缓存的video文件路径
+     * 源文件最大关键帧间隔已经不超过ADJUST_GOP_US时(录屏，自己合成的视频)直接使用源文件，不再转码
      *
      * @param context   context
      * @param videoPath 源文件路径
-     * @return 缓存的video文件路径
+     * @return 缓存的video文件路径，不需要调整时为源文件路径
      */
     public static String getAdjustGopVideoPath(Context context, String videoPath) {
         if (videoPath == null) return null;
         File file = new File(videoPath);
-        long modifyTime = 0;
-        if (file.exists()) {
-            modifyTime = file.lastModified();
+        if (file.exists() && !getGopAnalyzer(context).needsAdjust(file, ADJUST_GOP_US)) {
+            return videoPath;
+        }
+        //转码结果通过MediaCache.put写入，源文件变化后旧的结果在缓存校验时删除
+        return getMediaCache(context).fileOf(MediaCache.KIND_PROXY, videoPath, "gop_" + ADJUST_GOP_US).getPath();
+    }
+
+    /**
+     * 探测视频元数据，首帧缩小到长边PICK_THUMB_SIZE后存进MediaCache
+     * 元数据优先用Mp4Parser从moov读取
+     *
+     * @param context context
+     * @param file    文件
+     * @return 元数据，不是视频返回null
+     * @throws IOException 文件无法读取
+     */
+    public static MediaIndex.Item probeVideo(Context context, File file) throws IOException {
+        String path = file.getAbsolutePath();
+        MediaIndex.Item item = new MediaIndex.Item();
+        int rotation = -1;
+        //MP4直接解析moov，不创建MediaMetadataRetriever；解析不了或者没有时长(fMP4)再走retriever
+        try {
+            Mp4Parser.Track track = Mp4Parser.open(file).getVideoTrack();
+            if (track != null && track.duration > 0) {
+                item.duration = track.getDurationUs();
+                item.width = track.width;
+                item.height = track.height;
+                rotation = track.rotation;
+            }
+        } catch (IOException e) {
+            LogUtil.log(LogUtil.ENGINE_TAG + "VideoUtil#probeVideo#Mp4Parser#" + e.getMessage());
         }
-        return FileUtils.getCacheDir(context) + File.separator + md5(videoPath + "_gop_" + modifyTime) + ".mp4";
+        if (rotation < 0) {
+            MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+            try {
+                retriever.setDataSource(path);
+                if (!"yes".equals(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_HAS_VIDEO))) {
+                    return null;
+                }
+                item.duration = Long.parseLong(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION)) * 1000;
+                item.width = Integer.parseInt(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_WIDTH));
+                item.height = Integer.parseInt(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_HEIGHT));
+                String degrees = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_ROTATION);
+                rotation = degrees == null ? 0 : Integer.parseInt(degrees);
+            } catch (IllegalArgumentException e) {
+                throw new IOException(e);
+            } finally {
+                retriever.release();
+            }
+        }
+        if (item.width <= 0 || item.height <= 0) return null;
+        //缩略图是旋转后的画面
+        int width = rotation % 180 == 0 ? item.width : item.height;
+        int height = rotation % 180 == 0 ? item.height : item.width;
+        float scale = Math.min(1.f, PICK_THUMB_SIZE * 1.f / Math.max(width, height));
+        int thumbWidth = Math.max(2, Math.round(width * scale) / 2 * 2);
+        int thumbHeight = Math.max(2, Math.round(height * scale) / 2 * 2);
+        String param = "pick_" + PICK_THUMB_SIZE;
+        MediaCache cache = getMediaCache(context);
+        File thumb = cache.get(MediaCache.KIND_THUMB, path, param);
+        if (thumb == null) {
+            try {
+                thumb = cache.put(MediaCache.KIND_THUMB, path, param, tmp -> {
+                    int count = new ThumbnailExtractor(path, thumbWidth, thumbHeight).extract(0, 1, 1, null,
+                            (ptsUs, bitmap) -> {
+                                try (FileOutputStream outputStream = new FileOutputStream(tmp)) {
+                                    bitmap.compress(Bitmap.CompressFormat.JPEG, 85, outputStream);
+                                }
+                            });
+                    if (count == 0) throw new IOException("no frame " + path);
+                });
+            } catch (IOException | RuntimeException e) {
+                //缩略图失败不影响选择
+                LogUtil.log(LogUtil.ENGINE_TAG + "VideoUtil#probeVideo#thumb#Error#" + e.getMessage());
+            }
+        }
+        item.thumb = thumb == null ? null : thumb.getPath();
+        return item;
     }
 
     public static void saveBitmapFile(Bitmap bitmap, String path) {
@@ -182,38 +337,103 @@ public class VideoUtil {
         }
     }
 
-    public static class ThumbTask implements Runnable {
+    /**
+     * 缩略图任务，[start, end)内每秒一张，每SHEET_TILES张写成一个ThumbSheet拼图，已经存在的拼图跳过
+     * 整段只开一个解码器顺序解码，关键帧间隔不超过1秒时只解关键帧
+     * 时间线按拼图提交(sheet)，同一个拼图的任务合并，可见范围的提交可以单独提升优先级或者取消
+     */
+    public static class ThumbTask extends MediaJob {
+        public static final String TYPE = "thumb";
+        public static final int THUMB_SIZE = 160;
+        public static final long THUMB_INTERVAL_US = 1000000;
+        public static final int SHEET_TILES = 16;
+        public static final long SHEET_US = SHEET_TILES * THUMB_INTERVAL_US;
         public String path;
         public long start;
         public long end;
-        public Handler.Callback callback;
         public Context context;
 
-        public ThumbTask(Context context, String path, long start, long end, Handler.Callback callback) {
+        public ThumbTask(Context context, String path, long start, long end, int priority) {
+            super(TYPE + "#" + path + "#" + start + "#" + end, priority, RESOURCE_DECODER);
             this.context = context;
             this.path = path;
             this.start = start;
             this.end = end;
-            this.callback = callback;
+        }
+
+        /**
+         * pts所在拼图的任务，超过文件结尾的部分解码到EOS结束
+         */
+        public static ThumbTask sheet(Context context, String path, long pts, int priority) {
+            long start = pts / SHEET_US * SHEET_US;
+            return new ThumbTask(context, path, start, start + SHEET_US, priority);
+        }
+
+        static ThumbTask fromArgs(Context context, String args, int priority) {
+            String[] fields = args.split(",", 3);
+            if (fields.length != 3) return null;
+            return new ThumbTask(context, fields[2], Long.parseLong(fields[0]), Long.parseLong(fields[1]), priority);
+        }
+
+        @Override
+        public String getType() {
+            return TYPE;
+        }
+
+        @Override
+        public String getArgs() {
+            return start + "," + end + "," + path;
         }
 
         @Override
-        public void run() {
-            long nowPts = start;
-            MediaMetadataRetriever mediaMetadataRetriever = new MediaMetadataRetriever();
-            mediaMetadataRetriever.setDataSource(path);
-            while (nowPts < end) {
-                String dstJpg = VideoUtil.getThumbJpg(context, path, nowPts);
-                Bitmap thumb = mediaMetadataRetriever.getFrameAtTime(nowPts, OPTION_CLOSEST_SYNC);
-                thumb = Bitmap.createScaledBitmap(thumb, 160, 160, true);
-                nowPts += 1000000L;
-                saveBitmapFile(thumb, dstJpg);
+        public void run(CancellationToken token) throws IOException {
+            MediaCache cache = getMediaCache(context);
+            long first = start / SHEET_US * SHEET_US;
+            while (first < end && cache.contains(MediaCache.KIND_THUMB, path, sheetParam(first))) {
+                first += SHEET_US;
             }
-            mediaMetadataRetriever.close();
-            if (callback != null) {
-                callback.handleMessage(null);
+            try {
+                if (first < end) {
+                    ThumbnailExtractor extractor = new ThumbnailExtractor(path, THUMB_SIZE, THUMB_SIZE);
+                    GopAnalyzer.Result gop = getGopAnalyzer(context).get(new File(path));
+                    extractor.setSyncOnly(gop != null && gop.isWithin(THUMB_INTERVAL_US));
+                    Bitmap tile = Bitmap.createBitmap(THUMB_SIZE, THUMB_SIZE, Bitmap.Config.RGB_565);
+                    Canvas canvas = new Canvas(tile);
+                    ByteBuffer pixels = ByteBuffer.allocate(tile.getByteCount());
+                    ThumbSheet.Writer[] writer = {null};
+                    long[] sheetStart = {first};
+                    extractor.extract(first, end, THUMB_INTERVAL_US, token, (ptsUs, bitmap) -> {
+                        if (writer[0] == null) {
+                            sheetStart[0] = ptsUs / SHEET_US * SHEET_US;
+                            writer[0] = new ThumbSheet.Writer(THUMB_SIZE, THUMB_SIZE, sheetStart[0], THUMB_INTERVAL_US, SHEET_TILES);
+                        }
+                        canvas.drawBitmap(bitmap, 0, 0, null);
+                        pixels.clear();
+                        tile.copyPixelsToBuffer(pixels);
+                        pixels.flip();
+                        writer[0].add(pixels);
+                        if (writer[0].isFull()) {
+                            cache.put(MediaCache.KIND_THUMB, path, sheetParam(sheetStart[0]), writer[0]::writeTo);
+                            writer[0] = null;
+                        }
+                    });
+                    //结尾不满一个拼图
+                    if (writer[0] != null) {
+                        cache.put(MediaCache.KIND_THUMB, path, sheetParam(sheetStart[0]), writer[0]::writeTo);
+                    }
+                    tile.recycle();
+                }
+            } finally {
+                cache.flush();
             }
         }
+
+        /**
+         * 拼图按绝对时间对齐，pts所在拼图的缓存参数
+         */
+        static String sheetParam(long pts) {
+            return "sheet_" + pts / SHEET_US;
+        }
     }
 
     /**
@@ -226,22 +446,31 @@ public class VideoUtil {
      */
     public static void processVideo(Context context, final LinkedList<FileEntry> videos, Handler.Callback callback) {
         if (videos.isEmpty()) return;
-        List<ThumbTask> tasks = new LinkedList<>();
+        VideoUtil.mTargetFiles = videos;
+        MediaJobScheduler scheduler = getJobScheduler(context);
+        //每个拼图一个任务，时间线开头的拼图最先生成，完成后回调；其它在后台，滚动到可见时由时间线提升优先级
+        boolean first = true;
         for (FileEntry video : videos) {
-            MediaMetadataRetriever mediaMetadataRetriever = new MediaMetadataRetriever();
-            mediaMetadataRetriever.setDataSource(video.path);
-            long duration = Integer.parseInt(mediaMetadataRetriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION)) * 1000;
-            long curPts = 0;
-            while (curPts < duration) {
-                tasks.add(new ThumbTask(context, video.path, curPts, Math.min(curPts + 6000000, duration), null));
-                curPts += 6000000;
+            long duration = video.duration;
+            if (duration <= 0) {
+                //媒体索引里已经有时长，没有时再读
+                MediaMetadataRetriever mediaMetadataRetriever = new MediaMetadataRetriever();
+                mediaMetadataRetriever.setDataSource(video.path);
+                duration = Integer.parseInt(mediaMetadataRetriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION)) * 1000;
+                mediaMetadataRetriever.close();
+            }
+            for (long pts = 0; pts < duration; pts += ThumbTask.SHEET_US) {
+                if (first) {
+                    scheduler.submit(ThumbTask.sheet(context, video.path, pts, MediaJob.PRIORITY_VISIBLE_THUMB),
+                            callback == null ? null : (job, error, cancelled) -> callback.handleMessage(null));
+                    first = false;
+                } else {
+                    scheduler.submit(ThumbTask.sheet(context, video.path, pts, MediaJob.PRIORITY_THUMB), null);
+                }
             }
-            mediaMetadataRetriever.close();
         }
-        tasks.get(0).callback = callback;
-        VideoUtil.mTargetFiles = videos;
-        for (ThumbTask thumbTask : tasks) {
-            execute(thumbTask);
+        if (first && callback != null) {
+            callback.handleMessage(null);
         }
 //        Thread thread = new Thread(new Runnable() {
 //            @Override
@@ -14,11 +14,16 @@ public class YuvUtils {
         System.loadLibrary("arcore");
     }
 
+    public static final int FORMAT_NV21 = 17;//ImageFormat.NV21
+    public static final int FORMAT_I420 = 19;//COLOR_FormatYUV420Planar
+    public static final int FORMAT_I420_PACKED = 20;//COLOR_FormatYUV420PackedPlanar，按I420处理
+    public static final int FORMAT_NV12 = 21;//COLOR_FormatYUV420SemiPlanar
+
     /**
      * 缩放YUV并且保存为JPG图片
      *
      * @param yuvBuffer nio buffer
-     * @param format    输出格式:NV21 NV12等
+     * @param format    输入格式:FORMAT_I420 FORMAT_NV12 FORMAT_NV21
      * @param srcW      原宽度
      * @param srcH      原高度
      * @param dstW      目的宽度
@@ -26,4 +31,29 @@ public class YuvUtils {
      * @param path      JPG图片路径
      */
     public static native void scaleAndSaveYuvAsJPEG(ByteBuffer yuvBuffer, int format, int srcW, int srcH, int dstW, int dstH, String path);
+
+    /**
+     * 批量缩放YUV并且保存为JPG，在threads个线程上并行，全部完成后返回
+     * 中间内存由native内存池复用，可以在多个线程同时调用
+     *
+     * @param yuvBuffers  direct buffer，同一批的格式和尺寸相同
+     * @param format      输入格式:FORMAT_I420 FORMAT_NV12 FORMAT_NV21
+     * @param srcW        原宽度
+     * @param srcH        原高度
+     * @param stride      Y平面行字节数，MediaCodec输出的KEY_STRIDE
+     * @param sliceHeight Y平面行数，MediaCodec输出的KEY_SLICE_HEIGHT
+     * @param dstW        目的宽度
+     * @param dstH        目的高度
+     * @param quality     JPG质量，0-100
+     * @param paths       JPG图片路径，和yuvBuffers一一对应
+     * @param threads     线程数，包括调用线程
+     * @return 成功保存的张数
+     */
+    public static native int scaleAndSaveYuvBatch(ByteBuffer[] yuvBuffers, int format, int srcW, int srcH, int stride, int sliceHeight,
+                                                  int dstW, int dstH, int quality, String[] paths, int threads);
+
+    /**
+     * 释放native内存池里空闲的内存
+     */
+    public static native void trimMemory();
 }
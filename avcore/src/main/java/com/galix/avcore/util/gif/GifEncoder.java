@@ -0,0 +1,251 @@
+package com.galix.avcore.util.gif;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * 动图GIF编码
+ * 每帧使用独立的局部调色板，帧编码(量化+抖动+LZW)只依赖帧本身，在fork/join线程池里并行，
+ * 按添加顺序写入文件，同时在编码的帧数有上限。
+ *
+ * @Author:Galis
+ * @Date:2022.04.28
+ */
+public class GifEncoder {
+
+    private static final int[] BAYER_4X4 = {
+            0, 8, 2, 10,
+            12, 4, 14, 6,
+            3, 11, 1, 9,
+            15, 7, 13, 5};
+
+    /**
+     * 单帧编码器，线程私有
+     */
+    public static class FrameEncoder {
+        private final OctreeQuantizer mQuantizer;
+        private final LzwEncoder mLzw = new LzwEncoder();
+        private byte[] mIndices = new byte[0];
+        private final int mSampleStep;
+
+        /**
+         * @param maxColors  调色板大小上限
+         * @param sampleStep 统计调色板时的像素采样间隔
+         */
+        public FrameEncoder(int maxColors, int sampleStep) {
+            mQuantizer = new OctreeQuantizer(maxColors);
+            mSampleStep = Math.max(1, sampleStep);
+        }
+
+        public FrameEncoder() {
+            this(256, 2);
+        }
+
+        /**
+         * @param argb    像素，行优先
+         * @param width   宽
+         * @param height  高
+         * @param delayCs 帧间隔，单位1/100秒
+         * @param dither  是否使用有序抖动
+         * @return 图形控制扩展+图像描述符+局部调色板+图像数据
+         */
+        public byte[] encode(int[] argb, int width, int height, int delayCs, boolean dither) {
+            int length = width * height;
+            if (mIndices.length < length) {
+                mIndices = new byte[length];
+            }
+            int paletteSize = mQuantizer.build(argb, length, mSampleStep);
+            if (dither) {
+                for (int y = 0, i = 0; y < height; y++) {
+                    int row = (y & 3) << 2;
+                    for (int x = 0; x < width; x++, i++) {
+                        int color = argb[i];
+                        //阈值范围约为RGB555一个量化步长
+                        int d = BAYER_4X4[row | (x & 3)] - 8;
+                        mIndices[i] = (byte) mQuantizer.indexOf(
+                                clamp(((color >> 16) & 0xFF) + d),
+                                clamp(((color >> 8) & 0xFF) + d),
+                                clamp((color & 0xFF) + d));
+                    }
+                }
+            } else {
+                for (int i = 0; i < length; i++) {
+                    int color = argb[i];
+                    mIndices[i] = (byte) mQuantizer.indexOf((color >> 16) & 0xFF, (color >> 8) & 0xFF, color & 0xFF);
+                }
+            }
+            int tableBits = 1;
+            while ((1 << tableBits) < paletteSize) {
+                tableBits++;
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream(length / 2 + 1024);
+            //Graphic Control Extension
+            out.write(0x21);
+            out.write(0xF9);
+            out.write(4);
+            out.write(0);//不透明，disposal未指定
+            out.write(delayCs & 0xFF);
+            out.write((delayCs >> 8) & 0xFF);
+            out.write(0);
+            out.write(0);
+            //Image Descriptor
+            out.write(0x2C);
+            writeShort(out, 0);
+            writeShort(out, 0);
+            writeShort(out, width);
+            writeShort(out, height);
+            out.write(0x80 | (tableBits - 1));//局部调色板
+            int[] palette = mQuantizer.getPalette();
+            for (int i = 0; i < (1 << tableBits); i++) {
+                int color = i < paletteSize ? palette[i] : 0;
+                out.write((color >> 16) & 0xFF);
+                out.write((color >> 8) & 0xFF);
+                out.write(color & 0xFF);
+            }
+            mLzw.encode(mIndices, length, Math.max(2, tableBits), out);
+            return out.toByteArray();
+        }
+
+        private static int clamp(int value) {
+            return value < 0 ? 0 : (value > 255 ? 255 : value);
+        }
+    }
+
+    private final OutputStream mOut;
+    private final int mWidth;
+    private final int mHeight;
+    private final ForkJoinPool mPool;
+    private final int mWindow;
+    private final ArrayDeque<ForkJoinTask<byte[]>> mPending = new ArrayDeque<>();
+    private final ConcurrentLinkedQueue<int[]> mFreeFrames = new ConcurrentLinkedQueue<>();
+    private final ThreadLocal<FrameEncoder> mFrameEncoder = new ThreadLocal<FrameEncoder>() {
+        @Override
+        protected FrameEncoder initialValue() {
+            return new FrameEncoder();
+        }
+    };
+    private boolean mDither = true;
+    private int mFrameCount = 0;
+    private long mElapsedMs = 0;//已添加帧的累计时长
+    private long mElapsedCs = 0;//已写入的累计帧间隔，单位1/100秒
+    private boolean mFinished = false;
+
+    /**
+     * 写入文件头
+     *
+     * @param out       输出
+     * @param width     宽
+     * @param height    高
+     * @param loopCount 循环次数，0为无限循环
+     * @param pool      帧编码线程池，为空时在调用线程编码
+     */
+    public GifEncoder(OutputStream out, int width, int height, int loopCount, ForkJoinPool pool) throws IOException {
+        mOut = out;
+        mWidth = width;
+        mHeight = height;
+        mPool = pool;
+        //同时在编码的帧数，限制内存占用
+        mWindow = pool == null ? 1 : pool.getParallelism() * 2;
+        mOut.write(new byte[]{'G', 'I', 'F', '8', '9', 'a'});
+        writeShort(mOut, width);
+        writeShort(mOut, height);
+        mOut.write(0);//没有全局调色板
+        mOut.write(0);
+        mOut.write(0);
+        //NETSCAPE2.0循环扩展
+        mOut.write(new byte[]{0x21, (byte) 0xFF, 11, 'N', 'E', 'T', 'S', 'C', 'A', 'P', 'E', '2', '.', '0', 3, 1});
+        writeShort(mOut, loopCount);
+        mOut.write(0);
+    }
+
+    public GifEncoder(OutputStream out, int width, int height, int loopCount) throws IOException {
+        this(out, width, height, loopCount, null);
+    }
+
+    public void setDither(boolean dither) {
+        mDither = dither;
+    }
+
+    /**
+     * 获取一帧像素缓冲，填充后交给addFrame，编码完成后自动回收
+     */
+    public int[] obtainFrame() {
+        int[] frame = mFreeFrames.poll();
+        return frame != null ? frame : new int[mWidth * mHeight];
+    }
+
+    /**
+     * 添加一帧，调用后不能再修改frame。窗口满时阻塞写出最早的一帧，输出顺序与添加顺序一致
+     * GIF帧间隔精度是10ms，按累计时长取整，舍入误差带到下一帧，总时长不会漂移
+     *
+     * @param frame   ARGB像素，宽高与文件一致
+     * @param delayMs 帧间隔
+     */
+    public void addFrame(final int[] frame, final int delayMs) throws IOException {
+        final boolean dither = mDither;
+        mElapsedMs += delayMs;
+        final int delayCs = (int) ((mElapsedMs + 5) / 10 - mElapsedCs);
+        mElapsedCs += delayCs;
+        ForkJoinTask<byte[]> task = ForkJoinTask.adapt(() -> {
+            byte[] data = mFrameEncoder.get().encode(frame, mWidth, mHeight, delayCs, dither);
+            mFreeFrames.offer(frame);
+            return data;
+        });
+        if (mPool == null) {
+            task.invoke();
+        } else {
+            mPool.execute(task);
+        }
+        mPending.add(task);
+        while (mPending.size() >= mWindow) {
+            writePending();
+        }
+    }
+
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    private void writeFrame(byte[] frame) throws IOException {
+        mOut.write(frame);
+        mFrameCount++;
+    }
+
+    /**
+     * 写出所有未完成的帧和文件尾
+     */
+    public void finish() throws IOException {
+        if (mFinished) return;
+        mFinished = true;
+        while (!mPending.isEmpty()) {
+            writePending();
+        }
+        mOut.write(0x3B);
+        mOut.flush();
+    }
+
+    private void writePending() throws IOException {
+        ForkJoinTask<byte[]> task = mPending.poll();
+        try {
+            writeFrame(task.get());
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static void writeShort(OutputStream out, int value) throws IOException {
+        out.write(value & 0xFF);
+        out.write((value >> 8) & 0xFF);
+    }
+
+    private static void writeShort(ByteArrayOutputStream out, int value) {
+        out.write(value & 0xFF);
+        out.write((value >> 8) & 0xFF);
+    }
+}
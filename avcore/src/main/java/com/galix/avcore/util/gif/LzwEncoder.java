@@ -0,0 +1,121 @@
+package com.galix.avcore.util.gif;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * GIF变长LZW编码，输出按255字节分块
+ * 字典用开放寻址哈希表(前缀码<<8|字符 => 新码)，表满4096时输出clear码重置。
+ * 非线程安全，每个编码线程各自持有一个实例。
+ *
+ * @Author:Galis
+ * @Date:2022.04.28
+ */
+public class LzwEncoder {
+
+    private static final int MAX_BITS = 12;
+    private static final int MAX_CODE = 1 << MAX_BITS;
+    private static final int HASH_SIZE = 5003;//大于4096的质数
+
+    private final int[] mHashKeys = new int[HASH_SIZE];
+    private final int[] mHashCodes = new int[HASH_SIZE];
+    private final byte[] mBlock = new byte[256];
+    private int mBlockSize;
+    private int mBitBuffer;
+    private int mBitCount;
+    private ByteArrayOutputStream mOut;
+
+    /**
+     * @param pixels      调色板索引
+     * @param length      像素数
+     * @param minCodeSize 最小码长，调色板位数(至少2)
+     * @param out         输出，包含最小码长字节，分块数据以及结束块
+     */
+    public void encode(byte[] pixels, int length, int minCodeSize, ByteArrayOutputStream out) {
+        mOut = out;
+        mBlockSize = 0;
+        mBitBuffer = 0;
+        mBitCount = 0;
+        out.write(minCodeSize);
+        int clearCode = 1 << minCodeSize;
+        int eoiCode = clearCode + 1;
+        int codeSize = minCodeSize + 1;
+        int nextCode = eoiCode + 1;
+        clearTable();
+        writeCode(clearCode, codeSize);
+        if (length > 0) {
+            int prefix = pixels[0] & 0xFF;
+            for (int i = 1; i < length; i++) {
+                int c = pixels[i] & 0xFF;
+                int key = (prefix << 8) | c;
+                int hash = ((c << 4) ^ prefix) % HASH_SIZE;
+                int step = hash == 0 ? 1 : HASH_SIZE - hash;
+                int code = -1;
+                while (mHashKeys[hash] != -1) {
+                    if (mHashKeys[hash] == key) {
+                        code = mHashCodes[hash];
+                        break;
+                    }
+                    hash -= step;
+                    if (hash < 0) hash += HASH_SIZE;
+                }
+                if (code != -1) {
+                    prefix = code;
+                    continue;
+                }
+                writeCode(prefix, codeSize);
+                if (nextCode < MAX_CODE) {
+                    mHashKeys[hash] = key;
+                    mHashCodes[hash] = nextCode;
+                    //解码端在添加码之后才增加码长，这里要与之同步
+                    if (nextCode == (1 << codeSize) && codeSize < MAX_BITS) {
+                        codeSize++;
+                    }
+                    nextCode++;
+                } else {
+                    writeCode(clearCode, codeSize);
+                    clearTable();
+                    codeSize = minCodeSize + 1;
+                    nextCode = eoiCode + 1;
+                }
+                prefix = c;
+            }
+            writeCode(prefix, codeSize);
+        }
+        writeCode(eoiCode, codeSize);
+        if (mBitCount > 0) {
+            writeByte(mBitBuffer & 0xFF);
+        }
+        flushBlock();
+        out.write(0);
+        mOut = null;
+    }
+
+    private void clearTable() {
+        Arrays.fill(mHashKeys, -1);
+    }
+
+    private void writeCode(int code, int codeSize) {
+        mBitBuffer |= code << mBitCount;
+        mBitCount += codeSize;
+        while (mBitCount >= 8) {
+            writeByte(mBitBuffer & 0xFF);
+            mBitBuffer >>>= 8;
+            mBitCount -= 8;
+        }
+    }
+
+    private void writeByte(int value) {
+        mBlock[mBlockSize++] = (byte) value;
+        if (mBlockSize == 255) {
+            flushBlock();
+        }
+    }
+
+    private void flushBlock() {
+        if (mBlockSize == 0) return;
+        mOut.write(mBlockSize);
+        mOut.write(mBlock, 0, mBlockSize);
+        mBlockSize = 0;
+    }
+}
@@ -0,0 +1,296 @@
+package com.galix.avcore.util.gif;
+
+import java.util.Arrays;
+
+/**
+ * 八叉树调色板量化
+ * 先把像素统计到RGB555直方图(32768个桶，同时累加桶内真实颜色)，再在5层八叉树上从最深层开始合并像素数最少的节点，直到叶子数不超过maxColors。
+ * 得到的调色板再用直方图做一次k-means修正。查表以RGB555为键取最近颜色，结果缓存。
+ * 非线程安全，每个编码线程各自持有一个实例。
+ *
+ * @Author:Galis
+ * @Date:2022.04.28
+ */
+public class OctreeQuantizer {
+
+    private static final int DEPTH = 5;
+    private static final int BINS = 1 << (DEPTH * 3);
+
+    private final int mMaxColors;
+    private final int[] mHistogram = new int[BINS];
+    private final int[] mBinR = new int[BINS];
+    private final int[] mBinG = new int[BINS];
+    private final int[] mBinB = new int[BINS];
+    private final int[] mLut = new int[BINS];
+    //节点池，0为根节点
+    private int[] mChildren = new int[8 * 1024];
+    private int[] mCount = new int[1024];
+    private long[] mSumR = new long[1024];
+    private long[] mSumG = new long[1024];
+    private long[] mSumB = new long[1024];
+    private int[] mLevel = new int[1024];
+    private boolean[] mLeaf = new boolean[1024];
+    private int mNodeCount;
+    private final int[] mPalette = new int[256];
+    private final long[] mSortKey = new long[256];
+    private final int[] mOrder = new int[256];
+    private final int[] mOrderG = new int[256];
+    private int mPaletteSize;
+
+    public OctreeQuantizer(int maxColors) {
+        mMaxColors = Math.max(2, Math.min(256, maxColors));
+    }
+
+    /**
+     * 统计像素并生成调色板
+     *
+     * @param argb   像素
+     * @param length 像素数
+     * @param step   采样间隔，1为全部统计
+     * @return 调色板大小
+     */
+    public int build(int[] argb, int length, int step) {
+        Arrays.fill(mHistogram, 0);
+        Arrays.fill(mBinR, 0);
+        Arrays.fill(mBinG, 0);
+        Arrays.fill(mBinB, 0);
+        Arrays.fill(mLut, -1);
+        for (int i = 0; i < length; i += step) {
+            int color = argb[i];
+            int bin = rgb555(color);
+            mHistogram[bin]++;
+            mBinR[bin] += (color >> 16) & 0xFF;
+            mBinG[bin] += (color >> 8) & 0xFF;
+            mBinB[bin] += color & 0xFF;
+        }
+        mNodeCount = 0;
+        newNode(0);
+        for (int bin = 0; bin < BINS; bin++) {
+            int count = mHistogram[bin];
+            if (count > 0) {
+                insert(bin, count);
+            }
+        }
+        reduce();
+        mPaletteSize = 0;
+        assignPalette(0);
+        sortPalette();
+        refine();
+        sortPalette();
+        return mPaletteSize;
+    }
+
+    public int[] getPalette() {
+        return mPalette;
+    }
+
+    public int getPaletteSize() {
+        return mPaletteSize;
+    }
+
+    /**
+     * @param r 0~255
+     * @param g 0~255
+     * @param b 0~255
+     * @return 调色板索引
+     */
+    public int indexOf(int r, int g, int b) {
+        int bin = ((r >> 3) << 10) | ((g >> 3) << 5) | (b >> 3);
+        int index = mLut[bin];
+        if (index >= 0) return index;
+        index = lookup(bin);
+        mLut[bin] = index;
+        return index;
+    }
+
+    static int rgb555(int argb) {
+        return ((argb >> 9) & 0x7C00) | ((argb >> 6) & 0x03E0) | ((argb >> 3) & 0x001F);
+    }
+
+    private int newNode(int level) {
+        if (mNodeCount == mCount.length) {
+            int size = mCount.length * 2;
+            mChildren = Arrays.copyOf(mChildren, size * 8);
+            mCount = Arrays.copyOf(mCount, size);
+            mSumR = Arrays.copyOf(mSumR, size);
+            mSumG = Arrays.copyOf(mSumG, size);
+            mSumB = Arrays.copyOf(mSumB, size);
+            mLevel = Arrays.copyOf(mLevel, size);
+            mLeaf = Arrays.copyOf(mLeaf, size);
+        }
+        int node = mNodeCount++;
+        Arrays.fill(mChildren, node * 8, node * 8 + 8, 0);
+        mCount[node] = 0;
+        mSumR[node] = mSumG[node] = mSumB[node] = 0;
+        mLevel[node] = level;
+        mLeaf[node] = level == DEPTH;
+        return node;
+    }
+
+    private void insert(int bin, int count) {
+        int r = (bin >> 10) & 0x1F;
+        int g = (bin >> 5) & 0x1F;
+        int b = bin & 0x1F;
+        int node = 0;
+        for (int level = 0; ; level++) {
+            mCount[node] += count;
+            mSumR[node] += mBinR[bin];
+            mSumG[node] += mBinG[bin];
+            mSumB[node] += mBinB[bin];
+            if (level == DEPTH) break;
+            int shift = DEPTH - 1 - level;
+            int child = (((r >> shift) & 1) << 2) | (((g >> shift) & 1) << 1) | ((b >> shift) & 1);
+            int next = mChildren[node * 8 + child];
+            if (next == 0) {
+                next = newNode(level + 1);
+                mChildren[node * 8 + child] = next;
+            }
+            node = next;
+        }
+    }
+
+    /**
+     * 从最深层开始，把像素数最少的节点合并成叶子
+     */
+    private void reduce() {
+        int leaves = 0;
+        for (int node = 0; node < mNodeCount; node++) {
+            if (mLeaf[node]) leaves++;
+        }
+        for (int level = DEPTH - 1; level >= 0 && leaves > mMaxColors; level--) {
+            int size = 0;
+            long[] candidates = new long[mNodeCount];
+            for (int node = 0; node < mNodeCount; node++) {
+                if (mLevel[node] == level && !mLeaf[node]) {
+                    candidates[size++] = ((long) mCount[node] << 32) | node;
+                }
+            }
+            Arrays.sort(candidates, 0, size);
+            for (int i = 0; i < size && leaves > mMaxColors; i++) {
+                int node = (int) candidates[i];
+                int children = 0;
+                for (int c = 0; c < 8; c++) {
+                    if (mChildren[node * 8 + c] != 0) {
+                        children++;
+                        mChildren[node * 8 + c] = 0;
+                    }
+                }
+                mLeaf[node] = true;
+                leaves -= children - 1;
+            }
+        }
+    }
+
+    private void assignPalette(int node) {
+        if (mLeaf[node]) {
+            int count = Math.max(1, mCount[node]);
+            int r = (int) (mSumR[node] / count);
+            int g = (int) (mSumG[node] / count);
+            int b = (int) (mSumB[node] / count);
+            mPalette[mPaletteSize++] = 0xFF000000 | (r << 16) | (g << 8) | b;
+            return;
+        }
+        for (int c = 0; c < 8; c++) {
+            int child = mChildren[node * 8 + c];
+            if (child != 0) {
+                assignPalette(child);
+            }
+        }
+    }
+
+    /**
+     * 用直方图做一次k-means迭代，修正八叉树按立方体切分带来的偏差，之后查表使用最近颜色
+     */
+    private void refine() {
+        long[] sumR = new long[mPaletteSize];
+        long[] sumG = new long[mPaletteSize];
+        long[] sumB = new long[mPaletteSize];
+        int[] count = new int[mPaletteSize];
+        for (int bin = 0; bin < BINS; bin++) {
+            int n = mHistogram[bin];
+            if (n == 0) continue;
+            int index = nearest(mBinR[bin] / n, mBinG[bin] / n, mBinB[bin] / n);
+            sumR[index] += mBinR[bin];
+            sumG[index] += mBinG[bin];
+            sumB[index] += mBinB[bin];
+            count[index] += n;
+        }
+        for (int i = 0; i < mPaletteSize; i++) {
+            if (count[i] == 0) continue;
+            mPalette[i] = 0xFF000000 | (int) (sumR[i] / count[i]) << 16
+                    | (int) (sumG[i] / count[i]) << 8 | (int) (sumB[i] / count[i]);
+        }
+    }
+
+    private int lookup(int bin) {
+        int r = (bin >> 10) & 0x1F;
+        int g = (bin >> 5) & 0x1F;
+        int b = bin & 0x1F;
+        return nearest((r << 3) | 4, (g << 3) | 4, (b << 3) | 4);
+    }
+
+    /**
+     * 调色板按绿色分量排序，从最接近的位置向两边搜索，绿色差已经超过当前最优距离时停止
+     */
+    private void sortPalette() {
+        for (int i = 0; i < mPaletteSize; i++) {
+            mSortKey[i] = ((long) ((mPalette[i] >> 8) & 0xFF) << 32) | i;
+        }
+        Arrays.sort(mSortKey, 0, mPaletteSize);
+        for (int i = 0; i < mPaletteSize; i++) {
+            int index = (int) mSortKey[i];
+            mOrder[i] = index;
+            mOrderG[i] = (mPalette[index] >> 8) & 0xFF;
+        }
+    }
+
+    private int nearest(int r, int g, int b) {
+        int low = 0, high = mPaletteSize - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mOrderG[mid] < g) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        int best = mOrder[low];
+        int bestDistance = Integer.MAX_VALUE;
+        for (int up = low, down = low - 1; up < mPaletteSize || down >= 0; ) {
+            if (up < mPaletteSize) {
+                int dg = mOrderG[up] - g;
+                if (dg * dg * 4 >= bestDistance) {
+                    up = mPaletteSize;
+                } else {
+                    int distance = distance(mPalette[mOrder[up]], r, g, b);
+                    if (distance < bestDistance) {
+                        bestDistance = distance;
+                        best = mOrder[up];
+                    }
+                    up++;
+                }
+            }
+            if (down >= 0) {
+                int dg = mOrderG[down] - g;
+                if (dg * dg * 4 >= bestDistance) {
+                    down = -1;
+                } else {
+                    int distance = distance(mPalette[mOrder[down]], r, g, b);
+                    if (distance < bestDistance) {
+                        bestDistance = distance;
+                        best = mOrder[down];
+                    }
+                    down--;
+                }
+            }
+        }
+        return best;
+    }
+
+    private static int distance(int color, int r, int g, int b) {
+        int dr = ((color >> 16) & 0xFF) - r;
+        int dg = ((color >> 8) & 0xFF) - g;
+        int db = (color & 0xFF) - b;
+        return dr * dr * 2 + dg * dg * 4 + db * db * 3;
+    }
+}
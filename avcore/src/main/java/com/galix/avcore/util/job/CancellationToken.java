@@ -0,0 +1,31 @@
+package com.galix.avcore.util.job;
+
+import java.util.concurrent.CancellationException;
+
+/**
+ * 取消标记，任务在处理每一帧或者每一段之前检查
+ *
+ * @Author:Galis
+ * @Date:2022.04.28
+ */
+public class CancellationToken {
+
+    private volatile boolean mCancelled = false;
+
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * 已经取消时抛出CancellationException，任务不需要自己处理
+     */
+    public void throwIfCancelled() {
+        if (mCancelled) {
+            throw new CancellationException();
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package com.galix.avcore.util.job;
+
+/**
+ * 根据持久化的type和args重新创建任务
+ *
+ * @Author:Galis
+ * @Date:2022.04.28
+ */
+public interface IJobFactory {
+
+    /**
+     * @return 不认识的类型返回null，该任务被丢弃
+     */
+    MediaJob create(String type, String key, int priority, String args);
+}
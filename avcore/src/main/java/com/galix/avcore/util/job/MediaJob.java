@@ -0,0 +1,76 @@
+package com.galix.avcore.util.job;
+
+/**
+ * 后台媒体任务
+ * key相同的任务会被合并；type和args非空的任务在进程重启后可以由IJobFactory重新创建。
+ *
+ * @Author:Galis
+ * @Date:2022.04.28
+ */
+public abstract class MediaJob {
+
+    //优先级，数值越小越先执行
+    public static final int PRIORITY_VISIBLE_THUMB = 0;
+    public static final int PRIORITY_THUMB = 1;//不在屏幕上的缩略图
+    public static final int PRIORITY_PROXY = 2;
+    public static final int PRIORITY_GOP_ADJUST = 3;
+    public static final int PRIORITY_ANALYSIS = 4;
+
+    //资源类型，每类资源单独限制并发
+    public static final int RESOURCE_DECODER = 0;
+    public static final int RESOURCE_ENCODER = 1;
+    public static final int RESOURCE_CPU = 2;
+
+    private final String mKey;
+    private final int mPriority;
+    private final int mResource;
+
+    public MediaJob(String key, int priority, int resource) {
+        mKey = key;
+        mPriority = priority;
+        mResource = resource;
+    }
+
+    public String getKey() {
+        return mKey;
+    }
+
+    public int getPriority() {
+        return mPriority;
+    }
+
+    public int getResource() {
+        return mResource;
+    }
+
+    /**
+     * 持久化类型，返回null表示不需要持久化
+     */
+    public String getType() {
+        return null;
+    }
+
+    /**
+     * 持久化参数，不能包含换行和制表符
+     */
+    public String getArgs() {
+        return null;
+    }
+
+    /**
+     * 在工作线程执行，需要定期检查token
+     *
+     * @param token 所有提交者都取消后被取消
+     * @throws Exception 失败
+     */
+    public abstract void run(CancellationToken token) throws Exception;
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{" +
+                "key='" + mKey + '\'' +
+                ", priority=" + mPriority +
+                ", resource=" + mResource +
+                '}';
+    }
+}
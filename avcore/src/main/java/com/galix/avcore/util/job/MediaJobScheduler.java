@@ -0,0 +1,378 @@
+package com.galix.avcore.util.job;
+
+import com.galix.avcore.util.LogUtil;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 后台媒体任务调度
+ * 按优先级(可见缩略图 > 代理文件 > GOP调整 > 分析)出队，同优先级先进先出；
+ * key相同且还没结束的任务合并成一个，优先级取最高的；每个提交者拿到一个Ticket，全部取消后任务才取消；
+ * 解码器，编码器，CPU三类资源分别限制并发；排队和运行中的任务写进日志文件(先写tmp再rename)，重启后由IJobFactory恢复；
+ * 日志在单独的线程写，连续的变化合并成一次写入，没有type的任务不触发写入。
+ *
+ * @Author:Galis
+ * @Date:2022.04.28
+ */
+public class MediaJobScheduler {
+
+    private static final String VERSION = "jobs1";
+
+    /**
+     * 任务结束回调，在工作线程调用，已经取消的Ticket不回调
+     */
+    public interface Callback {
+        /**
+         * @param job       任务
+         * @param error     失败原因，成功为null
+         * @param cancelled 是否被取消
+         */
+        void onFinish(MediaJob job, Throwable error, boolean cancelled);
+    }
+
+    private static class Entry {
+        MediaJob job;
+        int priority;
+        long seq;
+        boolean running;
+        final CancellationToken token = new CancellationToken();
+        final List<Ticket> tickets = new ArrayList<>();
+    }
+
+    /**
+     * 一次提交，任务的优先级取所有提交中最高的
+     */
+    public class Ticket {
+        private final Entry mEntry;
+        private final Callback mCallback;
+        private int mPriority;
+        private boolean mCancelled;
+
+        private Ticket(Entry entry, Callback callback, int priority) {
+            mEntry = entry;
+            mCallback = callback;
+            mPriority = priority;
+        }
+
+        public MediaJob getJob() {
+            return mEntry.job;
+        }
+
+        /**
+         * 取消这次提交，还有其它提交者时任务回到它们的优先级；没有时取消任务，排队中的任务直接出队
+         */
+        public void cancel() {
+            synchronized (mLock) {
+                if (mCancelled) return;
+                mCancelled = true;
+                mEntry.tickets.remove(this);
+                if (!mEntry.tickets.isEmpty()) {
+                    reprioritizeLocked(mEntry);
+                    return;
+                }
+                mEntry.token.cancel();
+                if (!mEntry.running && mQueue.remove(mEntry)) {
+                    mEntries.remove(mEntry.job.getKey());
+                    requestSaveLocked(mEntry.job);
+                }
+            }
+        }
+
+        /**
+         * 提高优先级，比如缩略图滚动到可见区域
+         */
+        public void promote(int priority) {
+            synchronized (mLock) {
+                if (mCancelled || priority >= mPriority) return;
+                mPriority = priority;
+                reprioritizeLocked(mEntry);
+            }
+        }
+    }
+
+    private final Object mLock = new Object();
+    private final TreeSet<Entry> mQueue = new TreeSet<>((a, b) ->
+            a.priority != b.priority ? Integer.compare(a.priority, b.priority) : Long.compare(a.seq, b.seq));
+    private final Map<String, Entry> mEntries = new LinkedHashMap<>();//排队和运行中的任务
+    private final int[] mLimits;
+    private final int[] mRunning;
+    private final ExecutorService mExecutor;
+    private final ExecutorService mJournalExecutor;
+    private final File mJournal;
+    private long mSeq = 0;
+    private boolean mShutdown = false;
+    private boolean mSavePending = false;
+
+    /**
+     * @param limits  每类资源的并发上限，下标为MediaJob.RESOURCE_*
+     * @param journal 持久化文件，为空时不持久化
+     * @param factory 恢复日志里的任务，为空时不恢复
+     */
+    public MediaJobScheduler(int[] limits, File journal, IJobFactory factory) {
+        mLimits = limits.clone();
+        mRunning = new int[limits.length];
+        mJournal = journal;
+        AtomicInteger index = new AtomicInteger();
+        mExecutor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "MediaJob-" + index.getAndIncrement());
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            return thread;
+        });
+        mJournalExecutor = journal == null ? null : Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "MediaJob-journal");
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            return thread;
+        });
+        if (factory != null) {
+            restore(factory);
+        }
+    }
+
+    /**
+     * 默认并发: 解码器2，编码器1，CPU为核数-1
+     */
+    public static int[] defaultLimits() {
+        return new int[]{2, 1, Math.max(1, Runtime.getRuntime().availableProcessors() - 1)};
+    }
+
+    /**
+     * 提交任务，key相同且没有结束的任务直接合并
+     *
+     * @param job      任务
+     * @param callback 结束回调，可以为空
+     * @return Ticket
+     */
+    public Ticket submit(MediaJob job, Callback callback) {
+        synchronized (mLock) {
+            Entry entry = mEntries.get(job.getKey());
+            if (entry == null || entry.token.isCancelled()) {
+                entry = new Entry();
+                entry.job = job;
+                entry.priority = job.getPriority();
+                entry.seq = mSeq++;
+                mEntries.put(job.getKey(), entry);
+                mQueue.add(entry);
+                requestSaveLocked(job);
+            }
+            Ticket ticket = new Ticket(entry, callback, job.getPriority());
+            entry.tickets.add(ticket);
+            reprioritizeLocked(entry);
+            dispatchLocked();
+            return ticket;
+        }
+    }
+
+    /**
+     * @return 每类资源当前的并发上限
+     */
+    public int[] getLimits() {
+        synchronized (mLock) {
+            return mLimits.clone();
+        }
+    }
+
+    public void setLimit(int resource, int limit) {
+        synchronized (mLock) {
+            mLimits[resource] = limit;
+            dispatchLocked();
+        }
+    }
+
+    /**
+     * @return 排队和运行中的任务数
+     */
+    public int getPendingCount() {
+        synchronized (mLock) {
+            return mEntries.size();
+        }
+    }
+
+    /**
+     * 停止派发，运行中的任务取消；未完成的任务保留在日志里，下次启动恢复
+     * 已经排队的日志写入仍会完成
+     */
+    public void shutdown() {
+        String journal = null;
+        synchronized (mLock) {
+            //还没写的日志要在取消运行中的任务之前生成内容
+            if (mSavePending) {
+                journal = journalLocked();
+            }
+            mShutdown = true;
+            for (Entry entry : mEntries.values()) {
+                if (entry.running) {
+                    entry.token.cancel();
+                }
+            }
+        }
+        mExecutor.shutdown();
+        if (mJournalExecutor != null) {
+            if (journal != null) {
+                final String content = journal;
+                mJournalExecutor.execute(() -> write(content));
+            }
+            mJournalExecutor.shutdown();
+        }
+    }
+
+    /**
+     * 任务优先级改为提交中最高的，排队中的任务重新排序
+     */
+    private void reprioritizeLocked(Entry entry) {
+        int priority = Integer.MAX_VALUE;
+        for (Ticket ticket : entry.tickets) {
+            priority = Math.min(priority, ticket.mPriority);
+        }
+        if (priority == Integer.MAX_VALUE || priority == entry.priority) return;
+        if (!entry.running && mQueue.remove(entry)) {
+            entry.priority = priority;
+            mQueue.add(entry);
+            dispatchLocked();
+        } else {
+            entry.priority = priority;
+        }
+    }
+
+    private void dispatchLocked() {
+        if (mShutdown) return;
+        List<Entry> started = null;
+        for (Entry entry : mQueue) {
+            int resource = entry.job.getResource();
+            if (mRunning[resource] >= mLimits[resource]) continue;
+            mRunning[resource]++;
+            entry.running = true;
+            if (started == null) started = new ArrayList<>();
+            started.add(entry);
+        }
+        if (started == null) return;
+        for (Entry entry : started) {
+            mQueue.remove(entry);
+            mExecutor.execute(() -> execute(entry));
+        }
+    }
+
+    private void execute(Entry entry) {
+        Throwable error = null;
+        try {
+            entry.token.throwIfCancelled();
+            entry.job.run(entry.token);
+        } catch (CancellationException e) {
+            //取消
+        } catch (Throwable e) {
+            error = e;
+            LogUtil.log(LogUtil.ENGINE_TAG + "MediaJobScheduler#execute#Error#" + entry.job + "#" + e.getMessage());
+        }
+        boolean cancelled = entry.token.isCancelled();
+        List<Ticket> tickets;
+        synchronized (mLock) {
+            mRunning[entry.job.getResource()]--;
+            if (mEntries.get(entry.job.getKey()) == entry) {
+                mEntries.remove(entry.job.getKey());
+            }
+            tickets = new ArrayList<>(entry.tickets);
+            //被shutdown取消的任务留在日志里
+            requestSaveLocked(entry.job);
+            dispatchLocked();
+        }
+        for (Ticket ticket : tickets) {
+            if (ticket.mCallback != null) {
+                ticket.mCallback.onFinish(entry.job, error, cancelled);
+            }
+        }
+    }
+
+    /**
+     * 每行: type\tkey\tpriority\targs
+     */
+    private void restore(IJobFactory factory) {
+        if (mJournal == null || !mJournal.exists()) return;
+        List<MediaJob> jobs = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(mJournal), StandardCharsets.UTF_8))) {
+            if (!VERSION.equals(reader.readLine())) return;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", -1);
+                if (fields.length != 4) continue;
+                MediaJob job = factory.create(fields[0], fields[1], Integer.parseInt(fields[2]), fields[3]);
+                if (job != null) {
+                    jobs.add(job);
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            LogUtil.log(LogUtil.ENGINE_TAG + "MediaJobScheduler#restore#Error#" + e.getMessage());
+        }
+        LogUtil.log(LogUtil.ENGINE_TAG + "MediaJobScheduler#restore#" + jobs.size());
+        //按优先级提交，避免低优先级的任务先占住资源
+        Collections.sort(jobs, (a, b) -> Integer.compare(a.getPriority(), b.getPriority()));
+        for (MediaJob job : jobs) {
+            submit(job, null);
+        }
+    }
+
+    /**
+     * 日志需要更新，已经有写入在排队时直接合并
+     */
+    private void requestSaveLocked(MediaJob job) {
+        if (mJournalExecutor == null || mShutdown || job.getType() == null || mSavePending) return;
+        mSavePending = true;
+        mJournalExecutor.execute(this::save);
+    }
+
+    /**
+     * 在日志线程执行，锁内只生成内容，写文件不持有锁
+     */
+    private void save() {
+        String content;
+        synchronized (mLock) {
+            //shutdown已经把内容交给日志线程
+            if (mShutdown) return;
+            mSavePending = false;
+            content = journalLocked();
+        }
+        write(content);
+    }
+
+    private String journalLocked() {
+        StringBuilder content = new StringBuilder(VERSION).append('\n');
+        for (Entry entry : mEntries.values()) {
+            MediaJob job = entry.job;
+            if (job.getType() == null || entry.token.isCancelled()) continue;
+            content.append(job.getType()).append('\t').append(job.getKey()).append('\t').append(entry.priority)
+                    .append('\t').append(job.getArgs() == null ? "" : job.getArgs()).append('\n');
+        }
+        return content.toString();
+    }
+
+    private void write(String content) {
+        File tmp = new File(mJournal.getPath() + ".tmp");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8)) {
+            writer.write(content);
+        } catch (IOException e) {
+            LogUtil.log(LogUtil.ENGINE_TAG + "MediaJobScheduler#save#Error#" + e.getMessage());
+            tmp.delete();
+            return;
+        }
+        if (!tmp.renameTo(mJournal)) {
+            tmp.delete();
+        }
+    }
+}
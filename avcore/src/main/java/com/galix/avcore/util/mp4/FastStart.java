@@ -0,0 +1,184 @@
+package com.galix.avcore.util.mp4;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * moov前置(faststart)
+ * 只把moov读进内存，改写其中的stco/co64块偏移(偏移超过32位时stco转co64)，
+ * 再按 头部 + moov + mdat... 的顺序用FileChannel.transferTo拷贝到同目录临时文件，最后rename覆盖原文件。
+ * 样本数据不经过Java堆，内存占用只和moov大小有关。
+ *
+ * @Author:Galis
+ * @Date:2022.04.28
+ */
+public class FastStart {
+
+    private static final String TMP_SUFFIX = ".faststart";
+
+    /**
+     * @param file mp4文件
+     * @return 是否做了调整，moov已经在mdat前面或者不是普通mp4时返回false
+     */
+    public static boolean process(File file) throws IOException {
+        Mp4BoxReader.Box moov;
+        Mp4BoxReader.Box mdat;
+        ByteBuffer moovData;
+        try (Mp4BoxReader reader = new Mp4BoxReader(file)) {
+            moov = reader.find("moov");
+            mdat = reader.find("mdat");
+            if (moov == null || mdat == null || moov.offset < mdat.offset) {
+                return false;
+            }
+            moovData = reader.read(moov);
+        }
+        Relocation relocation = new Relocation(mdat.offset, moov.offset, moov.size);
+        relocation.newSize = size(moov, moovData, moov.dataOffset(), false);
+        if (relocation.maxOffset(moov, moovData, moov.dataOffset()) > 0xFFFFFFFFL) {
+            relocation.co64 = true;
+            relocation.newSize = size(moov, moovData, moov.dataOffset(), true);
+        }
+        ByteBuffer out = ByteBuffer.allocate((int) relocation.newSize);
+        write(moov, moovData, moov.dataOffset(), relocation, out);
+        out.flip();
+
+        File tmp = new File(file.getPath() + TMP_SUFFIX);
+        try (FileChannel src = new FileInputStream(file).getChannel();
+             FileChannel dst = new FileOutputStream(tmp).getChannel()) {
+            long end = src.size();
+            transfer(src, 0, mdat.offset, dst);
+            while (out.hasRemaining()) {
+                dst.write(out);
+            }
+            transfer(src, mdat.offset, moov.offset - mdat.offset, dst);
+            transfer(src, moov.offset + moov.size, end - moov.offset - moov.size, dst);
+            dst.force(false);
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("rename failed " + tmp);
+        }
+        return true;
+    }
+
+    /**
+     * 块偏移的重定位: mdat起点之前不变，moov原位置之前的数据后移新moov大小，原moov之后的数据后移大小差
+     */
+    private static class Relocation {
+        final long insertOffset;
+        final long moovOffset;
+        final long moovSize;
+        long newSize;
+        boolean co64 = false;
+
+        Relocation(long insertOffset, long moovOffset, long moovSize) {
+            this.insertOffset = insertOffset;
+            this.moovOffset = moovOffset;
+            this.moovSize = moovSize;
+        }
+
+        long apply(long offset) {
+            if (offset < insertOffset) return offset;
+            if (offset < moovOffset) return offset + newSize;
+            return offset + newSize - moovSize;
+        }
+
+        long maxOffset(Mp4BoxReader.Box box, ByteBuffer data, long base) {
+            long max = 0;
+            if (box.type.equals("stco") || box.type.equals("co64")) {
+                int position = (int) (box.dataOffset() - base);
+                int count = data.getInt(position + 4);
+                for (int i = 0; i < count; i++) {
+                    long offset = box.type.equals("stco") ? data.getInt(position + 8 + i * 4) & 0xFFFFFFFFL
+                            : data.getLong(position + 8 + i * 8);
+                    max = Math.max(max, apply(offset));
+                }
+            }
+            for (Mp4BoxReader.Box child : box.children) {
+                max = Math.max(max, maxOffset(child, data, base));
+            }
+            return max;
+        }
+    }
+
+    private static long size(Mp4BoxReader.Box box, ByteBuffer data, long base, boolean co64) {
+        if (co64 && box.type.equals("stco")) {
+            int count = data.getInt((int) (box.dataOffset() - base) + 4);
+            return 8 + 8 + count * 8L;
+        }
+        if (box.children.isEmpty()) {
+            return box.size;
+        }
+        long size = 8;
+        for (Mp4BoxReader.Box child : box.children) {
+            size += size(child, data, base, co64);
+        }
+        return size;
+    }
+
+    /**
+     * 重新写出盒子树，容器盒子重新计算大小，块偏移表重定位，其余原样拷贝
+     */
+    private static void write(Mp4BoxReader.Box box, ByteBuffer data, long base, Relocation relocation, ByteBuffer out) {
+        int position = (int) (box.dataOffset() - base);
+        if (box.type.equals("stco") || box.type.equals("co64")) {
+            boolean srcCo64 = box.type.equals("co64");
+            boolean dstCo64 = srcCo64 || relocation.co64;
+            int count = data.getInt(position + 4);
+            out.putInt((int) (8 + 8 + count * (dstCo64 ? 8L : 4L)));
+            putType(out, dstCo64 ? "co64" : "stco");
+            out.putInt(data.getInt(position));//version + flags
+            out.putInt(count);
+            for (int i = 0; i < count; i++) {
+                long offset = srcCo64 ? data.getLong(position + 8 + i * 8) : data.getInt(position + 8 + i * 4) & 0xFFFFFFFFL;
+                offset = relocation.apply(offset);
+                if (dstCo64) {
+                    out.putLong(offset);
+                } else {
+                    out.putInt((int) offset);
+                }
+            }
+            return;
+        }
+        if (box.children.isEmpty()) {
+            copy(data, (int) (box.offset - base), (int) box.size, out);
+            return;
+        }
+        out.putInt((int) size(box, data, base, relocation.co64));
+        putType(out, box.type);
+        for (Mp4BoxReader.Box child : box.children) {
+            write(child, data, base, relocation, out);
+        }
+    }
+
+    private static void putType(ByteBuffer out, String type) {
+        for (int i = 0; i < 4; i++) {
+            out.put((byte) type.charAt(i));
+        }
+    }
+
+    private static void copy(ByteBuffer data, int offset, int size, ByteBuffer out) {
+        ByteBuffer slice = data.duplicate();
+        slice.limit(offset + size);
+        slice.position(offset);
+        out.put(slice);
+    }
+
+    private static void transfer(FileChannel src, long position, long count, FileChannel dst) throws IOException {
+        while (count > 0) {
+            long transferred = src.transferTo(position, count, dst);
+            if (transferred <= 0) {
+                throw new IOException("transferTo stalled at " + position);
+            }
+            position += transferred;
+            count -= transferred;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.galix.avcore.util.mp4;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import com.galix.avcore.util.LogUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * fMP4输出，MediaFormat转成Mp4Track后交给FragmentedMp4Writer
+ * 边写边落盘，进程中断时已经写出的分片仍然可以播放。
+ *
+ * @Author:Galis
+ * @Date:2022.04.26
+ */
+public class FragmentedMp4Sink implements IMuxerSink {
+
+    private final FragmentedMp4Writer mWriter;
+
+    public FragmentedMp4Sink(String path) throws IOException {
+        mWriter = new FragmentedMp4Writer(new File(path));
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        Mp4Track track;
+        if (MediaFormat.MIMETYPE_VIDEO_AVC.equals(mime)) {
+            track = Mp4Track.avc(format.getInteger(MediaFormat.KEY_WIDTH), format.getInteger(MediaFormat.KEY_HEIGHT),
+                    toBytes(format.getByteBuffer("csd-0")), toBytes(format.getByteBuffer("csd-1")));
+        } else if (MediaFormat.MIMETYPE_AUDIO_AAC.equals(mime)) {
+            track = Mp4Track.aac(format.getInteger(MediaFormat.KEY_SAMPLE_RATE),
+                    format.getInteger(MediaFormat.KEY_CHANNEL_COUNT), toBytes(format.getByteBuffer("csd-0")));
+            if (format.containsKey(MediaFormat.KEY_BIT_RATE)) {
+                track.bitrate = format.getInteger(MediaFormat.KEY_BIT_RATE);
+            }
+        } else {
+            throw new IllegalArgumentException("FragmentedMp4Sink unsupported mime " + mime);
+        }
+        LogUtil.log(LogUtil.ENGINE_TAG + "FragmentedMp4Sink#addTrack#" + track.toString());
+        return mWriter.addTrack(track);
+    }
+
+    @Override
+    public void start() {
+        try {
+            mWriter.start();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer byteBuffer, MediaCodec.BufferInfo bufferInfo) {
+        if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0 || bufferInfo.size <= 0) {
+            return;
+        }
+        ByteBuffer sample = byteBuffer.duplicate();
+        sample.limit(bufferInfo.offset + bufferInfo.size);
+        sample.position(bufferInfo.offset);
+        try {
+            mWriter.writeSample(trackIndex, sample, bufferInfo.presentationTimeUs,
+                    (bufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void stop() {
+        try {
+            mWriter.stop();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void release() {
+        try {
+            mWriter.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static byte[] toBytes(ByteBuffer buffer) {
+        if (buffer == null) return new byte[0];
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(0);
+        byte[] bytes = new byte[duplicate.remaining()];
+        duplicate.get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,574 @@
+package com.galix.avcore.util.mp4;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 纯Java的fMP4(ISO-BMFF分片)写入
+ * 文件结构: ftyp moov(mvex) [moof mdat]...
+ * 样本只在当前分片里缓存，分片写出后缓存复用，内存上限约为maxFragmentBytes加上最大的单个样本，与文件时长无关。
+ * 视频样本允许是Annex-B(MediaCodec输出)或者长度前缀格式，写入时统一转成4字节长度前缀。
+ * 非线程安全，多线程写入需要外部加锁。
+ *
+ * @Author:Galis
+ * @Date:2022.04.26
+ */
+public class FragmentedMp4Writer implements Closeable {
+
+    public static final long DEFAULT_FRAGMENT_US = 1000000;
+    public static final int DEFAULT_MAX_FRAGMENT_BYTES = 8 * 1024 * 1024;
+
+    static final int TFHD_DEFAULT_BASE_IS_MOOF = 0x020000;
+    static final int TRUN_FLAGS = 0x000F01;//data offset,duration,size,flags,composition offset
+    static final int SAMPLE_FLAGS_SYNC = 0x02000000;//depends_on=2
+    static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;//depends_on=1,non_sync
+    private static final int NAL_AUD = 9;
+    private static final int[] UNITY_MATRIX = {0x00010000, 0, 0, 0, 0x00010000, 0, 0, 0, 0x40000000};
+
+    private static class TrackState {
+        final Mp4Track track;
+        final int trackId;
+        ByteBuffer data = ByteBuffer.allocate(64 * 1024);
+        int count;
+        long[] pts = new long[64];
+        long[] dts = new long[64];
+        int[] sizes = new int[64];
+        boolean[] sync = new boolean[64];
+        long lastDuration;
+
+        TrackState(Mp4Track track, int trackId) {
+            this.track = track;
+            this.trackId = trackId;
+        }
+
+        void ensureSamples() {
+            if (count < pts.length) return;
+            int length = pts.length * 2;
+            pts = Arrays.copyOf(pts, length);
+            dts = Arrays.copyOf(dts, length);
+            sizes = Arrays.copyOf(sizes, length);
+            sync = Arrays.copyOf(sync, length);
+        }
+
+        void ensureData(int bytes) {
+            if (data.remaining() >= bytes) return;
+            ByteBuffer buffer = ByteBuffer.allocate(Math.max(data.capacity() * 2, data.position() + bytes));
+            data.flip();
+            buffer.put(data);
+            data = buffer;
+        }
+    }
+
+    private final FileChannel mChannel;
+    private final RandomAccessFile mFile;
+    private final long mFragmentUs;
+    private final int mMaxFragmentBytes;
+    private final List<TrackState> mTracks = new ArrayList<>();
+    private ByteBuffer mHeader = ByteBuffer.allocate(4096);
+    private boolean mHasVideo = false;
+    private boolean mStarted = false;
+    private boolean mStopped = false;
+    private int mSequence = 0;
+    private long mFragmentStartUs = -1;
+    private int mBufferedBytes = 0;
+    private long mBytesWritten = 0;
+    private int mFragmentCount = 0;
+
+    public FragmentedMp4Writer(File file) throws IOException {
+        this(file, DEFAULT_FRAGMENT_US, DEFAULT_MAX_FRAGMENT_BYTES);
+    }
+
+    public FragmentedMp4Writer(File file, long fragmentUs, int maxFragmentBytes) throws IOException {
+        mFile = new RandomAccessFile(file, "rw");
+        mFile.setLength(0);
+        mChannel = mFile.getChannel();
+        mFragmentUs = fragmentUs;
+        mMaxFragmentBytes = maxFragmentBytes;
+    }
+
+    /**
+     * 写入到外部的FileChannel，close时不关闭channel
+     */
+    public FragmentedMp4Writer(FileChannel channel, long fragmentUs, int maxFragmentBytes) {
+        mFile = null;
+        mChannel = channel;
+        mFragmentUs = fragmentUs;
+        mMaxFragmentBytes = maxFragmentBytes;
+    }
+
+    /**
+     * 添加轨道，必须在start之前调用
+     *
+     * @return 轨道索引
+     */
+    public int addTrack(Mp4Track track) {
+        if (mStarted) {
+            throw new IllegalStateException("addTrack after start");
+        }
+        mTracks.add(new TrackState(track, mTracks.size() + 1));
+        mHasVideo |= track.isVideo;
+        return mTracks.size() - 1;
+    }
+
+    /**
+     * 写入ftyp和moov
+     */
+    public void start() throws IOException {
+        if (mStarted) return;
+        if (mTracks.isEmpty()) {
+            throw new IllegalStateException("no track");
+        }
+        mStarted = true;
+        mHeader.clear();
+        writeFtyp();
+        writeMoov();
+        mHeader.flip();
+        writeFully(mHeader);
+    }
+
+    /**
+     * 写入一个样本
+     *
+     * @param trackIndex addTrack返回的索引
+     * @param buffer     样本数据，position到limit
+     * @param ptsUs      显示时间
+     * @param sync       是否关键帧，音频忽略
+     */
+    public void writeSample(int trackIndex, ByteBuffer buffer, long ptsUs, boolean sync) throws IOException {
+        if (!mStarted || mStopped) {
+            throw new IllegalStateException("writeSample not started");
+        }
+        TrackState state = mTracks.get(trackIndex);
+        boolean isSync = !state.track.isVideo || sync;
+        if (mFragmentStartUs >= 0 && ptsUs - mFragmentStartUs >= mFragmentUs
+                && (state.track.isVideo ? isSync : !mHasVideo)) {
+            flushFragment();
+        }
+        if (mBufferedBytes > 0 && mBufferedBytes + buffer.remaining() > mMaxFragmentBytes) {
+            flushFragment();
+        }
+        state.ensureSamples();
+        int size = state.track.isVideo ? appendNalUnits(state, buffer) : appendRaw(state, buffer);
+        state.pts[state.count] = state.track.toTimescale(ptsUs);
+        state.sizes[state.count] = size;
+        state.sync[state.count] = isSync;
+        state.count++;
+        mBufferedBytes += size;
+        if (mFragmentStartUs < 0) {
+            mFragmentStartUs = ptsUs;
+        }
+    }
+
+    /**
+     * 写出最后一个分片
+     */
+    public void stop() throws IOException {
+        if (!mStarted || mStopped) return;
+        flushFragment();
+        mStopped = true;
+        if (mFile != null) {
+            mChannel.force(false);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            stop();
+        } finally {
+            if (mFile != null) {
+                mFile.close();
+            }
+        }
+    }
+
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    public int getFragmentCount() {
+        return mFragmentCount;
+    }
+
+    /**
+     * 当前样本缓存占用的内存，用来验证内存上限
+     */
+    long bufferedCapacity() {
+        long capacity = mHeader.capacity();
+        for (TrackState state : mTracks) {
+            capacity += state.data.capacity() + state.pts.length * 25L;
+        }
+        return capacity;
+    }
+
+    private int appendRaw(TrackState state, ByteBuffer buffer) {
+        int size = buffer.remaining();
+        state.ensureData(size);
+        state.data.put(buffer.duplicate());
+        return size;
+    }
+
+    /**
+     * Annex-B转4字节长度前缀，丢弃AUD
+     */
+    private int appendNalUnits(TrackState state, ByteBuffer buffer) {
+        int start = buffer.position();
+        int limit = buffer.limit();
+        int first = startCodeLength(buffer, start, limit);
+        if (first == 0) {
+            return appendRaw(state, buffer);
+        }
+        //长度前缀最多比起始码多1字节
+        state.ensureData(buffer.remaining() + buffer.remaining() / 3 + 4);
+        int begin = state.data.position();
+        int nalStart = start + first;
+        while (nalStart < limit) {
+            int next = nalStart;
+            int nextCode = 0;
+            while (next < limit) {
+                if (buffer.get(next) == 0 && (nextCode = startCodeLength(buffer, next, limit)) > 0) {
+                    break;
+                }
+                next++;
+            }
+            if (next > nalStart && (buffer.get(nalStart) & 0x1F) != NAL_AUD) {
+                state.data.putInt(next - nalStart);
+                ByteBuffer nal = buffer.duplicate();
+                nal.limit(next);
+                nal.position(nalStart);
+                state.data.put(nal);
+            }
+            nalStart = next + nextCode;
+        }
+        return state.data.position() - begin;
+    }
+
+    private static int startCodeLength(ByteBuffer buffer, int index, int limit) {
+        if (index + 3 <= limit && buffer.get(index) == 0 && buffer.get(index + 1) == 0) {
+            if (buffer.get(index + 2) == 1) return 3;
+            if (index + 4 <= limit && buffer.get(index + 2) == 0 && buffer.get(index + 3) == 1) return 4;
+        }
+        return 0;
+    }
+
+    private void flushFragment() throws IOException {
+        if (mBufferedBytes == 0) {
+            for (TrackState state : mTracks) {
+                state.count = 0;
+                state.data.clear();
+            }
+            return;
+        }
+        mSequence++;
+        int moofSize = 8 + 16;
+        for (TrackState state : mTracks) {
+            if (state.count > 0) {
+                moofSize += 8 + 16 + 20 + 20 + 16 * state.count;
+            }
+        }
+        ensureHeader(moofSize + 8);
+        mHeader.clear();
+        int moof = begin("moof");
+        int mfhd = fullBox("mfhd", 0, 0);
+        mHeader.putInt(mSequence);
+        end(mfhd);
+        int dataOffset = moofSize + 8;
+        for (TrackState state : mTracks) {
+            if (state.count == 0) continue;
+            computeDecodeTimes(state);
+            int traf = begin("traf");
+            int box = fullBox("tfhd", 0, TFHD_DEFAULT_BASE_IS_MOOF);
+            mHeader.putInt(state.trackId);
+            end(box);
+            box = fullBox("tfdt", 1, 0);
+            mHeader.putLong(state.dts[0]);
+            end(box);
+            box = fullBox("trun", 1, TRUN_FLAGS);
+            mHeader.putInt(state.count);
+            mHeader.putInt(dataOffset);
+            for (int i = 0; i < state.count; i++) {
+                long duration = i + 1 < state.count ? state.dts[i + 1] - state.dts[i] : state.lastDuration;
+                mHeader.putInt((int) duration);
+                mHeader.putInt(state.sizes[i]);
+                mHeader.putInt(state.sync[i] ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC);
+                mHeader.putInt((int) (state.pts[i] - state.dts[i]));
+            }
+            end(box);
+            end(traf);
+            dataOffset += state.data.position();
+        }
+        end(moof);
+        mHeader.putInt(8 + mBufferedBytes);
+        mHeader.put(fourcc("mdat"));
+        mHeader.flip();
+        writeFully(mHeader);
+        for (TrackState state : mTracks) {
+            state.data.flip();
+            writeFully(state.data);
+            state.data.clear();
+            state.count = 0;
+        }
+        mBufferedBytes = 0;
+        mFragmentStartUs = -1;
+        mFragmentCount++;
+    }
+
+    /**
+     * 编码器输出是解码顺序，把分片内的pts排序作为dts，pts-dts写进composition offset(trun v1允许负数)
+     */
+    private static void computeDecodeTimes(TrackState state) {
+        System.arraycopy(state.pts, 0, state.dts, 0, state.count);
+        Arrays.sort(state.dts, 0, state.count);
+        if (state.count > 1) {
+            state.lastDuration = state.dts[state.count - 1] - state.dts[state.count - 2];
+        } else if (state.lastDuration == 0) {
+            state.lastDuration = state.track.isVideo ? state.track.timescale / 30 : 1024;
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            mBytesWritten += mChannel.write(buffer);
+        }
+    }
+
+    private void ensureHeader(int bytes) {
+        if (mHeader.capacity() >= bytes) return;
+        ByteBuffer header = ByteBuffer.allocate(Math.max(mHeader.capacity() * 2, bytes));
+        mHeader.flip();
+        header.put(mHeader);
+        mHeader = header;
+    }
+
+    private static int configSize(Mp4Track track) {
+        if (track.isVideo) {
+            return track.sps.length + track.pps.length;
+        }
+        return track.audioSpecificConfig == null ? 0 : track.audioSpecificConfig.length;
+    }
+
+    private void writeFtyp() {
+        int box = begin("ftyp");
+        mHeader.put(fourcc("iso5"));
+        mHeader.putInt(512);
+        mHeader.put(fourcc("iso5"));
+        mHeader.put(fourcc("iso6"));
+        mHeader.put(fourcc("mp41"));
+        if (mHasVideo) {
+            mHeader.put(fourcc("avc1"));
+        }
+        end(box);
+    }
+
+    private void writeMoov() {
+        int moov = begin("moov");
+        int box = fullBox("mvhd", 0, 0);
+        mHeader.putInt(0);//creation_time
+        mHeader.putInt(0);//modification_time
+        mHeader.putInt(1000);
+        mHeader.putInt(0);//duration，分片文件由moof决定
+        mHeader.putInt(0x00010000);//rate
+        mHeader.putShort((short) 0x0100);//volume
+        skip(10);
+        putMatrix();
+        skip(24);
+        mHeader.putInt(mTracks.size() + 1);
+        end(box);
+        for (TrackState state : mTracks) {
+            ensureHeader(mHeader.position() + 1024 + configSize(state.track));
+            writeTrak(state);
+        }
+        int mvex = begin("mvex");
+        for (TrackState state : mTracks) {
+            box = fullBox("trex", 0, 0);
+            mHeader.putInt(state.trackId);
+            mHeader.putInt(1);//sample_description_index
+            mHeader.putInt(0);
+            mHeader.putInt(0);
+            mHeader.putInt(0);
+            end(box);
+        }
+        end(mvex);
+        end(moov);
+    }
+
+    private void writeTrak(TrackState state) {
+        Mp4Track track = state.track;
+        int trak = begin("trak");
+        int box = fullBox("tkhd", 0, 0x7);
+        mHeader.putInt(0);
+        mHeader.putInt(0);
+        mHeader.putInt(state.trackId);
+        mHeader.putInt(0);
+        mHeader.putInt(0);//duration
+        skip(8);
+        mHeader.putShort((short) 0);//layer
+        mHeader.putShort((short) 0);//alternate_group
+        mHeader.putShort((short) (track.isVideo ? 0 : 0x0100));
+        skip(2);
+        putMatrix();
+        mHeader.putInt(track.width << 16);
+        mHeader.putInt(track.height << 16);
+        end(box);
+
+        int mdia = begin("mdia");
+        box = fullBox("mdhd", 0, 0);
+        mHeader.putInt(0);
+        mHeader.putInt(0);
+        mHeader.putInt(track.timescale);
+        mHeader.putInt(0);
+        mHeader.putShort((short) 0x55C4);//und
+        mHeader.putShort((short) 0);
+        end(box);
+        box = fullBox("hdlr", 0, 0);
+        mHeader.putInt(0);
+        mHeader.put(fourcc(track.isVideo ? "vide" : "soun"));
+        skip(12);
+        mHeader.put((track.isVideo ? "VideoHandler" : "SoundHandler").getBytes(StandardCharsets.US_ASCII));
+        mHeader.put((byte) 0);
+        end(box);
+
+        int minf = begin("minf");
+        if (track.isVideo) {
+            box = fullBox("vmhd", 0, 1);
+            skip(8);
+        } else {
+            box = fullBox("smhd", 0, 0);
+            skip(4);
+        }
+        end(box);
+        int dinf = begin("dinf");
+        box = fullBox("dref", 0, 0);
+        mHeader.putInt(1);
+        int url = fullBox("url ", 0, 1);
+        end(url);
+        end(box);
+        end(dinf);
+
+        int stbl = begin("stbl");
+        box = fullBox("stsd", 0, 0);
+        mHeader.putInt(1);
+        if (track.isVideo) {
+            writeAvc1(track);
+        } else {
+            writeMp4a(track);
+        }
+        end(box);
+        for (String type : new String[]{"stts", "stsc", "stco"}) {
+            box = fullBox(type, 0, 0);
+            mHeader.putInt(0);
+            end(box);
+        }
+        box = fullBox("stsz", 0, 0);
+        mHeader.putInt(0);
+        mHeader.putInt(0);
+        end(box);
+        end(stbl);
+        end(minf);
+        end(mdia);
+        end(trak);
+    }
+
+    private void writeAvc1(Mp4Track track) {
+        int avc1 = begin("avc1");
+        skip(6);
+        mHeader.putShort((short) 1);//data_reference_index
+        skip(16);
+        mHeader.putShort((short) track.width);
+        mHeader.putShort((short) track.height);
+        mHeader.putInt(0x00480000);
+        mHeader.putInt(0x00480000);
+        skip(4);
+        mHeader.putShort((short) 1);//frame_count
+        skip(32);//compressorname
+        mHeader.putShort((short) 0x0018);
+        mHeader.putShort((short) -1);
+        int avcC = begin("avcC");
+        mHeader.put((byte) 1);
+        mHeader.put(track.sps.length > 1 ? track.sps[1] : 0);
+        mHeader.put(track.sps.length > 2 ? track.sps[2] : 0);
+        mHeader.put(track.sps.length > 3 ? track.sps[3] : 0);
+        mHeader.put((byte) 0xFF);//lengthSizeMinusOne=3
+        mHeader.put((byte) 0xE1);//1 sps
+        mHeader.putShort((short) track.sps.length);
+        mHeader.put(track.sps);
+        mHeader.put((byte) 1);
+        mHeader.putShort((short) track.pps.length);
+        mHeader.put(track.pps);
+        end(avcC);
+        end(avc1);
+    }
+
+    private void writeMp4a(Mp4Track track) {
+        int mp4a = begin("mp4a");
+        skip(6);
+        mHeader.putShort((short) 1);
+        skip(8);
+        mHeader.putShort((short) track.channelCount);
+        mHeader.putShort((short) 16);
+        skip(4);
+        mHeader.putInt(track.sampleRate << 16);
+        byte[] asc = track.audioSpecificConfig == null ? new byte[0] : track.audioSpecificConfig;
+        int esds = fullBox("esds", 0, 0);
+        mHeader.put((byte) 0x03);//ES_Descriptor
+        mHeader.put((byte) (3 + 2 + 13 + 2 + asc.length + 3));
+        mHeader.putShort((short) 0);//ES_ID
+        mHeader.put((byte) 0);
+        mHeader.put((byte) 0x04);//DecoderConfigDescriptor
+        mHeader.put((byte) (13 + 2 + asc.length));
+        mHeader.put((byte) 0x40);//AAC
+        mHeader.put((byte) 0x15);//audio stream
+        skip(3);//bufferSizeDB
+        mHeader.putInt(track.bitrate);
+        mHeader.putInt(track.bitrate);
+        mHeader.put((byte) 0x05);//DecoderSpecificInfo
+        mHeader.put((byte) asc.length);
+        mHeader.put(asc);
+        mHeader.put((byte) 0x06);//SLConfigDescriptor
+        mHeader.put((byte) 1);
+        mHeader.put((byte) 0x02);
+        end(esds);
+        end(mp4a);
+    }
+
+    private void putMatrix() {
+        for (int value : UNITY_MATRIX) {
+            mHeader.putInt(value);
+        }
+    }
+
+    private void skip(int bytes) {
+        for (int i = 0; i < bytes; i++) {
+            mHeader.put((byte) 0);
+        }
+    }
+
+    private int begin(String type) {
+        int position = mHeader.position();
+        mHeader.putInt(0);
+        mHeader.put(fourcc(type));
+        return position;
+    }
+
+    private int fullBox(String type, int version, int flags) {
+        int position = begin(type);
+        mHeader.putInt((version << 24) | (flags & 0xFFFFFF));
+        return position;
+    }
+
+    private void end(int position) {
+        mHeader.putInt(position, mHeader.position() - position);
+    }
+
+    static byte[] fourcc(String type) {
+        return type.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,230 @@
+package com.galix.avcore.util.mp4;
+
+import com.galix.avcore.util.MediaCache;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * GOP分析
+ * 用Mp4Parser读视频轨道的样本表，算出最大关键帧间隔，判断导入的视频是否需要重新调整GOP。
+ * 没有stss表示所有样本都是关键帧；fMP4的moov里没有样本，从moof/trun里取。
+ * 结果按文件路径缓存在内存里，文件大小或者修改时间变化后重新分析；
+ * 持久化作为关键帧索引放进MediaCache，每个文件一个条目，和其它派生数据一起按预算淘汰。
+ *
+ * @Author:Galis
+ * @Date:2022.04.28
+ */
+public class GopAnalyzer {
+
+    private static final String VERSION = "gop1";
+
+    /**
+     * 分析结果
+     */
+    public static class Result {
+        public long size;//文件大小
+        public long lastModified;
+        public long maxGopUs;//最大关键帧间隔，最后一个关键帧到结尾也算一个GOP
+        public int keyFrames;
+        public int samples;
+        public long durationUs;
+
+        /**
+         * @param targetGopUs 目标关键帧间隔
+         * @return 关键帧间隔已经满足要求，可以直接使用原文件
+         */
+        public boolean isWithin(long targetGopUs) {
+            return keyFrames > 0 && maxGopUs <= targetGopUs;
+        }
+
+        @Override
+        public String toString() {
+            return "Result{" +
+                    "maxGopUs=" + maxGopUs +
+                    ", keyFrames=" + keyFrames +
+                    ", samples=" + samples +
+                    ", durationUs=" + durationUs +
+                    '}';
+        }
+    }
+
+    private final MediaCache mMediaCache;
+    private final Map<String, Result> mCache = new HashMap<>();
+
+    /**
+     * @param mediaCache 派生媒体缓存，结果存为KIND_KEYFRAMES条目，为空时只缓存在内存里
+     */
+    public GopAnalyzer(MediaCache mediaCache) {
+        mMediaCache = mediaCache;
+    }
+
+    /**
+     * 读取缓存的分析结果，没有或者文件已经变化时重新分析
+     *
+     * @param file 视频文件
+     * @return 分析结果，文件无法解析返回null
+     */
+    public synchronized Result get(File file) {
+        String key = file.getAbsolutePath();
+        Result result = mCache.get(key);
+        if (result != null && result.size == file.length() && result.lastModified == file.lastModified()) {
+            return result;
+        }
+        result = loadEntry(file);
+        if (result != null) {
+            mCache.put(key, result);
+            return result;
+        }
+        try {
+            result = analyze(file);
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+        mCache.put(key, result);
+        saveEntry(file, result);
+        return result;
+    }
+
+    /**
+     * 是否需要重新编码调整GOP，无法解析的文件按需要处理
+     *
+     * @param file        视频文件
+     * @param targetGopUs 目标关键帧间隔
+     */
+    public boolean needsAdjust(File file, long targetGopUs) {
+        Result result = get(file);
+        return result == null || !result.isWithin(targetGopUs);
+    }
+
+    /**
+     * 分析第一条视频轨道，不走缓存
+     *
+     * @param file 视频文件
+     * @return 分析结果
+     * @throws IOException 不是MP4或者没有视频轨道
+     */
+    public static Result analyze(File file) throws IOException {
+        Result result = new Result();
+        result.size = file.length();
+        result.lastModified = file.lastModified();
+        Mp4Parser.Track track = Mp4Parser.open(file).getVideoTrack();
+        if (track == null) throw new IOException("no video track");
+        Mp4Parser.SampleTable samples = track.samples();
+        if (samples.getCount() > 0) {
+            analyzeSamples(samples, track.timescale, result);
+            return result;
+        }
+        //fMP4，moov里没有样本
+        try (Mp4BoxReader reader = new Mp4BoxReader(file)) {
+            for (Mp4BoxReader.Track fragmented : reader.tracks()) {
+                if ("vide".equals(fragmented.handler)) {
+                    analyzeSamples(fragmented.samples, track.timescale, result);
+                    return result;
+                }
+            }
+        }
+        throw new IOException("no video track");
+    }
+
+    /**
+     * 只遍历关键帧，最后一个关键帧到结尾也算一个GOP；没有stss时每个样本都是关键帧，GOP就是最长的样本时长
+     */
+    static void analyzeSamples(Mp4Parser.SampleTable samples, int timescale, Result result) {
+        long lastSyncDts = -1;
+        long maxGop = 0;
+        int syncCount = samples.getSyncCount();
+        for (int n = 0; n < syncCount; n++) {
+            long syncDts = samples.getDts(samples.getSyncSample(n));
+            maxGop = Math.max(maxGop, lastSyncDts < 0 ? syncDts : syncDts - lastSyncDts);
+            lastSyncDts = syncDts;
+        }
+        long dts = samples.getEndDts();
+        maxGop = Math.max(maxGop, lastSyncDts < 0 ? dts : dts - lastSyncDts);
+        result.keyFrames = syncCount;
+        result.samples = samples.getCount();
+        result.durationUs = dts * 1000000L / timescale;
+        result.maxGopUs = maxGop * 1000000L / timescale;
+    }
+
+    static void analyzeSamples(List<Mp4BoxReader.Sample> samples, int timescale, Result result) {
+        long dts = 0;
+        long lastSyncDts = -1;
+        long maxGop = 0;
+        for (Mp4BoxReader.Sample sample : samples) {
+            if (sample.sync) {
+                maxGop = Math.max(maxGop, lastSyncDts < 0 ? sample.dts : sample.dts - lastSyncDts);
+                lastSyncDts = sample.dts;
+                result.keyFrames++;
+            }
+            dts = sample.dts + sample.duration;
+        }
+        maxGop = Math.max(maxGop, lastSyncDts < 0 ? dts : dts - lastSyncDts);
+        result.samples = samples.size();
+        result.durationUs = dts * 1000000L / timescale;
+        result.maxGopUs = maxGop * 1000000L / timescale;
+    }
+
+    /**
+     * 条目内容: 路径\t大小\t修改时间\tmaxGopUs\tkeyFrames\tsamples\tdurationUs
+     * MediaCache第一次查询这个文件时校验大小和修改时间，之后文件变化时由记录的大小和修改时间判断
+     */
+    private Result loadEntry(File file) {
+        if (mMediaCache == null) return null;
+        File entry = mMediaCache.get(MediaCache.KIND_KEYFRAMES, file.getAbsolutePath(), VERSION);
+        if (entry == null) return null;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(entry), StandardCharsets.UTF_8))) {
+            String line = reader.readLine();
+            Result result = line == null ? null : parse(line.split("\t"));
+            if (result == null || result.size != file.length() || result.lastModified != file.lastModified()) {
+                return null;
+            }
+            return result;
+        } catch (IOException | NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private void saveEntry(File file, Result result) {
+        if (mMediaCache == null) return;
+        String key = file.getAbsolutePath();
+        try {
+            mMediaCache.put(MediaCache.KIND_KEYFRAMES, key, VERSION, tmp -> {
+                try (Writer writer = new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8)) {
+                    writer.write(format(key, result));
+                }
+            });
+        } catch (IOException e) {
+            //下次重新分析
+        }
+    }
+
+    private static Result parse(String[] fields) {
+        if (fields.length != 7) return null;
+        Result result = new Result();
+        result.size = Long.parseLong(fields[1]);
+        result.lastModified = Long.parseLong(fields[2]);
+        result.maxGopUs = Long.parseLong(fields[3]);
+        result.keyFrames = Integer.parseInt(fields[4]);
+        result.samples = Integer.parseInt(fields[5]);
+        result.durationUs = Long.parseLong(fields[6]);
+        return result;
+    }
+
+    private static String format(String key, Result result) {
+        return key + "\t" + result.size + "\t" + result.lastModified + "\t"
+                + result.maxGopUs + "\t" + result.keyFrames + "\t" + result.samples + "\t"
+                + result.durationUs + "\n";
+    }
+}
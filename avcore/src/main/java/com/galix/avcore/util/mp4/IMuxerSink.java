@@ -0,0 +1,25 @@
+package com.galix.avcore.util.mp4;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 合成输出，接口与MediaMuxer一致，Mp4Composite和Mp4Adjust可以在MediaMuxer和fMP4之间切换
+ *
+ * @Author:Galis
+ * @Date:2022.04.26
+ */
+public interface IMuxerSink {
+
+    int addTrack(MediaFormat format);
+
+    void start();
+
+    void writeSampleData(int trackIndex, ByteBuffer byteBuffer, MediaCodec.BufferInfo bufferInfo);
+
+    void stop();
+
+    void release();
+}
@@ -0,0 +1,330 @@
+package com.galix.avcore.util.mp4;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 最小化的ISO-BMFF读取
+ * 只解析盒子结构，轨道基本信息以及moof/traf/trun里的分片样本，用来校验FragmentedMp4Writer和分析文件结构。
+ *
+ * @Author:Galis
+ * @Date:2022.04.26
+ */
+public class Mp4BoxReader implements Closeable {
+
+    private static final List<String> CONTAINERS = Arrays.asList(
+            "moov", "trak", "mdia", "minf", "stbl", "dinf", "mvex", "moof", "traf", "edts", "mfra");
+
+    public static class Box {
+        public final String type;
+        public final long offset;
+        public final long size;
+        public final int headerSize;
+        public final List<Box> children = new ArrayList<>();
+
+        Box(String type, long offset, long size, int headerSize) {
+            this.type = type;
+            this.offset = offset;
+            this.size = size;
+            this.headerSize = headerSize;
+        }
+
+        public long dataOffset() {
+            return offset + headerSize;
+        }
+
+        public long dataSize() {
+            return size - headerSize;
+        }
+
+        public Box child(String type) {
+            for (Box box : children) {
+                if (box.type.equals(type)) return box;
+            }
+            return null;
+        }
+
+        public List<Box> childrenOf(String type) {
+            List<Box> boxes = new ArrayList<>();
+            for (Box box : children) {
+                if (box.type.equals(type)) boxes.add(box);
+            }
+            return boxes;
+        }
+
+        @Override
+        public String toString() {
+            return type + "[" + offset + "," + size + "]" + (children.isEmpty() ? "" : children.toString());
+        }
+    }
+
+    public static class Sample {
+        public long offset;
+        public int size;
+        public long dts;//轨道时间基
+        public long pts;
+        public int duration;
+        public boolean sync;
+    }
+
+    public static class Track {
+        public int trackId;
+        public int timescale;
+        public String handler;
+        public String sampleEntry;
+        public byte[] codecConfig;//avcC或者esds的内容
+        public final List<Sample> samples = new ArrayList<>();
+        int defaultDuration;
+        int defaultSize;
+        int defaultFlags;
+
+        public long toUs(long time) {
+            return (time * 1000000L + timescale / 2) / timescale;
+        }
+    }
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final List<Box> mBoxes = new ArrayList<>();
+    private final ByteBuffer mHeader = ByteBuffer.allocate(16);
+
+    public Mp4BoxReader(File file) throws IOException {
+        mFile = new RandomAccessFile(file, "r");
+        mChannel = mFile.getChannel();
+        parse(0, mChannel.size(), mBoxes);
+    }
+
+    public List<Box> boxes() {
+        return mBoxes;
+    }
+
+    public Box find(String type) {
+        for (Box box : mBoxes) {
+            if (box.type.equals(type)) return box;
+        }
+        return null;
+    }
+
+    /**
+     * 读取盒子内容(不含头)
+     */
+    public ByteBuffer read(Box box) throws IOException {
+        return read(box.dataOffset(), (int) box.dataSize());
+    }
+
+    public ByteBuffer read(Sample sample) throws IOException {
+        return read(sample.offset, sample.size);
+    }
+
+    private ByteBuffer read(long offset, int size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        while (buffer.hasRemaining()) {
+            if (mChannel.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("unexpected eof");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private void parse(long start, long end, List<Box> out) throws IOException {
+        long offset = start;
+        while (offset + 8 <= end) {
+            mHeader.clear();
+            mHeader.limit(8);
+            mChannel.read(mHeader, offset);
+            mHeader.flip();
+            long size = mHeader.getInt() & 0xFFFFFFFFL;
+            byte[] fourcc = new byte[4];
+            mHeader.get(fourcc);
+            int headerSize = 8;
+            if (size == 1) {
+                mHeader.clear();
+                mHeader.limit(8);
+                mChannel.read(mHeader, offset + 8);
+                mHeader.flip();
+                size = mHeader.getLong();
+                headerSize = 16;
+            } else if (size == 0) {
+                size = end - offset;
+            }
+            if (size < headerSize || offset + size > end) {
+                throw new IOException("bad box at " + offset);
+            }
+            Box box = new Box(new String(fourcc, StandardCharsets.US_ASCII), offset, size, headerSize);
+            if (CONTAINERS.contains(box.type)) {
+                parse(box.dataOffset(), offset + size, box.children);
+            }
+            out.add(box);
+            offset += size;
+        }
+    }
+
+    /**
+     * 解析轨道以及所有分片样本
+     */
+    public List<Track> tracks() throws IOException {
+        Map<Integer, Track> tracks = new LinkedHashMap<>();
+        Box moov = find("moov");
+        if (moov == null) {
+            throw new IOException("no moov");
+        }
+        for (Box trak : moov.childrenOf("trak")) {
+            Track track = new Track();
+            ByteBuffer tkhd = read(trak.child("tkhd"));
+            int version = tkhd.get(0);
+            track.trackId = tkhd.getInt(version == 1 ? 20 : 12);
+            Box mdia = trak.child("mdia");
+            ByteBuffer mdhd = read(mdia.child("mdhd"));
+            track.timescale = mdhd.getInt(mdhd.get(0) == 1 ? 20 : 12);
+            track.handler = fourcc(read(mdia.child("hdlr")), 8);
+            ByteBuffer stsd = read(mdia.child("minf").child("stbl").child("stsd"));
+            if (stsd.getInt(4) > 0) {
+                track.sampleEntry = fourcc(stsd, 12);
+                int entrySize = stsd.getInt(8);
+                //跳过VisualSampleEntry(78)/AudioSampleEntry(28)固定字段，找配置盒子
+                int position = 8 + 8 + ("vide".equals(track.handler) ? 78 : 28);
+                while (position + 8 <= 8 + entrySize) {
+                    int size = stsd.getInt(position);
+                    String type = fourcc(stsd, position + 4);
+                    if ("avcC".equals(type) || "esds".equals(type)) {
+                        track.codecConfig = new byte[size - 8];
+                        ByteBuffer config = stsd.duplicate();
+                        config.position(position + 8);
+                        config.get(track.codecConfig);
+                        break;
+                    }
+                    if (size < 8) break;
+                    position += size;
+                }
+            }
+            tracks.put(track.trackId, track);
+        }
+        Box mvex = moov.child("mvex");
+        if (mvex != null) {
+            for (Box trexBox : mvex.childrenOf("trex")) {
+                ByteBuffer trex = read(trexBox);
+                Track track = tracks.get(trex.getInt(4));
+                if (track == null) continue;
+                track.defaultDuration = trex.getInt(12);
+                track.defaultSize = trex.getInt(16);
+                track.defaultFlags = trex.getInt(20);
+            }
+        }
+        for (Box moof : mBoxes) {
+            if (!moof.type.equals("moof")) continue;
+            for (Box traf : moof.childrenOf("traf")) {
+                parseTraf(moof, traf, tracks);
+            }
+        }
+        return new ArrayList<>(tracks.values());
+    }
+
+    private void parseTraf(Box moof, Box traf, Map<Integer, Track> tracks) throws IOException {
+        ByteBuffer tfhd = read(traf.child("tfhd"));
+        int flags = tfhd.getInt(0) & 0xFFFFFF;
+        Track track = tracks.get(tfhd.getInt(4));
+        if (track == null) return;
+        int position = 8;
+        long baseOffset = moof.offset;
+        if ((flags & 0x1) != 0) {
+            baseOffset = tfhd.getLong(position);
+            position += 8;
+        }
+        if ((flags & 0x2) != 0) position += 4;
+        int defaultDuration = track.defaultDuration;
+        int defaultSize = track.defaultSize;
+        int defaultFlags = track.defaultFlags;
+        if ((flags & 0x8) != 0) {
+            defaultDuration = tfhd.getInt(position);
+            position += 4;
+        }
+        if ((flags & 0x10) != 0) {
+            defaultSize = tfhd.getInt(position);
+            position += 4;
+        }
+        if ((flags & 0x20) != 0) {
+            defaultFlags = tfhd.getInt(position);
+        }
+        long dts = 0;
+        Box tfdtBox = traf.child("tfdt");
+        if (tfdtBox != null) {
+            ByteBuffer tfdt = read(tfdtBox);
+            dts = tfdt.get(0) == 1 ? tfdt.getLong(4) : tfdt.getInt(4) & 0xFFFFFFFFL;
+        } else if (!track.samples.isEmpty()) {
+            Sample last = track.samples.get(track.samples.size() - 1);
+            dts = last.dts + last.duration;
+        }
+        long dataOffset = baseOffset;
+        for (Box trunBox : traf.childrenOf("trun")) {
+            ByteBuffer trun = read(trunBox);
+            int version = trun.get(0);
+            int trunFlags = trun.getInt(0) & 0xFFFFFF;
+            int count = trun.getInt(4);
+            position = 8;
+            if ((trunFlags & 0x1) != 0) {
+                dataOffset = baseOffset + trun.getInt(position);
+                position += 4;
+            }
+            int firstFlags = -1;
+            if ((trunFlags & 0x4) != 0) {
+                firstFlags = trun.getInt(position);
+                position += 4;
+            }
+            for (int i = 0; i < count; i++) {
+                Sample sample = new Sample();
+                sample.duration = defaultDuration;
+                sample.size = defaultSize;
+                int sampleFlags = i == 0 && firstFlags != -1 ? firstFlags : defaultFlags;
+                int cto = 0;
+                if ((trunFlags & 0x100) != 0) {
+                    sample.duration = trun.getInt(position);
+                    position += 4;
+                }
+                if ((trunFlags & 0x200) != 0) {
+                    sample.size = trun.getInt(position);
+                    position += 4;
+                }
+                if ((trunFlags & 0x400) != 0) {
+                    sampleFlags = trun.getInt(position);
+                    position += 4;
+                }
+                if ((trunFlags & 0x800) != 0) {
+                    cto = trun.getInt(position);
+                    if (version == 0) cto = (int) (cto & 0xFFFFFFFFL);
+                    position += 4;
+                }
+                sample.offset = dataOffset;
+                sample.dts = dts;
+                sample.pts = dts + cto;
+                sample.sync = (sampleFlags & 0x10000) == 0;
+                track.samples.add(sample);
+                dataOffset += sample.size;
+                dts += sample.duration;
+            }
+        }
+    }
+
+    private static String fourcc(ByteBuffer buffer, int position) {
+        byte[] bytes = new byte[4];
+        for (int i = 0; i < 4; i++) {
+            bytes[i] = buffer.get(position + i);
+        }
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+
+    @Override
+    public void close() throws IOException {
+        mFile.close();
+    }
+}
@@ -0,0 +1,581 @@
+package com.galix.avcore.util.mp4;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 普通MP4的元数据和样本表解析
+ * 打开时只读顶层盒子的头，然后mmap整个moov，mdat不读也不映射；轨道信息(tkhd/mdhd/hdlr/stsd/elst)在打开时解析，
+ * 样本表(stts/ctts/stss/stsz/stsc/stco/co64)第一次用到时才解析，结果是几个基本类型数组，不为每个样本建对象。
+ * 不依赖android.media，可以在JVM上测试。fMP4的样本在moof里，这里只有轨道信息，样本用Mp4BoxReader读取。
+ *
+ * @Author:Galis
+ * @Date:2022.04.28
+ */
+public class Mp4Parser {
+
+    private static final int MOOV = type("moov");
+    private static final int MOOF = type("moof");
+    private static final int MVHD = type("mvhd");
+    private static final int TRAK = type("trak");
+    private static final int TKHD = type("tkhd");
+    private static final int EDTS = type("edts");
+    private static final int ELST = type("elst");
+    private static final int MDIA = type("mdia");
+    private static final int MDHD = type("mdhd");
+    private static final int HDLR = type("hdlr");
+    private static final int MINF = type("minf");
+    private static final int STBL = type("stbl");
+    private static final int STSD = type("stsd");
+    private static final int STTS = type("stts");
+    private static final int CTTS = type("ctts");
+    private static final int STSS = type("stss");
+    private static final int STSZ = type("stsz");
+    private static final int STSC = type("stsc");
+    private static final int STCO = type("stco");
+    private static final int CO64 = type("co64");
+    private static final int VIDE = type("vide");
+    private static final int SOUN = type("soun");
+
+    /**
+     * 轨道信息
+     */
+    public static class Track {
+        public int trackId;
+        public String handler;//vide, soun...
+        public String codec;//stsd第一个条目的类型，avc1, hvc1, mp4a...
+        public int timescale;
+        public long duration;//媒体时间基
+        public int width;//编码宽高，旋转前
+        public int height;
+        public int rotation;//tkhd矩阵，0/90/180/270
+        public int sampleRate;
+        public int channelCount;
+        public long mediaStartTime;//elst第一个非空edit的media_time，媒体时间基
+        public long editDelayUs;//elst开头空edit的总时长
+
+        private final ByteBuffer mMoov;
+        private final int mStbl;
+        private SampleTable mSamples;
+
+        Track(ByteBuffer moov, int stbl) {
+            mMoov = moov;
+            mStbl = stbl;
+        }
+
+        public boolean isVideo() {
+            return "vide".equals(handler);
+        }
+
+        public boolean isAudio() {
+            return "soun".equals(handler);
+        }
+
+        public long getDurationUs() {
+            return toUs(duration, timescale);
+        }
+
+        /**
+         * 第一次调用时解析样本表
+         *
+         * @return 样本表，fMP4的moov里没有样本时为空表
+         * @throws IOException 样本表不完整
+         */
+        public synchronized SampleTable samples() throws IOException {
+            if (mSamples == null) {
+                try {
+                    mSamples = parseSamples(mMoov, mStbl, timescale);
+                } catch (IndexOutOfBoundsException | BufferUnderflowException | NegativeArraySizeException e) {
+                    throw new IOException("bad sample table of track " + trackId, e);
+                }
+            }
+            return mSamples;
+        }
+
+        @Override
+        public String toString() {
+            return "Track{" +
+                    "trackId=" + trackId +
+                    ", handler='" + handler + '\'' +
+                    ", codec='" + codec + '\'' +
+                    ", timescale=" + timescale +
+                    ", duration=" + duration +
+                    ", width=" + width +
+                    ", height=" + height +
+                    ", rotation=" + rotation +
+                    '}';
+        }
+    }
+
+    /**
+     * 样本表，下标从0开始，时间都是轨道的媒体时间基
+     */
+    public static class SampleTable {
+        private final int mTimescale;
+        private final long[] mOffsets;
+        private final int[] mSizes;
+        private final long[] mDts;
+        private final int[] mCompositionOffsets;//没有ctts为null
+        private final int[] mSyncSamples;//升序，没有stss(全是关键帧)为null
+        private final long mEndDts;//最后一个样本结束的时间
+
+        SampleTable(int timescale, long[] offsets, int[] sizes, long[] dts, long endDts, int[] compositionOffsets,
+                    int[] syncSamples) {
+            mTimescale = timescale;
+            mOffsets = offsets;
+            mSizes = sizes;
+            mDts = dts;
+            mEndDts = endDts;
+            mCompositionOffsets = compositionOffsets;
+            mSyncSamples = syncSamples;
+        }
+
+        public int getCount() {
+            return mSizes.length;
+        }
+
+        public long getOffset(int index) {
+            return mOffsets[index];
+        }
+
+        public int getSize(int index) {
+            return mSizes[index];
+        }
+
+        public long getDts(int index) {
+            return mDts[index];
+        }
+
+        /**
+         * @return 最后一个样本的dts加上它的时长
+         */
+        public long getEndDts() {
+            return mEndDts;
+        }
+
+        public long getPts(int index) {
+            return mCompositionOffsets == null ? mDts[index] : mDts[index] + mCompositionOffsets[index];
+        }
+
+        public long getPtsUs(int index) {
+            return toUs(getPts(index), mTimescale);
+        }
+
+        public boolean isSync(int index) {
+            return mSyncSamples == null || Arrays.binarySearch(mSyncSamples, index) >= 0;
+        }
+
+        public int getSyncCount() {
+            return mSyncSamples == null ? mSizes.length : mSyncSamples.length;
+        }
+
+        /**
+         * @param n 第几个关键帧，小于getSyncCount
+         * @return 关键帧的样本下标
+         */
+        public int getSyncSample(int n) {
+            return mSyncSamples == null ? n : mSyncSamples[n];
+        }
+
+        /**
+         * @param time 解码时间，媒体时间基
+         * @return dts不大于time的最后一个样本，time在第一个样本之前返回-1
+         */
+        public int indexOfDts(long time) {
+            int index = Arrays.binarySearch(mDts, time);
+            if (index < 0) return -index - 2;
+            //时长为0的样本dts相同，取最后一个
+            while (index + 1 < mDts.length && mDts[index + 1] == time) index++;
+            return index;
+        }
+
+        /**
+         * @param index 样本
+         * @return index以及之前最近的关键帧，没有返回-1
+         */
+        public int syncBefore(int index) {
+            if (mSyncSamples == null) return Math.min(index, mSizes.length - 1);
+            int position = Arrays.binarySearch(mSyncSamples, index);
+            if (position >= 0) return mSyncSamples[position];
+            position = -position - 2;
+            return position < 0 ? -1 : mSyncSamples[position];
+        }
+    }
+
+    private final ByteBuffer mMoov;
+    private final boolean mFragmented;
+    private int mTimescale;
+    private long mDuration;
+    private final List<Track> mTracks = new ArrayList<>();
+
+    private Mp4Parser(ByteBuffer moov, boolean fragmented) throws IOException {
+        mMoov = moov;
+        mFragmented = fragmented;
+        try {
+            parseMoov();
+        } catch (IndexOutOfBoundsException | BufferUnderflowException e) {
+            throw new IOException("bad moov", e);
+        }
+    }
+
+    /**
+     * 扫描顶层盒子，只映射moov
+     *
+     * @param file mp4文件
+     * @return 解析结果
+     * @throws IOException 不是MP4或者没有moov
+     */
+    public static Mp4Parser open(File file) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+             FileChannel channel = randomAccessFile.getChannel()) {
+            ByteBuffer header = ByteBuffer.allocate(16);
+            long end = channel.size();
+            long offset = 0;
+            long moovOffset = -1;
+            long moovSize = 0;
+            boolean fragmented = false;
+            while (offset + 8 <= end) {
+                header.clear();
+                while (header.hasRemaining() && channel.read(header, offset + header.position()) > 0) {
+                    //头部最多16字节，一般一次读完
+                }
+                long size = header.getInt(0) & 0xFFFFFFFFL;
+                int type = header.getInt(4);
+                int headerSize = 8;
+                if (size == 1) {
+                    size = header.getLong(8);
+                    headerSize = 16;
+                } else if (size == 0) {
+                    size = end - offset;
+                }
+                if (size < headerSize || offset + size > end) {
+                    throw new IOException("bad box at " + offset);
+                }
+                if (type == MOOV) {
+                    moovOffset = offset;
+                    moovSize = size;
+                } else if (type == MOOF) {
+                    fragmented = true;
+                    break;
+                }
+                offset += size;
+            }
+            if (moovOffset < 0) throw new IOException("no moov " + file);
+            if (moovSize > Integer.MAX_VALUE) throw new IOException("moov too large " + moovSize);
+            return new Mp4Parser(channel.map(FileChannel.MapMode.READ_ONLY, moovOffset, moovSize), fragmented);
+        }
+    }
+
+    public List<Track> getTracks() {
+        return Collections.unmodifiableList(mTracks);
+    }
+
+    /**
+     * @return 第一条视频轨道，没有返回null
+     */
+    public Track getVideoTrack() {
+        for (Track track : mTracks) {
+            if (track.isVideo()) return track;
+        }
+        return null;
+    }
+
+    public Track getAudioTrack() {
+        for (Track track : mTracks) {
+            if (track.isAudio()) return track;
+        }
+        return null;
+    }
+
+    /**
+     * @return mvhd里的时长
+     */
+    public long getDurationUs() {
+        return toUs(mDuration, mTimescale);
+    }
+
+    /**
+     * @return moov之后有moof，样本在分片里
+     */
+    public boolean isFragmented() {
+        return mFragmented;
+    }
+
+    private void parseMoov() throws IOException {
+        ByteBuffer moov = mMoov;
+        int start = headerSize(moov, 0);
+        int end = moov.limit();
+        int mvhd = child(moov, start, end, MVHD);
+        if (mvhd < 0) throw new IOException("no mvhd");
+        int payload = mvhd + headerSize(moov, mvhd);
+        boolean version1 = moov.get(payload) == 1;
+        mTimescale = moov.getInt(payload + (version1 ? 20 : 12));
+        mDuration = version1 ? moov.getLong(payload + 24) : moov.getInt(payload + 16) & 0xFFFFFFFFL;
+        for (int trak = child(moov, start, end, TRAK); trak >= 0; trak = child(moov, boxEnd(moov, trak), end, TRAK)) {
+            Track track = parseTrak(trak);
+            if (track != null) {
+                mTracks.add(track);
+            }
+        }
+    }
+
+    private Track parseTrak(int trak) {
+        ByteBuffer moov = mMoov;
+        int start = trak + headerSize(moov, trak);
+        int end = boxEnd(moov, trak);
+        int tkhd = child(moov, start, end, TKHD);
+        int mdia = child(moov, start, end, MDIA);
+        if (tkhd < 0 || mdia < 0) return null;
+        int mdiaStart = mdia + headerSize(moov, mdia);
+        int mdiaEnd = boxEnd(moov, mdia);
+        int mdhd = child(moov, mdiaStart, mdiaEnd, MDHD);
+        int hdlr = child(moov, mdiaStart, mdiaEnd, HDLR);
+        int minf = child(moov, mdiaStart, mdiaEnd, MINF);
+        if (mdhd < 0 || hdlr < 0 || minf < 0) return null;
+        int stbl = child(moov, minf + headerSize(moov, minf), boxEnd(moov, minf), STBL);
+        if (stbl < 0) return null;
+        Track track = new Track(moov, stbl);
+
+        int payload = tkhd + headerSize(moov, tkhd);
+        boolean version1 = moov.get(payload) == 1;
+        track.trackId = moov.getInt(payload + (version1 ? 20 : 12));
+        track.rotation = rotation(moov, payload + (version1 ? 52 : 40));
+
+        payload = mdhd + headerSize(moov, mdhd);
+        version1 = moov.get(payload) == 1;
+        track.timescale = moov.getInt(payload + (version1 ? 20 : 12));
+        track.duration = version1 ? moov.getLong(payload + 24) : moov.getInt(payload + 16) & 0xFFFFFFFFL;
+
+        payload = hdlr + headerSize(moov, hdlr);
+        int handler = moov.getInt(payload + 8);
+        track.handler = fourcc(handler);
+
+        int stsd = child(moov, stbl + headerSize(moov, stbl), boxEnd(moov, stbl), STSD);
+        if (stsd >= 0) {
+            payload = stsd + headerSize(moov, stsd);
+            int entry = payload + 8;
+            if (moov.getInt(payload + 4) > 0 && entry + 36 <= boxEnd(moov, stsd)) {
+                track.codec = fourcc(moov.getInt(entry + 4));
+                //SampleEntry固定8字节之后，视频在+24处是宽高，音频在+16处是声道数，+24处是16.16的采样率
+                if (handler == VIDE) {
+                    track.width = moov.getShort(entry + 32) & 0xFFFF;
+                    track.height = moov.getShort(entry + 34) & 0xFFFF;
+                } else if (handler == SOUN) {
+                    track.channelCount = moov.getShort(entry + 24) & 0xFFFF;
+                    track.sampleRate = moov.getInt(entry + 32) >>> 16;
+                }
+            }
+        }
+
+        int edts = child(moov, start, end, EDTS);
+        int elst = edts < 0 ? -1 : child(moov, edts + headerSize(moov, edts), boxEnd(moov, edts), ELST);
+        if (elst >= 0) {
+            payload = elst + headerSize(moov, elst);
+            version1 = moov.get(payload) == 1;
+            int count = moov.getInt(payload + 4);
+            int position = payload + 8;
+            long emptyDuration = 0;
+            for (int i = 0; i < count; i++) {
+                long segmentDuration = version1 ? moov.getLong(position) : moov.getInt(position) & 0xFFFFFFFFL;
+                long mediaTime = version1 ? moov.getLong(position + 8) : moov.getInt(position + 4);
+                position += version1 ? 20 : 12;
+                if (mediaTime != -1) {
+                    track.mediaStartTime = mediaTime;
+                    break;
+                }
+                emptyDuration += segmentDuration;
+            }
+            track.editDelayUs = toUs(emptyDuration, mTimescale);
+        }
+        return track;
+    }
+
+    static SampleTable parseSamples(ByteBuffer moov, int stbl, int timescale) throws IOException {
+        int start = stbl + headerSize(moov, stbl);
+        int end = boxEnd(moov, stbl);
+
+        int stsz = child(moov, start, end, STSZ);
+        if (stsz < 0) throw new IOException("no stsz");
+        int payload = stsz + headerSize(moov, stsz);
+        int sampleSize = moov.getInt(payload + 4);
+        int count = moov.getInt(payload + 8);
+        int[] sizes = new int[count];
+        if (sampleSize != 0) {
+            Arrays.fill(sizes, sampleSize);
+        } else {
+            ints(moov, payload + 12, sizes);
+        }
+
+        long[] dts = new long[count];
+        long endDts = 0;
+        int stts = child(moov, start, end, STTS);
+        if (stts >= 0) {
+            payload = stts + headerSize(moov, stts);
+            int entries = moov.getInt(payload + 4);
+            int sample = 0;
+            long time = 0;
+            for (int i = 0; i < entries && sample < count; i++) {
+                int runCount = moov.getInt(payload + 8 + i * 8);
+                long delta = moov.getInt(payload + 12 + i * 8) & 0xFFFFFFFFL;
+                for (int j = 0; j < runCount && sample < count; j++) {
+                    dts[sample++] = time;
+                    time += delta;
+                }
+            }
+            if (sample != count) throw new IOException("stts " + sample + " != " + count);
+            endDts = time;
+        } else if (count > 0) {
+            throw new IOException("no stts");
+        }
+
+        int[] compositionOffsets = null;
+        int ctts = child(moov, start, end, CTTS);
+        if (ctts >= 0) {
+            payload = ctts + headerSize(moov, ctts);
+            int entries = moov.getInt(payload + 4);
+            compositionOffsets = new int[count];
+            int sample = 0;
+            for (int i = 0; i < entries && sample < count; i++) {
+                int runCount = moov.getInt(payload + 8 + i * 8);
+                //version 0按规范是无符号，实际写负值的文件都是按有符号处理
+                int offset = moov.getInt(payload + 12 + i * 8);
+                int runEnd = (int) Math.min(count, (long) sample + (runCount & 0xFFFFFFFFL));
+                Arrays.fill(compositionOffsets, sample, runEnd, offset);
+                sample = runEnd;
+            }
+        }
+
+        int[] syncSamples = null;
+        int stss = child(moov, start, end, STSS);
+        if (stss >= 0) {
+            payload = stss + headerSize(moov, stss);
+            syncSamples = new int[moov.getInt(payload + 4)];
+            ints(moov, payload + 8, syncSamples);
+            //stss是从1开始的序号
+            for (int i = 0; i < syncSamples.length; i++) {
+                syncSamples[i]--;
+            }
+        }
+
+        long[] offsets = new long[count];
+        if (count > 0) {
+            long[] chunkOffsets;
+            int stco = child(moov, start, end, STCO);
+            int co64 = child(moov, start, end, CO64);
+            if (stco >= 0) {
+                payload = stco + headerSize(moov, stco);
+                int[] values = new int[moov.getInt(payload + 4)];
+                ints(moov, payload + 8, values);
+                chunkOffsets = new long[values.length];
+                for (int i = 0; i < values.length; i++) {
+                    chunkOffsets[i] = values[i] & 0xFFFFFFFFL;
+                }
+            } else if (co64 >= 0) {
+                payload = co64 + headerSize(moov, co64);
+                chunkOffsets = new long[moov.getInt(payload + 4)];
+                ByteBuffer buffer = moov.duplicate();
+                buffer.position(payload + 8);
+                buffer.asLongBuffer().get(chunkOffsets);
+            } else {
+                throw new IOException("no stco");
+            }
+            int stsc = child(moov, start, end, STSC);
+            if (stsc < 0) throw new IOException("no stsc");
+            payload = stsc + headerSize(moov, stsc);
+            int entries = moov.getInt(payload + 4);
+            int sample = 0;
+            for (int i = 0; i < entries && sample < count; i++) {
+                int firstChunk = moov.getInt(payload + 8 + i * 12) - 1;
+                int samplesPerChunk = moov.getInt(payload + 12 + i * 12);
+                int lastChunk = i + 1 < entries ? moov.getInt(payload + 8 + (i + 1) * 12) - 1 : chunkOffsets.length;
+                for (int chunk = firstChunk; chunk < lastChunk && sample < count; chunk++) {
+                    long offset = chunkOffsets[chunk];
+                    for (int j = 0; j < samplesPerChunk && sample < count; j++) {
+                        offsets[sample] = offset;
+                        offset += sizes[sample++];
+                    }
+                }
+            }
+            if (sample != count) throw new IOException("stsc " + sample + " != " + count);
+        }
+        return new SampleTable(timescale, offsets, sizes, dts, endDts, compositionOffsets, syncSamples);
+    }
+
+    /**
+     * 在[start, end)的兄弟盒子里找type
+     *
+     * @return 盒子起点，没有返回-1
+     */
+    private static int child(ByteBuffer buffer, int start, int end, int type) {
+        int position = start;
+        while (position + 8 <= end) {
+            long size = buffer.getInt(position) & 0xFFFFFFFFL;
+            if (size == 1) {
+                size = buffer.getLong(position + 8);
+            } else if (size == 0) {
+                size = end - position;
+            }
+            if (size < 8 || position + size > end) return -1;
+            if (buffer.getInt(position + 4) == type) return position;
+            position += size;
+        }
+        return -1;
+    }
+
+    private static int headerSize(ByteBuffer buffer, int box) {
+        return buffer.getInt(box) == 1 ? 16 : 8;
+    }
+
+    private static int boxEnd(ByteBuffer buffer, int box) {
+        long size = buffer.getInt(box) & 0xFFFFFFFFL;
+        if (size == 1) {
+            size = buffer.getLong(box + 8);
+        } else if (size == 0) {
+            return buffer.limit();
+        }
+        return (int) Math.min(buffer.limit(), box + size);
+    }
+
+    private static void ints(ByteBuffer buffer, int position, int[] out) {
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(position);
+        duplicate.asIntBuffer().get(out);
+    }
+
+    /**
+     * 只识别90度倍数的旋转矩阵，和MediaExtractor一致
+     */
+    private static int rotation(ByteBuffer buffer, int matrix) {
+        int a = buffer.getInt(matrix);
+        int b = buffer.getInt(matrix + 4);
+        int c = buffer.getInt(matrix + 12);
+        int d = buffer.getInt(matrix + 16);
+        if (a == 0 && b == 0x10000 && c == -0x10000 && d == 0) return 90;
+        if (a == 0 && b == -0x10000 && c == 0x10000 && d == 0) return 270;
+        if (a == -0x10000 && b == 0 && c == 0 && d == -0x10000) return 180;
+        return 0;
+    }
+
+    private static long toUs(long time, int timescale) {
+        return timescale <= 0 ? 0 : time * 1000000L / timescale;
+    }
+
+    private static int type(String fourcc) {
+        byte[] bytes = fourcc.getBytes(StandardCharsets.US_ASCII);
+        return (bytes[0] & 0xFF) << 24 | (bytes[1] & 0xFF) << 16 | (bytes[2] & 0xFF) << 8 | (bytes[3] & 0xFF);
+    }
+
+    private static String fourcc(int type) {
+        return new String(new byte[]{(byte) (type >> 24), (byte) (type >> 16), (byte) (type >> 8), (byte) type},
+                StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,88 @@
+package com.galix.avcore.util.mp4;
+
+/**
+ * fMP4轨道配置，只支持AVC和AAC
+ * 不依赖android.media，可以在JVM上测试
+ *
+ * @Author:Galis
+ * @Date:2022.04.26
+ */
+public class Mp4Track {
+
+    public static final int VIDEO_TIMESCALE = 90000;
+
+    public final boolean isVideo;
+    public final int timescale;
+    public final int width;
+    public final int height;
+    public final byte[] sps;//不带起始码
+    public final byte[] pps;//不带起始码
+    public final int sampleRate;
+    public final int channelCount;
+    public final byte[] audioSpecificConfig;
+    public int bitrate;//写进esds，可以为0
+
+    private Mp4Track(boolean isVideo, int timescale, int width, int height, byte[] sps, byte[] pps,
+                     int sampleRate, int channelCount, byte[] audioSpecificConfig) {
+        this.isVideo = isVideo;
+        this.timescale = timescale;
+        this.width = width;
+        this.height = height;
+        this.sps = sps;
+        this.pps = pps;
+        this.sampleRate = sampleRate;
+        this.channelCount = channelCount;
+        this.audioSpecificConfig = audioSpecificConfig;
+    }
+
+    /**
+     * AVC轨道，sps/pps允许带Annex-B起始码
+     */
+    public static Mp4Track avc(int width, int height, byte[] sps, byte[] pps) {
+        return new Mp4Track(true, VIDEO_TIMESCALE, width, height,
+                stripStartCode(sps), stripStartCode(pps), 0, 0, null);
+    }
+
+    /**
+     * AAC轨道，时间基为采样率
+     */
+    public static Mp4Track aac(int sampleRate, int channelCount, byte[] audioSpecificConfig) {
+        return new Mp4Track(false, sampleRate, 0, 0, null, null,
+                sampleRate, channelCount, audioSpecificConfig);
+    }
+
+    static byte[] stripStartCode(byte[] nal) {
+        int offset = 0;
+        if (nal.length >= 4 && nal[0] == 0 && nal[1] == 0 && nal[2] == 0 && nal[3] == 1) {
+            offset = 4;
+        } else if (nal.length >= 3 && nal[0] == 0 && nal[1] == 0 && nal[2] == 1) {
+            offset = 3;
+        }
+        byte[] out = new byte[nal.length - offset];
+        System.arraycopy(nal, offset, out, 0, out.length);
+        return out;
+    }
+
+    /**
+     * 四舍五入，避免90k时间基下1/30s的帧间隔往返后丢失1us
+     */
+    long toTimescale(long timeUs) {
+        return (timeUs * timescale + 500000L) / 1000000L;
+    }
+
+    long toUs(long time) {
+        return (time * 1000000L + timescale / 2) / timescale;
+    }
+
+    @Override
+    public String toString() {
+        return "Mp4Track{" +
+                "isVideo=" + isVideo +
+                ", timescale=" + timescale +
+                ", width=" + width +
+                ", height=" + height +
+                ", sampleRate=" + sampleRate +
+                ", channelCount=" + channelCount +
+                '}';
+    }
+}
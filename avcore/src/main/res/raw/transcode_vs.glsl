@@ -0,0 +1,9 @@
+#version 300 es
+layout(location = 0) in vec3 aVertCoord;
+layout(location = 1) in vec2 aTextureCoord;
+out vec2 vTextureCoord;
+uniform mat3 texMat;
+void main(){
+    vTextureCoord = (texMat * vec3(aTextureCoord, 1.0)).xy;
+    gl_Position = vec4(aVertCoord.xy,0.0,1.0);
+}
\ No newline at end of file
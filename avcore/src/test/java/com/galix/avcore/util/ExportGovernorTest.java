@@ -0,0 +1,207 @@
+package com.galix.avcore.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * 合成温控策略测试，使用假的温度电量来源和时钟
+ */
+public class ExportGovernorTest {
+
+    private static class FakeThermalSource implements IThermalSource {
+        int thermalStatus = THERMAL_STATUS_NONE;
+        int batteryLevel = 80;
+        boolean charging = false;
+        boolean powerSave = false;
+
+        @Override
+        public int getThermalStatus() {
+            return thermalStatus;
+        }
+
+        @Override
+        public int getBatteryLevel() {
+            return batteryLevel;
+        }
+
+        @Override
+        public boolean isCharging() {
+            return charging;
+        }
+
+        @Override
+        public boolean isPowerSaveMode() {
+            return powerSave;
+        }
+    }
+
+    private static class FakeClock implements ExportGovernor.Clock {
+        long now = 1000;
+
+        @Override
+        public long nowMs() {
+            return now;
+        }
+    }
+
+    private final FakeThermalSource mSource = new FakeThermalSource();
+    private final FakeClock mClock = new FakeClock();
+    private final ExportReport mReport = new ExportReport();
+
+    private ExportGovernor newGovernor() {
+        return new ExportGovernor(mSource, mReport, 30, 4, mClock);
+    }
+
+    private int advance(ExportGovernor governor, long ms) {
+        mClock.now += ms;
+        return governor.update().level;
+    }
+
+    @Test
+    public void normalByDefault() {
+        ExportGovernor governor = newGovernor();
+        ExportGovernor.Decision decision = governor.getDecision();
+        assertEquals(ExportGovernor.LEVEL_NORMAL, decision.level);
+        assertEquals(0, decision.operatingRate);
+        assertEquals(4, decision.parallelism);
+        assertEquals(0, decision.frameIntervalUs);
+        assertTrue(mReport.governorEvents.isEmpty());
+    }
+
+    @Test
+    public void nullSourceNeverThrottles() {
+        ExportGovernor governor = new ExportGovernor(null, mReport, 30, 4, mClock);
+        mClock.now += 100000;
+        assertEquals(ExportGovernor.LEVEL_NORMAL, governor.update().level);
+    }
+
+    @Test
+    public void escalatesImmediately() {
+        ExportGovernor governor = newGovernor();
+        mSource.thermalStatus = IThermalSource.THERMAL_STATUS_SEVERE;
+        assertEquals(ExportGovernor.LEVEL_HOT, advance(governor, ExportGovernor.POLL_MS));
+        ExportGovernor.Decision decision = governor.getDecision();
+        assertEquals(30, decision.operatingRate);
+        assertEquals(1, decision.parallelism);
+        assertEquals(1000000 / 30, decision.frameIntervalUs);
+        assertEquals(1, mReport.governorEvents.size());
+    }
+
+    @Test
+    public void pollsAtMostOncePerInterval() {
+        ExportGovernor governor = newGovernor();
+        mSource.thermalStatus = IThermalSource.THERMAL_STATUS_CRITICAL;
+        assertEquals(ExportGovernor.LEVEL_NORMAL, advance(governor, ExportGovernor.POLL_MS / 2));
+        assertEquals(ExportGovernor.LEVEL_CRITICAL, advance(governor, ExportGovernor.POLL_MS / 2));
+    }
+
+    @Test
+    public void coolsDownOneLevelAtATime() {
+        ExportGovernor governor = newGovernor();
+        mSource.thermalStatus = IThermalSource.THERMAL_STATUS_CRITICAL;
+        advance(governor, ExportGovernor.POLL_MS);
+        mSource.thermalStatus = IThermalSource.THERMAL_STATUS_NONE;
+        assertEquals(ExportGovernor.LEVEL_CRITICAL, advance(governor, ExportGovernor.POLL_MS));
+        assertEquals(ExportGovernor.LEVEL_CRITICAL, advance(governor, ExportGovernor.COOL_DOWN_MS - ExportGovernor.POLL_MS));
+        assertEquals(ExportGovernor.LEVEL_HOT, advance(governor, ExportGovernor.POLL_MS));
+        assertEquals(ExportGovernor.LEVEL_HOT, advance(governor, ExportGovernor.COOL_DOWN_MS / 2));
+        assertEquals(ExportGovernor.LEVEL_WARM, advance(governor, ExportGovernor.COOL_DOWN_MS / 2));
+        assertEquals(ExportGovernor.LEVEL_NORMAL, advance(governor, ExportGovernor.COOL_DOWN_MS));
+        assertEquals(4, mReport.governorEvents.size());
+    }
+
+    @Test
+    public void oscillatingInputKeepsLevel() {
+        ExportGovernor governor = newGovernor();
+        mSource.thermalStatus = IThermalSource.THERMAL_STATUS_SEVERE;
+        advance(governor, ExportGovernor.POLL_MS);
+        //温度在两个状态之间抖动，间隔小于降档冷却时间
+        for (int i = 0; i < 60; i++) {
+            mSource.thermalStatus = i % 4 < 2 ? IThermalSource.THERMAL_STATUS_LIGHT : IThermalSource.THERMAL_STATUS_SEVERE;
+            assertEquals(ExportGovernor.LEVEL_HOT, advance(governor, ExportGovernor.POLL_MS * 2));
+        }
+        assertEquals(1, mReport.governorEvents.size());
+    }
+
+    @Test
+    public void listenerNotifiedOnlyOnLevelChange() {
+        ExportGovernor governor = newGovernor();
+        List<Integer> levels = new ArrayList<>();
+        governor.addListener(decision -> levels.add(decision.level));
+        advance(governor, ExportGovernor.POLL_MS);
+        mSource.thermalStatus = IThermalSource.THERMAL_STATUS_SEVERE;
+        advance(governor, ExportGovernor.POLL_MS);
+        advance(governor, ExportGovernor.POLL_MS);
+        mSource.thermalStatus = IThermalSource.THERMAL_STATUS_NONE;
+        advance(governor, ExportGovernor.POLL_MS);
+        advance(governor, ExportGovernor.COOL_DOWN_MS);
+        assertEquals(2, levels.size());
+        assertEquals(ExportGovernor.LEVEL_HOT, (int) levels.get(0));
+        assertEquals(ExportGovernor.LEVEL_WARM, (int) levels.get(1));
+    }
+
+    @Test
+    public void jobLimitsShrinkWithLevel() {
+        int[] limits = {2, 1, 7};
+        assertArrayEquals(limits, ExportGovernor.jobLimits(ExportGovernor.LEVEL_NORMAL, limits));
+        assertArrayEquals(new int[]{1, 1, 3}, ExportGovernor.jobLimits(ExportGovernor.LEVEL_WARM, limits));
+        assertArrayEquals(new int[]{1, 1, 1}, ExportGovernor.jobLimits(ExportGovernor.LEVEL_HOT, limits));
+        assertArrayEquals(new int[]{0, 0, 0}, ExportGovernor.jobLimits(ExportGovernor.LEVEL_CRITICAL, limits));
+        assertArrayEquals(new int[]{2, 1, 7}, limits);
+    }
+
+    @Test
+    public void batteryRaisesLevelUnlessCharging() {
+        mSource.batteryLevel = 10;
+        assertEquals(ExportGovernor.LEVEL_WARM, ExportGovernor.targetLevel(mSource));
+        mSource.batteryLevel = 3;
+        assertEquals(ExportGovernor.LEVEL_HOT, ExportGovernor.targetLevel(mSource));
+        mSource.charging = true;
+        assertEquals(ExportGovernor.LEVEL_NORMAL, ExportGovernor.targetLevel(mSource));
+        mSource.charging = false;
+        mSource.batteryLevel = 60;
+        mSource.powerSave = true;
+        assertEquals(ExportGovernor.LEVEL_WARM, ExportGovernor.targetLevel(mSource));
+        mSource.thermalStatus = IThermalSource.THERMAL_STATUS_EMERGENCY;
+        assertEquals(ExportGovernor.LEVEL_CRITICAL, ExportGovernor.targetLevel(mSource));
+    }
+
+    @Test
+    public void jobsLimitedByParallelism() throws InterruptedException {
+        ExportGovernor governor = newGovernor();
+        mSource.thermalStatus = IThermalSource.THERMAL_STATUS_SEVERE;
+        advance(governor, ExportGovernor.POLL_MS);
+        governor.beginJob();
+        Thread second = new Thread(() -> {
+            try {
+                governor.beginJob();
+                governor.endJob();
+            } catch (InterruptedException ignored) {
+            }
+        });
+        second.start();
+        second.join(200);
+        assertTrue("second job must wait", second.isAlive());
+        governor.endJob();
+        second.join(2000);
+        assertFalse(second.isAlive());
+    }
+
+    @Test
+    public void throttlePacesFrames() {
+        ExportGovernor governor = newGovernor();
+        mSource.thermalStatus = IThermalSource.THERMAL_STATUS_CRITICAL;
+        advance(governor, ExportGovernor.POLL_MS);
+        long intervalUs = governor.getDecision().frameIntervalUs;
+        long start = System.nanoTime();
+        for (int i = 0; i < 6; i++) {
+            governor.throttle();
+        }
+        long elapsedUs = (System.nanoTime() - start) / 1000;
+        assertTrue("elapsed " + elapsedUs, elapsedUs >= intervalUs * 5 - 1000);
+    }
+}
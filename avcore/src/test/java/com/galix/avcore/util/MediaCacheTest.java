@@ -0,0 +1,162 @@
+package com.galix.avcore.util;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * 派生媒体缓存测试: 按内容寻址，LRU预算淘汰，原子写入，索引持久化
+ */
+public class MediaCacheTest {
+
+    private static File tempDir() throws IOException {
+        File dir = File.createTempFile("media_cache", "");
+        dir.delete();
+        dir.mkdirs();
+        dir.deleteOnExit();
+        return dir;
+    }
+
+    private static File source() throws IOException {
+        File file = File.createTempFile("source", ".mp4");
+        file.deleteOnExit();
+        write(file, 100);
+        return file;
+    }
+
+    private static void write(File file, int size) throws IOException {
+        try (FileOutputStream outputStream = new FileOutputStream(file)) {
+            outputStream.write(new byte[size]);
+        }
+    }
+
+    @Test
+    public void putThenGet() throws IOException {
+        MediaCache cache = new MediaCache(tempDir(), 1000);
+        String source = source().getPath();
+        assertNull(cache.get(MediaCache.KIND_THUMB, source, "0"));
+        File file = cache.put(MediaCache.KIND_THUMB, source, "0", tmp -> write(tmp, 10));
+        assertEquals(file, cache.get(MediaCache.KIND_THUMB, source, "0"));
+        assertEquals(file, cache.fileOf(MediaCache.KIND_THUMB, source, "0"));
+        assertEquals(10, file.length());
+        //参数和类型不同是不同的条目
+        assertNull(cache.get(MediaCache.KIND_THUMB, source, "1000000"));
+        assertNull(cache.get(MediaCache.KIND_PEAKS, source, "0"));
+        assertEquals(10, cache.getTotalSize());
+    }
+
+    @Test
+    public void sourceChangeMisses() throws IOException {
+        File dir = tempDir();
+        MediaCache cache = new MediaCache(dir, 1000);
+        File source = source();
+        cache.put(MediaCache.KIND_PROXY, source.getPath(), null, tmp -> write(tmp, 10));
+        cache.put(MediaCache.KIND_THUMB, source.getPath(), "0", tmp -> write(tmp, 10));
+        assertTrue(cache.contains(MediaCache.KIND_PROXY, source.getPath(), null));
+        cache.flush();
+        assertTrue(source.setLastModified(source.lastModified() - 10000));
+        //重启后第一次查询时校验
+        MediaCache reloaded = new MediaCache(dir, 1000);
+        assertFalse(reloaded.contains(MediaCache.KIND_PROXY, source.getPath(), null));
+        assertEquals(0, reloaded.getCount());
+        //运行中改写源文件要通知缓存
+        cache.invalidateSource(source.getPath());
+        assertFalse(cache.contains(MediaCache.KIND_THUMB, source.getPath(), "0"));
+        assertFalse(cache.fileOf(MediaCache.KIND_THUMB, source.getPath(), "0").exists());
+    }
+
+    @Test
+    public void putDropsEntriesOfChangedSource() throws IOException {
+        MediaCache cache = new MediaCache(tempDir(), 1000);
+        File source = source();
+        cache.put(MediaCache.KIND_THUMB, source.getPath(), "0", tmp -> write(tmp, 10));
+        write(source, 200);
+        cache.put(MediaCache.KIND_THUMB, source.getPath(), "1", tmp -> write(tmp, 10));
+        assertFalse(cache.contains(MediaCache.KIND_THUMB, source.getPath(), "0"));
+        assertTrue(cache.contains(MediaCache.KIND_THUMB, source.getPath(), "1"));
+        assertEquals(10, cache.getTotalSize());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() throws IOException {
+        MediaCache cache = new MediaCache(tempDir(), 30);
+        String source = source().getPath();
+        File a = cache.put(MediaCache.KIND_THUMB, source, "a", tmp -> write(tmp, 10));
+        cache.put(MediaCache.KIND_THUMB, source, "b", tmp -> write(tmp, 10));
+        cache.put(MediaCache.KIND_THUMB, source, "c", tmp -> write(tmp, 10));
+        //a最近访问过，淘汰b
+        cache.get(MediaCache.KIND_THUMB, source, "a");
+        cache.put(MediaCache.KIND_THUMB, source, "d", tmp -> write(tmp, 10));
+        assertTrue(cache.contains(MediaCache.KIND_THUMB, source, "a"));
+        assertFalse(cache.contains(MediaCache.KIND_THUMB, source, "b"));
+        assertFalse(cache.fileOf(MediaCache.KIND_THUMB, source, "b").exists());
+        assertTrue(a.exists());
+        assertEquals(30, cache.getTotalSize());
+        //超出预算的条目不写入
+        assertNull(cache.put(MediaCache.KIND_PROXY, source, null, tmp -> write(tmp, 40)));
+        assertEquals(3, cache.getCount());
+    }
+
+    @Test
+    public void failedWriteLeavesNothing() throws IOException {
+        File dir = tempDir();
+        MediaCache cache = new MediaCache(dir, 1000);
+        String source = source().getPath();
+        try {
+            cache.put(MediaCache.KIND_THUMB, source, "0", tmp -> {
+                write(tmp, 10);
+                throw new IOException("decode failed");
+            });
+            fail();
+        } catch (IOException e) {
+            assertEquals("decode failed", e.getMessage());
+        }
+        assertFalse(cache.contains(MediaCache.KIND_THUMB, source, "0"));
+        assertFalse(cache.fileOf(MediaCache.KIND_THUMB, source, "0").exists());
+        for (File file : dir.listFiles()) {
+            assertEquals("index.txt", file.getName());
+        }
+    }
+
+    @Test
+    public void indexRestoredAndOrphansRemoved() throws IOException {
+        File dir = tempDir();
+        String source = source().getPath();
+        MediaCache cache = new MediaCache(dir, 1000);
+        cache.put(MediaCache.KIND_THUMB, source, "0", tmp -> write(tmp, 10));
+        cache.put(MediaCache.KIND_KEYFRAMES, source, null, tmp -> write(tmp, 20));
+        cache.flush();
+        //崩溃留下的临时文件
+        File orphan = new File(dir, "thumb_dead.1.tmp");
+        write(orphan, 5);
+
+        MediaCache reloaded = new MediaCache(dir, 1000);
+        assertTrue(reloaded.contains(MediaCache.KIND_THUMB, source, "0"));
+        assertTrue(reloaded.contains(MediaCache.KIND_KEYFRAMES, source, null));
+        assertEquals(30, reloaded.getTotalSize());
+        assertEquals(1, reloaded.entries(MediaCache.KIND_KEYFRAMES).size());
+        assertFalse(orphan.exists());
+
+        //预算变小时按LRU淘汰
+        reloaded.setBudget(20);
+        assertFalse(reloaded.contains(MediaCache.KIND_THUMB, source, "0"));
+        assertEquals(20, reloaded.getTotalSize());
+    }
+
+    @Test
+    public void removeSource() throws IOException {
+        MediaCache cache = new MediaCache(tempDir(), 1000);
+        String first = source().getPath();
+        String second = source().getPath();
+        cache.put(MediaCache.KIND_THUMB, first, "0", tmp -> write(tmp, 10));
+        cache.put(MediaCache.KIND_PEAKS, first, null, tmp -> write(tmp, 10));
+        cache.put(MediaCache.KIND_THUMB, second, "0", tmp -> write(tmp, 10));
+        cache.removeSource(first);
+        assertEquals(1, cache.getCount());
+        assertTrue(cache.contains(MediaCache.KIND_THUMB, second, "0"));
+    }
+}
@@ -0,0 +1,171 @@
+package com.galix.avcore.util;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * 媒体库索引测试: 只探测新增和变化的文件，删除的文件移除，持久化，并行探测
+ */
+public class MediaIndexTest {
+
+    private static File tempDir() throws IOException {
+        File dir = File.createTempFile("media_index", "");
+        dir.delete();
+        dir.mkdirs();
+        dir.deleteOnExit();
+        return dir;
+    }
+
+    private static File file(File dir, String name, int size) throws IOException {
+        File file = new File(dir, name);
+        file.deleteOnExit();
+        try (FileOutputStream outputStream = new FileOutputStream(file)) {
+            outputStream.write(new byte[size]);
+        }
+        return file;
+    }
+
+    /**
+     * 名字以bad开头的不是视频，其余的时长为文件大小
+     */
+    private static class CountingProber implements MediaIndex.Prober {
+        final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public MediaIndex.Item probe(File file) {
+            count.incrementAndGet();
+            if (file.getName().startsWith("bad")) return null;
+            MediaIndex.Item item = new MediaIndex.Item();
+            item.duration = file.length();
+            item.width = 1280;
+            item.height = 720;
+            return item;
+        }
+    }
+
+    @Test
+    public void probesOnlyNewAndChanged() throws Exception {
+        File dir = tempDir();
+        File a = file(dir, "a.mp4", 10);
+        File b = file(dir, "b.mp4", 20);
+        File bad = file(dir, "bad.mp4", 5);
+        MediaIndex index = new MediaIndex(new File(dir, "index.txt"));
+        CountingProber prober = new CountingProber();
+        List<MediaIndex.Item> videos = index.refresh(Arrays.asList(a, b, bad), prober, 2, null);
+        assertEquals(3, prober.count.get());
+        assertEquals(2, videos.size());
+        assertEquals(a.getAbsolutePath(), videos.get(0).path);
+        assertEquals(20, videos.get(1).duration);
+
+        //没变化的文件，包括不是视频的，都不再探测
+        index.refresh(Arrays.asList(a, b, bad), prober, 2, null);
+        assertEquals(3, prober.count.get());
+
+        file(dir, "b.mp4", 30);
+        assertTrue(b.setLastModified(b.lastModified() - 10000));
+        File c = file(dir, "c.mp4", 40);
+        videos = index.refresh(Arrays.asList(a, b, c), prober, 2, null);
+        assertEquals(5, prober.count.get());
+        assertEquals(3, videos.size());
+        assertEquals(30, videos.get(1).duration);
+        assertEquals(c.getAbsolutePath(), videos.get(2).path);
+        //bad.mp4不在列表里，从索引删除
+        assertEquals(3, index.getCount());
+    }
+
+    @Test
+    public void persistsAcrossInstances() throws Exception {
+        File dir = tempDir();
+        File a = file(dir, "a.mp4", 10);
+        File bad = file(dir, "bad.mp4", 5);
+        File indexFile = new File(dir, "index.txt");
+        CountingProber prober = new CountingProber();
+        new MediaIndex(indexFile).refresh(Arrays.asList(a, bad), prober, 1, null);
+
+        MediaIndex index = new MediaIndex(indexFile);
+        List<MediaIndex.Item> videos = index.getVideos();
+        assertEquals(1, videos.size());
+        assertEquals(a.getAbsolutePath(), videos.get(0).path);
+        assertEquals(10, videos.get(0).duration);
+        assertEquals(1280, videos.get(0).width);
+        assertNull(videos.get(0).thumb);
+        index.refresh(Arrays.asList(a, bad), prober, 1, null);
+        assertEquals(2, prober.count.get());
+        assertFalse(new File(dir, "index.txt.tmp").exists());
+    }
+
+    @Test
+    public void failedProbeNotRepeated() throws Exception {
+        File dir = tempDir();
+        File a = file(dir, "a.mp4", 10);
+        AtomicInteger count = new AtomicInteger();
+        MediaIndex index = new MediaIndex(new File(dir, "index.txt"));
+        MediaIndex.Prober prober = file -> {
+            count.incrementAndGet();
+            throw new IOException("broken");
+        };
+        assertTrue(index.refresh(Arrays.asList(a), prober, 1, null).isEmpty());
+        assertTrue(index.refresh(Arrays.asList(a), prober, 1, null).isEmpty());
+        assertEquals(1, count.get());
+    }
+
+    @Test
+    public void missingThumbReprobed() throws Exception {
+        File dir = tempDir();
+        File a = file(dir, "a.mp4", 10);
+        File thumb = file(dir, "a.jpg", 1);
+        AtomicInteger count = new AtomicInteger();
+        MediaIndex index = new MediaIndex(new File(dir, "index.txt"));
+        MediaIndex.Prober prober = file -> {
+            count.incrementAndGet();
+            MediaIndex.Item item = new MediaIndex.Item();
+            item.thumb = thumb.getPath();
+            return item;
+        };
+        index.refresh(Arrays.asList(a), prober, 1, null);
+        index.refresh(Arrays.asList(a), prober, 1, null);
+        assertEquals(1, count.get());
+        //缩略图被缓存淘汰后重新探测
+        assertTrue(thumb.delete());
+        index.refresh(Arrays.asList(a), prober, 1, null);
+        assertEquals(2, count.get());
+    }
+
+    @Test
+    public void probesInParallel() throws Exception {
+        File dir = tempDir();
+        List<File> files = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            files.add(file(dir, i + ".mp4", 10));
+        }
+        //两个探测同时进行才能都通过
+        CountDownLatch latch = new CountDownLatch(2);
+        AtomicInteger probed = new AtomicInteger();
+        MediaIndex index = new MediaIndex(new File(dir, "index.txt"));
+        List<MediaIndex.Item> videos = index.refresh(files, file -> {
+            latch.countDown();
+            try {
+                if (!latch.await(5, TimeUnit.SECONDS)) return null;
+            } catch (InterruptedException e) {
+                return null;
+            }
+            return new MediaIndex.Item();
+        }, 2, item -> probed.incrementAndGet());
+        assertEquals(4, probed.get());
+        assertEquals(4, videos.size());
+        for (int i = 0; i < 4; i++) {
+            assertEquals(files.get(i).getAbsolutePath(), videos.get(i).path);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.galix.avcore.util;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * 缩略图拼图测试: 写入，mmap读取切片，时间定位，损坏文件
+ */
+public class ThumbSheetTest {
+
+    private static ByteBuffer tile(int width, int height, int value) {
+        ByteBuffer buffer = ByteBuffer.allocate(width * height * ThumbSheet.BYTES_PER_PIXEL);
+        while (buffer.hasRemaining()) {
+            buffer.put((byte) value);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static File write(int count) throws IOException {
+        File file = File.createTempFile("sheet", ".bin");
+        file.deleteOnExit();
+        ThumbSheet.Writer writer = new ThumbSheet.Writer(4, 2, 16000000, 1000000, 16);
+        for (int i = 0; i < count; i++) {
+            writer.add(tile(4, 2, i + 1));
+        }
+        writer.writeTo(file);
+        return file;
+    }
+
+    @Test
+    public void writeAndMap() throws IOException {
+        File file = write(3);
+        assertEquals(ThumbSheet.HEADER_SIZE + 3 * 16, file.length());
+        ThumbSheet sheet = ThumbSheet.open(file);
+        assertEquals(4, sheet.getTileWidth());
+        assertEquals(2, sheet.getTileHeight());
+        assertEquals(3, sheet.getCount());
+        assertEquals(16000000, sheet.getStartUs());
+        for (int i = 0; i < 3; i++) {
+            ByteBuffer tile = sheet.tile(i);
+            assertEquals(16, tile.remaining());
+            assertTrue(tile.isReadOnly());
+            while (tile.hasRemaining()) {
+                assertEquals(i + 1, tile.get());
+            }
+        }
+    }
+
+    @Test
+    public void indexByTime() throws IOException {
+        ThumbSheet sheet = ThumbSheet.open(write(3));
+        assertEquals(-1, sheet.indexOf(15999999));
+        assertEquals(0, sheet.indexOf(16000000));
+        assertEquals(1, sheet.indexOf(17500000));
+        assertEquals(2, sheet.indexOf(18999999));
+        //结尾不满的拼图
+        assertEquals(-1, sheet.indexOf(19000000));
+    }
+
+    @Test
+    public void tileOutOfRange() throws IOException {
+        ThumbSheet sheet = ThumbSheet.open(write(1));
+        try {
+            sheet.tile(1);
+            fail();
+        } catch (IndexOutOfBoundsException e) {
+            //只有一张
+        }
+    }
+
+    @Test
+    public void writerChecksTileSize() {
+        ThumbSheet.Writer writer = new ThumbSheet.Writer(4, 2, 0, 1000000, 1);
+        try {
+            writer.add(tile(2, 2, 1));
+            fail();
+        } catch (IllegalArgumentException e) {
+            //尺寸不对
+        }
+        writer.add(tile(4, 2, 1));
+        assertTrue(writer.isFull());
+        try {
+            writer.add(tile(4, 2, 1));
+            fail();
+        } catch (IllegalStateException e) {
+            //已满
+        }
+    }
+
+    @Test
+    public void truncatedFileRejected() throws IOException {
+        File file = write(3);
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            randomAccessFile.setLength(file.length() - 1);
+        }
+        try {
+            ThumbSheet.open(file);
+            fail();
+        } catch (IOException e) {
+            assertEquals("broken thumb sheet", e.getMessage());
+        }
+        try {
+            ThumbSheet.wrap(ByteBuffer.allocate(64));
+            fail();
+        } catch (IOException e) {
+            assertEquals("not a thumb sheet", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package com.galix.avcore.util.gif;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageInputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * GIF编码测试，用ImageIO解码校验，以及480p编码帧率的基准
+ */
+public class GifEncoderTest {
+
+    private static final int WIDTH = 854;
+    private static final int HEIGHT = 480;
+
+    /**
+     * 渐变背景+移动的方块，接近合成画面的颜色分布
+     */
+    private static void fillFrame(int[] frame, int width, int height, int index, Random random) {
+        int boxX = index * 7 % (width - 64);
+        for (int y = 0, i = 0; y < height; y++) {
+            for (int x = 0; x < width; x++, i++) {
+                int r = x * 255 / width;
+                int g = y * 255 / height;
+                int b = (x + y + index * 3) & 0xFF;
+                if (x >= boxX && x < boxX + 64 && y >= 100 && y < 164) {
+                    r = 250;
+                    g = 30;
+                    b = 40;
+                }
+                int noise = random.nextInt(5) - 2;
+                frame[i] = 0xFF000000 | clamp(r + noise) << 16 | clamp(g + noise) << 8 | clamp(b + noise);
+            }
+        }
+    }
+
+    private static int clamp(int value) {
+        return Math.max(0, Math.min(255, value));
+    }
+
+    private static ImageReader reader(byte[] gif) throws IOException {
+        ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(gif));
+        ImageReader reader = ImageIO.getImageReadersByFormatName("gif").next();
+        reader.setInput(input);
+        return reader;
+    }
+
+    @Test
+    public void roundTripExactColors() throws IOException {
+        int width = 37, height = 23;
+        int[] colors = {0xFFFF0000, 0xFF00FF00, 0xFF0000FF, 0xFFFFFFFF, 0xFF123456};
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GifEncoder encoder = new GifEncoder(out, width, height, 0);
+        encoder.setDither(false);
+        for (int f = 0; f < 3; f++) {
+            int[] frame = encoder.obtainFrame();
+            for (int i = 0; i < frame.length; i++) {
+                frame[i] = colors[(i / 3 + f) % colors.length];
+            }
+            encoder.addFrame(frame, 40);
+        }
+        encoder.finish();
+        ImageReader reader = reader(out.toByteArray());
+        assertEquals(3, reader.getNumImages(true));
+        for (int f = 0; f < 3; f++) {
+            BufferedImage image = reader.read(f);
+            assertEquals(width, image.getWidth());
+            assertEquals(height, image.getHeight());
+            for (int i = 0; i < width * height; i++) {
+                assertEquals(colors[(i / 3 + f) % colors.length], image.getRGB(i % width, i / width));
+            }
+        }
+    }
+
+    @Test
+    public void roundTripLargeFrame() throws IOException {
+        //颜色远多于256，覆盖LZW码表写满后的清表
+        Random random = new Random(7);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GifEncoder encoder = new GifEncoder(out, WIDTH, HEIGHT, 0, new ForkJoinPool(4));
+        int[] source = new int[WIDTH * HEIGHT];
+        fillFrame(source, WIDTH, HEIGHT, 0, random);
+        for (boolean dither : new boolean[]{false, true}) {
+            encoder.setDither(dither);
+            int[] frame = encoder.obtainFrame();
+            System.arraycopy(source, 0, frame, 0, source.length);
+            encoder.addFrame(frame, 100);
+        }
+        encoder.finish();
+        ImageReader reader = reader(out.toByteArray());
+        assertEquals(2, reader.getNumImages(true));
+        for (int f = 0; f < 2; f++) {
+            BufferedImage image = reader.read(f);
+            long error = 0;
+            for (int y = 0; y < HEIGHT; y++) {
+                for (int x = 0; x < WIDTH; x++) {
+                    int a = source[y * WIDTH + x];
+                    int b = image.getRGB(x, y);
+                    error += Math.abs(((a >> 16) & 0xFF) - ((b >> 16) & 0xFF))
+                            + Math.abs(((a >> 8) & 0xFF) - ((b >> 8) & 0xFF))
+                            + Math.abs((a & 0xFF) - (b & 0xFF));
+                }
+            }
+            double mean = error / (3.0 * WIDTH * HEIGHT);
+            assertTrue("mean error " + mean, mean < 8);
+        }
+    }
+
+    @Test
+    public void delayRoundingDoesNotDrift() throws IOException {
+        int width = 16, height = 16;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GifEncoder encoder = new GifEncoder(out, width, height, 0);
+        for (int f = 0; f < 30; f++) {
+            int[] frame = encoder.obtainFrame();
+            Arrays.fill(frame, 0xFF000000 | f * 8);
+            encoder.addFrame(frame, 33);//30fps
+        }
+        encoder.finish();
+        ImageReader reader = reader(out.toByteArray());
+        int total = 0;
+        for (int f = 0; f < 30; f++) {
+            IIOMetadataNode root = (IIOMetadataNode) reader.getImageMetadata(f).getAsTree("javax_imageio_gif_image_1.0");
+            IIOMetadataNode control = (IIOMetadataNode) root.getElementsByTagName("GraphicControlExtension").item(0);
+            int delay = Integer.parseInt(control.getAttribute("delayTime"));
+            assertTrue(delay == 3 || delay == 4);
+            total += delay;
+        }
+        //逐帧取整是30*3=90，累计取整后和990ms一致
+        assertEquals(99, total);
+    }
+
+    @Test
+    @Ignore("基准测试，手动运行")
+    public void benchmark480p() throws IOException {
+        int frames = 60;
+        Random random = new Random(3);
+        int[][] source = new int[8][WIDTH * HEIGHT];
+        for (int i = 0; i < source.length; i++) {
+            fillFrame(source[i], WIDTH, HEIGHT, i * 8, random);
+        }
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        double sequential = 0, parallel = 0;
+        for (int round = 0; round < 2; round++) {//第一轮预热
+            sequential = run(source, frames, null);
+            parallel = run(source, frames, new ForkJoinPool(parallelism));
+        }
+        System.out.printf("GifEncoder 854x480 dither: sequential %.1f fps, parallel(%d) %.1f fps%n",
+                sequential, parallelism, parallel);
+    }
+
+    private static double run(int[][] source, int frames, ForkJoinPool pool) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long start = System.nanoTime();
+        GifEncoder encoder = new GifEncoder(out, WIDTH, HEIGHT, 0, pool);
+        for (int i = 0; i < frames; i++) {
+            int[] frame = encoder.obtainFrame();
+            System.arraycopy(source[i % source.length], 0, frame, 0, frame.length);
+            encoder.addFrame(frame, 66);
+        }
+        encoder.finish();
+        double fps = frames * 1e9 / (System.nanoTime() - start);
+        if (pool != null) {
+            pool.shutdown();
+        }
+        return fps;
+    }
+}
@@ -0,0 +1,268 @@
+package com.galix.avcore.util.job;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * 媒体任务调度测试: 优先级，合并，取消，资源并发上限，持久化恢复
+ */
+public class MediaJobSchedulerTest {
+
+    private static class TestJob extends MediaJob {
+        final List<String> log;
+        final CountDownLatch gate;
+        final AtomicInteger runs = new AtomicInteger();
+
+        TestJob(String key, int priority, int resource, List<String> log, CountDownLatch gate) {
+            super(key, priority, resource);
+            this.log = log;
+            this.gate = gate;
+        }
+
+        @Override
+        public String getType() {
+            return "test";
+        }
+
+        @Override
+        public String getArgs() {
+            return "args_" + getKey();
+        }
+
+        @Override
+        public void run(CancellationToken token) throws Exception {
+            runs.incrementAndGet();
+            if (log != null) {
+                log.add(getKey());
+            }
+            if (gate != null) {
+                while (!gate.await(5, TimeUnit.MILLISECONDS)) {
+                    token.throwIfCancelled();
+                }
+            }
+        }
+    }
+
+    private static int[] limits(int decoder, int encoder, int cpu) {
+        return new int[]{decoder, encoder, cpu};
+    }
+
+    @Test
+    public void runsByPriority() throws InterruptedException {
+        MediaJobScheduler scheduler = new MediaJobScheduler(limits(1, 1, 1), null, null);
+        List<String> log = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch gate = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(4);
+        MediaJobScheduler.Callback callback = (job, error, cancelled) -> done.countDown();
+        scheduler.submit(new TestJob("blocker", MediaJob.PRIORITY_ANALYSIS, MediaJob.RESOURCE_DECODER, log, gate), callback);
+        scheduler.submit(new TestJob("analysis", MediaJob.PRIORITY_ANALYSIS, MediaJob.RESOURCE_DECODER, log, null), callback);
+        scheduler.submit(new TestJob("gop", MediaJob.PRIORITY_GOP_ADJUST, MediaJob.RESOURCE_DECODER, log, null), callback);
+        scheduler.submit(new TestJob("thumb", MediaJob.PRIORITY_VISIBLE_THUMB, MediaJob.RESOURCE_DECODER, log, null), callback);
+        gate.countDown();
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("blocker", "thumb", "gop", "analysis"), log);
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void promoteMovesQueuedJobForward() throws InterruptedException {
+        MediaJobScheduler scheduler = new MediaJobScheduler(limits(1, 1, 1), null, null);
+        List<String> log = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch gate = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(3);
+        MediaJobScheduler.Callback callback = (job, error, cancelled) -> done.countDown();
+        scheduler.submit(new TestJob("blocker", MediaJob.PRIORITY_ANALYSIS, MediaJob.RESOURCE_DECODER, log, gate), callback);
+        scheduler.submit(new TestJob("a", MediaJob.PRIORITY_PROXY, MediaJob.RESOURCE_DECODER, log, null), callback);
+        MediaJobScheduler.Ticket b = scheduler.submit(new TestJob("b", MediaJob.PRIORITY_ANALYSIS, MediaJob.RESOURCE_DECODER, log, null), callback);
+        b.promote(MediaJob.PRIORITY_VISIBLE_THUMB);
+        gate.countDown();
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("blocker", "b", "a"), log);
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void cancelFallsBackToRemainingPriority() throws InterruptedException {
+        MediaJobScheduler scheduler = new MediaJobScheduler(limits(1, 1, 1), null, null);
+        List<String> log = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch gate = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(3);
+        MediaJobScheduler.Callback callback = (job, error, cancelled) -> done.countDown();
+        scheduler.submit(new TestJob("blocker", MediaJob.PRIORITY_ANALYSIS, MediaJob.RESOURCE_DECODER, log, gate), callback);
+        scheduler.submit(new TestJob("a", MediaJob.PRIORITY_PROXY, MediaJob.RESOURCE_DECODER, log, null), callback);
+        scheduler.submit(new TestJob("b", MediaJob.PRIORITY_ANALYSIS, MediaJob.RESOURCE_DECODER, log, null), callback);
+        //可见时再提交一次，离开屏幕后取消，任务回到后台优先级
+        MediaJobScheduler.Ticket visible = scheduler.submit(
+                new TestJob("b", MediaJob.PRIORITY_THUMB, MediaJob.RESOURCE_DECODER, log, null), null);
+        visible.promote(MediaJob.PRIORITY_VISIBLE_THUMB);
+        visible.cancel();
+        assertEquals(3, scheduler.getPendingCount());
+        gate.countDown();
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("blocker", "a", "b"), log);
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void mergesIdenticalJobs() throws InterruptedException {
+        MediaJobScheduler scheduler = new MediaJobScheduler(limits(1, 1, 1), null, null);
+        CountDownLatch gate = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(3);
+        MediaJobScheduler.Callback callback = (job, error, cancelled) -> done.countDown();
+        scheduler.submit(new TestJob("blocker", MediaJob.PRIORITY_ANALYSIS, MediaJob.RESOURCE_CPU, null, gate), callback);
+        TestJob first = new TestJob("same", MediaJob.PRIORITY_ANALYSIS, MediaJob.RESOURCE_CPU, null, null);
+        TestJob second = new TestJob("same", MediaJob.PRIORITY_VISIBLE_THUMB, MediaJob.RESOURCE_CPU, null, null);
+        MediaJobScheduler.Ticket a = scheduler.submit(first, callback);
+        MediaJobScheduler.Ticket b = scheduler.submit(second, callback);
+        assertSame(a.getJob(), b.getJob());
+        assertEquals(2, scheduler.getPendingCount());
+        gate.countDown();
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        assertEquals(1, first.runs.get());
+        assertEquals(0, second.runs.get());
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void cancelQueuedAndRunning() throws InterruptedException {
+        MediaJobScheduler scheduler = new MediaJobScheduler(limits(1, 1, 1), null, null);
+        CountDownLatch gate = new CountDownLatch(1);
+        CountDownLatch finished = new CountDownLatch(1);
+        boolean[] cancelledFlag = new boolean[1];
+        TestJob running = new TestJob("running", MediaJob.PRIORITY_PROXY, MediaJob.RESOURCE_ENCODER, null, gate);
+        TestJob queued = new TestJob("queued", MediaJob.PRIORITY_PROXY, MediaJob.RESOURCE_ENCODER, null, null);
+        MediaJobScheduler.Ticket first = scheduler.submit(running, (job, error, cancelled) -> {
+            cancelledFlag[0] = cancelled;
+            finished.countDown();
+        });
+        MediaJobScheduler.Ticket second = scheduler.submit(running, null);
+        MediaJobScheduler.Ticket queuedTicket = scheduler.submit(queued, null);
+        queuedTicket.cancel();
+        assertEquals(1, scheduler.getPendingCount());
+        //还有一个提交者，任务继续
+        second.cancel();
+        Thread.sleep(50);
+        assertEquals(1, finished.getCount());
+        //最后一个提交者取消，回调不再通知它自己
+        first.cancel();
+        assertFalse(finished.await(200, TimeUnit.MILLISECONDS));
+        assertEquals(0, scheduler.getPendingCount());
+        assertEquals(0, queued.runs.get());
+        assertFalse(cancelledFlag[0]);
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void capsConcurrencyPerResource() throws InterruptedException {
+        MediaJobScheduler scheduler = new MediaJobScheduler(limits(2, 1, 4), null, null);
+        AtomicInteger active = new AtomicInteger();
+        AtomicInteger maxActive = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(6);
+        for (int i = 0; i < 6; i++) {
+            scheduler.submit(new MediaJob("decode" + i, MediaJob.PRIORITY_PROXY, MediaJob.RESOURCE_DECODER) {
+                @Override
+                public void run(CancellationToken token) throws Exception {
+                    int now = active.incrementAndGet();
+                    maxActive.accumulateAndGet(now, Math::max);
+                    Thread.sleep(30);
+                    active.decrementAndGet();
+                }
+            }, (job, error, cancelled) -> done.countDown());
+        }
+        //CPU任务不受解码器上限影响
+        CountDownLatch cpuDone = new CountDownLatch(1);
+        scheduler.submit(new TestJob("cpu", MediaJob.PRIORITY_ANALYSIS, MediaJob.RESOURCE_CPU, null, null),
+                (job, error, cancelled) -> cpuDone.countDown());
+        assertTrue(cpuDone.await(1, TimeUnit.SECONDS));
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        assertEquals(2, maxActive.get());
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void failureReported() throws InterruptedException {
+        MediaJobScheduler scheduler = new MediaJobScheduler(limits(1, 1, 1), null, null);
+        Throwable[] failure = new Throwable[1];
+        CountDownLatch done = new CountDownLatch(1);
+        scheduler.submit(new MediaJob("bad", MediaJob.PRIORITY_ANALYSIS, MediaJob.RESOURCE_CPU) {
+            @Override
+            public void run(CancellationToken token) throws Exception {
+                throw new IOException("broken");
+            }
+        }, (job, error, cancelled) -> {
+            failure[0] = error;
+            done.countDown();
+        });
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        assertEquals("broken", failure[0].getMessage());
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void untypedJobsDoNotTouchJournal() throws IOException, InterruptedException {
+        File journal = File.createTempFile("jobs", ".txt");
+        journal.delete();
+        journal.deleteOnExit();
+        MediaJobScheduler scheduler = new MediaJobScheduler(limits(1, 1, 1), journal, null);
+        CountDownLatch done = new CountDownLatch(20);
+        for (int i = 0; i < 20; i++) {
+            scheduler.submit(new TestJob("thumb" + i, MediaJob.PRIORITY_VISIBLE_THUMB, MediaJob.RESOURCE_DECODER, null, null) {
+                @Override
+                public String getType() {
+                    return null;
+                }
+            }, (job, error, cancelled) -> done.countDown());
+        }
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        scheduler.shutdown();
+        Thread.sleep(50);
+        assertFalse(journal.exists());
+    }
+
+    @Test
+    public void unfinishedJobsRestoredAfterRestart() throws IOException, InterruptedException {
+        File journal = File.createTempFile("jobs", ".txt");
+        journal.delete();
+        journal.deleteOnExit();
+        CountDownLatch gate = new CountDownLatch(1);
+        MediaJobScheduler scheduler = new MediaJobScheduler(limits(1, 1, 1), journal, null);
+        scheduler.submit(new TestJob("running", MediaJob.PRIORITY_PROXY, MediaJob.RESOURCE_DECODER, null, gate), null);
+        scheduler.submit(new TestJob("queued", MediaJob.PRIORITY_GOP_ADJUST, MediaJob.RESOURCE_DECODER, null, null), null);
+        MediaJobScheduler.Ticket cancelled = scheduler.submit(
+                new TestJob("cancelled", MediaJob.PRIORITY_GOP_ADJUST, MediaJob.RESOURCE_DECODER, null, null), null);
+        cancelled.cancel();
+        //模拟进程退出
+        scheduler.shutdown();
+        Thread.sleep(50);
+
+        List<String> restored = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(2);
+        MediaJobScheduler next = new MediaJobScheduler(limits(1, 1, 1), journal, (type, key, priority, args) -> {
+            assertEquals("test", type);
+            assertEquals("args_" + key, args);
+            return new TestJob(key, priority, MediaJob.RESOURCE_DECODER, restored, null) {
+                @Override
+                public void run(CancellationToken token) throws Exception {
+                    super.run(token);
+                    done.countDown();
+                }
+            };
+        });
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("running", "queued"), restored);
+        Thread.sleep(50);
+        assertEquals(0, next.getPendingCount());
+        next.shutdown();
+    }
+}
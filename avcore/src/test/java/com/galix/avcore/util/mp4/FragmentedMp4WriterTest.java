@@ -0,0 +1,169 @@
+package com.galix.avcore.util.mp4;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Random;
+
+import static com.galix.avcore.util.mp4.Mp4TestFiles.*;
+import static org.junit.Assert.*;
+
+/**
+ * fMP4写入测试，用Mp4BoxReader读回校验，以及写入吞吐的基准
+ */
+public class FragmentedMp4WriterTest {
+
+    private static final long AAC_FRAME_US = 1024 * 1000000L / 44100;
+    private static final double TICK_US = 1000000.0 / Mp4Track.VIDEO_TIMESCALE + 1;//时间基换算误差
+
+    @Test
+    public void roundTrip() throws IOException {
+        File file = tempFile("fmp4");
+        Random random = new Random(1);
+        int frames = 150;
+        ByteBuffer[] videoFrames = new ByteBuffer[frames];
+        try (FragmentedMp4Writer writer = new FragmentedMp4Writer(file, 900000, FragmentedMp4Writer.DEFAULT_MAX_FRAGMENT_BYTES)) {
+            int video = writer.addTrack(Mp4Track.avc(1280, 720, SPS, PPS));
+            int audio = writer.addTrack(Mp4Track.aac(44100, 2, ASC));
+            writer.start();
+            long audioPts = 0;
+            for (int i = 0; i < frames; i++) {
+                long pts = i * FRAME_US;
+                videoFrames[i] = videoFrame(random, 1000 + random.nextInt(4000), i % 30 == 0);
+                writer.writeSample(video, videoFrames[i], pts, i % 30 == 0);
+                while (audioPts <= pts) {
+                    writer.writeSample(audio, audioFrame(random, 300), audioPts, true);
+                    audioPts += AAC_FRAME_US;
+                }
+            }
+            writer.stop();
+            //每个关键帧开始一个分片
+            assertEquals(5, writer.getFragmentCount());
+        }
+
+        try (Mp4BoxReader reader = new Mp4BoxReader(file)) {
+            List<Mp4BoxReader.Box> boxes = reader.boxes();
+            assertEquals("ftyp", boxes.get(0).type);
+            assertEquals("moov", boxes.get(1).type);
+            assertEquals("moof", boxes.get(2).type);
+            assertEquals("mdat", boxes.get(3).type);
+            assertEquals(file.length(), boxes.get(boxes.size() - 1).offset + boxes.get(boxes.size() - 1).size);
+
+            List<Mp4BoxReader.Track> tracks = reader.tracks();
+            assertEquals(2, tracks.size());
+            Mp4BoxReader.Track videoTrack = tracks.get(0);
+            assertEquals("vide", videoTrack.handler);
+            assertEquals("avc1", videoTrack.sampleEntry);
+            assertEquals(Mp4Track.VIDEO_TIMESCALE, videoTrack.timescale);
+            assertEquals(0x42, videoTrack.codecConfig[1]);
+            assertEquals(frames, videoTrack.samples.size());
+            for (int i = 0; i < frames; i++) {
+                Mp4BoxReader.Sample sample = videoTrack.samples.get(i);
+                assertEquals(i * FRAME_US, videoTrack.toUs(sample.pts), TICK_US);
+                assertEquals(i % 30 == 0, sample.sync);
+                //AUD被丢弃，slice的4字节起始码换成4字节长度
+                ByteBuffer data = reader.read(sample);
+                ByteBuffer expect = videoFrames[i].duplicate();
+                expect.position(expect.position() + 6 + 4);
+                assertEquals(expect.remaining(), data.getInt());
+                assertEquals(expect, data);
+            }
+
+            Mp4BoxReader.Track audioTrack = tracks.get(1);
+            assertEquals("soun", audioTrack.handler);
+            assertEquals("mp4a", audioTrack.sampleEntry);
+            assertEquals(44100, audioTrack.timescale);
+            for (Mp4BoxReader.Sample sample : audioTrack.samples) {
+                assertTrue(sample.sync);
+                assertEquals(300, sample.size);
+            }
+            Mp4BoxReader.Sample second = audioTrack.samples.get(1);
+            assertEquals(AAC_FRAME_US, audioTrack.toUs(second.pts), 1);
+        }
+    }
+
+    @Test
+    public void reorderedFramesUseCompositionOffset() throws IOException {
+        File file = tempFile("fmp4");
+        Random random = new Random(2);
+        //解码顺序 I P B B，显示顺序 I B B P
+        long[] pts = {0, 3 * FRAME_US, FRAME_US, 2 * FRAME_US};
+        try (FragmentedMp4Writer writer = new FragmentedMp4Writer(file)) {
+            int video = writer.addTrack(Mp4Track.avc(640, 360, SPS, PPS));
+            writer.start();
+            for (int i = 0; i < pts.length; i++) {
+                writer.writeSample(video, videoFrame(random, 100, i == 0), pts[i], i == 0);
+            }
+        }
+        try (Mp4BoxReader reader = new Mp4BoxReader(file)) {
+            Mp4BoxReader.Track track = reader.tracks().get(0);
+            for (int i = 0; i < pts.length; i++) {
+                Mp4BoxReader.Sample sample = track.samples.get(i);
+                assertEquals(pts[i], track.toUs(sample.pts), TICK_US);
+                if (i > 0) {
+                    assertTrue(sample.dts > track.samples.get(i - 1).dts);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void memoryIsBounded() throws IOException {
+        File file = tempFile("fmp4");
+        Random random = new Random(3);
+        int maxFragmentBytes = 256 * 1024;
+        try (FragmentedMp4Writer writer = new FragmentedMp4Writer(file, 1000000, maxFragmentBytes)) {
+            int video = writer.addTrack(Mp4Track.avc(1280, 720, SPS, PPS));
+            writer.start();
+            //只有首帧是关键帧，只能靠字节上限切分片
+            for (int i = 0; i < 3000; i++) {
+                writer.writeSample(video, videoFrame(random, 4000, i == 0), i * FRAME_US, i == 0);
+            }
+            assertTrue(writer.getFragmentCount() > 40);
+            assertTrue(writer.bufferedCapacity() < 4 * maxFragmentBytes);
+        }
+        try (Mp4BoxReader reader = new Mp4BoxReader(file)) {
+            assertEquals(3000, reader.tracks().get(0).samples.size());
+        }
+    }
+
+    @Test
+    @Ignore("基准测试，手动运行")
+    public void benchmark() throws IOException {
+        File file = tempFile("fmp4");
+        Random random = new Random(4);
+        ByteBuffer[] frames = new ByteBuffer[30];
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = videoFrame(random, i == 0 ? 200000 : 40000, i == 0);
+        }
+        ByteBuffer audioFrame = audioFrame(random, 400);
+        for (int round = 0; round < 3; round++) {
+            long bytes = 0;
+            long start = System.nanoTime();
+            try (FragmentedMp4Writer writer = new FragmentedMp4Writer(file)) {
+                int video = writer.addTrack(Mp4Track.avc(1920, 1080, SPS, PPS));
+                int audio = writer.addTrack(Mp4Track.aac(44100, 2, ASC));
+                writer.start();
+                long audioPts = 0;
+                for (int i = 0; i < 30 * 60; i++) {
+                    ByteBuffer frame = frames[i % frames.length];
+                    bytes += frame.remaining();
+                    writer.writeSample(video, frame.duplicate(), i * FRAME_US, i % frames.length == 0);
+                    while (audioPts <= i * FRAME_US) {
+                        bytes += audioFrame.remaining();
+                        writer.writeSample(audio, audioFrame.duplicate(), audioPts, true);
+                        audioPts += AAC_FRAME_US;
+                    }
+                }
+            }
+            long cost = System.nanoTime() - start;
+            double mbPerSecond = bytes / 1024.0 / 1024.0 / (cost / 1e9);
+            System.out.println("FragmentedMp4Writer#benchmark#round" + round + "#" + bytes / 1024 / 1024 + "MB#"
+                    + String.format("%.1f", mbPerSecond) + "MB/s");
+        }
+    }
+}
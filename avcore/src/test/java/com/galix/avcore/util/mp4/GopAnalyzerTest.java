@@ -0,0 +1,152 @@
+package com.galix.avcore.util.mp4;
+
+import com.galix.avcore.util.MediaCache;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static com.galix.avcore.util.mp4.Mp4TestFiles.*;
+import static org.junit.Assert.*;
+
+/**
+ * GOP分析测试，Mp4Parser样本表和fMP4样本两条路径，以及MediaCache里按大小和修改时间失效的缓存
+ */
+public class GopAnalyzerTest {
+
+    /**
+     * 按stts的(count, delta)展开样本表
+     *
+     * @param countDelta stts条目
+     * @param stss       从1开始的关键帧序号，为null时全是关键帧
+     */
+    private static Mp4Parser.SampleTable table(int[] countDelta, int... stss) {
+        int count = 0;
+        for (int i = 0; i < countDelta.length; i += 2) {
+            count += countDelta[i];
+        }
+        long[] dts = new long[count];
+        long time = 0;
+        for (int i = 0, sample = 0; i < countDelta.length; i += 2) {
+            for (int j = 0; j < countDelta[i]; j++) {
+                dts[sample++] = time;
+                time += countDelta[i + 1];
+            }
+        }
+        int[] syncSamples = null;
+        if (stss != null) {
+            syncSamples = new int[stss.length];
+            for (int i = 0; i < stss.length; i++) {
+                syncSamples[i] = stss[i] - 1;
+            }
+        }
+        return new Mp4Parser.SampleTable(30000, new long[count], new int[count], dts, time, null, syncSamples);
+    }
+
+    private static int[] stts(int... countDelta) {
+        return countDelta;
+    }
+
+    @Test
+    public void tablesWithSyncSamples() {
+        //30fps，90个样本，关键帧在1,31,61
+        GopAnalyzer.Result result = new GopAnalyzer.Result();
+        GopAnalyzer.analyzeSamples(table(stts(90, 1000), 1, 31, 61), 30000, result);
+        assertEquals(3, result.keyFrames);
+        assertEquals(90, result.samples);
+        assertEquals(3000000, result.durationUs);
+        assertEquals(1000000, result.maxGopUs);
+        assertTrue(result.isWithin(1000000));
+    }
+
+    @Test
+    public void tablesLongGopAcrossEntries() {
+        //时长变化的两段stts，关键帧间隔最大的一段跨两个entry
+        GopAnalyzer.Result result = new GopAnalyzer.Result();
+        GopAnalyzer.analyzeSamples(table(stts(40, 1000, 60, 2000), 1, 21, 81), 30000, result);
+        assertEquals(100, result.samples);
+        //21到81: 20*1000 + 40*2000 = 100000 ticks
+        assertEquals(100000L * 1000000 / 30000, result.maxGopUs);
+        assertFalse(result.isWithin(1000000));
+    }
+
+    @Test
+    public void tailCountsAsGop() {
+        GopAnalyzer.Result result = new GopAnalyzer.Result();
+        GopAnalyzer.analyzeSamples(table(stts(150, 1000), 1, 31), 30000, result);
+        //31之后一直到结尾120帧没有关键帧
+        assertEquals(4000000, result.maxGopUs);
+    }
+
+    @Test
+    public void noStssMeansAllSync() {
+        GopAnalyzer.Result result = new GopAnalyzer.Result();
+        GopAnalyzer.analyzeSamples(table(stts(30, 1000, 1, 3000), (int[]) null), 30000, result);
+        assertEquals(31, result.keyFrames);
+        assertEquals(100000, result.maxGopUs);
+    }
+
+    @Test
+    public void fragmentedFile() throws IOException {
+        GopAnalyzer.Result shortGop = GopAnalyzer.analyze(fragmented("gop_", 640, 360, 90, 15));
+        assertEquals(6, shortGop.keyFrames);
+        assertEquals(90, shortGop.samples);
+        assertEquals(15 * FRAME_US, shortGop.maxGopUs, 100);
+        GopAnalyzer.Result longGop = GopAnalyzer.analyze(fragmented("gop_", 640, 360, 150, 75));
+        assertEquals(2, longGop.keyFrames);
+        assertEquals(75 * FRAME_US, longGop.maxGopUs, 100);
+        assertFalse(longGop.isWithin(1000000));
+    }
+
+    private static File cacheDir() throws IOException {
+        File dir = File.createTempFile("gop_media", "");
+        dir.delete();
+        dir.deleteOnExit();
+        return dir;
+    }
+
+    @Test
+    public void cacheKeyedBySizeAndModifiedTime() throws IOException {
+        File file = fragmented("gop_", 640, 360, 60, 30);
+        File dir = cacheDir();
+        GopAnalyzer analyzer = new GopAnalyzer(new MediaCache(dir, 1024 * 1024));
+        GopAnalyzer.Result first = analyzer.get(file);
+        assertNotNull(first);
+        assertSame(first, analyzer.get(file));
+        assertFalse(analyzer.needsAdjust(file, 1000000));
+
+        //MediaCache持久化后新的实例直接命中缓存
+        MediaCache mediaCache = new MediaCache(dir, 1024 * 1024);
+        assertTrue(mediaCache.contains(MediaCache.KIND_KEYFRAMES, file.getAbsolutePath(), "gop1"));
+        GopAnalyzer reloaded = new GopAnalyzer(mediaCache);
+        GopAnalyzer.Result cached = reloaded.get(file);
+        assertEquals(first.maxGopUs, cached.maxGopUs);
+        assertEquals(first.samples, cached.samples);
+        assertSame(cached, reloaded.get(file));
+
+        //修改时间变化后重新分析，同一个MediaCache实例已经校验过这个文件
+        assertTrue(file.setLastModified(file.lastModified() - 10000));
+        GopAnalyzer.Result changed = reloaded.get(file);
+        assertNotSame(cached, changed);
+        assertEquals(file.lastModified(), changed.lastModified);
+        assertEquals(file.lastModified(), new GopAnalyzer(mediaCache).get(file).lastModified);
+    }
+
+    @Test
+    public void memoryOnlyWithoutMediaCache() throws IOException {
+        File file = fragmented("gop_", 640, 360, 60, 30);
+        GopAnalyzer analyzer = new GopAnalyzer(null);
+        GopAnalyzer.Result first = analyzer.get(file);
+        assertSame(first, analyzer.get(file));
+        assertNotSame(first, new GopAnalyzer(null).get(file));
+    }
+
+    @Test
+    public void unreadableFileNeedsAdjust() throws IOException {
+        File file = tempFile("gop_bad");
+        GopAnalyzer analyzer = new GopAnalyzer(null);
+        assertNull(analyzer.get(file));
+        assertTrue(analyzer.needsAdjust(file, 1000000));
+    }
+}
@@ -0,0 +1,307 @@
+package com.galix.avcore.util.mp4;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.galix.avcore.util.mp4.Mp4TestFiles.*;
+import static org.junit.Assert.*;
+
+/**
+ * MP4解析测试，测试文件在这里按规范拼出来: ftyp + mdat + moov，moov在结尾
+ */
+public class Mp4ParserTest {
+
+    private static final int VIDEO_TIMESCALE = 30000;
+    private static final int VIDEO_DELTA = 1000;
+    private static final int AUDIO_SAMPLE_SIZE = 12;
+    private static final int CHUNK_GAP = 16;
+
+    /**
+     * 测试文件的布局，写文件时记下每个样本的实际偏移
+     */
+    private static class Layout {
+        int videoSamples;
+        int gop;
+        int audioSamples;
+        boolean co64;
+        boolean largeMdat;
+        int rotation;
+        long[] videoOffsets;
+        long[] audioOffsets;
+
+        int videoSize(int index) {
+            return 100 + index % 50;
+        }
+    }
+
+    private static Layout layout(int videoSamples, int gop, int audioSamples) {
+        Layout layout = new Layout();
+        layout.videoSamples = videoSamples;
+        layout.gop = gop;
+        layout.audioSamples = audioSamples;
+        return layout;
+    }
+
+    /**
+     * 视频: 前两个chunk各10个样本，之后每个7个，chunk之间空CHUNK_GAP字节；音频: 一个chunk，样本大小固定
+     */
+    private static File write(Layout layout) throws IOException {
+        byte[] ftyp = box("ftyp", "isom".getBytes(StandardCharsets.US_ASCII), ints(0x200),
+                "isomavc1".getBytes(StandardCharsets.US_ASCII));
+        int mdatHeader = layout.largeMdat ? 16 : 8;
+        long position = ftyp.length + mdatHeader;
+        List<Integer> chunkSamples = new ArrayList<>();
+        List<Long> videoChunks = new ArrayList<>();
+        layout.videoOffsets = new long[layout.videoSamples];
+        for (int sample = 0; sample < layout.videoSamples; ) {
+            int count = Math.min(chunkSamples.size() < 2 ? 10 : 7, layout.videoSamples - sample);
+            chunkSamples.add(count);
+            videoChunks.add(position);
+            for (int i = 0; i < count; i++, sample++) {
+                layout.videoOffsets[sample] = position;
+                position += layout.videoSize(sample);
+            }
+            position += CHUNK_GAP;
+        }
+        long audioChunk = position;
+        layout.audioOffsets = new long[layout.audioSamples];
+        for (int i = 0; i < layout.audioSamples; i++) {
+            layout.audioOffsets[i] = position;
+            position += AUDIO_SAMPLE_SIZE;
+        }
+        long mdatSize = position - ftyp.length;
+
+        byte[] video = videoTrak(layout, chunkSamples, videoChunks);
+        byte[] audio = audioTrak(layout, audioChunk);
+        byte[] mvhd = box("mvhd", ints(0, 0, 0, 1000, layout.videoSamples * VIDEO_DELTA / 30), new byte[80]);
+        byte[] moov = box("moov", mvhd, video, audio);
+
+        File file = tempFile("parser_");
+        try (FileOutputStream outputStream = new FileOutputStream(file)) {
+            outputStream.write(ftyp);
+            if (layout.largeMdat) {
+                ByteBuffer header = ByteBuffer.allocate(16);
+                header.putInt(1).put("mdat".getBytes(StandardCharsets.US_ASCII)).putLong(mdatSize);
+                outputStream.write(header.array());
+            } else {
+                outputStream.write(ints((int) mdatSize, type("mdat")));
+            }
+            outputStream.write(new byte[(int) (mdatSize - mdatHeader)]);
+            outputStream.write(moov);
+        }
+        return file;
+    }
+
+    private static byte[] tkhd(int trackId, int rotation) {
+        int[] matrix;
+        if (rotation == 90) {
+            matrix = new int[]{0, 0x10000, 0, -0x10000, 0, 0, 0, 0, 0x40000000};
+        } else {
+            matrix = new int[]{0x10000, 0, 0, 0, 0x10000, 0, 0, 0, 0x40000000};
+        }
+        return box("tkhd", ints(0x7, 0, 0, trackId, 0, 0, 0, 0, 0, 0), ints(matrix), ints(0, 0));
+    }
+
+    private static byte[] chunkOffsets(boolean co64, List<Long> chunks) {
+        ByteBuffer buffer = ByteBuffer.allocate(8 + chunks.size() * (co64 ? 8 : 4));
+        buffer.putInt(0).putInt(chunks.size());
+        for (long chunk : chunks) {
+            if (co64) {
+                buffer.putLong(chunk);
+            } else {
+                buffer.putInt((int) chunk);
+            }
+        }
+        return box(co64 ? "co64" : "stco", buffer.array());
+    }
+
+    private static byte[] videoTrak(Layout layout, List<Integer> chunkSamples, List<Long> chunks) {
+        int count = layout.videoSamples;
+        byte[] avc1 = box("avc1", shorts(0, 0, 0, 1), ints(0, 0, 0, 0), shorts(640, 360),
+                ints(0x480000, 0x480000, 0), shorts(1), new byte[32], shorts(0x18, -1));
+        byte[] stsd = box("stsd", ints(0, 1), avc1);
+        byte[] stts = box("stts", ints(0, 1, count, VIDEO_DELTA));
+        int half = count / 2;
+        byte[] ctts = box("ctts", ints(0, 2, half, VIDEO_DELTA, count - half, 2 * VIDEO_DELTA));
+        ByteBuffer stss = ByteBuffer.allocate(8 + ((count + layout.gop - 1) / layout.gop) * 4);
+        stss.putInt(0).putInt((count + layout.gop - 1) / layout.gop);
+        for (int i = 0; i < count; i += layout.gop) {
+            stss.putInt(i + 1);
+        }
+        ByteBuffer stsz = ByteBuffer.allocate(12 + count * 4);
+        stsz.putInt(0).putInt(0).putInt(count);
+        for (int i = 0; i < count; i++) {
+            stsz.putInt(layout.videoSize(i));
+        }
+        //相同样本数的连续chunk合并成一个stsc条目
+        ByteArrayOutputStream stsc = new ByteArrayOutputStream();
+        int entries = 0;
+        for (int i = 0; i < chunkSamples.size(); i++) {
+            if (i > 0 && chunkSamples.get(i).equals(chunkSamples.get(i - 1))) continue;
+            stsc.write(ints(i + 1, chunkSamples.get(i), 1), 0, 12);
+            entries++;
+        }
+        byte[] stbl = box("stbl", stsd, stts, ctts, box("stss", stss.array()), box("stsz", stsz.array()),
+                box("stsc", ints(0, entries), stsc.toByteArray()), chunkOffsets(layout.co64, chunks));
+        //开头空1.5秒，媒体从1000开始
+        byte[] edts = box("edts", box("elst", ints(0, 2, 1500, -1, 0x10000, count * VIDEO_DELTA / 30, 1000, 0x10000)));
+        byte[] mdia = box("mdia",
+                box("mdhd", ints(0, 0, 0, VIDEO_TIMESCALE, count * VIDEO_DELTA, 0)),
+                box("hdlr", ints(0, 0, type("vide"), 0, 0, 0), new byte[1]),
+                box("minf", stbl));
+        return box("trak", tkhd(1, layout.rotation), edts, mdia);
+    }
+
+    private static byte[] audioTrak(Layout layout, long chunk) {
+        int count = layout.audioSamples;
+        byte[] mp4a = box("mp4a", shorts(0, 0, 0, 1), ints(0, 0), shorts(2, 16, 0, 0), ints(44100 << 16));
+        List<Long> chunks = new ArrayList<>();
+        chunks.add(chunk);
+        byte[] stbl = box("stbl", box("stsd", ints(0, 1), mp4a),
+                box("stts", ints(0, 1, count, 1024)),
+                box("stsz", ints(0, AUDIO_SAMPLE_SIZE, count)),
+                box("stsc", ints(0, 1, 1, count, 1)),
+                chunkOffsets(layout.co64, chunks));
+        byte[] mdia = box("mdia",
+                box("mdhd", ints(0, 0, 0, 44100, count * 1024, 0)),
+                box("hdlr", ints(0, 0, type("soun"), 0, 0, 0), new byte[1]),
+                box("minf", stbl));
+        return box("trak", tkhd(2, 0), mdia);
+    }
+
+    @Test
+    public void trackInfo() throws IOException {
+        Layout layout = layout(90, 30, 43);
+        layout.rotation = 90;
+        Mp4Parser parser = Mp4Parser.open(write(layout));
+        assertFalse(parser.isFragmented());
+        assertEquals(2, parser.getTracks().size());
+        assertEquals(3000000, parser.getDurationUs());
+        Mp4Parser.Track video = parser.getVideoTrack();
+        assertEquals(1, video.trackId);
+        assertEquals("avc1", video.codec);
+        assertEquals(640, video.width);
+        assertEquals(360, video.height);
+        assertEquals(90, video.rotation);
+        assertEquals(3000000, video.getDurationUs());
+        assertEquals(1500000, video.editDelayUs);
+        assertEquals(1000, video.mediaStartTime);
+        Mp4Parser.Track audio = parser.getAudioTrack();
+        assertEquals("mp4a", audio.codec);
+        assertEquals(44100, audio.sampleRate);
+        assertEquals(2, audio.channelCount);
+        assertEquals(0, audio.rotation);
+    }
+
+    @Test
+    public void sampleTables() throws IOException {
+        Layout layout = layout(90, 30, 43);
+        Mp4Parser parser = Mp4Parser.open(write(layout));
+        Mp4Parser.SampleTable video = parser.getVideoTrack().samples();
+        assertSame(video, parser.getVideoTrack().samples());
+        assertEquals(90, video.getCount());
+        for (int i = 0; i < 90; i++) {
+            assertEquals(layout.videoOffsets[i], video.getOffset(i));
+            assertEquals(layout.videoSize(i), video.getSize(i));
+            assertEquals(i * VIDEO_DELTA, video.getDts(i));
+            assertEquals(i * VIDEO_DELTA + (i < 45 ? VIDEO_DELTA : 2 * VIDEO_DELTA), video.getPts(i));
+            assertEquals(i % 30 == 0, video.isSync(i));
+        }
+        assertEquals(3, video.getSyncCount());
+        assertEquals(60, video.getSyncSample(2));
+        assertEquals(90 * VIDEO_DELTA, video.getEndDts());
+        assertEquals(30, video.syncBefore(59));
+        assertEquals(60, video.syncBefore(60));
+        assertEquals(44, video.indexOfDts(44 * VIDEO_DELTA + 1));
+        assertEquals(-1, video.indexOfDts(-1));
+        assertEquals(89, video.indexOfDts(Long.MAX_VALUE));
+
+        Mp4Parser.SampleTable audio = parser.getAudioTrack().samples();
+        assertEquals(43, audio.getCount());
+        assertEquals(43, audio.getSyncCount());
+        assertEquals(layout.audioOffsets[42], audio.getOffset(42));
+        assertEquals(AUDIO_SAMPLE_SIZE, audio.getSize(42));
+        assertEquals(42 * 1024, audio.getPts(42));
+        assertEquals(42 * 1024 * 1000000L / 44100, audio.getPtsUs(42));
+    }
+
+    @Test
+    public void gopFromSampleTable() throws IOException {
+        GopAnalyzer.Result result = GopAnalyzer.analyze(write(layout(90, 30, 43)));
+        assertEquals(3, result.keyFrames);
+        assertEquals(90, result.samples);
+        assertEquals(3000000, result.durationUs);
+        assertEquals(1000000, result.maxGopUs);
+    }
+
+    @Test
+    public void co64AndLargeMdat() throws IOException {
+        Layout layout = layout(31, 10, 5);
+        layout.co64 = true;
+        layout.largeMdat = true;
+        Mp4Parser.SampleTable video = Mp4Parser.open(write(layout)).getVideoTrack().samples();
+        assertEquals(31, video.getCount());
+        assertEquals(layout.videoOffsets[0], video.getOffset(0));
+        assertEquals(layout.videoOffsets[30], video.getOffset(30));
+        assertEquals(4, video.getSyncCount());
+    }
+
+    @Test
+    public void fragmentedFileHasTracksOnly() throws IOException {
+        Mp4Parser parser = Mp4Parser.open(fragmented("parser_frag", 1280, 720, 60, 30));
+        assertTrue(parser.isFragmented());
+        Mp4Parser.Track video = parser.getVideoTrack();
+        assertEquals(1280, video.width);
+        assertEquals(720, video.height);
+        assertEquals(0, video.samples().getCount());
+    }
+
+    @Test
+    public void notMp4() throws IOException {
+        File file = tempFile("parser_bad");
+        try (FileOutputStream outputStream = new FileOutputStream(file)) {
+            outputStream.write("not a video file at all".getBytes(StandardCharsets.US_ASCII));
+        }
+        try {
+            Mp4Parser.open(file);
+            fail();
+        } catch (IOException e) {
+            //期望
+        }
+    }
+
+    @Test
+    @Ignore("基准测试，手动运行")
+    public void benchmark() throws IOException {
+        //1分钟30fps视频加AAC音频
+        List<File> files = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            files.add(write(layout(1800, 30, 2600)));
+        }
+        for (int round = 0; round < 3; round++) {
+            int probes = 0;
+            long samples = 0;
+            long start = System.nanoTime();
+            for (int repeat = 0; repeat < 10; repeat++) {
+                for (File file : files) {
+                    Mp4Parser parser = Mp4Parser.open(file);
+                    samples += parser.getVideoTrack().samples().getCount();
+                    samples += parser.getAudioTrack().samples().getCount();
+                    probes++;
+                }
+            }
+            double perSecond = probes / ((System.nanoTime() - start) / 1e9);
+            System.out.println("Mp4Parser#benchmark#round" + round + "#" + probes + "#" + samples + "samples#"
+                    + String.format("%.0f", perSecond) + "files/s");
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.galix.avcore.util.mp4;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * mp4测试共用的参数集、box拼装和测试文件
+ *
+ * @Author:Galis
+ * @Date:2022.04.28
+ */
+final class Mp4TestFiles {
+
+    static final byte[] SPS = {0, 0, 0, 1, 0x67, 0x42, (byte) 0xC0, 0x1F, 0x11, 0x22};
+    static final byte[] PPS = {0, 0, 0, 1, 0x68, (byte) 0xCE, 0x3C, (byte) 0x80};
+    static final byte[] ASC = {0x12, 0x10};
+    static final long FRAME_US = 1000000 / 30;
+
+    private Mp4TestFiles() {
+    }
+
+    static File tempFile(String prefix) throws IOException {
+        File file = File.createTempFile(prefix, ".mp4");
+        file.deleteOnExit();
+        return file;
+    }
+
+    static byte[] box(String type, byte[]... payloads) {
+        int size = 8;
+        for (byte[] payload : payloads) {
+            size += payload.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(size).put(type.getBytes(StandardCharsets.US_ASCII));
+        for (byte[] payload : payloads) {
+            buffer.put(payload);
+        }
+        return buffer.array();
+    }
+
+    static byte[] ints(int... values) {
+        ByteBuffer buffer = ByteBuffer.allocate(values.length * 4);
+        for (int value : values) {
+            buffer.putInt(value);
+        }
+        return buffer.array();
+    }
+
+    static byte[] shorts(int... values) {
+        ByteBuffer buffer = ByteBuffer.allocate(values.length * 2);
+        for (int value : values) {
+            buffer.putShort((short) value);
+        }
+        return buffer.array();
+    }
+
+    static int type(String fourcc) {
+        return ByteBuffer.wrap(fourcc.getBytes(StandardCharsets.US_ASCII)).getInt();
+    }
+
+    /**
+     * Annex-B格式的视频帧: 6字节AUD + 4字节起始码的slice
+     */
+    static ByteBuffer videoFrame(Random random, int size, boolean sync) {
+        ByteBuffer buffer = ByteBuffer.allocate(size + 10);
+        buffer.put(new byte[]{0, 0, 0, 1, 0x09, (byte) 0xF0});
+        buffer.put(new byte[]{0, 0, 0, 1, (byte) (sync ? 0x65 : 0x41)});
+        for (int i = 1; i < size; i++) {
+            buffer.put((byte) (random.nextInt(255) + 1));//不出现起始码
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    static ByteBuffer audioFrame(Random random, int size) {
+        byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        return ByteBuffer.wrap(bytes);
+    }
+
+    /**
+     * 只有视频轨的fMP4，30fps，每gop帧一个关键帧
+     */
+    static File fragmented(String prefix, int width, int height, int frames, int gop) throws IOException {
+        File file = tempFile(prefix);
+        Random random = new Random(1);
+        try (FragmentedMp4Writer writer = new FragmentedMp4Writer(file)) {
+            int video = writer.addTrack(Mp4Track.avc(width, height, SPS, PPS));
+            writer.start();
+            for (int i = 0; i < frames; i++) {
+                boolean sync = i % gop == 0;
+                writer.writeSample(video, videoFrame(random, 64, sync), i * FRAME_US, sync);
+            }
+            writer.stop();
+        }
+        return file;
+    }
+}